@@ -30,7 +30,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -48,7 +47,8 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.ainq.izgateway.extract.Utility;
-import com.ainq.izgateway.extract.Validator;
+import com.ainq.izgateway.extract.ValidationConfig;
+import com.ainq.izgateway.extract.ValidationSession;
 import com.ainq.izgateway.extract.model.TokenRequest;
 import com.ainq.izgateway.extract.model.TokenResponse;
 import com.ainq.izgateway.extract.model.UploadResponse;
@@ -82,6 +82,15 @@ public class APIController {
     Cache<String,TokenResponse> issued =
         CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.HOURS).build();
     private static final long TOKEN_DURATION = TimeUnit.HOURS.toMillis(1);
+    /**
+     * Configured to support medium [e.g., DCH only] or high level [DCH + additional checks]
+     * data quality validation restrictions.  Each upload is validated in its own session,
+     * so uploads can be validated at the same time.
+     */
+    private static final ValidationConfig VALIDATION_CONFIG = new ValidationConfig.Builder()
+        .setReportFolder(".")  // Put the report in the same folder as the input
+        .setUseJson(true)      // Do use JSON for the output report
+        .build();              // Use defaults for everything else, e.g., no converted outputs, no fixes
 
     @PostMapping(path="/token/gen", consumes="application/json", produces="application/json")
     public TokenResponse getToken(TokenRequest req) {
@@ -120,8 +129,6 @@ public class APIController {
 
     private UploadResponse uploadBody(InputStream body, String token) throws IOException {
         UploadResponse response = new UploadResponse();
-        // Create a validator configured to support medium [e.g., DCH only] or high level
-        // [DCH + additional checks] data quality validation restrictions.
 
         File outputFolder = Files.createTempDirectory("cvrs").toFile();
         File inputData = copyBodyToFile(body, outputFolder);
@@ -129,18 +136,9 @@ public class APIController {
         String files[] = { inputData.getAbsolutePath() };
 
         try {
-            Validator.validateFiles(
-                ".",    // Put the report in the same folder as the input
-                Validator.DEFAULT_MAX_ERRORS,   // Use default for max errors
-                Collections.emptySet(),   // Don't suppress any errors
-                Validator.DEFAULT_VERSION,  // Use the default version
-                true,   // Do use JSON for the output report
-                false,  // Don't use defaults for conversion (not really applicable)
-                false,  // Don't apply any fixes
-                null,   // Where to put converted HL7 outputs (not applicable)
-                null,   // Where to put converted CVRS outputs (not applicable)
-                files   // The file to  convert
-            );
+            try (ValidationSession session = new ValidationSession(VALIDATION_CONFIG)) {
+                session.validateFiles(files);
+            }
 
             File f = Utility.getNewFile("cvrs.in", outputFolder, "rpt.json");
             response = translateResponse(f);
@@ -0,0 +1,307 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An OutputStream for files that collects output in large buffers, and can write full
+ * buffers to the file on a dedicated writer thread, so that the thread producing output
+ * only waits on the disk when it gets several buffers ahead of it.
+ *
+ * Buffers are reused through a small ring, so no memory is allocated once output is flowing.
+ * The writer thread is only started when the first buffer fills, so small outputs are written
+ * by the calling thread when the stream is flushed or closed.  An error writing to the file
+ * is reported by the next call to write, flush or close.
+ *
+ * Text can be written with {@link #write(String, boolean)}, which encodes UTF-8 straight into
+ * the buffer.  Like other streams, this class is not thread safe, and callers sharing it
+ * (e.g., through a PrintStream) must synchronize.
+ */
+public class AsyncFileOutputStream extends OutputStream {
+    /** Size of each buffer */
+    public static final int BUFFER_SIZE = 256 * 1024;
+    /** Most buffers in use, including the one being filled */
+    private static final int BUFFERS = 4;
+    /** Longest UTF-8 byte sequence */
+    private static final int MAX_SEQUENCE = 4;
+
+    /** A buffer and the number of bytes in it */
+    private static final class Chunk {
+        private final byte data[];
+        private int length = 0;
+        private Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+    /** Tells the writer thread to stop */
+    private static final Chunk END = new Chunk(0);
+
+    private final FileOutputStream out;
+    private final boolean async;
+    /** Full buffers waiting to be written */
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(BUFFERS);
+    /** Buffers that have been written and can be filled again */
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFERS);
+    /** The number of buffers created */
+    private int allocated = 1;
+    /** The buffer being filled */
+    private Chunk current = new Chunk(BUFFER_SIZE);
+    /** The first half of a surrogate pair written at the end of the last string */
+    private char highSurrogate = 0;
+    private Thread writer = null;
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+    /**
+     * Open a file for writing.
+     * @param file  The file to write.
+     * @param async If true, full buffers are written on a dedicated thread.
+     * @throws FileNotFoundException If the file cannot be opened for writing.
+     */
+    public AsyncFileOutputStream(File file, boolean async) throws FileNotFoundException {
+        out = new FileOutputStream(file);
+        this.async = async;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current.length == current.data.length) {
+            submit(true);
+        }
+        current.data[current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        while (len > 0) {
+            if (current.length == current.data.length) {
+                submit(true);
+            }
+            int n = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, n);
+            current.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write text encoded as UTF-8.  Characters that cannot be encoded (unpaired surrogates)
+     * are written as ?, as the UTF-8 encoder used by PrintStream does.
+     * @param s The text to write.
+     * @param tabsToSpaces  If true, tabs are written as spaces (e.g., for a value in a tab delimited row).
+     * @throws IOException  If an error occured writing to the file.
+     */
+    public void write(String s, boolean tabsToSpaces) throws IOException {
+        byte data[] = current.data;
+        int pos = current.length, length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && highSurrogate == 0) {
+                if (pos == data.length) {
+                    current.length = pos;
+                    submit(true);
+                    data = current.data;
+                    pos = current.length;
+                }
+                data[pos++] = (byte) (c == '\t' && tabsToSpaces ? ' ' : c);
+            } else {
+                current.length = pos;
+                writeChar(c == '\t' && tabsToSpaces ? ' ' : c);
+                data = current.data;
+                pos = current.length;
+            }
+        }
+        current.length = pos;
+    }
+
+    /**
+     * Write a character that is not ASCII, or follows the first half of a surrogate pair.
+     */
+    private void writeChar(char c) throws IOException {
+        if (current.length > current.data.length - MAX_SEQUENCE) {
+            submit(true);
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                writeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            current.data[current.length++] = '?';
+        }
+        if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            current.data[current.length++] = '?';
+        } else {
+            writeCodePoint(c);
+        }
+    }
+
+    private void writeCodePoint(int cp) {
+        byte data[] = current.data;
+        int pos = current.length;
+        if (cp < 0x80) {
+            data[pos++] = (byte) cp;
+        } else if (cp < 0x800) {
+            data[pos++] = (byte) (0xC0 | (cp >> 6));
+            data[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            data[pos++] = (byte) (0xE0 | (cp >> 12));
+            data[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            data[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            data[pos++] = (byte) (0xF0 | (cp >> 18));
+            data[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            data[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            data[pos++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        current.length = pos;
+    }
+
+    /**
+     * Hand the current buffer to be written, and get another to fill.
+     * @param isFull    True if the buffer is full, which starts the writer thread if needed.
+     * @throws IOException  If an error occured writing to the file.
+     */
+    private void submit(boolean isFull) throws IOException {
+        checkError();
+        if (isFull && async && writer == null) {
+            writer = new Thread(this::writeBuffers, "Writer-" + Thread.currentThread().getName());
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if (writer == null) {
+            out.write(current.data, 0, current.length);
+            current.length = 0;
+            return;
+        }
+        try {
+            full.put(current);
+            current = free.poll();
+            if (current == null) {
+                if (allocated < BUFFERS) {
+                    allocated++;
+                    current = new Chunk(BUFFER_SIZE);
+                } else {
+                    current = free.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing output");
+        }
+    }
+
+    /**
+     * Write buffers to the file until told to stop.  This runs on the writer thread.
+     */
+    private void writeBuffers() {
+        try {
+            Chunk chunk;
+            while ((chunk = full.take()) != END) {
+                try {
+                    // After an error, keep taking buffers so that the producer does not wait forever.
+                    if (error == null) {
+                        out.write(chunk.data, 0, chunk.length);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                chunk.length = 0;
+                synchronized (free) {
+                    free.add(chunk);
+                    free.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Writer interrupted");
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException(error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Write everything written so far to the file, waiting for the writer thread to catch up.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (current.length > 0) {
+            submit(false);
+        }
+        if (writer != null) {
+            try {
+                synchronized (free) {
+                    // All buffers but the current one are back when the writer is idle.
+                    while (free.size() < allocated - 1 && writer.isAlive()) {
+                        free.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing output");
+            }
+        }
+        checkError();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                write('?');
+            }
+            if (writer == null) {
+                submit(false);
+            } else {
+                try {
+                    if (current.length > 0) {
+                        full.put(current);
+                    }
+                    full.put(END);
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    writer.interrupt();
+                    throw new InterruptedIOException("Interrupted while closing output");
+                }
+            }
+            checkError();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+}
@@ -16,12 +16,12 @@ import com.ainq.izgateway.extract.annotations.FieldValidator;
 import com.ainq.izgateway.extract.annotations.Requirement;
 import com.ainq.izgateway.extract.annotations.RequirementType;
 import com.ainq.izgateway.extract.annotations.V2Field;
-import com.ainq.izgateway.extract.validation.BeanValidator;
 import com.ainq.izgateway.extract.validation.DateValidator;
 import com.ainq.izgateway.extract.validation.DateValidatorIfKnown;
 import com.ainq.izgateway.extract.validation.PPRLValidator;
 import com.ainq.izgateway.extract.validation.Matches;
 import com.ainq.izgateway.extract.validation.RedactedValidator;
+import com.ainq.izgateway.extract.validation.SchemaSnapshot;
 import com.ainq.izgateway.extract.validation.ExtractTypeValidator;
 import com.ainq.izgateway.extract.validation.ValueSetValidator;
 import com.ainq.izgateway.extract.validation.ValueSetValidatorIfKnown;
@@ -32,8 +32,9 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.StringUtils;
 
 import com.opencsv.bean.CsvBindByName;
@@ -383,8 +384,8 @@ public class CVRSExtract implements CVRS {
         map = { "YES", "YES", "NO", "NO", "UNK", "UNK^Unknown^NullFlavor" } )
     private String serology;
 
-    private static String[] HEADERS = null;
-    private static String HEADER_VERSION = null;
+    /** Headers by version, where the empty string is used for an unknown version */
+    private static final Map<String, String[]> HEADERS = new ConcurrentHashMap<>();
 
     public CVRSExtract() {
 
@@ -409,22 +410,13 @@ public class CVRSExtract implements CVRS {
     }
 
     public static String[] getHeaders(String version) {
-        if (HEADERS == null || !StringUtils.defaultString(version).equals(StringUtils.defaultString(HEADER_VERSION))) {
-            List<String> headers = new ArrayList<>();
-            for (Field f: CVRSExtract.class.getDeclaredFields()) {
-                if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) == 0) {
-                    // If version is unknown, or the field is not known to be ignored in the specified
-                    // version, return it as a header.
-                    if (version == null ||
-                        BeanValidator.getRequirement(f, RequirementType.IGNORE, version) == null) {
-                        headers.add(f.getName());
-                    }
-                }
-            }
-            HEADERS = headers.toArray(new String[headers.size()]);
-            HEADER_VERSION = version;
-        }
-        return HEADERS;
+        return HEADERS.computeIfAbsent(StringUtils.defaultString(version), k -> computeHeaders(version));
+    }
+
+    private static String[] computeHeaders(String version) {
+        // If version is unknown, or the field is not known to be ignored in the specified
+        // version, return it as a header.
+        return SchemaSnapshot.get().getHeaders(version);
     }
 
     public String getField(String name) {
@@ -449,18 +441,14 @@ public class CVRSExtract implements CVRS {
     }
 
     void forEachField(boolean inHL7Order, FieldProcesser action) {
-        Field fields[] = getClass().getDeclaredFields();
-        if (inHL7Order) {
-            Arrays.sort(fields, Converter::compareFields);
-        }
-        for (Field f: fields) {
-            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) == 0) {
-                try {
-                    action.accept(f);
-                } catch (IllegalArgumentException | IllegalAccessException e1) {
-                    // TODO Auto-generated catch block
-                    e1.printStackTrace();
-                }
+        CVRSField hl7Order[] = inHL7Order ? SchemaSnapshot.get().getHL7Order() : null;
+        for (int i = 0; i < CVRSField.count(); i++) {
+            CVRSField field = hl7Order == null ? CVRSField.get(i) : hl7Order[i];
+            try {
+                action.accept(field.getField());
+            } catch (IllegalArgumentException | IllegalAccessException e1) {
+                // TODO Auto-generated catch block
+                e1.printStackTrace();
             }
         }
     }
@@ -533,21 +521,32 @@ public class CVRSExtract implements CVRS {
     }
 
     public Field notEqualsAt(CVRSExtract that) {
-        // So lazy.
-        return locateField (field -> {
-            String o1 = (String) field.get(this);
-            String o2 = (String) field.get(that);
+        CVRSField field = differsAt(that);
+        return field == null ? null : field.getField();
+    }
+
+    /**
+     * Find the first field which differs between two extracts, comparing fields by ordinal.
+     * Case is ignored, and null is treated as equal to the empty string.
+     * @param that  The extract to compare with.
+     * @return  The first field which differs, or null if the extracts are equal.
+     */
+    public CVRSField differsAt(CVRSExtract that) {
+        for (int i = 0; i < CVRSField.count(); i++) {
+            CVRSField field = CVRSField.get(i);
+            String o1 = field.get(this);
+            String o2 = field.get(that);
             if (o1 != o2) {
                 // Treat null == empty string for this comparison
                 if (StringUtils.isEmpty(o1) && StringUtils.isEmpty(o2)) {
-                    return false;
+                    continue;
                 }
                 if (o1 == null || o2 == null || !o1.equalsIgnoreCase(o2)) {
-                    return true;
+                    return field;
                 }
             }
-            return false;
-        });
+        }
+        return null;
     }
 
     public CVRSExtract clone() {
@@ -1223,15 +1222,16 @@ public class CVRSExtract implements CVRS {
      * TODO: Change the way we mark redacted fields using annotations.
      */
     public void redact() {
+        SchemaSnapshot schema = SchemaSnapshot.get();
         // For each field
-        forEachField(false, f -> {
-            FieldValidator val = f.getAnnotation(FieldValidator.class);
+        for (int i = 0; i < CVRSField.count(); i++) {
+            CVRSField field = CVRSField.get(i);
             // If it is validated using the RedactedValidator
-            if (val != null && val.validator().isAssignableFrom(RedactedValidator.class)) {
+            if (schema.isRedacted(field)) {
                 // Set the value to Redacted
-                f.set(this, "Redacted");
+                field.set(this, "Redacted");
             }
-        });
+        }
     }
 
     /**
@@ -1240,10 +1240,10 @@ public class CVRSExtract implements CVRS {
      */
     public boolean isRedacted() {
         // See if we can locate a field that hasn't been redacted that should be
+       SchemaSnapshot schema = SchemaSnapshot.get();
        Field unredacted = locateField(f -> {
-            FieldValidator val = f.getAnnotation(FieldValidator.class);
             // If it is validated using the RedactedValidator
-            if (val != null && val.validator().isAssignableFrom(RedactedValidator.class)) {
+            if (schema.isRedacted(CVRSField.forField(f))) {
                 // If the value is not redacted
                 if (!"Redacted".equalsIgnoreCase((String) f.get(this))) {
                     // If this field is not redacted, return true
@@ -0,0 +1,161 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precomputed accessor for a single data field of a CVRSExtract.
+ *
+ * CVRSField instances are created once, in the declaration order of CVRSExtract
+ * (the same order used by {@link CVRSExtract#getValues()}), so that code processing
+ * every record can read and write fields by ordinal without repeating reflective
+ * lookups on each call.
+ */
+public final class CVRSField {
+    /** All fields in declaration order */
+    private static final CVRSField[] FIELDS;
+    /** Fields indexed by lower case name */
+    private static final Map<String, CVRSField> BY_NAME;
+
+    static {
+        List<CVRSField> fields = new ArrayList<>();
+        Map<String, CVRSField> byName = new HashMap<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Field f: CVRSExtract.class.getDeclaredFields()) {
+            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) != 0) {
+                // Skip Static and transient fields.
+                continue;
+            }
+            f.setAccessible(true);
+            try {
+                CVRSField field = new CVRSField(fields.size(), f,
+                    lookup.unreflectGetter(f), lookup.unreflectSetter(f));
+                fields.add(field);
+                byName.put(f.getName().toLowerCase(), field);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access CVRSExtract field " + f.getName(), e);
+            }
+        }
+        FIELDS = fields.toArray(new CVRSField[fields.size()]);
+        BY_NAME = Collections.unmodifiableMap(byName);
+    }
+
+    private final int ordinal;
+    private final Field field;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    private CVRSField(int ordinal, Field field, MethodHandle getter, MethodHandle setter) {
+        this.ordinal = ordinal;
+        this.field = field;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    /**
+     * Get the number of data fields in a CVRSExtract.
+     * @return The number of data fields.
+     */
+    public static int count() {
+        return FIELDS.length;
+    }
+
+    /**
+     * Get the field at the specified position in declaration order.
+     * @param ordinal   The position of the field.
+     * @return  The field.
+     */
+    public static CVRSField get(int ordinal) {
+        return FIELDS[ordinal];
+    }
+
+    /**
+     * Find a field by name, ignoring case.
+     * @param name  The name of the field.
+     * @return  The field, or null if there is no field with that name.
+     */
+    public static CVRSField forName(String name) {
+        return name == null ? null : BY_NAME.get(name.toLowerCase());
+    }
+
+    /**
+     * Find the accessor for a reflected CVRSExtract field.
+     * @param f The field.
+     * @return  The accessor for the field, or null if it is not a data field.
+     */
+    public static CVRSField forField(Field f) {
+        CVRSField field = forName(f.getName());
+        return field != null && field.field.equals(f) ? field : null;
+    }
+
+    /**
+     * @return The position of this field in declaration order.
+     */
+    public int ordinal() {
+        return ordinal;
+    }
+
+    /**
+     * @return The name of this field.
+     */
+    public String getName() {
+        return field.getName();
+    }
+
+    /**
+     * @return The reflected field, used to access annotations.
+     */
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * Get the value of this field from an extract.
+     * @param extract   The extract to read.
+     * @return  The value of the field.
+     */
+    public String get(CVRSExtract extract) {
+        try {
+            return (String) getter.invokeExact(extract);
+        } catch (Throwable t) {
+            throw new RuntimeException("Error retrieving bean field: " + getName(), t);
+        }
+    }
+
+    /**
+     * Set the value of this field in an extract.
+     * @param extract   The extract to update.
+     * @param value The value to set.
+     */
+    public void set(CVRSExtract extract, String value) {
+        try {
+            setter.invokeExact(extract, value);
+        } catch (Throwable t) {
+            throw new RuntimeException("Error Setting bean field: " + getName() + " to '" + value + "'", t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
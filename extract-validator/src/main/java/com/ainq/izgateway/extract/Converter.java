@@ -65,6 +65,12 @@ public class Converter {
      */
     public final static String[] SEGMENT_ORDER = { "MSH", "PID", "ORC", "RXA", "RXR", "OBX" };
 
+    /**
+     * If true, messages are encoded by writing values straight into the message text,
+     * rather than by building and encoding a HAPI message.  Both produce the same text.
+     */
+    private static final boolean DIRECT_ENCODING = true;
+
     /**
      * Given an HL7 Message, and a validator, convert the message to a CVRSExtract,
      * applying default conversion rules.
@@ -141,6 +147,23 @@ public class Converter {
         return extract;
     }
 
+    /**
+     * Given the segments of an HL7 Message split by {@link HL7MessageReader#split(String)}, and a validator,
+     * convert the message to a CVRSExtract without parsing it with HAPI.
+     * @param message   The message to convert.
+     * @param validator The validator to use for validating outputs, may be null.
+     * @param useDefaults   If true, set default values.
+     * @return  The converted CVRSExtract, or null if the message must be parsed by HAPI.
+     */
+    static CVRSExtract fromHL7(HL7MessageReader.Segments message, BeanValidator validator, boolean useDefaults) {
+        String version = validator == null ? Validator.DEFAULT_VERSION : validator.getVersion();
+        CVRSExtract extract = HL7MessageReader.getReader(version).read(message);
+        if (extract != null && useDefaults) {
+            setDefaultValues(extract, version);
+        }
+        return extract;
+    }
+
     /**
      * Find the Obx3 Value to adjust or create a new one for the field.
      * @param message   The message to obtain content from
@@ -176,7 +199,7 @@ public class Converter {
      * @param ver  The version of the extract to work with, or null to use the default (most current)
      * version.
      */
-    private static void setDefaultValues(CVRSExtract extract, String ver) {
+    static void setDefaultValues(CVRSExtract extract, String ver) {
         String version = ver == null ? Validator.DEFAULT_VERSION : ver;
         EventType eventType = BeanValidator.getEventType(extract);
         extract.forEachField(true, field -> {
@@ -261,8 +284,6 @@ public class Converter {
         } catch (HL7Exception | IOException e2) {
             throw new RuntimeException("Cannot initialize VXU_V04", e2);
         }
-        Field[] fields = e.getClass().getDeclaredFields();
-        Arrays.sort(fields, Converter::compareFields);
         Terser terser = new Terser(message);
 
         e.forEachField(true, field -> {
@@ -300,17 +321,51 @@ public class Converter {
 
     /**
      * Convert and encode a CVRS Extract to an HL7 Message String.
-     * This method uses the HAPI V2 Library for HL7 V2 messaging.
+     * This method uses the HAPI V2 Library for HL7 V2 messaging when
+     * the message cannot be written directly (see {@link HL7MessageWriter}).
      * @param e The extract to convert and encode
      * @param version The CVRS Version to use for extraction
      * @return  The converted HL7 Message as a String
      * @throws HL7Exception If an exception occurs converting to HL7 (e.g., bad value for a data type)
      */
     public static String toHL7String(CVRSExtract e, String version) throws HL7Exception {
+        if (DIRECT_ENCODING) {
+            String encoded;
+            try {
+                encoded = HL7MessageWriter.getWriter(version).write(e);
+            } catch (IOException e2) {
+                throw new RuntimeException("Cannot initialize VXU_V04", e2);
+            }
+            if (encoded != null) {
+                return encoded;
+            }
+        }
         VXU_V04 message = toHL7(e, version);
         return message.encode();
     }
 
+    /**
+     * Encode a message converted from a CVRS Extract by {@link #toHL7(CVRSExtract, String)}.
+     * The message is written directly from the extract when possible (see {@link HL7MessageWriter}),
+     * using the timestamp and message control id of the converted message.
+     * @param message   The converted message.
+     * @param e The extract the message was converted from.
+     * @param version The CVRS Version used for the conversion
+     * @return  The encoded message.
+     * @throws HL7Exception If an exception occurs encoding the message.
+     */
+    public static String encode(VXU_V04 message, CVRSExtract e, String version) throws HL7Exception {
+        if (DIRECT_ENCODING) {
+            String encoded = HL7MessageWriter.getWriter(version).write(e,
+                message.getMSH().getDateTimeOfMessage().getTime().getValue(),
+                message.getMSH().getMessageControlID().getValue());
+            if (encoded != null) {
+                return encoded;
+            }
+        }
+        return message.encode();
+    }
+
     /**
      * Adjust values provided in an HL7 Primitive value to values that should appear within the CVRSExtract.
      * @param value The value to convert.
@@ -318,7 +373,7 @@ public class Converter {
      * @param map   A map of values used to convert between HL7 Message values and CVRS Extract value seets.
      * @return  The converted value.
      */
-    private static String adjustValuesToExtract(String value, FieldValidator val, String[] map) {
+    static String adjustValuesToExtract(String value, FieldValidator val, String[] map) {
         // Convert nulls to the empty string.
         if (value == null) {
             value = "";
@@ -398,7 +453,7 @@ public class Converter {
      * @param map   A map of values used to convert between HL7 Message values and CVRS Extract value seets.
      * @return  The converted value.
      */
-    private static String adjustValuesToHL7(String value, FieldValidator val, String[] map) {
+    static String adjustValuesToHL7(String value, FieldValidator val, String[] map) {
         if (val != null) {
             if (val.validator() == DateValidator.class || val.validator() == DateValidatorIfKnown.class) {
                 return value.replace("-", "");
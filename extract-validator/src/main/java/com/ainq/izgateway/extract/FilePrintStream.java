@@ -0,0 +1,101 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A UTF-8 PrintStream for output files, which writes strings and tab delimited rows
+ * straight into the buffer of an {@link AsyncFileOutputStream}, rather than through
+ * the character encoder of PrintStream.  Output is the same as for a PrintStream
+ * using UTF-8.
+ */
+final class FilePrintStream extends PrintStream {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private final AsyncFileOutputStream sink;
+
+    /**
+     * Open a file for printing.
+     * @param file  The file to write.
+     * @param async If true, the file is written on a dedicated thread.
+     * @throws FileNotFoundException If the file cannot be opened for writing.
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported.
+     */
+    FilePrintStream(File file, boolean async) throws FileNotFoundException, UnsupportedEncodingException {
+        this(new AsyncFileOutputStream(file, async));
+    }
+
+    private FilePrintStream(AsyncFileOutputStream sink) throws UnsupportedEncodingException {
+        super(sink, false, "UTF-8");
+        this.sink = sink;
+    }
+
+    @Override
+    public void print(String s) {
+        synchronized (this) {
+            try {
+                sink.write(s == null ? "null" : s, false);
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                setError();
+            }
+        }
+    }
+
+    @Override
+    public void print(char c) {
+        print(String.valueOf(c));
+    }
+
+    @Override
+    public void println() {
+        print(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void println(String s) {
+        synchronized (this) {
+            print(s);
+            println();
+        }
+    }
+
+    /**
+     * Print a tab delimited row, as {@link Utility#printRow(PrintStream, String[])} does.
+     * @param values    The values to print.
+     */
+    void printRow(String values[]) {
+        synchronized (this) {
+            try {
+                sink.write(values[0] == null ? "" : values[0], false);
+                for (int i = 1; i < values.length; i++) {
+                    sink.write('\t');
+                    if (values[i] != null) {
+                        sink.write(values[i], true);
+                    }
+                }
+                sink.write(LINE_SEPARATOR, false);
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                setError();
+            }
+        }
+    }
+}
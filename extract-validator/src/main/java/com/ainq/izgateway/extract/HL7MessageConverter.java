@@ -12,16 +12,21 @@ package com.ainq.izgateway.extract;
  * License for the specific language governing permissions and limitations
  * under the License.
  */
+import java.io.IOException;
 import java.io.Reader;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import com.ainq.izgateway.extract.validation.BeanValidator;
+
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
 
 public class HL7MessageConverter implements Iterable<CVRSExtract> {
     private HL7MessageParser parser;
     private boolean useDefaults = false;
     private BeanValidator validator = null;
+    private boolean strict = false;
 
     public HL7MessageConverter(Reader r, boolean useDefaults, BeanValidator validator) {
         parser = new HL7MessageParser(r);
@@ -41,27 +46,84 @@ public class HL7MessageConverter implements Iterable<CVRSExtract> {
         this(r, false, null);
     }
 
+    /**
+     * Set strict parsing.  By default, VXU messages are converted by reading values straight
+     * from the message text, and only other messages are parsed by HAPI.  In strict mode every
+     * message is parsed by HAPI, which rejects messages with structural or data type errors.
+     * @param strict    If true, parse every message with HAPI.
+     * @return this for fluent use.
+     */
+    public HL7MessageConverter setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
+    }
+
+    /**
+     * @return true if every message is parsed by HAPI.
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
     private class ConversionWrapper implements Iterator<CVRSExtract> {
-        private Iterator<Message> base;
+        private HL7MessageReader.Segments nextSegments = null;
+        private Message nextMessage = null;
+        private boolean finished = false;
         private int count = 0;
-        private ConversionWrapper(Iterator<Message> base) {
-            this.base = base;
-        }
         @Override
         public boolean hasNext() {
-            return base.hasNext();
+            if (nextSegments != null || nextMessage != null) {
+                return true;
+            }
+            if (finished) {
+                return false;
+            }
+            try {
+                String text = parser.nextMessageText();
+                if (text == null) {
+                    finished = true;
+                    return false;
+                }
+                if (!strict) {
+                    nextSegments = HL7MessageReader.split(text);
+                }
+                if (nextSegments == null) {
+                    nextMessage = parser.parse(text);
+                }
+            } catch (IOException | HL7Exception e) {
+                finished = true;
+                throw new RuntimeException("Exception parsing HL7 Message", e);
+            }
+            return true;
         }
         @Override
         public CVRSExtract next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
             count++;
-            Message msg = base.next();
+            if (nextSegments != null) {
+                HL7MessageReader.Segments segments = nextSegments;
+                nextSegments = null;
+                CVRSExtract extract = Converter.fromHL7(segments, validator, useDefaults);
+                if (extract != null) {
+                    return extract;
+                }
+                try {
+                    nextMessage = parser.parse(segments.getText());
+                } catch (HL7Exception e) {
+                    throw new RuntimeException("Exception parsing HL7 Message", e);
+                }
+            }
+            Message msg = nextMessage;
+            nextMessage = null;
             return Converter.fromHL7(msg, null, validator, useDefaults, count);
         }
     }
 
     @Override
     public Iterator<CVRSExtract> iterator() {
-        return new ConversionWrapper(parser.iterator());
+        return new ConversionWrapper();
     }
 
 }
@@ -33,8 +33,13 @@ import ca.uhn.hl7v2.parser.Parser;
  */
 public class HL7MessageParser implements Iterable<Message> {
 
-    /** Fixed HAPI Context to use for HL7 parsing */
-    private static final HapiContext HAPI_CONTEXT = new DefaultHapiContext();
+    /**
+     * Fixed HAPI Context to use for HL7 parsing, created when first needed so
+     * that the static methods of this class do not load HAPI.
+     */
+    private static final class HapiContextHolder {
+        private static final HapiContext HAPI_CONTEXT = new DefaultHapiContext();
+    }
 
     /**
      * Creates an Iterator that will run through all the messages
@@ -76,7 +81,7 @@ public class HL7MessageParser implements Iterable<Message> {
     }
 
     /** HAPI Parser to use for HL7 parsing */
-    private Parser parser = HAPI_CONTEXT.getGenericParser();
+    private Parser parser = HapiContextHolder.HAPI_CONTEXT.getGenericParser();
 
     /**
      * The number of messages read (regardless of whether they are valid)
@@ -114,6 +119,17 @@ public class HL7MessageParser implements Iterable<Message> {
     }
 
     public Message nextMessage() throws IOException, HL7Exception {
+        String text = nextMessageText();
+        return text == null ? null : parse(text);
+    }
+
+    /**
+     * Read the text of the next message, skipping batch headers and trailers.
+     * @return  The segments of the next message, each terminated by a carriage return,
+     * or null if there are no more messages.
+     * @throws IOException  If an error occured while reading.
+     */
+    String nextMessageText() throws IOException {
         StringBuffer b = new StringBuffer();
         String line;
         while ((line = br.readLine()) != null) {
@@ -137,13 +153,22 @@ public class HL7MessageParser implements Iterable<Message> {
             lineCount--;
             br.reset();
 
-            Message hapiMsg = parser.parse(b.toString());
-            return hapiMsg;
+            return b.toString();
         }
         // No more to read
         return null;
     }
 
+    /**
+     * Parse the text of a message with HAPI.
+     * @param text  The text of the message.
+     * @return  The parsed message.
+     * @throws HL7Exception If the message could not be parsed.
+     */
+    Message parse(String text) throws HL7Exception {
+        return parser.parse(text);
+    }
+
     /**
      * @return the msgCount
      */
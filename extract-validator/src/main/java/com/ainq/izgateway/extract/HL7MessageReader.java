@@ -0,0 +1,407 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.ainq.izgateway.extract.annotations.FieldValidator;
+import com.ainq.izgateway.extract.annotations.RequirementType;
+import com.ainq.izgateway.extract.annotations.V2Field;
+import com.ainq.izgateway.extract.validation.BeanValidator;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+import ca.uhn.hl7v2.parser.Escaping;
+import ca.uhn.hl7v2.parser.ParserConfiguration;
+import ca.uhn.hl7v2.validation.PrimitiveTypeRule;
+
+/**
+ * HL7MessageReader converts the text of an HL7 VXU message to a CVRSExtract without building
+ * a HAPI message.  The message is split into segments once, and the values needed for each field
+ * are then read straight from the text, using locations worked out once for each version of the
+ * CVRS from the V2Field annotations.
+ *
+ * The values read are the same as {@link Converter#fromHL7(ca.uhn.hl7v2.model.Message, List, BeanValidator, boolean, int)}
+ * gets from the parsed message, including unescaping and the corrections HAPI applies to each value.
+ * Only VXU^V04 messages in HL7 2.5.1 whose segments appear in the order given by the message structure
+ * are read this way; {@link #split(String)} returns null for other messages, which must be parsed by HAPI.
+ * Unlike HAPI, values are not checked against their data types, so messages containing invalid values
+ * are converted rather than rejected.
+ */
+final class HL7MessageReader {
+    /** Readers by CVRS version */
+    private static final Map<String, HL7MessageReader> READERS = new ConcurrentHashMap<>();
+    private static final Escaping ESCAPING = new ParserConfiguration().getEscaping();
+    private static final int MSH = HL7Position.MSH;
+
+    /**
+     * The segments of a VXU_V04 message, in order:
+     * MSH SFT* PID PD1 NK1* [PV1 PV2] GT1* [IN1 IN2 IN3]* [ORC [TQ1 TQ2*]* RXA RXR [OBX NTE*]*]*
+     */
+    private static final List<String> STRUCTURE = Arrays.asList(
+        "MSH", "SFT", "PID", "PD1", "NK1", "PV1", "PV2", "GT1", "IN1", "IN2", "IN3",
+        "ORC", "TQ1", "TQ2", "RXA", "RXR", "OBX", "NTE");
+    private static final List<String> REPEATING = Arrays.asList("SFT", "NK1", "GT1", "TQ2", "NTE");
+    /** The first and last segments of each group in STRUCTURE, with outer groups before those they contain */
+    private static final int GROUPS[][] = { group("PV1", "PV2"), group("IN1", "IN3"), group("ORC", "NTE"), group("TQ1", "TQ2"), group("OBX", "NTE") };
+    private static final int ORC = STRUCTURE.indexOf("ORC");
+
+    private static int[] group(String first, String last) {
+        return new int[] { STRUCTURE.indexOf(first), STRUCTURE.indexOf(last) };
+    }
+
+    private static final HL7Position MSH9_1 = position("MSH-9-1"), MSH9_2 = position("MSH-9-2"),
+        MSH9_3 = position("MSH-9-3"), MSH12 = position("MSH-12"), OBX2 = position("OBX-2"),
+        OBX3_CODE = position("OBX-3-1"), OBX3_SYSTEM = position("OBX-3-3"), OBX5 = position("OBX-5");
+
+    private static HL7Position position(String path) {
+        try {
+            return HL7Position.of(path);
+        } catch (HL7Exception e) {
+            throw new IllegalStateException("Cannot locate " + path, e);
+        }
+    }
+
+    /**
+     * How HAPI reads the value of OBX-5 for a data type in OBX-2.
+     */
+    private static final class ValueType {
+        private final Collection<PrimitiveTypeRule> rules;
+        /** True for primitive types, where subcomponent separators are left in the value */
+        private final boolean primitive;
+
+        private ValueType(Collection<PrimitiveTypeRule> rules, boolean primitive) {
+            this.rules = rules;
+            this.primitive = primitive;
+        }
+    }
+
+    /** Types of OBX-5 by the type in OBX-2 */
+    private static final Map<String, ValueType> OBX5_TYPES = new ConcurrentHashMap<>();
+    private static final ValueType UNKNOWN_TYPE = new ValueType(null, false);
+    private static final Pattern DATA_TYPE = Pattern.compile("[A-Z]{2,3}");
+
+    /**
+     * The segments of a message needed to convert it, and its delimiters.
+     */
+    static final class Segments {
+        private final String text;
+        private char fieldSeparator;
+        private EncodingCharacters encoding;
+        /** The segments in SEGMENT_ORDER from MSH to RXR, taken from the first ORDER group */
+        private final String segments[] = new String[HL7Position.OBX];
+        /** The OBX segments of all ORDER groups, and the types of their values */
+        private final List<String> obx = new ArrayList<>();
+        private final List<ValueType> obxTypes = new ArrayList<>();
+
+        private Segments(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return The text of the message.
+         */
+        String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Where a field of a CVRSExtract is read from the message.
+     */
+    private static final class FieldSlot {
+        private final Field field;
+        private final FieldValidator val;
+        private final V2Field v2Data;
+        private HL7Position value, alternate;
+        /** The code and coding system identifying the observation in OBX-3 for a value in an OBX segment */
+        private String obxCode, obxSystem;
+
+        private FieldSlot(Field field) {
+            this.field = field;
+            this.val = field.getAnnotation(FieldValidator.class);
+            this.v2Data = field.getAnnotation(V2Field.class);
+        }
+    }
+
+    private final List<FieldSlot> slots = new ArrayList<>();
+    /** False if the fields of CVRSExtract cannot be read without HAPI */
+    private boolean supported = true;
+
+    /**
+     * Get the reader for a version of the CVRS.
+     * @param version   The version of the CVRS, or null for the current version.
+     * @return The reader.
+     */
+    static HL7MessageReader getReader(String version) {
+        return READERS.computeIfAbsent(version == null ? Validator.DEFAULT_VERSION : version, HL7MessageReader::new);
+    }
+
+    private HL7MessageReader(String version) {
+        try {
+            compile(version);
+        } catch (HL7Exception | RuntimeException e) {
+            supported = false;
+        }
+    }
+
+    /**
+     * Work out where each field of a CVRSExtract is found in the message, as Converter.fromHL7 would find it.
+     * @param version   The version of the CVRS.
+     * @throws HL7Exception If a location does not exist in a VXU message.
+     */
+    private void compile(String version) throws HL7Exception {
+        List<Field> fields = new ArrayList<>();
+        new CVRSExtract().forEachField(true, fields::add);
+
+        for (Field field: fields) {
+            if (BeanValidator.getRequirement(field, RequirementType.IGNORE, version) != null) {
+                continue;
+            }
+            FieldSlot slot = new FieldSlot(field);
+            if (slot.v2Data == null) {
+                throw new IllegalStateException(field.getName() + " is not annotated.");
+            }
+            field.setAccessible(true);
+            if (slot.v2Data.obx3() != null && slot.v2Data.obx3().length() != 0) {
+                String obx3[] = slot.v2Data.obx3().split("\\^");
+                slot.obxCode = obx3.length > 0 ? obx3[0] : null;
+                slot.obxSystem = obx3.length > 2 ? obx3[2] : null;
+            } else {
+                slot.value = HL7Position.of(slot.v2Data.value());
+                if (slot.v2Data.alternate() != null && slot.v2Data.alternate().length() != 0) {
+                    slot.alternate = HL7Position.of(slot.v2Data.alternate());
+                }
+                if (slot.value.segment == HL7Position.OBX ||
+                    (slot.alternate != null && slot.alternate.segment == HL7Position.OBX)) {
+                    throw new IllegalStateException(field.getName() + " is not an observation value.");
+                }
+            }
+            slots.add(slot);
+        }
+    }
+
+    /**
+     * Split the text of a message into segments, checking that it can be read without HAPI.
+     * @param text  The text of the message, with segments terminated by a carriage return.
+     * @return  The segments of the message, or null if the message must be parsed by HAPI.
+     * @throws HL7Exception If the rules for an observation value could not be determined.
+     */
+    static Segments split(String text) throws HL7Exception {
+        if (text.length() < 8 || !text.startsWith("MSH")) {
+            return null;
+        }
+        Segments m = new Segments(text);
+        m.fieldSeparator = text.charAt(3);
+        int end = text.indexOf(m.fieldSeparator, 4);
+        if (end != 8 || text.indexOf('\r') < 8) {
+            return null;
+        }
+        String chars = text.substring(4, 8);
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (Character.isLetterOrDigit(c) || Character.isWhitespace(c) || c == m.fieldSeparator || chars.indexOf(c) != i) {
+                return null;
+            }
+        }
+        m.encoding = new EncodingCharacters(m.fieldSeparator, chars);
+
+        int last = -1, orders = 0;
+        for (int start = 0; start < text.length(); ) {
+            end = text.indexOf('\r', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            // As HAPI does, ignore leading whitespace and skip blank lines
+            while (start < end && Character.isWhitespace(text.charAt(start))) {
+                start++;
+            }
+            String segment = text.substring(start, end);
+            start = end + 1;
+            if (segment.length() < 3) {
+                continue;
+            }
+            if (segment.length() > 3 && segment.charAt(3) != m.fieldSeparator) {
+                return null;
+            }
+            int index = STRUCTURE.indexOf(segment.substring(0, 3));
+            if (index < 0 || !follows(last, index)) {
+                return null;
+            }
+            if (index == ORC) {
+                orders++;
+            }
+            last = index;
+
+            int order = Arrays.asList(Converter.SEGMENT_ORDER).indexOf(STRUCTURE.get(index));
+            if (order == HL7Position.OBX) {
+                ValueType type = getObx5Type(get(m, segment, OBX2, null));
+                if (type == null) {
+                    return null;
+                }
+                m.obx.add(segment);
+                m.obxTypes.add(type);
+            } else if (order >= 0 && (index < ORC || orders == 1)) {
+                m.segments[order] = segment;
+            }
+        }
+        String msh = m.segments[MSH];
+        if (!"VXU".equals(get(m, msh, MSH9_1, null)) || !"V04".equals(get(m, msh, MSH9_2, null)) ||
+            !HL7Position.HL7_VERSION.equals(get(m, msh, MSH12, null))) {
+            return null;
+        }
+        String structure = get(m, msh, MSH9_3, null);
+        if (structure != null && !"VXU_V04".equals(structure)) {
+            return null;
+        }
+        return m;
+    }
+
+    /**
+     * Check that a segment goes where HAPI would put it in the VXU_V04 structure, rather than
+     * adding it as a non-standard segment.
+     * @param last  The index in STRUCTURE of the last segment, or -1 at the start of the message.
+     * @param index The index in STRUCTURE of the segment.
+     * @return  true if the segment follows the last in the message structure.
+     */
+    private static boolean follows(int last, int index) {
+        boolean repeatsGroup = false;
+        for (int group[]: GROUPS) {
+            if (index >= group[0] && index <= group[1]) {
+                boolean inGroup = last >= group[0] && last <= group[1];
+                if (index != group[0] && !inGroup) {
+                    // A group can only be started by its first segment
+                    return false;
+                }
+                repeatsGroup |= index == group[0] && inGroup;
+            }
+        }
+        return index > last || (index == last && REPEATING.contains(STRUCTURE.get(index))) || repeatsGroup;
+    }
+
+    /**
+     * Get how HAPI reads the value of OBX-5 for an OBX-2 data type.
+     * @param type  The data type.
+     * @return  The type of the value, or null if HAPI must parse the message to determine it.
+     * @throws HL7Exception If the type could not be determined.
+     */
+    private static ValueType getObx5Type(String type) throws HL7Exception {
+        if (type == null || !DATA_TYPE.matcher(type).matches()) {
+            return null;
+        }
+        ValueType valueType = OBX5_TYPES.get(type);
+        if (valueType == null) {
+            Type t = HL7Position.newType(type);
+            valueType = t == null ? UNKNOWN_TYPE : new ValueType(HL7Position.getRules(t), t instanceof Primitive);
+            OBX5_TYPES.put(type, valueType);
+        }
+        return valueType == UNKNOWN_TYPE ? null : valueType;
+    }
+
+    /**
+     * Read a message as a CVRSExtract.
+     * @param m The segments of the message, from {@link #split(String)}.
+     * @return  The extract, or null if the message must be converted using HAPI.
+     */
+    CVRSExtract read(Segments m) {
+        if (!supported) {
+            return null;
+        }
+        CVRSExtract extract = new CVRSExtract();
+        for (FieldSlot slot: slots) {
+            String value;
+            if (slot.obxCode != null) {
+                value = "";
+                for (int i = 0; i < m.obx.size(); i++) {
+                    String obx = m.obx.get(i);
+                    if (slot.obxCode.equalsIgnoreCase(get(m, obx, OBX3_CODE, null)) &&
+                        (slot.obxSystem == null || slot.obxSystem.equalsIgnoreCase(get(m, obx, OBX3_SYSTEM, null)))) {
+                        value = Converter.adjustValuesToExtract(get(m, obx, OBX5, m.obxTypes.get(i)), slot.val, slot.v2Data.map());
+                        break;
+                    }
+                }
+            } else {
+                String content = get(m, m.segments[slot.value.segment], slot.value, null);
+                if ((content == null || content.length() == 0) && slot.alternate != null) {
+                    content = get(m, m.segments[slot.alternate.segment], slot.alternate, null);
+                }
+                value = Converter.adjustValuesToExtract(content, slot.val, slot.v2Data.map());
+            }
+            try {
+                slot.field.set(extract, value);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+        return extract;
+    }
+
+    /**
+     * Get a primitive value from a segment, as HAPI would parse it.
+     * @param m The message.
+     * @param segment   The text of the segment, or null if the segment is not present.
+     * @param p The position of the value.
+     * @param type  The type of an observation value, or null for other values.
+     * @return  The value, or null if it is not present.
+     */
+    private static String get(Segments m, String segment, HL7Position p, ValueType type) {
+        if (segment == null) {
+            return null;
+        }
+        // MSH-1 is the field separator, so MSH fields are one to the left of those in other segments
+        String value = part(segment, m.fieldSeparator, p.segment == MSH ? p.field - 1 : p.field);
+        value = part(value, m.encoding.getRepetitionSeparator(), p.rep);
+        value = part(value, m.encoding.getComponentSeparator(), p.comp - 1);
+        if (type == null || !type.primitive) {
+            value = part(value, m.encoding.getSubcomponentSeparator(), p.sub - 1);
+        }
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        if (value.indexOf(m.encoding.getEscapeCharacter()) >= 0) {
+            value = ESCAPING.unescape(value, m.encoding);
+        }
+        return type == null ? p.fix(value) : HL7Position.fix(type.rules, value);
+    }
+
+    /**
+     * Get the n-th part of a delimited string.
+     * @param text  The text to split, or null.
+     * @param delimiter The delimiter.
+     * @param n The part to get, starting from 0.
+     * @return  The part, or null if there are not that many parts.
+     */
+    private static String part(String text, char delimiter, int n) {
+        if (text == null) {
+            return null;
+        }
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            start = text.indexOf(delimiter, start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = text.indexOf(delimiter, start);
+        return end < 0 ? text.substring(start) : text.substring(start, end);
+    }
+}
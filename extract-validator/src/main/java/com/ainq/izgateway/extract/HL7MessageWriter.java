@@ -0,0 +1,389 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.annotations.FieldValidator;
+import com.ainq.izgateway.extract.annotations.RequirementType;
+import com.ainq.izgateway.extract.annotations.V2Field;
+import com.ainq.izgateway.extract.validation.BeanValidator;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.primitive.CommonTS;
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+import ca.uhn.hl7v2.parser.Escaping;
+import ca.uhn.hl7v2.parser.ParserConfiguration;
+
+/**
+ * HL7MessageWriter encodes a CVRSExtract as an HL7 VXU message in ER7 (pipe delimited) format
+ * without building a HAPI message.  Where each field goes in the message is worked out once
+ * for each version of the CVRS from the V2Field annotations, and values are then written
+ * straight into the MSH, PID, ORC, RXA, RXR and OBX segments.
+ *
+ * The text written is the same as encoding the message created by
+ * {@link Converter#toHL7(CVRSExtract, String)}, including the corrections and checks HAPI
+ * applies to each value, and the escaping of delimiters.  When a record cannot be written
+ * the same way (e.g., a value HAPI would reject), {@link #write(CVRSExtract, String, String)}
+ * returns null, and the HAPI message should be used instead.
+ */
+final class HL7MessageWriter {
+    /** Writers by CVRS version */
+    private static final Map<String, HL7MessageWriter> WRITERS = new ConcurrentHashMap<>();
+    private static final char FIELD_SEPARATOR = '|';
+    private static final String ENCODING_CHARACTERS = "^~\\&";
+    private static final EncodingCharacters ENCODING = new EncodingCharacters(FIELD_SEPARATOR, ENCODING_CHARACTERS);
+    private static final Escaping ESCAPING = new ParserConfiguration().getEscaping();
+    private static final String SPECIAL_CHARACTERS = FIELD_SEPARATOR + ENCODING_CHARACTERS;
+    private static final int MSH = HL7Position.MSH, OBX = HL7Position.OBX;
+
+    /**
+     * Where a field of a CVRSExtract is written in the message.
+     */
+    private static final class FieldSlot {
+        private final Field field;
+        private final FieldValidator val;
+        private final V2Field v2Data;
+        /** Index of the value in the skeleton, or -1 for a value in an OBX segment */
+        private int valueSlot = -1, systemSlot = -1;
+        /** The location of the value and coding system in an OBX segment */
+        private HL7Position valuePosition, systemPosition;
+        /** Values of OBX-2 and OBX-3 for a value in an OBX segment */
+        private String obxHeader[];
+
+        private FieldSlot(Field field) {
+            this.field = field;
+            this.val = field.getAnnotation(FieldValidator.class);
+            this.v2Data = field.getAnnotation(V2Field.class);
+        }
+    }
+
+    /** The skeleton: positions of values in MSH to RXR, in the order they appear in the message */
+    private final List<HL7Position> positions = new ArrayList<>();
+    /** Values set in every message, by skeleton index */
+    private String constants[];
+    private final List<FieldSlot> slots = new ArrayList<>();
+    private HL7Position obxHeaderPositions[];
+    /** For each value in the skeleton, the values in the previous repetition of its field */
+    private int previousRepetition[][];
+    private int timestampSlot, controlIdSlot;
+    /** False if the fields of CVRSExtract cannot be written without HAPI */
+    private boolean supported = true;
+
+    /**
+     * Get the writer for a version of the CVRS.
+     * @param version   The version of the CVRS, or null for the current version.
+     * @return The writer.
+     */
+    static HL7MessageWriter getWriter(String version) {
+        return WRITERS.computeIfAbsent(version == null ? Validator.DEFAULT_VERSION : version, HL7MessageWriter::new);
+    }
+
+    private HL7MessageWriter(String version) {
+        try {
+            compile(version);
+        } catch (HL7Exception | RuntimeException e) {
+            supported = false;
+        }
+    }
+
+    /**
+     * Work out where each field of a CVRSExtract goes in the message, as Converter.toHL7 would place it.
+     * @param version   The version of the CVRS.
+     * @throws HL7Exception If a location does not exist in a VXU message.
+     */
+    private void compile(String version) throws HL7Exception {
+        List<Field> fields = new ArrayList<>();
+        new CVRSExtract().forEachField(true, fields::add);
+
+        Map<HL7Position, String> skeleton = new TreeMap<>();
+        // The values set by Message.initQuickstart("VXU", "V04", "P")
+        skeleton.put(HL7Position.of("MSH-7-1"), null);
+        skeleton.put(HL7Position.of("MSH-9-1"), "VXU");
+        skeleton.put(HL7Position.of("MSH-9-2"), "V04");
+        skeleton.put(HL7Position.of("MSH-9-3"), "VXU_V04");
+        skeleton.put(HL7Position.of("MSH-10"), null);
+        skeleton.put(HL7Position.of("MSH-11"), "P");
+        skeleton.put(HL7Position.of("MSH-12"), HL7Position.HL7_VERSION);
+        obxHeaderPositions = new HL7Position[] {
+            HL7Position.of("OBX-2"), HL7Position.of("OBX-3-1"), HL7Position.of("OBX-3-2"), HL7Position.of("OBX-3-3")
+        };
+
+        for (Field field: fields) {
+            if (BeanValidator.getRequirement(field, RequirementType.IGNORE, version) != null) {
+                continue;
+            }
+            FieldSlot slot = new FieldSlot(field);
+            if (slot.v2Data == null) {
+                throw new IllegalStateException(field.getName() + " is not annotated.");
+            }
+            field.setAccessible(true);
+            HL7Position valuePosition = HL7Position.of(slot.v2Data.value());
+            HL7Position systemPosition = null;
+            if (slot.v2Data.system().length() != 0) {
+                String value = slot.v2Data.value();
+                systemPosition = HL7Position.of(StringUtils.substringBeforeLast(value, "-")
+                    + "-" + (Integer.parseInt(StringUtils.substringAfterLast(value, "-")) + 2));
+            }
+            if (slot.v2Data.obx3() != null && slot.v2Data.obx3().length() != 0) {
+                if (!valuePosition.isVaries()) {
+                    throw new IllegalStateException(field.getName() + " is not an observation value.");
+                }
+                String obx3[] = slot.v2Data.obx3().split("\\^");
+                slot.obxHeader = new String[obxHeaderPositions.length];
+                slot.obxHeader[0] = obxHeaderPositions[0].correct("CE");
+                for (int i = 0; i < obx3.length && i < 3; i++) {
+                    slot.obxHeader[i + 1] = obxHeaderPositions[i + 1].correct(obx3[i]);
+                }
+                slot.valuePosition = valuePosition;
+                slot.systemPosition = systemPosition;
+            } else {
+                if (valuePosition.segment == OBX || (systemPosition != null && systemPosition.segment == OBX)) {
+                    throw new IllegalStateException(field.getName() + " is not an observation value.");
+                }
+                skeleton.putIfAbsent(valuePosition, null);
+                if (systemPosition != null) {
+                    skeleton.putIfAbsent(systemPosition, null);
+                }
+                slot.valuePosition = valuePosition;
+                slot.systemPosition = systemPosition;
+            }
+            slots.add(slot);
+        }
+
+        positions.addAll(skeleton.keySet());
+        constants = new String[positions.size()];
+        for (int i = 0; i < constants.length; i++) {
+            String value = skeleton.get(positions.get(i));
+            constants[i] = value == null ? null : positions.get(i).correct(value);
+        }
+        previousRepetition = new int[positions.size()][];
+        for (int i = 0; i < positions.size(); i++) {
+            HL7Position p = positions.get(i);
+            previousRepetition[i] = p.rep == 0 ? null : IntStream.range(0, positions.size()).filter(j -> {
+                HL7Position q = positions.get(j);
+                return q.segment == p.segment && q.field == p.field && q.rep == p.rep - 1;
+            }).toArray();
+        }
+        for (FieldSlot slot: slots) {
+            if (slot.obxHeader == null) {
+                slot.valueSlot = positions.indexOf(slot.valuePosition);
+                if (slot.systemPosition != null) {
+                    slot.systemSlot = positions.indexOf(slot.systemPosition);
+                }
+            }
+        }
+        timestampSlot = positions.indexOf(HL7Position.of("MSH-7-1"));
+        controlIdSlot = positions.indexOf(HL7Position.of("MSH-10"));
+    }
+
+    /**
+     * Write an extract as an ER7 encoded VXU message, with a new timestamp and message control id
+     * in the header, as Message.initQuickstart would assign.
+     * @param e The extract to write.
+     * @return The encoded message, or null if it must be encoded by HAPI.
+     * @throws HL7Exception If the timestamp could not be formatted.
+     * @throws IOException  If the message control id could not be generated.
+     */
+    String write(CVRSExtract e) throws HL7Exception, IOException {
+        if (!supported || e.getClass() != CVRSExtract.class) {
+            return null;
+        }
+        String timestamp = CommonTS.toHl7TSFormat(new GregorianCalendar());
+        String controlId = new ParserConfiguration().getIdGenerator().getID();
+        return write(e, timestamp, controlId);
+    }
+
+    /**
+     * Write an extract as an ER7 encoded VXU message.
+     * @param e The extract to write.
+     * @param timestamp The timestamp of the message (MSH-7).
+     * @param controlId The message control id (MSH-10).
+     * @return The encoded message, or null if it must be encoded by HAPI.
+     */
+    String write(CVRSExtract e, String timestamp, String controlId) {
+        if (!supported || e.getClass() != CVRSExtract.class) {
+            return null;
+        }
+        String values[] = constants.clone();
+        values[timestampSlot] = timestamp;
+        values[controlIdSlot] = controlId;
+        // Observations are inserted before those already present, so they are written in reverse
+        List<Map<HL7Position, String>> observations = new ArrayList<>();
+
+        for (FieldSlot slot: slots) {
+            String value;
+            try {
+                value = Converter.adjustValuesToHL7((String) slot.field.get(e), slot.val, slot.v2Data.map());
+            } catch (IllegalAccessException ex) {
+                return null;
+            }
+            if (value == null || value.trim().length() == 0) {
+                continue;
+            }
+            if (slot.obxHeader != null) {
+                Map<HL7Position, String> obx = new TreeMap<>();
+                for (int i = 0; i < obxHeaderPositions.length; i++) {
+                    obx.put(obxHeaderPositions[i], slot.obxHeader[i]);
+                }
+                if (value.contains("^")) {
+                    String parts[] = value.split("\\^");
+                    for (int i = 0; i < parts.length; i++) {
+                        HL7Position p = slot.valuePosition.part(i);
+                        if (p == null || !set(obx, p, parts[i])) {
+                            return null;
+                        }
+                    }
+                } else if (!set(obx, slot.valuePosition, value)) {
+                    return null;
+                }
+                if (slot.systemPosition != null && !set(obx, slot.systemPosition, slot.v2Data.system())) {
+                    return null;
+                }
+                observations.add(0, obx);
+            } else {
+                if (!set(values, slot.valueSlot, slot.valuePosition, value) ||
+                    (slot.systemSlot >= 0 && !set(values, slot.systemSlot, slot.systemPosition, slot.v2Data.system()))) {
+                    return null;
+                }
+            }
+        }
+
+        StringBuilder b = new StringBuilder(1024);
+        int start = 0;
+        for (int segment = 0; segment < OBX; segment++) {
+            int end = start;
+            while (end < positions.size() && positions.get(end).segment == segment) {
+                end++;
+            }
+            appendSegment(b, segment, positions.subList(start, end), Arrays.asList(values).subList(start, end));
+            start = end;
+        }
+        for (Map<HL7Position, String> obx: observations) {
+            appendSegment(b, OBX, obx.keySet(), obx.values());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Set a value in the skeleton, as Terser.set would.
+     * @param values    The values of the skeleton.
+     * @param slot  The index of the value in the skeleton.
+     * @param p The position of the value.
+     * @param value The value.
+     * @return  false if HAPI would fail to set the value.
+     */
+    private boolean set(String values[], int slot, HL7Position p, String value) {
+        if (previousRepetition[slot] != null &&
+            Arrays.stream(previousRepetition[slot]).allMatch(i -> values[i] == null)) {
+            // HAPI can only add a repetition after the last one present
+            return false;
+        }
+        return (values[slot] = p.correct(value)) != null;
+    }
+
+    private static boolean set(Map<HL7Position, String> obx, HL7Position p, String value) {
+        value = p.correct(value);
+        if (value == null) {
+            return false;
+        }
+        obx.put(p, value);
+        return true;
+    }
+
+    /**
+     * Append a segment, with the delimiters needed between its values.  As HAPI does,
+     * trailing delimiters are not written, and segments without values are skipped.
+     * @param b Where to append the segment.
+     * @param segment   The index of the segment in Converter.SEGMENT_ORDER.
+     * @param positions The positions of the values, in order.
+     * @param values    The values at each position, where null or empty values are not written.
+     */
+    private static void appendSegment(StringBuilder b, int segment, Collection<HL7Position> positions, Collection<String> values) {
+        int length = b.length();
+        b.append(Converter.SEGMENT_ORDER[segment]);
+        int field = 0, rep = 0, comp = 1, sub = 1;
+        if (segment == MSH) {
+            b.append(FIELD_SEPARATOR).append(ENCODING_CHARACTERS);
+            field = 2;
+        }
+        boolean empty = true;
+        Iterator<String> v = values.iterator();
+        for (HL7Position p: positions) {
+            String value = v.next();
+            if (value == null || value.length() == 0) {
+                continue;
+            }
+            empty = false;
+            if (p.field > field) {
+                repeat(b, FIELD_SEPARATOR, p.field - field);
+                field = p.field;
+                rep = 0;
+                comp = sub = 1;
+            }
+            if (p.rep > rep) {
+                repeat(b, ENCODING.getRepetitionSeparator(), p.rep - rep);
+                rep = p.rep;
+                comp = sub = 1;
+            }
+            if (p.comp > comp) {
+                repeat(b, ENCODING.getComponentSeparator(), p.comp - comp);
+                comp = p.comp;
+                sub = 1;
+            }
+            if (p.sub > sub) {
+                repeat(b, ENCODING.getSubcomponentSeparator(), p.sub - sub);
+                sub = p.sub;
+            }
+            b.append(escape(value));
+        }
+        if (empty && segment != MSH) {
+            b.setLength(length);
+        } else {
+            b.append('\r');
+        }
+    }
+
+    private static void repeat(StringBuilder b, char c, int count) {
+        for (int i = 0; i < count; i++) {
+            b.append(c);
+        }
+    }
+
+    /**
+     * Escape delimiters in a value as HAPI does.
+     * @param value The value to escape.
+     * @return  The escaped value.
+     */
+    private static String escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (SPECIAL_CHARACTERS.indexOf(value.charAt(i)) >= 0) {
+                return ESCAPING.escape(value, ENCODING);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,236 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.Varies;
+import ca.uhn.hl7v2.model.v251.message.VXU_V04;
+import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.validation.PrimitiveTypeRule;
+import ca.uhn.hl7v2.validation.ValidationContext;
+
+/**
+ * The location of a primitive value within a segment of a VXU message, and the HAPI rules
+ * for values at that location.  This is used by {@link HL7MessageWriter} and {@link HL7MessageReader}
+ * to work with the text of a message in the same way HAPI would.
+ */
+final class HL7Position implements Comparable<HL7Position> {
+    static final int MSH = 0, OBX = Converter.SEGMENT_ORDER.length - 1;
+
+    /** A message used to look up the type of each location */
+    private static final VXU_V04 PROTOTYPE = new VXU_V04();
+    private static final ValidationContext CONTEXT = PROTOTYPE.getParser().getValidationContext();
+    /** The version of HL7 used for messages */
+    static final String HL7_VERSION = PROTOTYPE.getVersion();
+
+    /** The index of the segment in Converter.SEGMENT_ORDER */
+    final int segment;
+    final int field, rep, comp, sub;
+    /** The number of parts given in the path to this position, from 2 (SEG-1) to 4 (SEG-1-2-3) */
+    final int depth;
+    private final Collection<PrimitiveTypeRule> rules;
+
+    private HL7Position(int segment, int field, int rep, int comp, int sub, int depth, Collection<PrimitiveTypeRule> rules) {
+        this.segment = segment;
+        this.field = field;
+        this.rep = rep;
+        this.comp = comp;
+        this.sub = sub;
+        this.depth = depth;
+        this.rules = rules;
+    }
+
+    /**
+     * Locate a value in the message from a path of the form used in V2Field (e.g., PID-3(1)-1).
+     * @param path  The path.
+     * @return  The position of the value.
+     * @throws HL7Exception If the path does not exist in a VXU message.
+     */
+    static HL7Position of(String path) throws HL7Exception {
+        String parts[] = path.split("-");
+        int segment = Arrays.asList(Converter.SEGMENT_ORDER).indexOf(parts[0]);
+        if (segment < 0 || parts.length < 2 || parts.length > 4) {
+            throw new HL7Exception("Cannot locate " + path);
+        }
+        int field, rep = 0;
+        if (parts[1].contains("(")) {
+            field = Integer.parseInt(StringUtils.substringBefore(parts[1], "("));
+            rep = Integer.parseInt(StringUtils.substringBetween(parts[1], "(", ")"));
+        } else {
+            field = Integer.parseInt(parts[1]);
+        }
+        int comp = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+        int sub = parts.length > 3 ? Integer.parseInt(parts[3]) : 1;
+        if (segment == MSH && field < 3) {
+            throw new HL7Exception("Cannot locate " + path);
+        }
+        return new HL7Position(segment, field, rep, comp, sub, parts.length, getRules(segment, field, comp, sub));
+    }
+
+    /**
+     * Get the rules HAPI applies to a primitive value in the prototype message.
+     * The prototype is shared, and creates structures as they are visited, so access is synchronized.
+     */
+    private static synchronized Collection<PrimitiveTypeRule> getRules(int segment, int field, int comp, int sub) throws HL7Exception {
+        Type type = prototypeSegment(segment).getField(field, 0);
+        if (type instanceof Varies) {
+            return Collections.emptyList();
+        }
+        Primitive p = Terser.getPrimitive(type, comp, sub);
+        return new ArrayList<>(CONTEXT.getPrimitiveRules(HL7_VERSION, p.getName(), p));
+    }
+
+    /**
+     * Create a value of the given type, as HAPI does for the value of an OBX-5 of that type.
+     * @param type  The HL7 V2 data type.
+     * @return  The value, or null if the type is unknown.
+     * @throws HL7Exception If the type could not be found.
+     */
+    static synchronized Type newType(String type) throws HL7Exception {
+        Class<? extends Type> c = PROTOTYPE.getModelClassFactory().getTypeClass(type, HL7_VERSION);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.getConstructor(Message.class).newInstance(PROTOTYPE);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the rules HAPI applies to the first primitive value in a value.
+     * @param t The value.
+     * @return  The rules.
+     * @throws HL7Exception If the first primitive could not be found.
+     */
+    static synchronized Collection<PrimitiveTypeRule> getRules(Type t) throws HL7Exception {
+        Primitive p = Terser.getPrimitive(t, 1, 1);
+        return new ArrayList<>(CONTEXT.getPrimitiveRules(HL7_VERSION, p.getName(), p));
+    }
+
+    /**
+     * Get the segment of the prototype message which a position refers to.
+     * @param segment   The index of the segment in Converter.SEGMENT_ORDER.
+     * @return  The segment.
+     * @throws HL7Exception If the segment is not supported.
+     */
+    private static Segment prototypeSegment(int segment) throws HL7Exception {
+        switch (Converter.SEGMENT_ORDER[segment]) {
+        case "MSH": return PROTOTYPE.getMSH();
+        case "PID": return PROTOTYPE.getPID();
+        case "ORC": return PROTOTYPE.getORDER().getORC();
+        case "RXA": return PROTOTYPE.getORDER().getRXA();
+        case "RXR": return PROTOTYPE.getORDER().getRXR();
+        case "OBX": return PROTOTYPE.getORDER().getOBSERVATION().getOBX();
+        default:
+            throw new HL7Exception("Cannot locate " + Converter.SEGMENT_ORDER[segment]);
+        }
+    }
+
+    /**
+     * @return true if this position is in the observation value (OBX-5), whose type is given by OBX-2.
+     */
+    boolean isVaries() {
+        return segment == OBX && field == 5;
+    }
+
+    /**
+     * Get the position of the i-th part of a value at this position, as used for OBX values containing ^.
+     * @param i The part, starting from 0.
+     * @return  The position of the part, or null if it cannot be located.
+     */
+    HL7Position part(int i) {
+        switch (depth) {
+        case 2:
+            return new HL7Position(segment, field, rep, i + 1, 1, 3, rules);
+        case 3:
+            return new HL7Position(segment, field, rep, comp, i + 1, 4, rules);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Apply the rules HAPI applies when setting a value at this position.
+     * @param value The value to set.
+     * @return  The corrected value, or null if HAPI would reject it.
+     */
+    String correct(String value) {
+        return correct(rules, value);
+    }
+
+    /**
+     * Apply rules as HAPI does when setting a primitive value.
+     * @param rules The rules to apply.
+     * @param value The value to set.
+     * @return  The corrected value, or null if HAPI would reject it.
+     */
+    static String correct(Collection<PrimitiveTypeRule> rules, String value) {
+        for (PrimitiveTypeRule rule: rules) {
+            value = rule.correct(value);
+            if (rule.apply(value).length != 0) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Apply the corrections HAPI makes when setting a primitive value, without rejecting it.
+     * @param rules The rules to apply.
+     * @param value The value to set.
+     * @return  The corrected value.
+     */
+    static String fix(Collection<PrimitiveTypeRule> rules, String value) {
+        for (PrimitiveTypeRule rule: rules) {
+            value = rule.correct(value);
+        }
+        return value;
+    }
+
+    String fix(String value) {
+        return fix(rules, value);
+    }
+
+    @Override
+    public int compareTo(HL7Position o) {
+        int comp = Integer.compare(segment, o.segment);
+        if (comp == 0) { comp = Integer.compare(field, o.field); }
+        if (comp == 0) { comp = Integer.compare(rep, o.rep); }
+        if (comp == 0) { comp = Integer.compare(this.comp, o.comp); }
+        if (comp == 0) { comp = Integer.compare(sub, o.sub); }
+        return comp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HL7Position && compareTo((HL7Position) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((((segment * 31 + field) * 31 + rep) * 31 + comp) * 31) + sub;
+    }
+}
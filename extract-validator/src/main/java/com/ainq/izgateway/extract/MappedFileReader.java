@@ -0,0 +1,171 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Reader for UTF-8 files that decodes directly from a memory mapped view of the file.
+ *
+ * Runs of ASCII characters (which make up nearly all of a CVRS extract) are copied
+ * straight from the mapped region into the caller's buffer.  Other characters are
+ * decoded one sequence at a time, replacing malformed input as InputStreamReader does.
+ * Files larger than a single mapping are read through a series of mapped regions.
+ */
+public class MappedFileReader extends Reader {
+    /** Size of each mapped region of the file */
+    private static final long REGION_SIZE = 256L * 1024 * 1024;
+    /** Longest UTF-8 byte sequence */
+    private static final int MAX_SEQUENCE = 4;
+
+    private final FileChannel channel;
+    /** Offset just past the last byte to read */
+    private final long end;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** Holds decoded characters for a single non-ASCII sequence */
+    private final CharBuffer decoded = CharBuffer.allocate(2);
+    private MappedByteBuffer region;
+    /** Offset of the current region in the file */
+    private long regionStart = 0;
+    /** The second half of a surrogate pair that did not fit in the last read */
+    private int pending = -1;
+    private boolean closed = false;
+
+    /**
+     * Open a file for mapped reading.
+     * @param path  The file to read.
+     * @throws IOException  If the file cannot be opened or mapped.
+     */
+    public MappedFileReader(Path path) throws IOException {
+        this(path, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Open part of a file for mapped reading.  The part should begin and end
+     * on character boundaries, e.g., at the start of a line.
+     * @param path  The file to read.
+     * @param start The offset of the first byte to read.
+     * @param end   The offset just past the last byte to read (limited to the size of the file).
+     * @throws IOException  If the file cannot be opened or mapped.
+     */
+    public MappedFileReader(Path path, long start, long end) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.end = Math.min(end, channel.size());
+        map(Math.min(start, this.end));
+    }
+
+    private void map(long start) throws IOException {
+        regionStart = start;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, end - start));
+    }
+
+    private boolean isLastRegion() {
+        return regionStart + region.limit() >= end;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        if (pending >= 0) {
+            cbuf[off + count++] = (char) pending;
+            pending = -1;
+        }
+        while (count < len) {
+            // Move to the next region before a UTF-8 sequence could be split across two of them.
+            if (region.remaining() < MAX_SEQUENCE && !isLastRegion()) {
+                map(regionStart + region.position());
+            }
+            if (!region.hasRemaining()) {
+                break;
+            }
+
+            // ASCII fast path
+            int p = region.position(), n = Math.min(len - count, region.remaining()), i = 0;
+            byte b;
+            while (i < n && (b = region.get(p + i)) >= 0) {
+                cbuf[off + count + i++] = (char) b;
+            }
+            region.position(p + i);
+            count += i;
+
+            if (i < n) {
+                count += decodeOne(cbuf, off + count, len - count);
+            }
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    /**
+     * Decode a single non-ASCII sequence at the current position.
+     * @param cbuf  The buffer to decode to.
+     * @param off   The position in the buffer to write to.
+     * @param len   The available space in the buffer (at least 1).
+     * @return  The number of characters written.
+     */
+    private int decodeOne(char[] cbuf, int off, int len) {
+        int limit = region.limit();
+        int start = region.position();
+        region.limit(Math.min(limit, start + MAX_SEQUENCE));
+        decoded.clear();
+        decoder.decode(region, decoded, false);
+        if (region.position() == start && decoded.position() == 0) {
+            // A truncated sequence at the end of the file, let the decoder replace it.
+            decoder.decode(region, decoded, true);
+            decoder.reset();
+        }
+        region.limit(limit);
+        decoded.flip();
+        int count = 0;
+        while (decoded.hasRemaining() && count < len) {
+            cbuf[off + count++] = decoded.get();
+        }
+        if (decoded.hasRemaining()) {
+            pending = decoded.get();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return !closed && (pending >= 0 || regionStart + region.position() < end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            region = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.annotations.ExtractType;
+
+/**
+ * Generates privacy preserving record linkage (PPRL) tokens for the pprl_id of a record from
+ * the recipient's first and last name, date of birth, sex and zip code, so that an identified
+ * extract can be turned into a PPRL (P) extract while it is validated.  Values are normalized
+ * (names to upper case letters, dates and zip codes to digits) before they are encoded, so that
+ * differences in formatting do not change the token.
+ *
+ * Two encodings are supported, both keyed by a secret shared by the sites producing tokens:
+ * <ul>
+ * <li>hash: An HMAC-SHA256 of the normalized values, which matches only when all values match.</li>
+ * <li>bloom: A Bloom filter (cryptographic long-term key) of the bigrams in each value, which allows
+ * approximate matching.  Each field has its own SipHash key, derived once from the secret.</li>
+ * </ul>
+ * Tokens are Base64 encoded.  A tokenizer reuses its buffers, so each thread should use its own
+ * {@link #copy()}.
+ */
+public final class PPRLTokenizer {
+    /** The ways a token can be encoded */
+    public enum Encoding {
+        HASH, BLOOM
+    }
+    /** The fields used to create a token */
+    private static final CVRSField FIELDS[] = {
+        CVRSField.forName("recip_first_name"), CVRSField.forName("recip_last_name"),
+        CVRSField.forName("recip_dob"), CVRSField.forName("recip_sex"), CVRSField.forName("recip_address_zip")
+    };
+    private static final int FIRST_NAME = 0, LAST_NAME = 1, DOB = 2, SEX = 3, ZIP = 4;
+    private static final String HMAC = "HmacSHA256";
+    /** The pprl_id has a maximum length of 100 characters, which holds 600 bits in Base64 */
+    public static final int MAX_BITS = 600;
+    public static final int DEFAULT_BITS = 500, DEFAULT_HASHES = 10;
+
+    private final Encoding encoding;
+    private final SecretKeySpec key;
+    private final int bits, hashes;
+    /** SipHash keys for each field, as k0, k1 pairs, used for the bloom encoding */
+    private final long seeds[];
+
+    /** Buffers reused for each record */
+    private final Mac mac;
+    private char text[] = new char[64];
+    private byte bytes[] = new byte[128];
+    private final int ends[] = new int[FIELDS.length];
+    private final byte filter[];
+
+    /**
+     * Create a tokenizer.
+     * @param secret    The secret key shared by the sites producing tokens.
+     * @param encoding  The encoding to use.
+     * @param bits  The size of the Bloom filter in bits, at most {@link #MAX_BITS}.
+     * @param hashes    The number of bits set in the Bloom filter for each bigram.
+     * @throws IllegalArgumentException If the parameters are invalid.
+     */
+    public PPRLTokenizer(byte secret[], Encoding encoding, int bits, int hashes) {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("A PPRL key is required");
+        }
+        if (bits <= 0 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("PPRL Bloom filter size must be from 1 to " + MAX_BITS + " bits: " + bits);
+        }
+        if (hashes <= 0) {
+            throw new IllegalArgumentException("PPRL Bloom filter hash count must be positive: " + hashes);
+        }
+        this.encoding = encoding;
+        this.key = new SecretKeySpec(secret, HMAC);
+        this.bits = bits;
+        this.hashes = hashes;
+        this.mac = newMac(key);
+        this.filter = new byte[(bits + 7) / 8];
+        // Derive a key for each field from the secret
+        seeds = new long[FIELDS.length * 2];
+        for (int i = 0; i < FIELDS.length; i++) {
+            byte digest[] = mac.doFinal(FIELDS[i].getName().getBytes(StandardCharsets.UTF_8));
+            seeds[2 * i] = getLong(digest, 0);
+            seeds[2 * i + 1] = getLong(digest, 8);
+        }
+    }
+
+    private PPRLTokenizer(PPRLTokenizer other) {
+        this.encoding = other.encoding;
+        this.key = other.key;
+        this.bits = other.bits;
+        this.hashes = other.hashes;
+        this.seeds = other.seeds;
+        this.mac = newMac(key);
+        this.filter = new byte[(bits + 7) / 8];
+    }
+
+    /**
+     * Load a tokenizer from a properties file, with the properties key (the secret, required),
+     * encoding (hash or bloom, defaults to hash), bloom.bits (defaults to 500), and bloom.hashes
+     * (defaults to 10).
+     * @param file  The file to load.
+     * @return  The tokenizer.
+     * @throws IOException  If the file cannot be read.
+     * @throws IllegalArgumentException If the file does not contain a valid configuration.
+     */
+    public static PPRLTokenizer load(Path file) throws IOException {
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(r);
+        }
+        String secret = p.getProperty("key");
+        if (StringUtils.isBlank(secret)) {
+            throw new IllegalArgumentException("No PPRL key in " + file);
+        }
+        return new PPRLTokenizer(secret.trim().getBytes(StandardCharsets.UTF_8),
+            Encoding.valueOf(p.getProperty("encoding", "hash").trim().toUpperCase()),
+            Integer.parseInt(p.getProperty("bloom.bits", Integer.toString(DEFAULT_BITS)).trim()),
+            Integer.parseInt(p.getProperty("bloom.hashes", Integer.toString(DEFAULT_HASHES)).trim()));
+    }
+
+    /**
+     * Create a tokenizer with the same configuration as this one, for use on another thread.
+     * @return  The new tokenizer.
+     */
+    public PPRLTokenizer copy() {
+        return new PPRLTokenizer(this);
+    }
+
+    /**
+     * @return The encoding used for tokens.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Fill in the pprl_id of a record, and mark it as a PPRL extract.  The record
+     * should be redacted afterwards.
+     * @param extract   The record.
+     */
+    public void apply(CVRSExtract extract) {
+        extract.setPprl_id(tokenize(extract));
+        extract.setExt_type(ExtractType.PPRL.getCode());
+    }
+
+    /**
+     * Compute the token for a record.
+     * @param extract   The record.
+     * @return  The token, or null if the record is missing the first name, last name or date of birth
+     * needed to create it.
+     */
+    public String tokenize(CVRSExtract extract) {
+        int length = 0;
+        for (int i = 0; i < FIELDS.length; i++) {
+            length = normalize(i, FIELDS[i].get(extract), length);
+            ends[i] = length;
+        }
+        if (ends[FIRST_NAME] == 0 || ends[LAST_NAME] == ends[FIRST_NAME] || ends[DOB] == ends[LAST_NAME]) {
+            // ends holds where each value ends, so a value is missing when it ends where the previous one does
+            return null;
+        }
+        return encoding == Encoding.HASH ? hash() : bloom();
+    }
+
+    /**
+     * Append the normalized value of a field to the text buffer.
+     * @param field The index of the field in FIELDS.
+     * @param value The value.
+     * @param length    The length of the text already in the buffer.
+     * @return  The new length of the text in the buffer.
+     */
+    private int normalize(int field, String value, int length) {
+        if (value == null || Redactor.REDACTED.equalsIgnoreCase(value)) {
+            // Tokens cannot be created from redacted data
+            return length;
+        }
+        int n = value.length(), start = length;
+        if (length + n > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, length + n));
+        }
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            switch (field) {
+            case FIRST_NAME:
+            case LAST_NAME:
+                if (Character.isLetter(c)) {
+                    text[length++] = Character.toUpperCase(c);
+                }
+                break;
+            case SEX:
+                if (Character.isLetter(c)) {
+                    // Only the first letter (e.g., F for Female)
+                    text[length++] = Character.toUpperCase(c);
+                    return length;
+                }
+                break;
+            case ZIP:
+                if (c >= '0' && c <= '9') {
+                    text[length++] = c;
+                    if (length - start == 5) {
+                        // Only the first five digits
+                        return length;
+                    }
+                }
+                break;
+            default:
+                if (c >= '0' && c <= '9') {
+                    text[length++] = c;
+                }
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode the normalized values as an HMAC, with each value followed by a separator.
+     * @return  The token.
+     */
+    private String hash() {
+        int size = (ends[ends.length - 1] + ends.length) * 2;
+        if (size > bytes.length) {
+            bytes = new byte[Math.max(bytes.length * 2, size)];
+        }
+        int pos = 0, start = 0;
+        for (int end: ends) {
+            for (int i = start; i < end; i++) {
+                bytes[pos++] = (byte) (text[i] >> 8);
+                bytes[pos++] = (byte) text[i];
+            }
+            bytes[pos++] = 0;
+            bytes[pos++] = '|';
+            start = end;
+        }
+        mac.update(bytes, 0, pos);
+        return Base64.getEncoder().encodeToString(mac.doFinal());
+    }
+
+    /**
+     * Encode the normalized values as a Bloom filter of the bigrams of each value,
+     * padded with a space at each end.
+     * @return  The token.
+     */
+    private String bloom() {
+        Arrays.fill(filter, (byte) 0);
+        int start = 0;
+        for (int field = 0; field < ends.length; field++) {
+            int end = ends[field];
+            if (end > start) {
+                long k0 = seeds[2 * field], k1 = seeds[2 * field + 1];
+                char previous = ' ';
+                for (int i = start; i <= end; i++) {
+                    char c = i < end ? text[i] : ' ';
+                    long h = sipHash(k0, k1, ((long) c << 16) | previous, 4);
+                    // Double hashing to choose the bits for this bigram
+                    long h1 = h & 0xFFFFFFFFL, h2 = (h >>> 32) | 1;
+                    for (int j = 0; j < hashes; j++) {
+                        int bit = (int) Long.remainderUnsigned(h1 + j * h2, bits);
+                        filter[bit >> 3] |= 1 << (bit & 7);
+                    }
+                    previous = c;
+                }
+            }
+            start = end;
+        }
+        return Base64.getEncoder().encodeToString(filter);
+    }
+
+    /**
+     * Compute SipHash-2-4 of a message of less than 8 bytes.
+     * @param k0    The first half of the key.
+     * @param k1    The second half of the key.
+     * @param m The message, little endian.
+     * @param length    The length of the message in bytes.
+     * @return  The hash.
+     */
+    static long sipHash(long k0, long k1, long m, int length) {
+        long v0 = k0 ^ 0x736f6d6570736575L, v1 = k1 ^ 0x646f72616e646f6dL,
+             v2 = k0 ^ 0x6c7967656e657261L, v3 = k1 ^ 0x7465646279746573L;
+        long b = ((long) length << 56) | m;
+        v3 ^= b;
+        for (int i = 0; i < 2; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= b;
+        v2 ^= 0xff;
+        for (int i = 0; i < 4; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static long getLong(byte b[], int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " is not available", e);
+        }
+    }
+}
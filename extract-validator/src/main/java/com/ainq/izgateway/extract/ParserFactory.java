@@ -16,8 +16,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ainq.izgateway.extract.validation.BeanValidator;
 import com.opencsv.CSVParser;
@@ -28,10 +33,12 @@ import com.opencsv.bean.CsvToBean;
 import com.opencsv.bean.CsvToBeanBuilder;
 import com.opencsv.bean.exceptionhandler.CsvExceptionHandler;
 import com.opencsv.exceptions.CsvException;
+import com.opencsv.exceptions.CsvRequiredFieldEmptyException;
 
 public class ParserFactory extends CSVParser {
     public static class TooManyErrorsHandler implements CsvExceptionHandler {
-        private int count = 0;
+        /** Shared by readers working on different parts of a file in parallel */
+        private final AtomicInteger count = new AtomicInteger();
         private int maxErrors = Validator.DEFAULT_MAX_ERRORS;
         public TooManyErrorsHandler() {
         }
@@ -47,13 +54,273 @@ public class ParserFactory extends CSVParser {
         public CsvException handleException(CsvException e) throws CsvException {
             if (maxErrors == 1)
                 throw e;
-            if (maxErrors > 0 && count++ >= maxErrors) {
+            if (maxErrors > 0 && count.getAndIncrement() >= maxErrors) {
                 throw new CsvException("Too many errors");
             }
             return e;
         }
     }
 
+    /**
+     * A reader for tab delimited CVRS files.  This splits each line on tabs in place over
+     * a reusable character buffer, and fills the CVRSExtract directly through the
+     * field accessors in {@link CVRSField}, mapping columns to fields once from the
+     * header row rather than on every record.
+     *
+     * It follows the same rules as the CsvToBean reader created by
+     * {@link ParserFactory#newTabDelimitedBeanReader(Reader, BeanValidator, int)}:
+     * lines end at CR, LF or CR-LF, no quoting or escaping is applied, rows whose
+     * field count does not match the header are reported to the exception handler
+     * and skipped, and fields without a matching header are left null.
+     */
+    public static class TabDelimitedReader implements Iterable<CVRSExtract> {
+        /** Initial size of the line buffer, grown as needed for long lines */
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private final Reader reader;
+        private final BeanValidator validator;
+        private final CsvExceptionHandler handler;
+        private char buffer[] = new char[BUFFER_SIZE];
+        private int pos = 0, limit = 0;
+        private boolean eof = false;
+        /** Boundaries of the most recently read line */
+        private int lineStart, lineEnd;
+        /** Boundaries of the fields in the most recently read line */
+        private int starts[] = new int[64], ends[] = new int[64];
+        private int fieldCount = 0;
+        /** The field for each column, or null if the column is not bound */
+        private CVRSField columns[] = null;
+        /** Number of lines read so far, including the header */
+        private long lineNumber = 0;
+        private boolean iterating = false;
+
+        /**
+         * Create a new reader.
+         * @param r The reader to read from, positioned at the header row.
+         * @param validator A validator to verify each record with (may be null).
+         * @param maxErrors The maximum number of errors before processing stops (0 for the default).
+         */
+        public TabDelimitedReader(Reader r, BeanValidator validator, int maxErrors) {
+            this.reader = r;
+            this.validator = validator;
+            this.handler = new TooManyErrorsHandler(maxErrors);
+        }
+
+        /**
+         * Create a new reader for part of a file whose header row has already been read.
+         * @param r The reader to read from, positioned at the start of a data row.
+         * @param headers   The column names from the header row.
+         * @param validator A validator to verify each record with (may be null).
+         * @param handler   The handler for errors found while reading, which may be shared by
+         * readers for other parts of the same file.
+         */
+        public TabDelimitedReader(Reader r, String headers[], BeanValidator validator, CsvExceptionHandler handler) {
+            this.reader = r;
+            this.validator = validator;
+            this.handler = handler;
+            setColumns(headers);
+        }
+
+        @Override
+        public Iterator<CVRSExtract> iterator() {
+            if (iterating) {
+                throw new IllegalStateException("A TabDelimitedReader can only be iterated once");
+            }
+            iterating = true;
+            return new Iterator<CVRSExtract>() {
+                private CVRSExtract next = null;
+                @Override
+                public boolean hasNext() {
+                    if (next == null) {
+                        try {
+                            next = readNext();
+                        } catch (IOException e) {
+                            throw new RuntimeException("Exception reading tab delimited file", e);
+                        } catch (CsvException e) {
+                            throw new RuntimeException(e.getMessage(), e);
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public CVRSExtract next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    CVRSExtract result = next;
+                    next = null;
+                    return result;
+                }
+            };
+        }
+
+        /**
+         * Get the number of lines read so far, including the header.
+         * @return  The number of lines read.
+         */
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * Read the next record that can be bound, skipping rows reported to the exception handler.
+         * @return  The next record, or null at the end of the input.
+         * @throws IOException  If an error occured while reading.
+         * @throws CsvException If the exception handler rejected an error.
+         */
+        private CVRSExtract readNext() throws IOException, CsvException {
+            if (columns == null && !readHeader()) {
+                return null;
+            }
+            while (readLine()) {
+                tokenize();
+                try {
+                    if (fieldCount != columns.length) {
+                        throw new CsvRequiredFieldEmptyException(CVRSExtract.class,
+                            "Number of data fields does not match number of headers.");
+                    }
+                    CVRSExtract extract = new CVRSExtract();
+                    for (int i = 0; i < fieldCount; i++) {
+                        if (columns[i] != null) {
+                            columns[i].set(extract, new String(buffer, starts[i], ends[i] - starts[i]));
+                        }
+                    }
+                    if (validator == null || validator.verifyBean(extract)) {
+                        return extract;
+                    }
+                } catch (CsvException e) {
+                    e.setLineNumber(lineNumber);
+                    // Throws if there are too many errors, otherwise skip the row.
+                    handler.handleException(e);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Read the header row and compute the field bound to each column.
+         * @return false if the input is empty.
+         * @throws IOException  If an error occured while reading.
+         */
+        private boolean readHeader() throws IOException {
+            if (!readLine()) {
+                return false;
+            }
+            tokenize();
+            String headers[] = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                headers[i] = new String(buffer, starts[i], ends[i] - starts[i]);
+            }
+            setColumns(headers);
+            return true;
+        }
+
+        /**
+         * Compute the field bound to each column.
+         * @param headers   The column names from the header row.
+         */
+        private void setColumns(String headers[]) {
+            Set<Field> ignored = new HashSet<>();
+            if (validator != null) {
+                ignored.addAll(BeanValidator.getIgnoredFields(validator.getVersion()));
+            }
+            columns = new CVRSField[headers.length];
+            for (int i = 0; i < headers.length; i++) {
+                CVRSField f = CVRSField.forName(headers[i]);
+                columns[i] = f == null || ignored.contains(f.getField()) ? null : f;
+            }
+        }
+
+        /**
+         * Split the current line into fields at each tab.
+         */
+        private void tokenize() {
+            fieldCount = 0;
+            int start = lineStart;
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (buffer[i] == '\t') {
+                    addField(start, i);
+                    start = i + 1;
+                }
+            }
+            addField(start, lineEnd);
+        }
+
+        private void addField(int start, int end) {
+            if (fieldCount == starts.length) {
+                starts = Arrays.copyOf(starts, fieldCount * 2);
+                ends = Arrays.copyOf(ends, fieldCount * 2);
+            }
+            starts[fieldCount] = start;
+            ends[fieldCount++] = end;
+        }
+
+        /**
+         * Locate the next line in the buffer, reading more input as needed.
+         * Lines end at a CR, LF or CR-LF as for {@link BufferedReader#readLine()}.
+         * @return  false at the end of the input.
+         * @throws IOException  If an error occured while reading.
+         */
+        private boolean readLine() throws IOException {
+            int scan = pos;
+            while (true) {
+                for (; scan < limit; scan++) {
+                    char c = buffer[scan];
+                    if (c == '\n' || c == '\r') {
+                        if (c == '\r' && scan + 1 == limit && !eof) {
+                            // Need the next character to recognize CR-LF
+                            scan -= fill();
+                        }
+                        lineStart = pos;
+                        lineEnd = scan;
+                        pos = scan + 1;
+                        if (c == '\r' && pos < limit && buffer[pos] == '\n') {
+                            pos++;
+                        }
+                        lineNumber++;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (pos < limit) {
+                        // Last line has no line terminator.
+                        lineStart = pos;
+                        lineEnd = limit;
+                        pos = limit;
+                        lineNumber++;
+                        return true;
+                    }
+                    return false;
+                }
+                scan -= fill();
+            }
+        }
+
+        /**
+         * Move unread content to the front of the buffer and read more.
+         * @return  The distance unread content was moved.
+         * @throws IOException  If an error occured while reading.
+         */
+        private int fill() throws IOException {
+            int shift = pos;
+            if (shift != 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+            return shift;
+        }
+    }
+
     public static CSVParser newCSVParser() {
         CSVParserBuilder b = new CSVParserBuilder();
         b.withIgnoreLeadingWhiteSpace(false)
@@ -97,6 +364,17 @@ public class ParserFactory extends CSVParser {
         return b.build();
     }
 
+    /**
+     * Create a reader for tab delimited CVRS files that binds fields without using CsvToBean.
+     * @param r The reader to read from, positioned at the header row.
+     * @param validator A validator to verify each record with (may be null).
+     * @param maxErrors The maximum number of errors before processing stops (0 for the default).
+     * @return  A new TabDelimitedReader.
+     */
+    public static TabDelimitedReader newTabDelimitedReader(Reader r, BeanValidator validator, int maxErrors) {
+        return new TabDelimitedReader(r, validator, maxErrors);
+    }
+
     public static CsvToBean<CVRSExtract> newCSVBeanReader(Reader r, BeanValidator validator, int maxErrors) {
         CsvToBeanBuilder<CVRSExtract> b = new CsvToBeanBuilder<CVRSExtract>(r);
         // Accept defaults for CSV Formatted files
@@ -133,7 +411,7 @@ public class ParserFactory extends CSVParser {
             return new HL7MessageConverter(br, useDefaults, validator);
         }
         if (line.contains("\t")) {
-            return newTabDelimitedBeanReader(br, validator, 0);
+            return newTabDelimitedReader(br, validator, 0);
         }
         return newCSVBeanReader(br, validator, 0);
     }
@@ -0,0 +1,306 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ainq.izgateway.extract.validation.BeanValidator;
+import com.ainq.izgateway.extract.validation.RedactedValidator;
+import com.ainq.izgateway.extract.validation.SchemaSnapshot;
+
+/**
+ * Redacts a tab delimited CVRS file without validating it, for de-identifying extracts
+ * before they are shared.  The columns to redact (those validated by {@link RedactedValidator},
+ * as for {@link CVRSExtract#redact()}) are found once from the header row.  Each row is
+ * then copied as bytes, with the value of each of those columns replaced by "Redacted",
+ * and everything else (including line endings) written unchanged.
+ *
+ * Rows whose field count does not match the header are not written, since the values
+ * in them cannot be matched to columns.  Tab delimited files are read as for
+ * {@link ParserFactory.TabDelimitedReader}: lines end at CR, LF or CR-LF, and no quoting
+ * or escaping is applied.
+ */
+public final class Redactor {
+    /** The value written in place of redacted data */
+    public static final String REDACTED = "Redacted";
+    private static final byte REDACTED_BYTES[] = REDACTED.getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte TAB = '\t', CR = '\r', LF = '\n';
+    private static final byte BOM[] = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+    /** The fields which are redacted, by ordinal */
+    private static final boolean REDACTED_FIELDS[] = new boolean[CVRSField.count()];
+    static {
+        for (int i = 0; i < REDACTED_FIELDS.length; i++) {
+            REDACTED_FIELDS[i] = SchemaSnapshot.get().isRedacted(CVRSField.get(i));
+        }
+    }
+
+    private final InputStream in;
+    private final BeanValidator counter;
+    private byte buffer[] = new byte[BUFFER_SIZE];
+    private int pos = 0, limit = 0;
+    private boolean eof = false;
+    /** Boundaries of the most recently read line, and the end of its line terminator */
+    private int lineStart, lineEnd, nextLine;
+    /** Boundaries of the fields in the most recently read line */
+    private int starts[] = new int[64], ends[] = new int[64];
+    private int fieldCount = 0;
+    /** True for each column which is redacted, or null if there is no header row */
+    private boolean redacted[];
+    /** The field counted for each column, or null if the column is not counted */
+    private CVRSField counted[];
+    /** Redacted fields which are counted but not present in the file */
+    private CVRSField absent[];
+    private int count = 0, skipped = 0;
+
+    /**
+     * Create a new redactor.
+     * @param in    The file to read, positioned at the header row.
+     * @param counter   A validator to count the redacted values with for the redaction report,
+     * or null to skip counting.
+     */
+    public Redactor(InputStream in, BeanValidator counter) {
+        this.in = in;
+        this.counter = counter;
+    }
+
+    /**
+     * Read the header row, and find the columns to redact.
+     * @return  false if the input is not a tab delimited file (e.g., HL7 messages), which cannot be redacted
+     * this way.  An empty input is treated as a tab delimited file with no rows.
+     * @throws IOException  If an error occured while reading.
+     */
+    public boolean readHeader() throws IOException {
+        if (!readLine()) {
+            return true;
+        }
+        tokenize();
+        String headers[] = getHeaders();
+        if (fieldCount == 1 || HL7MessageParser.isMessageDelimiter(headers[0])) {
+            return false;
+        }
+        setColumns(headers);
+        return true;
+    }
+
+    /**
+     * Write the redacted file, after {@link #readHeader()} has found it to be tab delimited.
+     * @param out   Where to write the redacted file.
+     * @throws IOException  If an error occured while reading or writing.
+     */
+    public void redact(OutputStream out) throws IOException {
+        if (redacted == null) {
+            return;
+        }
+        // Write the header row as it was read.
+        out.write(buffer, lineStart, nextLine - lineStart);
+
+        while (readLine()) {
+            tokenize();
+            if (fieldCount != redacted.length) {
+                skipped++;
+                continue;
+            }
+            count++;
+            int start = lineStart;
+            for (int i = 0; i < fieldCount; i++) {
+                if (redacted[i]) {
+                    out.write(buffer, start, starts[i] - start);
+                    out.write(REDACTED_BYTES);
+                    start = ends[i];
+                }
+            }
+            out.write(buffer, start, nextLine - start);
+            if (counter != null) {
+                count();
+            }
+        }
+    }
+
+    /**
+     * @return The number of rows written, not including the header.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of rows not written because their field count did not match the header.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the column names from the header row, ignoring any Byte Order Mark.
+     * @return  The column names.
+     */
+    private String[] getHeaders() {
+        String headers[] = new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            int start = starts[i];
+            if (i == 0 && ends[i] - start >= BOM.length &&
+                Arrays.equals(Arrays.copyOfRange(buffer, start, start + BOM.length), BOM)) {
+                start += BOM.length;
+            }
+            headers[i] = new String(buffer, start, ends[i] - start, StandardCharsets.UTF_8);
+        }
+        return headers;
+    }
+
+    /**
+     * Compute the columns which are redacted and counted.  Fields which are not used in
+     * the version being validated are not counted, as in {@link ParserFactory.TabDelimitedReader}.
+     * @param headers   The column names from the header row.
+     */
+    private void setColumns(String headers[]) {
+        Set<Field> ignored = new HashSet<>();
+        if (counter != null) {
+            ignored.addAll(BeanValidator.getIgnoredFields(counter.getVersion()));
+        }
+        redacted = new boolean[headers.length];
+        counted = new CVRSField[headers.length];
+        boolean present[] = new boolean[CVRSField.count()];
+        for (int i = 0; i < headers.length; i++) {
+            CVRSField f = CVRSField.forName(headers[i]);
+            if (f != null) {
+                redacted[i] = REDACTED_FIELDS[f.ordinal()];
+                present[f.ordinal()] = true;
+                counted[i] = ignored.contains(f.getField()) ? null : f;
+            }
+        }
+        // Redacted fields missing from the file are still set to Redacted when records are redacted
+        List<CVRSField> missing = new ArrayList<>();
+        for (int i = 0; i < present.length; i++) {
+            CVRSField f = CVRSField.get(i);
+            if (REDACTED_FIELDS[i] && !present[i] && !ignored.contains(f.getField())) {
+                missing.add(f);
+            }
+        }
+        absent = missing.toArray(new CVRSField[missing.size()]);
+    }
+
+    /**
+     * Count the values of the current row as the validator would count the redacted record.
+     * The counts only compare values with ASCII text, so values are decoded as ISO-8859-1,
+     * which gives the same result as UTF-8 for those comparisons but does not need to decode.
+     */
+    private void count() {
+        for (int i = 0; i < fieldCount; i++) {
+            if (counted[i] != null) {
+                counter.countField(counted[i], redacted[i] ? REDACTED :
+                    new String(buffer, starts[i], ends[i] - starts[i], StandardCharsets.ISO_8859_1));
+            }
+        }
+        for (CVRSField f: absent) {
+            counter.countField(f, REDACTED);
+        }
+    }
+
+    /**
+     * Split the current line into fields at each tab.  Tab is never part of
+     * a multibyte character in UTF-8, so the line can be split as bytes.
+     */
+    private void tokenize() {
+        fieldCount = 0;
+        int start = lineStart;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer[i] == TAB) {
+                addField(start, i);
+                start = i + 1;
+            }
+        }
+        addField(start, lineEnd);
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount++] = end;
+    }
+
+    /**
+     * Locate the next line in the buffer, reading more input as needed.
+     * @return  false at the end of the input.
+     * @throws IOException  If an error occured while reading.
+     */
+    private boolean readLine() throws IOException {
+        pos = nextLine = Math.max(pos, nextLine);
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                byte c = buffer[scan];
+                if (c == LF || c == CR) {
+                    if (c == CR && scan + 1 == limit && !eof) {
+                        // Need the next byte to recognize CR-LF
+                        scan -= fill();
+                    }
+                    lineStart = pos;
+                    lineEnd = scan;
+                    nextLine = scan + 1;
+                    if (c == CR && nextLine < limit && buffer[nextLine] == LF) {
+                        nextLine++;
+                    }
+                    return true;
+                }
+            }
+            if (eof) {
+                if (pos < limit) {
+                    // Last line has no line terminator.
+                    lineStart = pos;
+                    lineEnd = nextLine = limit;
+                    return true;
+                }
+                return false;
+            }
+            scan -= fill();
+        }
+    }
+
+    /**
+     * Move unread content to the front of the buffer and read more.
+     * @return  The distance unread content was moved.
+     * @throws IOException  If an error occured while reading.
+     */
+    private int fill() throws IOException {
+        int shift = pos;
+        if (shift != 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = nextLine = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+        return shift;
+    }
+}
@@ -0,0 +1,126 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Decides which records written as HL7 are converted back and compared with the original
+ * record to verify the conversion.  Records can be verified always, every nth record, a
+ * random percentage of records, or never.
+ *
+ * Random samples are chosen from a hash of the record number rather than a random number
+ * generator, so that the same records are verified on every run, and on whichever thread
+ * converts them.
+ */
+public final class RoundTripPolicy {
+    /** Verify every record (the default) */
+    public static final RoundTripPolicy ALWAYS = new RoundTripPolicy(1, 100.0);
+    /** Verify no records */
+    public static final RoundTripPolicy OFF = new RoundTripPolicy(0, 0.0);
+
+    /** Verify every nth record, or 0 to sample by percent */
+    private final int every;
+    /** The percentage of records to verify when sampling by percent */
+    private final double percent;
+
+    private RoundTripPolicy(int every, double percent) {
+        this.every = every;
+        this.percent = percent;
+    }
+
+    /**
+     * Verify every nth record, starting with the first.
+     * @param n How often to verify a record, 1 for every record, or 0 for none.
+     * @return  The policy.
+     */
+    public static RoundTripPolicy every(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Round trip interval must not be negative: " + n);
+        }
+        return n == 0 ? OFF : n == 1 ? ALWAYS : new RoundTripPolicy(n, 0.0);
+    }
+
+    /**
+     * Verify a random sample of records.
+     * @param percent   The percentage of records to verify, from 0 to 100.
+     * @return  The policy.
+     */
+    public static RoundTripPolicy sample(double percent) {
+        if (!(percent >= 0.0 && percent <= 100.0)) {
+            throw new IllegalArgumentException("Round trip percentage must be between 0 and 100: " + percent);
+        }
+        return percent == 0.0 ? OFF : percent == 100.0 ? ALWAYS : new RoundTripPolicy(0, percent);
+    }
+
+    /**
+     * Parse a policy from the command line: an empty string for every record,
+     * n for every nth record, p% for p percent of records, or 0 for none.
+     * @param value The value to parse.
+     * @return  The policy.
+     * @throws IllegalArgumentException If the value is not a valid policy.
+     */
+    public static RoundTripPolicy parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return ALWAYS;
+        }
+        try {
+            if (value.endsWith("%")) {
+                return sample(Double.parseDouble(value.substring(0, value.length() - 1)));
+            }
+            return every(Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid round trip policy: " + value, e);
+        }
+    }
+
+    /**
+     * Determine whether a record should be verified.
+     * @param record    The record number, starting from 1.
+     * @return  true if the record should be converted back and compared.
+     */
+    public boolean shouldCheck(int record) {
+        if (this == ALWAYS) {
+            return true;
+        }
+        if (every > 0) {
+            return Math.floorMod(record - 1, every) == 0;
+        }
+        if (percent == 0.0) {
+            return false;
+        }
+        // Mix the bits of the record number (as SplittableRandom does) for a uniform value in [0, 1)
+        long z = (record + 1L) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53 * 100.0 < percent;
+    }
+
+    /**
+     * @return true if only some records are verified.
+     */
+    public boolean isSampled() {
+        return this != ALWAYS && this != OFF;
+    }
+
+    @Override
+    public String toString() {
+        if (this == ALWAYS) {
+            return "every record";
+        }
+        if (this == OFF) {
+            return "no records";
+        }
+        return every > 0 ? "every " + every + " records" : percent + "% of records";
+    }
+}
@@ -22,6 +22,13 @@ import java.io.PrintStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -29,6 +36,11 @@ import org.apache.commons.lang3.StringUtils;
  * @author Keith W. Boone
  */
 public class Utility {
+    /** Files of at least this size (in bytes) are read through a {@link MappedFileReader} */
+    private static final long MAPPED_READER_THRESHOLD = 64L * 1024 * 1024;
+    /** If true, output files are written on a dedicated thread (see {@link AsyncFileOutputStream}) */
+    private static final boolean ASYNC_OUTPUT = true;
+
     /**
      * Private constructor for this class containing static member functions.
      */
@@ -56,7 +68,9 @@ public class Utility {
      * @param values    The values to write
      */
     public static void printRow(PrintStream w, String[] values) {
-        if (values.length > 0) {
+        if (values.length > 0 && w instanceof FilePrintStream) {
+            ((FilePrintStream) w).printRow(values);
+        } else if (values.length > 0) {
             w.print(StringUtils.defaultString(values[0]));
             for (int i = 1; i < values.length; i++) {
                 w.print("\t");
@@ -176,17 +190,88 @@ public class Utility {
     }
 
     public static Reader getReader(String arg) throws IOException {
+        if (!"-".equals(arg) && new File(arg).length() >= MAPPED_READER_THRESHOLD) {
+            return getReader(new File(arg).toPath());
+        }
         return getBufferedReader(
             "-".equals(arg) ? new InputStreamReader(System.in)
                             : getFileReader(arg));
     }
 
+    /**
+     * Get a reader for a file, using a memory mapped reader for files of
+     * 64 MB or more.
+     *
+     * @param path  The file to read
+     * @return  A BufferedReader for the file
+     * @throws IOException  If the file could not be opened
+     */
+    public static BufferedReader getReader(Path path) throws IOException {
+        if (path.toFile().length() >= MAPPED_READER_THRESHOLD) {
+            return getBufferedReader(new MappedFileReader(path));
+        }
+        return getBufferedReader(getFileReader(path.toString()));
+    }
+
+    /**
+     * Split a file into ranges of whole lines of approximately the specified size.
+     * The first range holds only the first line of the file (the headers).  Each range
+     * after it starts at the beginning of a line, and ends just after a line feed
+     * or at the end of the file.
+     *
+     * @param path  The file to split.
+     * @param chunkSize The approximate size of each range in bytes.
+     * @return  The ranges, each given as the byte offsets { start, end }.
+     * @throws IOException  If an error occured while reading.
+     */
+    public static List<long[]> getLineRanges(Path path, long chunkSize) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long end = nextLine(channel, 0, size);
+            ranges.add(new long[] { 0, end });
+            while (end < size) {
+                long start = end;
+                end = nextLine(channel, Math.min(start + chunkSize, size), size);
+                ranges.add(new long[] { start, end });
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Find the start of the next line in a file.
+     * @param channel   The file.
+     * @param from  The offset to start searching from.
+     * @param size  The size of the file.
+     * @return  The offset just after the next line feed, or size if there is none.
+     * @throws IOException  If an error occured while reading.
+     */
+    private static long nextLine(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long pos = from;
+        while (pos < size) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
     public static InputStreamReader getFileReader(String arg) throws FileNotFoundException, UnsupportedEncodingException {
        return new InputStreamReader(new FileInputStream(arg), "UTF-8");
     }
 
     public static PrintStream getPrintStream(File f2) throws FileNotFoundException, UnsupportedEncodingException {
-        return new PrintStream(f2, "UTF-8");
+        return new FilePrintStream(f2, ASYNC_OUTPUT);
     }
 
 }
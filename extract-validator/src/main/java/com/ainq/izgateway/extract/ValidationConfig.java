@@ -0,0 +1,616 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.ainq.izgateway.extract.validation.BeanValidator;
+import com.ainq.izgateway.extract.validation.HashedDuplicateIndex;
+import com.ainq.izgateway.extract.validation.RuleTable;
+
+/**
+ * The settings used to validate and convert files, as set by the command line options
+ * of {@link Validator}.  A configuration cannot be changed once built, so it can be shared
+ * by any number of {@link ValidationSession} instances running at the same time.
+ *
+ * Use {@link Builder} to create a configuration.
+ */
+public final class ValidationConfig {
+    private final String reportFolder;
+    private final int maxErrors;
+    private final Set<String> suppressed;
+    private final String version;
+    private final boolean useJson;
+    private final boolean useNdjson;
+    private final boolean useDefaults;
+    private final boolean fixIt;
+    private final String hl7Folder;
+    private final String cvrsFolder;
+    private final boolean redacting;
+    private final boolean writeAll;
+    private final boolean reportStats;
+    private final boolean reportRedactions;
+    private final int threads;
+    private final long chunkSize;
+    private final int fileThreads;
+    private final boolean pipeline;
+    private final long duplicateMemoryBudget;
+    private final int exampleLimit;
+    private final int detailLimit;
+    private final boolean strictHL7;
+    private final RoundTripPolicy roundTrip;
+    private final boolean redactOnly;
+    private final PPRLTokenizer pprlTokenizer;
+    private final boolean profiling;
+    private final RuleTable rules;
+
+    private ValidationConfig(Builder b) {
+        reportFolder = b.reportFolder;
+        maxErrors = b.maxErrors;
+        suppressed = Collections.unmodifiableSet(new TreeSet<>(b.suppressed));
+        version = b.version;
+        useJson = b.useJson;
+        useNdjson = b.useNdjson;
+        useDefaults = b.useDefaults;
+        fixIt = b.fixIt;
+        hl7Folder = b.hl7Folder;
+        // When only redacting, files which are not tab delimited are redacted and converted as for -x -c,
+        // and redacted files go to standard output unless a folder is given, as on the command line.
+        cvrsFolder = b.redactOnly && b.cvrsFolder == null ? "-" : b.cvrsFolder;
+        redacting = b.redacting || b.redactOnly;
+        writeAll = b.writeAll;
+        reportStats = b.reportStats;
+        reportRedactions = b.reportRedactions;
+        threads = b.threads;
+        chunkSize = b.chunkSize;
+        fileThreads = b.fileThreads;
+        pipeline = b.pipeline;
+        duplicateMemoryBudget = b.duplicateMemoryBudget;
+        exampleLimit = b.exampleLimit;
+        detailLimit = b.detailLimit;
+        strictHL7 = b.strictHL7;
+        roundTrip = b.roundTrip;
+        redactOnly = b.redactOnly;
+        pprlTokenizer = b.pprlTokenizer;
+        profiling = b.profiling;
+        rules = b.rules;
+    }
+
+    /**
+     * @return Where to write reports: a folder, "-" for standard output, "--" for standard error, or null for no report.
+     */
+    public String getReportFolder() {
+        return reportFolder;
+    }
+
+    /**
+     * @return The maximum number of errors before stopping further processing.
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * @return The errors to suppress, which cannot be modified.
+     */
+    public Set<String> getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * @return The version of the CVRS to validate against.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if reports are written in JSON format.
+     */
+    public boolean isUseJson() {
+        return useJson;
+    }
+
+    /**
+     * @return true if reports are written as newline delimited JSON, which takes precedence over {@link #isUseJson()}.
+     */
+    public boolean isUseNdjson() {
+        return useNdjson;
+    }
+
+    /**
+     * @return true if default conversion rules are used for HL7 messages.
+     */
+    public boolean isUseDefaults() {
+        return useDefaults;
+    }
+
+    /**
+     * @return true if an attempt is made to correct invalid values.
+     */
+    public boolean isFixIt() {
+        return fixIt;
+    }
+
+    /**
+     * @return Where to write the HL7 version of inputs, or null to skip this step.
+     */
+    public String getHl7Folder() {
+        return hl7Folder;
+    }
+
+    /**
+     * @return Where to write the tab delimited version of inputs, or null to skip this step.
+     */
+    public String getCvrsFolder() {
+        return cvrsFolder;
+    }
+
+    /**
+     * @return true if data is redacted before validation or conversion.
+     */
+    public boolean isRedacting() {
+        return redacting;
+    }
+
+    /**
+     * @return true if all records are written regardless of validation results.
+     */
+    public boolean isWriteAll() {
+        return writeAll;
+    }
+
+    /**
+     * @return true if field statistics are reported to standard output.
+     */
+    public boolean isReportStats() {
+        return reportStats;
+    }
+
+    /**
+     * @return true if redaction statistics are written to redactionReport.rpt in the report folder.
+     */
+    public boolean isReportRedactions() {
+        return reportRedactions;
+    }
+
+    /**
+     * @return The number of threads used to validate a tab delimited file, 1 to validate sequentially.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return The approximate size in bytes of each part of a file validated on several threads, or 0 for the default.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The number of files validated at the same time, 1 to validate files one after another.
+     */
+    public int getFileThreads() {
+        return fileThreads;
+    }
+
+    /**
+     * @return true if records are read, validated, converted and written on separate threads.
+     */
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return The memory in bytes used to check for duplicate event ids before they are moved to disk.
+     */
+    public long getDuplicateMemoryBudget() {
+        return duplicateMemoryBudget;
+    }
+
+    /**
+     * @return The maximum number of examples kept for each row of the error summary, or 0 to keep all errors.
+     */
+    public int getExampleLimit() {
+        return exampleLimit;
+    }
+
+    /**
+     * @return The maximum number of detail rows reported for each error code, or 0 to report all of them.
+     */
+    public int getDetailLimit() {
+        return detailLimit;
+    }
+
+    /**
+     * @return true if every HL7 message is parsed by HAPI, rejecting messages with structural or data type errors.
+     */
+    public boolean isStrictHL7() {
+        return strictHL7;
+    }
+
+    /**
+     * @return Which HL7 records are converted back to verify that they match the original record.
+     */
+    public RoundTripPolicy getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * @return true if tab delimited files are only redacted, without validating them.
+     */
+    public boolean isRedactOnly() {
+        return redactOnly;
+    }
+
+    /**
+     * @return The tokenizer used to fill in the pprl_id of each record before it is redacted, or null to leave it unchanged.
+     */
+    public PPRLTokenizer getPPRLTokenizer() {
+        return pprlTokenizer;
+    }
+
+    /**
+     * @return true if the time taken by each stage, field validator and business rule is added to reports.
+     */
+    public boolean isProfiling() {
+        return profiling;
+    }
+
+    /**
+     * @return The business rules to check.
+     */
+    public RuleTable getRules() {
+        return rules;
+    }
+
+    /**
+     * Builds a {@link ValidationConfig}.  Settings not set use the same defaults
+     * as the command line.
+     */
+    public static class Builder {
+        private String reportFolder = "-";
+        private int maxErrors = Validator.DEFAULT_MAX_ERRORS;
+        private Set<String> suppressed = Collections.emptySet();
+        private String version = Validator.DEFAULT_VERSION;
+        private boolean useJson = false;
+        private boolean useNdjson = false;
+        private boolean useDefaults = false;
+        private boolean fixIt = false;
+        private String hl7Folder = null;
+        private String cvrsFolder = null;
+        private boolean redacting = false;
+        private boolean writeAll = false;
+        private boolean reportStats = false;
+        private boolean reportRedactions = false;
+        private int threads = 1;
+        private long chunkSize = 0;
+        private int fileThreads = 1;
+        private boolean pipeline = false;
+        private long duplicateMemoryBudget = HashedDuplicateIndex.DEFAULT_MEMORY_BUDGET;
+        private int exampleLimit = 0;
+        private int detailLimit = 0;
+        private boolean strictHL7 = false;
+        private RoundTripPolicy roundTrip = RoundTripPolicy.ALWAYS;
+        private boolean redactOnly = false;
+        private PPRLTokenizer pprlTokenizer = null;
+        private boolean profiling = false;
+        private RuleTable rules = BeanValidator.getDefaultRules();
+
+        /**
+         * Create a builder using the defaults.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Create a builder starting from the settings of an existing configuration,
+         * to make a configuration which differs from it in a few settings.
+         * @param config    The configuration to copy.
+         */
+        public Builder(ValidationConfig config) {
+            reportFolder = config.reportFolder;
+            maxErrors = config.maxErrors;
+            suppressed = config.suppressed;
+            version = config.version;
+            useJson = config.useJson;
+            useNdjson = config.useNdjson;
+            useDefaults = config.useDefaults;
+            fixIt = config.fixIt;
+            hl7Folder = config.hl7Folder;
+            cvrsFolder = config.cvrsFolder;
+            redacting = config.redacting;
+            writeAll = config.writeAll;
+            reportStats = config.reportStats;
+            reportRedactions = config.reportRedactions;
+            threads = config.threads;
+            chunkSize = config.chunkSize;
+            fileThreads = config.fileThreads;
+            pipeline = config.pipeline;
+            duplicateMemoryBudget = config.duplicateMemoryBudget;
+            exampleLimit = config.exampleLimit;
+            detailLimit = config.detailLimit;
+            strictHL7 = config.strictHL7;
+            roundTrip = config.roundTrip;
+            redactOnly = config.redactOnly;
+            pprlTokenizer = config.pprlTokenizer;
+            profiling = config.profiling;
+            rules = config.rules;
+        }
+
+        /**
+         * @return A new configuration with the current settings of this builder.
+         */
+        public ValidationConfig build() {
+            return new ValidationConfig(this);
+        }
+
+        /**
+         * @param reportFolder  Where to write reports: a folder, "-" for standard output, "--" for standard error, or null for no report.
+         * @return this for fluent use.
+         */
+        public Builder setReportFolder(String reportFolder) {
+            this.reportFolder = reportFolder;
+            return this;
+        }
+
+        /**
+         * @param maxErrors The maximum number of errors before stopping further processing.
+         * @return this for fluent use.
+         */
+        public Builder setMaxErrors(int maxErrors) {
+            this.maxErrors = maxErrors;
+            return this;
+        }
+
+        /**
+         * @param suppressed    The errors to suppress, which are copied when the configuration is built.
+         * @return this for fluent use.
+         */
+        public Builder setSuppressed(Set<String> suppressed) {
+            this.suppressed = suppressed == null ? Collections.emptySet() : suppressed;
+            return this;
+        }
+
+        /**
+         * @param version   The version of the CVRS to validate against.
+         * @return this for fluent use.
+         */
+        public Builder setVersion(String version) {
+            this.version = version;
+            return this;
+        }
+
+        /**
+         * @param useJson   true to write reports in JSON format.
+         * @return this for fluent use.
+         */
+        public Builder setUseJson(boolean useJson) {
+            this.useJson = useJson;
+            return this;
+        }
+
+        /**
+         * @param useNdjson true to write reports as newline delimited JSON, with one line for each error
+         * followed by a summary line.  This takes precedence over {@link #setUseJson(boolean)}.
+         * @return this for fluent use.
+         */
+        public Builder setUseNdjson(boolean useNdjson) {
+            this.useNdjson = useNdjson;
+            return this;
+        }
+
+        /**
+         * @param useDefaults   true to use default conversion rules for HL7 messages.
+         * @return this for fluent use.
+         */
+        public Builder setUseDefaults(boolean useDefaults) {
+            this.useDefaults = useDefaults;
+            return this;
+        }
+
+        /**
+         * @param fixIt true to attempt to correct invalid values.
+         * @return this for fluent use.
+         */
+        public Builder setFixIt(boolean fixIt) {
+            this.fixIt = fixIt;
+            return this;
+        }
+
+        /**
+         * @param hl7Folder Where to write the HL7 version of inputs, or null to skip this step.
+         * @return this for fluent use.
+         */
+        public Builder setHl7Folder(String hl7Folder) {
+            this.hl7Folder = hl7Folder;
+            return this;
+        }
+
+        /**
+         * @param cvrsFolder    Where to write the tab delimited version of inputs, or null to skip this step.
+         * @return this for fluent use.
+         */
+        public Builder setCvrsFolder(String cvrsFolder) {
+            this.cvrsFolder = cvrsFolder;
+            return this;
+        }
+
+        /**
+         * @param redacting true to redact data before validation or conversion.
+         * @return this for fluent use.
+         */
+        public Builder setRedacting(boolean redacting) {
+            this.redacting = redacting;
+            return this;
+        }
+
+        /**
+         * @param writeAll  true to write all records regardless of validation results.
+         * @return this for fluent use.
+         */
+        public Builder setWriteAll(boolean writeAll) {
+            this.writeAll = writeAll;
+            return this;
+        }
+
+        /**
+         * @param reportStats   true to report field statistics to standard output.
+         * @return this for fluent use.
+         */
+        public Builder setReportStats(boolean reportStats) {
+            this.reportStats = reportStats;
+            return this;
+        }
+
+        /**
+         * @param reportRedactions  true to write redaction statistics to redactionReport.rpt in the report folder
+         * (see {@link ValidationSession#getRedactionReport()}).
+         * @return this for fluent use.
+         */
+        public Builder setReportRedactions(boolean reportRedactions) {
+            this.reportRedactions = reportRedactions;
+            return this;
+        }
+
+        /**
+         * @param threads   The number of threads used to validate a tab delimited file, 1 to validate sequentially.
+         * @return this for fluent use.
+         */
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * @param chunkSize The approximate size in bytes of each part of a file validated on several threads,
+         * or 0 for the default (4 MB).
+         * @return this for fluent use.
+         */
+        public Builder setChunkSize(long chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * @param fileThreads   The number of files validated at the same time, 1 to validate files one after another.
+         * When more than one, each file is checked for duplicate event ids on its own.
+         * @return this for fluent use.
+         */
+        public Builder setFileThreads(int fileThreads) {
+            this.fileThreads = fileThreads;
+            return this;
+        }
+
+        /**
+         * @param pipeline  true to read, validate, convert and write records on separate threads.
+         * @return this for fluent use.
+         */
+        public Builder setPipeline(boolean pipeline) {
+            this.pipeline = pipeline;
+            return this;
+        }
+
+        /**
+         * @param duplicateMemoryBudget The memory in bytes used to check for duplicate event ids before they are moved to disk.
+         * @return this for fluent use.
+         */
+        public Builder setDuplicateMemoryBudget(long duplicateMemoryBudget) {
+            this.duplicateMemoryBudget = duplicateMemoryBudget;
+            return this;
+        }
+
+        /**
+         * @param exampleLimit  The maximum number of examples kept for each row of the error summary,
+         * or 0 to keep all errors.  When set, summary counts are still exact, but the memory used to
+         * account for errors does not grow with the number of errors.
+         * @return this for fluent use.
+         */
+        public Builder setExampleLimit(int exampleLimit) {
+            this.exampleLimit = exampleLimit;
+            return this;
+        }
+
+        /**
+         * @param detailLimit   The maximum number of detail rows reported for each error code, or 0 to report all of them.
+         * @return this for fluent use.
+         */
+        public Builder setDetailLimit(int detailLimit) {
+            this.detailLimit = detailLimit;
+            return this;
+        }
+
+        /**
+         * @param strictHL7 true to parse every HL7 message with HAPI, rejecting messages with structural or
+         * data type errors, rather than reading VXU messages straight from their text.
+         * @return this for fluent use.
+         */
+        public Builder setStrictHL7(boolean strictHL7) {
+            this.strictHL7 = strictHL7;
+            return this;
+        }
+
+        /**
+         * @param roundTrip Which HL7 records to convert back to verify that they match the original record.
+         * @return this for fluent use.
+         */
+        public Builder setRoundTrip(RoundTripPolicy roundTrip) {
+            this.roundTrip = roundTrip;
+            return this;
+        }
+
+        /**
+         * @param redactOnly    true to only redact tab delimited files, without validating them,
+         * writing the redacted files to the CVRS folder, or standard output if none is set (see {@link Redactor}).
+         * Other files are redacted while they are validated.
+         * @return this for fluent use.
+         */
+        public Builder setRedactOnly(boolean redactOnly) {
+            this.redactOnly = redactOnly;
+            return this;
+        }
+
+        /**
+         * @param pprlTokenizer The tokenizer used to fill in the pprl_id of each record before it is redacted,
+         * or null to leave it unchanged.  Each file validated uses its own copy.
+         * @return this for fluent use.
+         */
+        public Builder setPPRLTokenizer(PPRLTokenizer pprlTokenizer) {
+            this.pprlTokenizer = pprlTokenizer;
+            return this;
+        }
+
+        /**
+         * @param profiling true to add the time taken, number of calls and estimated memory allocated
+         * by each stage of processing, field validator and business rule to the report for each file.
+         * @return this for fluent use.
+         */
+        public Builder setProfiling(boolean profiling) {
+            this.profiling = profiling;
+            return this;
+        }
+
+        /**
+         * @param rules The business rules to check, or null for the built in rules
+         * (see {@link RuleTable#add(java.io.Reader)} to add rules to them).
+         * @return this for fluent use.
+         */
+        public Builder setRules(RuleTable rules) {
+            this.rules = rules == null ? BeanValidator.getDefaultRules() : rules;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.validation.BeanValidator;
+import com.ainq.izgateway.extract.validation.HashedDuplicateIndex;
+import com.ainq.izgateway.extract.validation.NullValidator;
+
+/**
+ * A single run of the validator over one or more files, using a {@link ValidationConfig}.
+ *
+ * A session holds everything that changes while files are validated: the event ids
+ * seen (to find duplicates), the field statistics, and the redaction report.  Sessions
+ * share nothing that changes, so any number of them can run at the same time in one JVM,
+ * but each session should only be used by one thread at a time.  Each session writes its
+ * redaction report to its own file (see {@link #getRedactionReport()}).  Compiled validation rules
+ * and value sets are shared by all sessions with the same rules, version and suppressed errors.
+ *
+ * Close the session to release the disk and memory used for duplicate checking.
+ */
+public class ValidationSession implements Closeable {
+    /** The base name of redaction reports */
+    private static final String REDACTION_REPORT = "redactionReport";
+    /** The redaction reports being written by open sessions, so that no two sessions write to the same file */
+    private static final Set<File> redactionReportsInUse = ConcurrentHashMap.newKeySet();
+
+    private final ValidationConfig config;
+    private final BeanValidator beanValidator;
+    /** The redaction report, and the file it is written to, created when the first files are validated */
+    private PrintWriter redactionReport = null;
+    private File redactionReportFile = null;
+    private boolean needsRedactHeader = true;
+
+    /**
+     * Create a new session.
+     * @param config    The configuration to use.
+     */
+    public ValidationSession(ValidationConfig config) {
+        this.config = config;
+        beanValidator = newBeanValidator(config, config.getDuplicateMemoryBudget());
+    }
+
+    /**
+     * @return The configuration used by this session.
+     */
+    public ValidationConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Validate one or more files, writing reports and converted outputs as configured.
+     * Event ids are checked for duplicates across all files validated in this session,
+     * unless files are validated concurrently (see {@link ValidationConfig#getFileThreads()}),
+     * in which case each file is checked on its own.
+     *
+     * @param files The files to process, "-" for standard input.
+     * @return  The number of errors found.
+     * @throws IOException  If the redaction report cannot be created.
+     */
+    public int validateFiles(String ... files) throws IOException {
+        int errors = 0;
+        if (config.isReportRedactions() && redactionReport == null) {
+            redactionReport = newRedactionReport();
+        }
+        if (canValidateConcurrently(files)) {
+            errors = validateConcurrently(files);
+        } else {
+            for (String file: files) {
+                errors += validateFile(file, beanValidator, true).merge();
+            }
+        }
+        if (config.isReportStats()) {
+            System.out.printf("%-28s%-8s%n", "Field Name", "Frequency");
+            for (Map.Entry<String, Integer> e: beanValidator.getFieldCounts().entrySet()) {
+                System.out.printf("%-28s%8d%n", e.getKey(), e.getValue());
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Create the redaction report.  It is written to redactionReport.rpt in the report folder,
+     * or in the working directory when reports are written to the console.  If another open
+     * session is writing to that file, a number is added to the name (e.g., redactionReport.2.rpt).
+     * @return  The redaction report.
+     * @throws IOException  If the redaction report cannot be created.
+     */
+    private PrintWriter newRedactionReport() throws IOException {
+        String folder = config.getReportFolder();
+        File dir = folder == null || "-".equals(folder) || "--".equals(folder) ? new File(".") : new File(folder);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File f = new File(dir, REDACTION_REPORT + ".rpt").getCanonicalFile();
+        for (int i = 2; !redactionReportsInUse.add(f); i++) {
+            f = new File(dir, String.format("%s.%d.rpt", REDACTION_REPORT, i)).getCanonicalFile();
+        }
+        try {
+            PrintWriter report = new PrintWriter(new FileWriter(f, StandardCharsets.UTF_8));
+            redactionReportFile = f;
+            return report;
+        } catch (IOException | RuntimeException ex) {
+            redactionReportsInUse.remove(f);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The file redaction statistics are written to, or null if they have not been written.
+     */
+    public File getRedactionReport() {
+        return redactionReportFile;
+    }
+
+    /**
+     * The result of validating one file.
+     */
+    private class FileResult {
+        private final String file;
+        private final BeanValidator validator;
+        private String status = null;
+        private int errors = 0;
+        private IOException error = null;
+
+        private FileResult(String file, BeanValidator validator) {
+            this.file = file;
+            this.validator = validator;
+        }
+
+        /**
+         * Report the result of validating the file, and add its statistics to this session.
+         * @return  The number of errors found.
+         */
+        private int merge() {
+            if (status != null) {
+                System.out.print(status);
+            }
+            if (error != null) {
+                System.err.printf("Error processing %s: %s%n", file, error.getMessage());
+                error.printStackTrace();
+                return 1;
+            }
+            if (config.isReportRedactions()) {
+                reportRedactions(file, validator);
+            } else if (validator != beanValidator) {
+                beanValidator.addFieldCounts(validator);
+            }
+            return errors;
+        }
+    }
+
+    /**
+     * Validate a file.
+     * @param file  The file to validate.
+     * @param validator The bean validator to use.
+     * @param showProgress  If true, the file name is written to standard output before validating it.
+     * @return  The result, which must be merged to report it.
+     */
+    private FileResult validateFile(String file, BeanValidator validator, boolean showProgress) {
+        // Tokens are created from the bound record, so cannot be created when only redacting
+        if (config.isRedactOnly() && config.getPPRLTokenizer() == null) {
+            FileResult result = redactFile(file, validator, showProgress);
+            if (result != null) {
+                return result;
+            }
+        }
+        FileResult result = new FileResult(file, validator);
+        try (Validator v = newValidator(file, validator)) {
+            boolean needsOutput = false;
+            // If we aren't seeing status updates on the console
+            if (!System.out.equals(v.getReport())) {
+                // and writing one won't mess up existing reporting
+                if (!System.out.equals(v.getCvrs()) && !System.out.equals(v.getHl7())) {
+                    // Then tell the user what we are doing right now
+                    needsOutput = true;
+                    if (showProgress) {
+                        System.out.printf("Validating %s", file);
+                    }
+                }
+            }
+            result.errors = v.validateFile();
+
+            if (needsOutput) {
+                String status = String.format(" %d records, %d errors%n", v.getCount(), result.errors);
+                if (showProgress) {
+                    System.out.print(status);
+                } else {
+                    result.status = "Validating " + file + status;
+                }
+            }
+        } catch (IOException ioex) {
+            result.error = ioex;
+        }
+        return result;
+    }
+
+    /**
+     * Redact a tab delimited file without validating it, writing it to the CVRS folder.
+     * Rows which cannot be redacted because their field count does not match the header
+     * are counted as errors.
+     * @param file  The file to redact.
+     * @param validator The bean validator to count redacted values with, if reporting redactions.
+     * @param showProgress  If true, the file name is written to standard output before redacting it.
+     * @return  The result, which must be merged to report it, or null if the file is not tab delimited.
+     */
+    private FileResult redactFile(String file, BeanValidator validator, boolean showProgress) {
+        FileResult result = new FileResult(file, validator);
+        boolean isStdin = "-".equals(file);
+        InputStream in = null;
+        try {
+            in = isStdin ? System.in : new FileInputStream(file);
+            Redactor redactor = new Redactor(in, config.isReportRedactions() ? validator : null);
+            if (!redactor.readHeader()) {
+                if (isStdin) {
+                    throw new IOException("Only tab delimited files can be redacted from standard input");
+                }
+                // Validate it with redaction instead
+                return null;
+            }
+            PrintStream out = getOutputStream(file, config.getCvrsFolder(), "txt");
+            boolean needsOutput = !System.out.equals(out);
+            if (needsOutput && showProgress) {
+                System.out.printf("Redacting %s", file);
+            }
+            try {
+                redactor.redact(out);
+            } finally {
+                if (System.out.equals(out) || System.err.equals(out)) {
+                    out.flush();
+                } else {
+                    out.close();
+                }
+            }
+            // Output files are written on another thread, so report errors that happened there.
+            if (out.checkError()) {
+                throw new IOException("Error writing output for " + file);
+            }
+            result.errors = redactor.getSkipped();
+            if (needsOutput) {
+                String status = String.format(" %d records, %d rows not redacted%n", redactor.getCount(), redactor.getSkipped());
+                if (showProgress) {
+                    System.out.print(status);
+                } else {
+                    result.status = "Redacting " + file + status;
+                }
+            }
+        } catch (IOException ioex) {
+            result.error = ioex;
+        } finally {
+            if (in != null && !isStdin) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The file was read completely, so this is not an error.
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determine if files can be validated concurrently.  They cannot be when there is only one,
+     * when one is standard input, or when reports or converted outputs are written to the console.
+     * @param files The files to validate.
+     * @return  true if the files can be validated concurrently.
+     */
+    private boolean canValidateConcurrently(String files[]) {
+        if (config.getFileThreads() < 2 || files.length < 2) {
+            return false;
+        }
+        for (String folder: new String[] { config.getReportFolder(), config.getCvrsFolder(), config.getHl7Folder() }) {
+            if ("-".equals(folder) || "--".equals(folder)) {
+                return false;
+            }
+        }
+        return !Arrays.asList(files).contains("-");
+    }
+
+    /**
+     * Validate files at the same time, each with its own bean validator.  The largest
+     * files are started first, so that the last to finish are small ones.  Results are
+     * reported in the order the files were given, as they would be sequentially.
+     *
+     * @param files The files to validate.
+     * @return  The number of errors found.
+     */
+    private int validateConcurrently(String files[]) {
+        int workers = Math.min(config.getFileThreads(), files.length);
+        // Share the memory for duplicate checking among the files being validated at once.
+        long memoryBudget = config.getDuplicateMemoryBudget() / workers;
+        Integer order[] = new Integer[files.length];
+        long sizes[] = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            sizes[i] = new File(files[i]).length();
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(sizes[b], sizes[a]));
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<FileResult>> results = new ArrayList<>(Collections.nCopies(files.length, null));
+        try {
+            for (int i: order) {
+                String file = files[i];
+                results.set(i, executor.submit(() -> {
+                    BeanValidator validator = newBeanValidator(config, memoryBudget);
+                    try {
+                        return validateFile(file, validator, false);
+                    } finally {
+                        validator.resetEventIds();
+                    }
+                }));
+            }
+            int errors = 0;
+            for (Future<FileResult> result: results) {
+                errors += getResult(result).merge();
+            }
+            return errors;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Validation was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the result of validating a file, rethrowing any exception it threw.
+     * @param f The future result.
+     * @return  The result.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static FileResult getResult(Future<FileResult> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Create a bean validator for a configuration.
+     * @param config    The configuration.
+     * @param memoryBudget  The memory to use for duplicate checking.
+     * @return  The new validator.
+     */
+    private static BeanValidator newBeanValidator(ValidationConfig config, long memoryBudget) {
+        Set<String> suppressed = config.getSuppressed();
+        BeanValidator validator = suppressed.equals(Validator.ERROR_CODES) ?
+            new NullValidator(suppressed, config.getVersion()) :
+            new BeanValidator(suppressed, config.getVersion(), config.isFixIt());
+        validator.setDuplicateIndex(new HashedDuplicateIndex(memoryBudget));
+        validator.setRules(config.getRules());
+        return validator;
+    }
+
+    /**
+     * Create a validator for a file, configured for this session.
+     * @param file  The file to validate, or "-" for standard input.
+     * @param validator The bean validator to use.
+     * @return  The validator.
+     * @throws IOException  If the file or its outputs cannot be opened.
+     */
+    private Validator newValidator(String file, BeanValidator validator) throws IOException {
+        Validator v = "-".equals(file) ?
+            new Validator(Utility.getReader(file), validator, config.isUseDefaults()) :
+            new Validator(new File(file).toPath(), validator, config.isUseDefaults());
+        try {
+            boolean useJson = config.isUseJson(), useNdjson = config.isUseNdjson();
+            v.setRedacting(config.isRedacting())
+                .setThreads(config.getThreads())
+                .setChunkSize(config.getChunkSize())
+                .setPipeline(config.isPipeline())
+                .setJson(useJson)
+                .setNdjson(useNdjson)
+                .setReport(getOutputStream(file, config.getReportFolder(), useNdjson ? "rpt.ndjson" : useJson ? "rpt.json" : "rpt"))
+                .setCvrs(getOutputStream(file, config.getCvrsFolder(), "txt"))
+                .setHL7(getOutputStream(file, config.getHl7Folder(), "hl7"))
+                .setMaxErrors(config.getMaxErrors())
+                .setName(file)
+                .setFixIt(config.isFixIt())
+                .setIgnoringErrors(config.isWriteAll())
+                .setExampleLimit(config.getExampleLimit())
+                .setDetailLimit(config.getDetailLimit())
+                .setStrictHL7(config.isStrictHL7())
+                .setRoundTrip(config.getRoundTrip())
+                .setPPRLTokenizer(config.getPPRLTokenizer() == null ? null : config.getPPRLTokenizer().copy())
+                .setProfiling(config.isProfiling());
+        } catch (IOException | RuntimeException ex) {
+            v.close();
+            throw ex;
+        }
+        return v;
+    }
+
+    /**
+     * Get the field statistics collected so far.
+     * @return  A map of field names to field counts.
+     */
+    public Map<String, Integer> getFieldCounts() {
+        return beanValidator.getFieldCounts();
+    }
+
+    /**
+     * Release the resources used by this session.
+     */
+    @Override
+    public void close() {
+        // Release any disk used for duplicate checking
+        beanValidator.resetEventIds();
+        if (redactionReport != null) {
+            redactionReport.close();
+            redactionReport = null;
+            redactionReportsInUse.remove(redactionReportFile);
+        }
+    }
+
+    /**
+     * Report redaction data for a file, and reset the field counts for the next one.
+     * @param file  The file being reported on.
+     * @param validator The validator holding the field counts for the file.
+     */
+    private void reportRedactions(String file, BeanValidator validator) {
+        Map<String, String> map = getRedactionReport(validator.getFieldCounts());
+        if (needsRedactHeader) {
+            redactionReport.print("File");
+            for (Map.Entry<String, String> e: map.entrySet()) {
+                redactionReport.printf("\t%s", e.getKey());
+            }
+            redactionReport.println();
+            needsRedactHeader = false;
+        }
+        redactionReport.print(StringUtils.substringBefore(StringUtils.substringAfterLast(file, "\\"), "."));
+        for (Map.Entry<String, String> e: map.entrySet()) {
+            redactionReport.printf("\t%s", e.getValue());
+        }
+        redactionReport.println();
+        validator.clearFieldCounts();
+    }
+
+    /**
+     * Convert a map of field count data into a redaction report
+     * @param fieldCounts   The field count data
+     * @return  A map of redaction report data
+     */
+    private static Map<String, String> getRedactionReport(Map<String, Integer> fieldCounts) {
+        TreeMap<String, String> t = new TreeMap<>();
+        // for each field,
+        //    if X_00 or X_00000, and F == vax_event_id, then redacting to _00 or _00000
+        //    if X_unk == vax_event_id, then does NOT have this data
+        //    if X_yes != 0, then has some of this data
+        for (Map.Entry<String, Integer> e: fieldCounts.entrySet()) {
+            t.put(e.getKey(), e.getValue().toString());
+        }
+
+        return t;
+    }
+
+    /**
+     * Given a file name and a folder and extension, create a new file name.
+     * If arg already has the given extension (e.g., arg=file.txt, ext=txt), the new file
+     * will have the extension .new.txt (e.g., file.new.txt) to avoid file name conflicts.
+     * @param arg   The file name
+     * @param folder    The folder in which to put it
+     * @param ext   The new extension to use
+     * @return  A new file name.
+     * @throws IOException  If an error occurs creating the stream
+     */
+    private static PrintStream getOutputStream(String arg, String folder, String ext) throws IOException {
+        if (folder == null) {
+            return null;
+        }
+
+        if ("-".equals(folder)) {
+            return System.out;
+        }
+        if ("--".equals(folder)) {
+            return System.err;
+        }
+
+
+        File f1 = new File(arg), f2 = Utility.getNewFile(arg, new File(folder), ext);
+        File dir = f2.getCanonicalFile().getParentFile();
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        // Don't overwrite the input file!
+        if (f1.getCanonicalPath().equals(f2.getCanonicalPath())) {
+            ext = "new." + ext;
+            f2 = Utility.getNewFile(arg, new File(folder), ext);
+        }
+        return Utility.getPrintStream(f2);
+    }
+}
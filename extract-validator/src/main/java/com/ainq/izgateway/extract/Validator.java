@@ -15,59 +15,68 @@ package com.ainq.izgateway.extract;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.io.Reader;
-import java.lang.reflect.Field;
-import java.nio.charset.StandardCharsets;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListResourceBundle;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriter;
-import javax.json.JsonWriterFactory;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOCase;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Triple;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.ainq.izgateway.extract.annotations.EventType;
 import com.ainq.izgateway.extract.validation.BeanValidator;
 import com.ainq.izgateway.extract.validation.CVRSEntry;
 import com.ainq.izgateway.extract.validation.CVRSValidationException;
-import com.ainq.izgateway.extract.validation.NullValidator;
+import com.ainq.izgateway.extract.validation.HashedDuplicateIndex;
+import com.ainq.izgateway.extract.validation.Profile;
+import com.ainq.izgateway.extract.validation.RuleTable;
 import com.ainq.izgateway.extract.exceptions.CsvFieldValidationException;
+import com.opencsv.bean.exceptionhandler.CsvExceptionHandler;
 
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v251.message.VXU_V04;
 /**
  * A Validator for the CDC COVID-19 Vaccination Report Specification Extract File Formats
  */
 public class Validator implements Iterator<CVRSExtract>, Closeable {
-    @SuppressWarnings("unused")
-    private final static Logger LOGGER = LoggerFactory.getLogger(Validator.class);
     /** Bundle for Error messages */
     public static class MyResources extends ListResourceBundle {
         @Override
@@ -76,19 +85,64 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         };
     }
 
+    /**
+     * A row of the summary report, counting the errors with the same code in the same field.
+     *
+     * All errors are kept as examples unless an example limit is set.  Then the first error
+     * is always kept (text reports show it as the example), and the rest are a uniform sample of
+     * the others (reservoir sampling), so memory stays the same however many errors are found.
+     */
     private static class ErrorSummary {
         String code;
         String field;
+        /** The exact number of errors */
+        int count = 0;
+        /** True if some examples were not kept */
+        boolean sampled = false;
         List<Triple<Integer, String, String>> examples = new ArrayList<>();
 
         public ErrorSummary(CVRSEntry entry, CVRSExtract extract) {
             this.code = entry.getCategory();
             this.field = entry.getPath();
-            addOne(entry, extract);
         }
 
-        void addOne(CVRSEntry entry, CVRSExtract extract) {
-            examples.add(Triple.of(entry.getLine(), extract == null ? "" : extract.getVax_event_id(), entry.getDescription()));
+        /**
+         * Count an error.
+         * @param entry The error.
+         * @param extract   The record containing the error, or null.
+         * @param limit The maximum number of examples to keep, or 0 to keep all of them.
+         * @param random    The source of random numbers for sampling.
+         */
+        void addOne(CVRSEntry entry, CVRSExtract extract, int limit, Random random) {
+            count++;
+            int slot = examples.size();
+            if (limit > 0 && slot >= limit) {
+                sampled = true;
+                // Replace one of the examples after the first with probability (limit - 1) / (count - 1)
+                slot = limit == 1 ? limit : random.nextInt(count - 1) + 1;
+                if (slot >= limit) {
+                    return;
+                }
+            }
+            Triple<Integer, String, String> example =
+                Triple.of(entry.getLine(), extract == null ? "" : extract.getVax_event_id(), entry.getDescription());
+            if (slot == examples.size()) {
+                examples.add(example);
+            } else {
+                examples.set(slot, example);
+            }
+        }
+
+        /**
+         * @return The examples kept, in line order.
+         */
+        List<Triple<Integer, String, String>> getExamples() {
+            if (!sampled) {
+                return examples;
+            }
+            List<Triple<Integer, String, String>> sorted = new ArrayList<>(examples);
+            sorted.sort(Comparator.comparing(Triple::getLeft, Comparator.nullsFirst(Comparator.naturalOrder())));
+            return sorted;
         }
     }
 
@@ -134,9 +188,13 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         public void printDetailFooter() {
             Map<String, ErrorSummary> summary = getErrorSummary();
             int total = summary.values().stream()
-                            .collect(Collectors.summingInt(s -> s == null ? 0 : s.examples.size()));
+                            .collect(Collectors.summingInt(s -> s == null ? 0 : s.count));
             getReport().printf("%s has %d errors in %d of %d records.%n",
                 getName(), total, getErrorCount(), getCount());
+            if (omittedDetails > 0) {
+                getReport().printf("%d errors not listed above, at most %d are listed for each code.%n",
+                    omittedDetails, detailLimit);
+            }
 
             if (getCvrs() != null) {
                 getReport().printf("%d of %d CVRS records written.%n",
@@ -146,6 +204,10 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             if (getHl7() != null) {
                 getReport().printf("%d of %d HL7 records written.%n",
                     getHl7Count(), getCount());
+                if (roundTrip != RoundTripPolicy.ALWAYS) {
+                    getReport().printf("%d of %d HL7 records verified by round trip (%s).%n",
+                        getHl7Verified(), getHl7Count(), roundTrip);
+                }
             }
         }
 
@@ -161,16 +223,40 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             String description = getErrorDescription(summaryRow.code);
             getReport().printf("%-8s%-24s%5d   %-52s %5d %s%n",
                 summaryRow.code, summaryRow.field,
-                summaryRow.examples.size(), description, summaryRow.examples.get(0).getLeft(), summaryRow.examples.get(0).getRight());
+                summaryRow.count, description, summaryRow.examples.get(0).getLeft(), summaryRow.examples.get(0).getRight());
+        }
+
+        @Override
+        public void printSummaryFooter() {
+            Profile profile = getProfile();
+            if (profile == null) {
+                return;
+            }
+            getReport().printf("%n%-8s%-48s%10s%12s%12s%12s%n", "Profile", "Name", "Count", "Total ms", "ns/call", "bytes/call");
+            for (Profile.Entry entry: profile.getEntries()) {
+                String name = entry.getDetail() == null ? entry.getName() : String.format("%s (%s)", entry.getName(), entry.getDetail());
+                getReport().printf("%-8s%-48s%10d%12.3f%12d%12s%n",
+                    entry.getKind(), name, entry.getCount(), entry.getNanos() / 1e6, entry.getNanos() / entry.getCount(),
+                    entry.getBytes() < 0 ? "-" : Long.toString(entry.getBytes() / entry.getCount()));
+            }
         }
     };
 
+    /** Writes pretty printed JSON reports */
+    private static final JsonGeneratorFactory PRETTY_JSON =
+        Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+
+    /**
+     * Writes the report as a single JSON object, streaming detail rows to the report as they are found.
+     * The object has the filename, the detail rows, the totals, and the summary rows, in that order.
+     */
     private Reporter jsonReporter = new Reporter() {
-        JsonObjectBuilder b = Json.createObjectBuilder();
-        JsonArrayBuilder a = null;
+        JsonGenerator g = null;
         public void printDetailHeader() {
-            b.add("filename", getName());
-            a = Json.createArrayBuilder();
+            g = PRETTY_JSON.createGenerator(rpt);
+            g.writeStartObject();
+            g.write("filename", getName());
+            g.writeStartArray("detail");
         }
 
         /**
@@ -181,87 +267,207 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
          */
         @Override
         public void printDetailRow(CVRSEntry entry) {
-            if (a == null) {
+            if (g == null) {
                 throw new IllegalStateException("printDetailHeader must be called first");
             }
-
-            JsonObjectBuilder obj = Json.createObjectBuilder();
-            obj.add("vax_event_id",  currentExtract == null ? "" : currentExtract.getVax_event_id());
-            obj.add("line", entry.getLine());
-            obj.add("code", entry.getCategory());
-            obj.add("field", entry.getPath());
-            obj.add("level", entry.getClassification());
-            obj.add("message",  entry.getDescription());
-            a.add(obj.build());
+            g.writeStartObject();
+            writeDetail(g, entry);
+            g.writeEnd();
         }
 
         @Override
         public void printDetailFooter() {
-            b.add("detail", a.build());
-            Map<String, ErrorSummary> summary = getErrorSummary();
-            int total = summary.values().stream()
-                            .collect(Collectors.summingInt(s -> s == null ? 0 : s.examples.size()));
-            if (getReport() != null) {
-                b.add("totalErrors", total);
-                b.add("failedRecords",  getErrorCount());
-                b.add("totalRecords", getCount());
-                /* TODO: Add this for release 1.1.0
-                b.add("version", validator == null ? Validator.DEFAULT_VERSION : validator.getVersion());
-                JsonArrayBuilder s = Json.createArrayBuilder();
-                if (validator != null && validator.getSuppressed() != null) {
-                     validator.getSuppressed().forEach(supp -> s.add(supp));
-                }
-                b.add("suppressed", s.build());
-                */
-                if (getCvrs() != null) {
-                    b.add("cvrsWritten",  getCvrsCount());
-                }
-                if (getHl7() != null) {
-                    b.add("hl7Written",  getHl7Count());
-                }
-            }
+            g.writeEnd();
+            writeTotals(g);
         }
 
         @Override
         public void printSummaryHeader() {
-            a = Json.createArrayBuilder();
+            g.writeStartArray("summary");
         }
 
         @Override
         public void printSummaryRow(ErrorSummary summaryRow) {
-            if (a == null) {
+            if (g == null) {
                 throw new IllegalStateException("printSummaryHeader must be called first");
             }
+            g.writeStartObject();
+            writeSummaryRow(g, summaryRow);
+            g.writeEnd();
+        }
+
+        public void printSummaryFooter() {
+            g.writeEnd();
+            writeProfile(g);
+            g.writeEnd();
+            // Don't close the generator, which would close the report stream.
+            g.flush();
+            g = null;
+        }
+
+    };
+
+    /**
+     * Writes the report as newline delimited JSON (NDJSON): a line for each detail row, followed
+     * by a line with the totals and summary rows.  Each line has a type of detail or summary, and
+     * the filename.
+     */
+    private Reporter ndjsonReporter = new Reporter() {
+        StringWriter summary = null;
+        JsonGenerator g = null;
+        public void printDetailHeader() {
+        }
+
+        @Override
+        public void printDetailRow(CVRSEntry entry) {
+            StringWriter w = new StringWriter();
+            try (JsonGenerator line = Json.createGenerator(w)) {
+                line.writeStartObject();
+                line.write("type", "detail");
+                line.write("filename", getName());
+                writeDetail(line, entry);
+                line.writeEnd();
+            }
+            printLine(w);
+        }
+
+        @Override
+        public void printDetailFooter() {
+            summary = new StringWriter();
+            g = Json.createGenerator(summary);
+            g.writeStartObject();
+            g.write("type", "summary");
+            g.write("filename", getName());
+            writeTotals(g);
+        }
 
-            JsonObjectBuilder obj = Json.createObjectBuilder();
-            obj.add("code", summaryRow.code);
-            obj.add("field", summaryRow.field);
-            obj.add("count", summaryRow.examples.size());
-            obj.add("description", getErrorDescription(summaryRow.code));
-            JsonArrayBuilder a2 = Json.createArrayBuilder();
-            for (Triple<Integer, String, String> t: summaryRow.examples) {
-                JsonObjectBuilder obj2 = Json.createObjectBuilder();
-                obj2.add("line", t.getLeft());
-                obj2.add("vax_event_id", t.getMiddle());
-                obj2.add("message", t.getRight());
-                a2.add(obj2.build());
+        @Override
+        public void printSummaryHeader() {
+            g.writeStartArray("summary");
+        }
+
+        @Override
+        public void printSummaryRow(ErrorSummary summaryRow) {
+            if (g == null) {
+                throw new IllegalStateException("printSummaryHeader must be called first");
             }
-            obj.add("examples", a2.build());
-            a.add(obj.build());
+            g.writeStartObject();
+            writeSummaryRow(g, summaryRow);
+            g.writeEnd();
         }
 
         public void printSummaryFooter() {
-            b.add("summary", a.build());
-            Map<String, Boolean> config = new HashMap<>();
-            config.put(JsonGenerator.PRETTY_PRINTING, true);
-
-            JsonWriterFactory jwf = Json.createWriterFactory(config);
-            JsonWriter jsonWriter = jwf.createWriter(rpt);
-            jsonWriter.writeObject(b.build());
+            g.writeEnd();
+            writeProfile(g);
+            g.writeEnd();
+            g.close();
+            printLine(summary);
+            rpt.flush();
+            g = null;
+            summary = null;
         }
 
+        private void printLine(StringWriter w) {
+            rpt.print(w.toString());
+            rpt.print('\n');
+        }
     };
 
+    /**
+     * Write the fields of a detail row of a JSON report.
+     * @param g The generator to write to.
+     * @param entry The validation error being reported.
+     */
+    private void writeDetail(JsonGenerator g, CVRSEntry entry) {
+        g.write("vax_event_id",  currentExtract == null ? "" : StringUtils.defaultString(currentExtract.getVax_event_id()));
+        g.write("line", entry.getLine());
+        g.write("code", entry.getCategory());
+        g.write("field", StringUtils.defaultString(entry.getPath()));
+        g.write("level", entry.getClassification());
+        g.write("message",  StringUtils.defaultString(entry.getDescription()));
+    }
+
+    /**
+     * Write the totals of a JSON report.
+     * @param g The generator to write to.
+     */
+    private void writeTotals(JsonGenerator g) {
+        Map<String, ErrorSummary> summary = getErrorSummary();
+        int total = summary.values().stream()
+                        .collect(Collectors.summingInt(s -> s == null ? 0 : s.count));
+        g.write("totalErrors", total);
+        if (omittedDetails > 0) {
+            g.write("omittedDetails", omittedDetails);
+        }
+        g.write("failedRecords",  getErrorCount());
+        g.write("totalRecords", getCount());
+        /* TODO: Add this for release 1.1.0
+        g.write("version", validator == null ? Validator.DEFAULT_VERSION : validator.getVersion());
+        g.writeStartArray("suppressed");
+        if (validator != null && validator.getSuppressed() != null) {
+             validator.getSuppressed().forEach(supp -> g.write(supp));
+        }
+        g.writeEnd();
+        */
+        if (getCvrs() != null) {
+            g.write("cvrsWritten",  getCvrsCount());
+        }
+        if (getHl7() != null) {
+            g.write("hl7Written",  getHl7Count());
+            if (roundTrip != RoundTripPolicy.ALWAYS) {
+                g.write("hl7Verified",  getHl7Verified());
+            }
+        }
+    }
+
+    /**
+     * Write the fields of a summary row of a JSON report.
+     * @param g The generator to write to.
+     * @param summaryRow    The summary row.
+     */
+    private void writeSummaryRow(JsonGenerator g, ErrorSummary summaryRow) {
+        g.write("code", summaryRow.code);
+        g.write("field", StringUtils.defaultString(summaryRow.field));
+        g.write("count", summaryRow.count);
+        g.write("description", getErrorDescription(summaryRow.code));
+        g.writeStartArray("examples");
+        for (Triple<Integer, String, String> t: summaryRow.getExamples()) {
+            g.writeStartObject();
+            g.write("line", t.getLeft());
+            g.write("vax_event_id", StringUtils.defaultString(t.getMiddle()));
+            g.write("message", StringUtils.defaultString(t.getRight()));
+            g.writeEnd();
+        }
+        g.writeEnd();
+    }
+
+    /**
+     * Write the profile of a JSON report, if profiling.
+     * @param g The generator to write to.
+     */
+    private void writeProfile(JsonGenerator g) {
+        Profile profile = getProfile();
+        if (profile == null) {
+            return;
+        }
+        g.writeStartArray("profile");
+        for (Profile.Entry entry: profile.getEntries()) {
+            g.writeStartObject();
+            g.write("kind", entry.getKind().toString());
+            g.write("name", entry.getName());
+            if (entry.getDetail() != null) {
+                g.write("validator", entry.getDetail());
+            }
+            g.write("count", entry.getCount());
+            g.write("nanos", entry.getNanos());
+            if (entry.getBytes() >= 0) {
+                g.write("bytes", entry.getBytes());
+            }
+            g.writeEnd();
+        }
+        g.writeEnd();
+    }
+
     /** Localizable Error Messages */
     protected static Object[][] Messages = {
             { "DATA001", "%1$s (%2$s) contains an invalid date, should match %3$s", "Date is not valid" },
@@ -283,7 +489,7 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
 
     /** Default version of CVRS to use */
     public static final String DEFAULT_VERSION = "2";
-    private static final Set<String> ERROR_CODES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+    static final Set<String> ERROR_CODES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
             "DATA001", "DATA002", "DATA003", "DATA004", "DATA005", "DATA006", "DATA007", "DATA008", "DATA009",
             "BUSR001", "BUSR002", "BUSR003", "BUSR004", "BUSR005", "BUSR006", "BUSR007", "BUSR008", "BUSR009", "BUSR010",
             // It actually stops at 13, but we won't have to fix this later when we add more.
@@ -298,23 +504,20 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
     private static final String INVALID_DATE_FORMAT = "DATA009";
     /** Default max number of errors to allow */
     public static int DEFAULT_MAX_ERRORS = 1000;
+    /** Default number of examples to keep for each summary row when using -E */
+    public static final int DEFAULT_EXAMPLE_LIMIT = 10;
 
     /** Message bundle for reporting data validation errors */
     private static ResourceBundle MESSAGES = new MyResources();
 
     /** Map of options to argument help text */
-    private static Map<String, String> helpText = new TreeMap<>((s,t) -> s.compareToIgnoreCase(t) );
-
-    /** Static variable so that it always impacts redaction */
-    private static boolean redact = false;
-    /** Set to true to report statistics to standard output */
-    private static boolean reportStats = false;
+    private static Map<String, String> helpText = new ConcurrentSkipListMap<>((s,t) -> s.compareToIgnoreCase(t) );
 
-    /** Set to true to report redaction statistics to standard output */
-    private static boolean reportRedactions = false;
+    /** The default approximate size in bytes of each part of a file validated in parallel */
+    private static final long CHUNK_SIZE = 4L * 1024 * 1024;
 
-    /** Set to true to write all records regardless of validation results. */
-    private static boolean writeAll = false;
+    /** The maximum number of records waiting between pipeline stages */
+    private static final int PIPELINE_QUEUE_SIZE = 1024;
 
     /**
      * Helper method to generate a validation exception with a formatted message.
@@ -345,6 +548,18 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      * @throws IOException  If a file could not be read, written or found.
      */
     public static int main1(String args[], String reportFolder) throws IOException {
+        return main1(args, reportFolder, new ValidationConfig.Builder().build());
+    }
+
+    /**
+     * Run a command line, taking any settings it cannot give from a configuration.
+     * @param args  Command line arguments
+     * @param reportFolder The folder where reports should be placed, as for {@link #main1(String[], String)}.
+     * @param defaults  The configuration providing settings without a command line option (e.g., the chunk size).
+     * @return The number of validation errors found, or 0 if none. Values less than 0 indicate an execution error.
+     * @throws IOException  If a file could not be read, written or found.
+     */
+    static int main1(String args[], String reportFolder, ValidationConfig defaults) throws IOException {
         try {
             if (args.length == 0) {
                 help();
@@ -359,9 +574,26 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             String hl7Folder = null,
                    cvrsFolder = null;
             boolean useJson = false;
+            boolean useNdjson = false;
             boolean skip = false;
             boolean fixIt = false;
-            redact  = Arrays.asList(args).stream().anyMatch(a -> a.startsWith("-x") || a.startsWith("-X"));
+            boolean writeAll = false;
+            boolean reportStats = false;
+            boolean reportRedactions = false;
+            int threads = 1;
+            int fileThreads = 1;
+            boolean pipeline = false;
+            long duplicateMemoryBudget = HashedDuplicateIndex.DEFAULT_MEMORY_BUDGET;
+            int exampleLimit = 0;
+            int detailLimit = 0;
+            boolean strictHL7 = false;
+            RoundTripPolicy roundTrip = RoundTripPolicy.ALWAYS;
+            boolean redactOnly = false;
+            PPRLTokenizer pprlTokenizer = null;
+            boolean profiling = false;
+            RuleTable rules = BeanValidator.getDefaultRules();
+            ValidatorDaemon daemon = null;
+            boolean redact  = Arrays.asList(args).stream().anyMatch(a -> a.startsWith("-x") || a.startsWith("-X"));
             for (String arg: args) {
                 if (hasArgument(arg,"-k", "Start comment")) {
                     skip = true;
@@ -402,10 +634,18 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
 
                 if (hasArgument(arg, "-j", "Write output report in JSON format")) {
                     useJson = true;
+                    useNdjson = false;
                     continue;
                 }
 
                 if (hasArgument(arg, "-J", "Write output report in text format")) {
+                    useJson = false;
+                    useNdjson = false;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-N", "Write output report as newline delimited JSON to <file>.rpt.ndjson, one line for each error followed by a summary line")) {
+                    useNdjson = true;
                     useJson = false;
                     continue;
                 }
@@ -493,13 +733,89 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
                     continue;
                 }
 
+                if (hasArgument(arg, "-g<file>", "Generate the pprl_id of each record from the recipient name, date of birth, sex and zip code, then redact the record to produce a PPRL (P) extract, using the key and encoding given in the specified properties file")) {
+                    pprlTokenizer = PPRLTokenizer.load(Paths.get(arg.substring(2)));
+                    continue;
+                }
+
+                if (hasArgument(arg, "-O", "Only redact tab delimited files without validating them, copying them with redacted columns replaced to the folder given by -c (standard output by default), use with -T to report redaction statistics")) {
+                    redactOnly = true;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-P[threads]", "Validate each tab delimited file in parallel using the specified number of threads (defaults to the number of processors)")) {
+                    threads = arg.length() == 2 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(arg.substring(2));
+                    continue;
+                }
+
+                if (hasArgument(arg, "-w[threads]", "Validate files concurrently using the specified number of threads (defaults to the number of processors), checking each file for duplicates on its own")) {
+                    fileThreads = arg.length() == 2 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(arg.substring(2));
+                    continue;
+                }
+
+                if (hasArgument(arg, "-R<file>", "Load additional business rules from a tab delimited rule file")) {
+                    try (Reader r = Utility.getReader(arg.substring(2))) {
+                        rules = rules.add(r);
+                    }
+                    continue;
+                }
+
+                if (hasArgument(arg, "-l", "Read, validate, convert and write records on separate threads")) {
+                    pipeline = true;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-L", "Read, validate, convert and write records on a single thread (default)")) {
+                    pipeline = false;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-M<megabytes>", "Memory to use for duplicate event id checking before ids are moved to disk (defaults to a quarter of the heap)")) {
+                    duplicateMemoryBudget = Long.parseLong(arg.substring(2)) * 1024 * 1024;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-E[examples]", "Keep exact error counts but only the specified number (default is %d) of examples for each row of the summary, so that memory use does not grow with the number of errors", DEFAULT_EXAMPLE_LIMIT)) {
+                    exampleLimit = arg.length() == 2 ? DEFAULT_EXAMPLE_LIMIT : Integer.parseInt(arg.substring(2));
+                    continue;
+                }
+
+                if (hasArgument(arg, "-q<number>", "Report at most the specified number of detail rows for each error code, 0 to report all of them (default)")) {
+                    detailLimit = Integer.parseInt(arg.substring(2));
+                    continue;
+                }
+
+                if (hasArgument(arg, "-p", "Profile validation, adding the time taken, number of calls and estimated memory allocated by each stage, field validator and business rule to the report")) {
+                    profiling = true;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-H", "Parse every HL7 message with HAPI, rejecting messages with structural or data type errors")) {
+                    strictHL7 = true;
+                    continue;
+                }
+
+                if (hasArgument(arg, "-V[n|p%]", "Verify that HL7 output converts back to the same record for every record (default), every nth record, or a random p percent of records, -V0 to skip verification")) {
+                    roundTrip = RoundTripPolicy.parse(arg.substring(2));
+                    continue;
+                }
+
                 if (hasArgument(arg, "-h", "Get this help")) {
                     help();
                     continue;
                 }
 
+                if (hasArgument(arg, "-A<port>", "Run as a daemon accepting command lines from the local machine on the specified port, one argument per line followed by an empty line, after a first line holding the token written to ~/.extract-validator/daemon-<port>.token")) {
+                    daemon = daemon == null ? new ValidatorDaemon() : daemon;
+                    daemon.listen(Integer.parseInt(arg.substring(2)));
+                    continue;
+                }
+
                 String files[] = { arg };
-                if (arg.contains("*") || arg.contains("?")) {
+                Path inbox = null;
+                if (hasArgument(arg, "-W<folder>", "Run as a daemon validating each file placed in the specified folder using the options before this one, then moving it with its report to the done folder within it, or the error folder if it has errors (-T cannot be used)")) {
+                    inbox = Paths.get(arg.substring(2));
+                } else if (arg.contains("*") || arg.contains("?")) {
                     File f = new File(arg);
                     Collection<File> list = FileUtils.listFiles(f.getParentFile(),  new WildcardFileFilter(f.getName(), IOCase.SYSTEM), null);
                     files = new String[list.size()];
@@ -508,13 +824,66 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
                         files[i++] = found.getPath();
                     }
                 }
+                if (pprlTokenizer != null) {
+                    // PPRL extracts are redacted
+                    redact = true;
+                }
+                if (redactOnly) {
+                    // Files which are not tab delimited are redacted and converted as for -x -c,
+                    // to standard output unless -c is given (see ValidationConfig.Builder#setRedactOnly)
+                    redact = true;
+                }
                 // Force use of defaults when redacting and converting from HL7
                 if (redact && hl7Folder != null) {
                     useDefaults = true;
                 }
-                totalErrors += validateFiles(reportFolder, maxErrors, suppressErrors, version, useJson, useDefaults, fixIt, hl7Folder, cvrsFolder, files);
+                ValidationConfig config = new ValidationConfig.Builder(defaults)
+                    .setReportFolder(reportFolder)
+                    .setMaxErrors(maxErrors)
+                    .setSuppressed(suppressErrors)
+                    .setVersion(version)
+                    .setUseJson(useJson)
+                    .setUseNdjson(useNdjson)
+                    .setUseDefaults(useDefaults)
+                    .setFixIt(fixIt)
+                    .setHl7Folder(hl7Folder)
+                    .setCvrsFolder(cvrsFolder)
+                    .setRedacting(redact)
+                    .setWriteAll(writeAll)
+                    .setReportStats(reportStats)
+                    .setReportRedactions(reportRedactions)
+                    .setThreads(threads)
+                    .setFileThreads(fileThreads)
+                    .setPipeline(pipeline)
+                    .setDuplicateMemoryBudget(duplicateMemoryBudget)
+                    .setExampleLimit(exampleLimit)
+                    .setDetailLimit(detailLimit)
+                    .setStrictHL7(strictHL7)
+                    .setRoundTrip(roundTrip)
+                    .setRedactOnly(redactOnly)
+                    .setPPRLTokenizer(pprlTokenizer)
+                    .setProfiling(profiling)
+                    .setRules(rules)
+                    .build();
+                if (inbox != null) {
+                    if (reportRedactions) {
+                        System.err.println("-T cannot be used with -W");
+                        return -1;
+                    }
+                    daemon = daemon == null ? new ValidatorDaemon() : daemon;
+                    daemon.watch(inbox, config);
+                    continue;
+                }
+                totalErrors += validateFiles(config, files);
             }
 
+            if (daemon != null) {
+                // Run until stopped, letting files being validated finish
+                try (ValidatorDaemon d = daemon) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(d::close));
+                    d.await();
+                }
+            }
             return totalErrors;
         } catch (Throwable t) {
             t.printStackTrace();
@@ -524,6 +893,19 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
 
     /**
      * Validate one ore more files
+     * @param config    The configuration to use.
+     * @param files The files to process
+     * @return  The number of errors found
+     * @throws IOException  If a read error occurs
+     */
+    public static int validateFiles(ValidationConfig config, String ... files) throws IOException {
+        try (ValidationSession session = new ValidationSession(config)) {
+            return session.validateFiles(files);
+        }
+    }
+
+    /**
+     * Validate one ore more files, using default values for other settings.
      * @param reportFolder  Where to send the report
      * @param maxErrors     Maximum number of errors
      * @param suppressErrors    List of errors to suppress
@@ -536,7 +918,9 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      * @param files The files to process
      * @return  The number of errors found
      * @throws IOException  If a read error occurs
+     * @deprecated Use {@link #validateFiles(ValidationConfig, String...)} or {@link ValidationSession}
      */
+    @Deprecated
     public static int validateFiles(
         String reportFolder,
         int maxErrors,
@@ -549,112 +933,18 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         String cvrsFolder,
         String[] files
     ) throws IOException {
-        int errors = 0;
-        boolean needsHeader = true, needsRedactHeader = true;
-        BeanValidator beanValidator =
-            suppressErrors.equals(ERROR_CODES) ?
-                new NullValidator(suppressErrors, version) :
-                new BeanValidator(suppressErrors, version, fixIt);
-        try (PrintWriter redactionReport = reportRedactions ? new PrintWriter(new FileWriter("redactionReport.rpt", StandardCharsets.UTF_8)) : null) {
-            for (String file: files) {
-                try (Validator v = new Validator(Utility.getReader(file), beanValidator, useDefaults);) {
-                    v.setReport(getOutputStream(file, reportFolder, useJson ? "rpt.json" : "rpt"));
-                    PrintStream cvrs = getOutputStream(file, cvrsFolder, "txt");
-                    if (!System.out.equals(cvrs)) {
-                        needsHeader = true;
-                    }
-                    v.needsHeader = needsHeader;
-                    v.setCvrs(cvrs);
-                    v.setHL7(getOutputStream(file, hl7Folder, "hl7"));
-                    v.setMaxErrors(maxErrors);
-                    v.setName(file);
-                    v.setFixIt(fixIt);
-                    v.setIgnoringErrors(writeAll);
-                    if (useJson) {
-                        v.reporter = v.jsonReporter;
-                    }
-
-                    boolean needsOutput = false;
-                    // If we aren't seeing status updates on the console
-                    if (!System.out.equals(v.getReport())) {
-                        // and writing one won't mess up existing reporting
-                        if (!System.out.equals(v.getCvrs()) && !System.out.equals(v.getHl7())) {
-                            // Then tell the user what we are doing right now
-                            needsOutput = true;
-                            System.out.printf("Validating %s", file);
-                        }
-                    }
-                    List<CVRSEntry> l = v.validateFile();
-                    errors += l.size();
-
-                    if (needsOutput) {
-                        System.out.printf(" %d records, %d errors%n", v.getCount(), l.size());
-                    }
-
-                    if (reportRedactions) {
-                        needsRedactHeader = reportRedactions(needsRedactHeader, beanValidator, redactionReport, file);
-                    }
-                } catch (IOException ioex) {
-                    System.err.printf("Error processing %s: %s%n", file, ioex.getMessage());
-                    ioex.printStackTrace();
-                    errors += 1;
-                }
-            }
-        }
-        if (reportStats) {
-            System.out.printf("%-28s%-8s%n", "Field Name", "Frequency");
-            for (Map.Entry<String, Integer> e: beanValidator.getFieldCounts().entrySet()) {
-                System.out.printf("%-28s%8d%n", e.getKey(), e.getValue());
-            }
-        }
-        return errors;
-    }
-
-    /** Report redaction data
-     *
-     * @param needsRedactHeader True if the redaction header hasn't yet been generated.
-     * @param beanValidator The BeanValidator in use
-     * @param redactionReport   The place to report the content.
-     * @param file  The file being reported on.
-     * @return  false after the redaction header has been written
-     */
-    private static boolean reportRedactions(boolean needsRedactHeader, BeanValidator beanValidator,
-        PrintWriter redactionReport, String file) {
-        Map<String, String> map = getRedactionReport(beanValidator.getFieldCounts());
-        Set<Map.Entry<String, String>> s = map.entrySet();
-        if (needsRedactHeader) {
-            redactionReport.print("File");
-            for (Map.Entry<String, String> e: s) {
-                redactionReport.printf("\t%s", e.getKey());
-            }
-            redactionReport.println();
-            needsRedactHeader = false;
-        }
-        redactionReport.print(StringUtils.substringBefore(StringUtils.substringAfterLast(file, "\\"), "."));
-        for (Map.Entry<String, String> e: s) {
-            redactionReport.printf("\t%s", e.getValue());
-        }
-        redactionReport.println();
-        beanValidator.clearFieldCounts();
-        return needsRedactHeader;
-    }
-
-    /**
-     * Convert a map of field count data into a redaction report
-     * @param fieldCounts   The field count data
-     * @return  A map of redaction report data
-     */
-    private static Map<String, String> getRedactionReport(Map<String, Integer> fieldCounts) {
-        TreeMap<String, String> t = new TreeMap<>();
-        // for each field,
-        //    if X_00 or X_00000, and F == vax_event_id, then redacting to _00 or _00000
-        //    if X_unk == vax_event_id, then does NOT have this data
-        //    if X_yes != 0, then has some of this data
-        for (Map.Entry<String, Integer> e: fieldCounts.entrySet()) {
-            t.put(e.getKey(), e.getValue().toString());
-        }
-
-        return t;
+        ValidationConfig config = new ValidationConfig.Builder()
+            .setReportFolder(reportFolder)
+            .setMaxErrors(maxErrors)
+            .setSuppressed(suppressErrors)
+            .setVersion(version)
+            .setUseJson(useJson)
+            .setUseDefaults(useDefaults)
+            .setFixIt(fixIt)
+            .setHl7Folder(hl7Folder)
+            .setCvrsFolder(cvrsFolder)
+            .build();
+        return validateFiles(config, files);
     }
 
     /** Helper method to get a formatted message
@@ -667,43 +957,6 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         return String.format(MESSAGES.getString(key), args);
     }
 
-    /**
-     * Given a file name and a folder and extension, create a new file name.
-     * If arg already has the given extension (e.g., arg=file.txt, ext=txt), the new file
-     * will have the extension .new.txt (e.g., file.new.txt) to avoid file name conflicts.
-     * @param arg   The file name
-     * @param folder    The folder in which to put it
-     * @param ext   The new extension to use
-     * @return  A new file name.
-     * @throws IOException  If an error occurs creating the stream
-     */
-    private static PrintStream getOutputStream(String arg, String folder, String ext) throws IOException {
-        if (folder == null) {
-            return null;
-        }
-
-        if ("-".equals(folder)) {
-            return System.out;
-        }
-        if ("--".equals(folder)) {
-            return System.err;
-        }
-
-
-        File f1 = new File(arg), f2 = Utility.getNewFile(arg, new File(folder), ext);
-        File dir = f2.getCanonicalFile().getParentFile();
-
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        // Don't overwrite the input file!
-        if (f1.getCanonicalPath().equals(f2.getCanonicalPath())) {
-            ext = "new." + ext;
-            f2 = Utility.getNewFile(arg, new File(folder), ext);
-        }
-        return Utility.getPrintStream(f2);
-    }
-
     /**
      * Initializes help text for an option, and checks to see if arg matches the option.
      * @param arg       The argument to check.
@@ -714,9 +967,7 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      */
     private static boolean hasArgument(String arg, String option, String help, Object ... args) {
 
-        if (!helpText.containsKey(option)) {
-            helpText.put(option, String.format(help, args));
-        }
+        helpText.computeIfAbsent(option, k -> String.format(help, args));
         String opt = option.split("[\\Q[<{(] \\E]")[0];
         return arg.startsWith(opt);
     }
@@ -730,16 +981,27 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         System.out.println("\nfile ...\tOne or more files to validate or convert.\n");
     }
 
-    /** All errors seen during validation */
+    /** All errors seen during validation, unless an example limit is set */
     private List<CVRSEntry> allErrors = new ArrayList<>();
 
+    /** The number of errors seen during validation */
+    private int totalErrors = 0;
+
     /**
-     * @return the allErrors
+     * @return the allErrors, which is empty if an example limit is set.
+     * @see #setExampleLimit(int)
      */
     public List<CVRSEntry> getAllErrors() {
         return allErrors;
     }
 
+    /**
+     * @return The number of errors seen during validation.
+     */
+    public int getTotalErrors() {
+        return totalErrors;
+    }
+
     /** Count of messages validated */
     private int count = 0;
 
@@ -772,9 +1034,18 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
     /** Count of HL7 Records written */
     private int hl7Count = 0;
 
+    /** Count of HL7 Records written which were verified by converting them back */
+    private int hl7Verified = 0;
+
+    /** Which HL7 records are converted back to verify the conversion */
+    private RoundTripPolicy roundTrip = RoundTripPolicy.ALWAYS;
+
     /** Set to true if errors should be ignored while writing HL7 or CVRS Output */
     private boolean ignoringErrors = false;
 
+    /** The file being validated, or null when reading from a stream */
+    private Path path = null;
+
     /** The iterator used to loop over extracts obtained from the file */
     private Iterator<CVRSExtract> iterator = null;
 
@@ -810,6 +1081,44 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
     /** Set to true to fix up values to something legitimately close */
     private boolean fixIt = false;
 
+    /** Set to true to redact data before validation or conversion */
+    private boolean redacting = false;
+
+    /** Fills in the pprl_id of each record before it is redacted, or null to leave it unchanged */
+    private PPRLTokenizer pprlTokenizer = null;
+
+    /** The number of threads used to validate a tab delimited file, 1 to validate sequentially */
+    private int threads = 1;
+
+    /** The approximate size in bytes of each part of a file validated in parallel */
+    private long chunkSize = CHUNK_SIZE;
+
+    /** Set to true to read, validate, convert and write records on separate threads */
+    private boolean pipeline = false;
+
+    /** The maximum number of examples kept for each summary row, or 0 to keep all errors */
+    private int exampleLimit = 0;
+
+    /** The maximum number of detail rows reported for each error code, or 0 to report all of them */
+    private int detailLimit = 0;
+
+    /** The number of detail rows reported for each error code, when detailLimit is set */
+    private Map<String, Integer> detailCounts = new HashMap<>();
+
+    /** The number of detail rows not reported because of detailLimit */
+    private int omittedDetails = 0;
+
+    /** Used to sample examples, with a fixed seed so that reports are repeatable */
+    private final Random sampler = new Random(0);
+
+    /**
+     * Where reading, converting and writing records spends its time, or null if not profiling.
+     * The entries for each stage are created when profiling starts, and each is only updated by
+     * the thread running that stage.  Verifying records is profiled by the BeanValidator.
+     */
+    private Profile profile = null;
+    private Profile.Entry parseEntry = null, convertEntry = null, writeEntry = null;
+
     /**
      * Create a new Validator instance for the specified reader,
      * and validating using the specified BeanValidator instance.
@@ -852,22 +1161,50 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             Iterator<CVRSExtract> myIterator = parser.iterator();
             @Override
             public boolean hasNext() {
-                // TODO Auto-generated method stub
-                return myIterator.hasNext();
+                if (parseEntry == null) {
+                    return myIterator.hasNext();
+                }
+                // Records are read ahead by hasNext(), so count this as part of the next call to next().
+                long start = parseEntry.start();
+                try {
+                    return myIterator.hasNext();
+                } finally {
+                    parseEntry.stop(start, false);
+                }
             }
 
             @Override
             public CVRSExtract next() {
-                // TODO Auto-generated method stub
+                Profile.Entry entry = parseEntry;
+                long start = Profile.start(entry);
                 CVRSExtract ex = myIterator.next();
+                if (pprlTokenizer != null) {
+                    pprlTokenizer.apply(ex);
+                }
                 if (isRedacting()) {
                     ex.redact();
                 }
+                Profile.stop(entry, start);
                 return ex;
             }
         };
     }
 
+    /**
+     * Create a new Validator instance for the specified file, and validating
+     * using the specified BeanValidator instance.  Large files are read through
+     * a memory mapped reader (see {@link Utility#getReader(Path)}).
+     *
+     * @param path    The file to read data from.
+     * @param validator The BeanValidator used to valid the CVRSExtract (can be null, which skips most validation).
+     * @param useDefaults If true, use default values for missing fields in HL7 messages.
+     * @throws IOException  If an error occured while reading content (headers)
+     */
+    public Validator(Path path, BeanValidator validator, boolean useDefaults) throws IOException {
+        this(Utility.getReader(path), validator, useDefaults);
+        this.path = path;
+    }
+
     private void addError(CVRSEntry e) {
         if (errors.size() == 0) {
             errorCount++;
@@ -876,7 +1213,29 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         updateSummary(e);
         // We cannot report errors during construction
         if (count > 0) {
-            reporter.printDetailRow(e);
+            printDetailRow(e);
+        }
+    }
+
+    /**
+     * Report a detail row, unless detailLimit rows have already been reported for its code.
+     * @param e The error to report.
+     */
+    private void printDetailRow(CVRSEntry e) {
+        if (detailLimit > 0 && detailCounts.merge(e.getCategory(), 1, Integer::sum) > detailLimit) {
+            omittedDetails++;
+            return;
+        }
+        reporter.printDetailRow(e);
+    }
+
+    /**
+     * Count the errors in the current record, keeping them unless an example limit is set.
+     */
+    private void recordErrors() {
+        totalErrors += errors.size();
+        if (exampleLimit == 0) {
+            allErrors.addAll(errors);
         }
     }
 
@@ -924,15 +1283,22 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
     /**
      * Forces a close of the underlying reader, and all ouput files
      * that are not stderr or stdout.
+     * @throws IOException If an output file could not be written, or the reader could not be closed.
      */
     @Override
     public void close() throws IOException {
-        Arrays.asList(getReport(), this.getHl7(), this.getCvrs()).stream().forEach( s -> {
+        boolean failed = false;
+        for (PrintStream s: Arrays.asList(getReport(), this.getHl7(), this.getCvrs())) {
             if (s != null && !s.equals(System.out) && !s.equals(System.err)) {
                 s.close();
+                // Output files are written on another thread, so report errors that happened there.
+                failed |= s.checkError();
             }
-        });
+        }
         reader.close();
+        if (failed) {
+            throw new IOException("Error writing output for " + getName());
+        }
     }
     /**
      * @return The count of records read.
@@ -1016,6 +1382,14 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         return hl7Count;
     }
 
+    /**
+     * Return the count of HL7 records written which were verified by converting them back.
+     * @return the count of HL7 records verified.
+     */
+    public int getHl7Verified() {
+        return hl7Verified;
+    }
+
     /**
      * Get the name of the file.
      * @return The name
@@ -1032,10 +1406,10 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
     }
 
     /**
-     * @return the redact
+     * @return true if data is redacted before validation or conversion.
      */
-    public static boolean isRedacting() {
-        return redact;
+    public boolean isRedacting() {
+        return redacting;
     }
 
     /**
@@ -1190,6 +1564,156 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         return this;
     }
 
+    /**
+     * Limit the memory used to account for errors.  Summary rows keep exact counts, but only
+     * a sample of examples, and errors are no longer kept in {@link #getAllErrors()}.
+     * @param exampleLimit  The maximum number of examples kept for each summary row, or 0 to keep all errors.
+     * @return this for fluent use.
+     */
+    public Validator setExampleLimit(int exampleLimit) {
+        this.exampleLimit = exampleLimit;
+        return this;
+    }
+
+    /**
+     * @param detailLimit   The maximum number of detail rows reported for each error code, or 0 to report all of them.
+     * @return this for fluent use.
+     */
+    public Validator setDetailLimit(int detailLimit) {
+        this.detailLimit = detailLimit;
+        return this;
+    }
+
+    /**
+     * @param strictHL7 Set to true to parse every HL7 message with HAPI, rejecting messages with structural
+     * or data type errors, rather than reading VXU messages straight from their text.
+     * @return this for fluent use.
+     */
+    public Validator setStrictHL7(boolean strictHL7) {
+        if (parser instanceof HL7MessageConverter) {
+            ((HL7MessageConverter) parser).setStrict(strictHL7);
+        }
+        return this;
+    }
+
+    /**
+     * @param roundTrip Which HL7 records to convert back to verify that they match the original record.
+     * @return this for fluent use.
+     */
+    public Validator setRoundTrip(RoundTripPolicy roundTrip) {
+        this.roundTrip = roundTrip;
+        return this;
+    }
+
+    /**
+     * @param pprlTokenizer The tokenizer used to fill in the pprl_id of each record before it is redacted,
+     * or null to leave it unchanged.  Records on other threads use copies of it.
+     * @return this for fluent use.
+     */
+    public Validator setPPRLTokenizer(PPRLTokenizer pprlTokenizer) {
+        this.pprlTokenizer = pprlTokenizer;
+        return this;
+    }
+
+    /**
+     * @param redacting Set to true to redact data before validation or conversion.
+     * @return this for fluent use.
+     */
+    public Validator setRedacting(boolean redacting) {
+        this.redacting = redacting;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to validate a tab delimited file.
+     * @param threads   The number of threads, 1 to validate sequentially.
+     * @return this for fluent use.
+     */
+    public Validator setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set the approximate size of each part of a file validated in parallel.
+     * @param chunkSize The size in bytes, or 0 for the default (4 MB).
+     * @return this for fluent use.
+     */
+    public Validator setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize > 0 ? chunkSize : CHUNK_SIZE;
+        return this;
+    }
+
+    /**
+     * @param pipeline  Set to true to read, validate, convert and write records on separate threads.
+     * @return this for fluent use.
+     */
+    public Validator setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    /**
+     * Record the time taken, the number of calls, and an estimate of the memory allocated
+     * by each stage of processing records, each field validator and each business rule,
+     * and add them to the end of the report.
+     *
+     * @param profiling Set to true to profile validation.
+     * @return this for fluent use.
+     */
+    public Validator setProfiling(boolean profiling) {
+        profile = profiling ? new Profile() : null;
+        parseEntry = profiling ? profile.get(Profile.Kind.STAGE, Profile.PARSE) : null;
+        convertEntry = profiling ? profile.get(Profile.Kind.STAGE, Profile.CONVERT) : null;
+        writeEntry = profiling ? profile.get(Profile.Kind.STAGE, Profile.WRITE) : null;
+        if (validator != null) {
+            validator.setProfile(profiling ? new Profile() : null);
+        }
+        return this;
+    }
+
+    /**
+     * @return true if validation is being profiled.
+     */
+    public boolean isProfiling() {
+        return profile != null;
+    }
+
+    /**
+     * Get the profile of validation so far, combining the stages profiled by this validator
+     * with the field validators and business rules profiled by the BeanValidator.
+     * @return  The profile, or null if not profiling.
+     */
+    public Profile getProfile() {
+        if (profile == null) {
+            return null;
+        }
+        return new Profile().add(profile).add(validator == null ? null : validator.getProfile());
+    }
+
+    /**
+     * @param useJson   Set to true to write the validation report in JSON format.
+     * @return this for fluent use.
+     */
+    public Validator setJson(boolean useJson) {
+        reporter = useJson ? jsonReporter : consoleReporter;
+        return this;
+    }
+
+    /**
+     * @param useNdjson Set to true to write the validation report as newline delimited JSON,
+     * which takes precedence over {@link #setJson(boolean)}.
+     * @return this for fluent use.
+     */
+    public Validator setNdjson(boolean useNdjson) {
+        if (useNdjson) {
+            reporter = ndjsonReporter;
+        } else if (reporter == ndjsonReporter) {
+            reporter = consoleReporter;
+        }
+        return this;
+    }
+
     /**
      * @param reformatDates the reformatDates to set
      */
@@ -1215,6 +1739,9 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      */
     public Validator setValidator(BeanValidator validator) {
         this.validator = validator;
+        if (profile != null && validator != null) {
+            validator.setProfile(new Profile());
+        }
         return this;
     }
 
@@ -1262,6 +1789,22 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         ++count;
         currentExtract = null;
         currentExtract = iterator.next();
+        startRecord();
+        if (validator != null) {
+            try {
+                validator.verifyBean(currentExtract);
+            } catch (CVRSValidationException ex) {
+                reportErrors(ex);
+                throw ex;
+            }
+        }
+        return currentExtract;
+    }
+
+    /**
+     * Prepare to report errors on the current record.
+     */
+    private void startRecord() {
         if (count > 1) {
             // Don't clear header errors.
             errors.clear();
@@ -1270,25 +1813,24 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             // we may have some errors to report
             // even before validating.
             for (CVRSEntry e: errors) {
-                reporter.printDetailRow(e);
+                printDetailRow(e);
             }
         }
-        if (validator != null) {
-            try {
-                validator.verifyBean(currentExtract);
-            } catch (CVRSValidationException ex) {
-                ex.setLine(currentExtract.getValues(headers));
-                ex.setLineNumber(count);
-                ex.getEntries().forEach(e -> addError(e));
-                if (reformatDates ) {
-                    ex.getEntries().stream()
-                      .filter(e -> Validator.INVALID_DATE_FORMAT.equals(e.getCategory()))
-                      .forEach(e -> reformatDate(e) );
-                }
-                throw ex;
-            }
+    }
+
+    /**
+     * Report the errors found in the current record.
+     * @param ex    The exception containing the errors.
+     */
+    private void reportErrors(CVRSValidationException ex) {
+        ex.setLine(currentExtract.getValues(headers));
+        ex.setLineNumber(count);
+        ex.getEntries().forEach(e -> addError(e));
+        if (reformatDates ) {
+            ex.getEntries().stream()
+              .filter(e -> Validator.INVALID_DATE_FORMAT.equals(e.getCategory()))
+              .forEach(e -> reformatDate(e) );
         }
-        return currentExtract;
     }
 
     private void reformatDate(CVRSEntry e) {
@@ -1303,56 +1845,129 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      * @return The current record count.
      */
     private int convert() {
+        return convert(null);
+    }
+
+    /**
+     * Convert data, using the results of a conversion already performed on another thread if available.
+     * @param converted The converted record, or null to convert the current record now.
+     * @return The current record count.
+     */
+    private int convert(Pending converted) {
         if (cvrs != null && (errors.isEmpty() || isIgnoringErrors())) {
-            convertToTabDelimited();
+            String values[] = converted != null ? converted.cvrsRow : null;
+            if (values == null) {
+                long start = Profile.start(convertEntry);
+                values = currentExtract.getValues(validHeaders);
+                Profile.stop(convertEntry, start);
+            }
+            long start = Profile.start(writeEntry);
+            convertToTabDelimited(values);
+            Profile.stop(writeEntry, start);
         }
         if (hl7 != null && (errors.isEmpty() || isIgnoringErrors())) {
-            convertToHL7();
+            HL7Conversion conversion = converted != null ? converted.hl7Conversion : null;
+            if (conversion == null) {
+                long start = Profile.start(convertEntry);
+                conversion = toHL7(currentExtract, getCount());
+                Profile.stop(convertEntry, start);
+            }
+            long start = Profile.start(writeEntry);
+            convertToHL7(conversion);
+            Profile.stop(writeEntry, start);
         }
         return getCount();
     }
 
     /**
      * Write the current record to tab delimited format.
+     * @param values    The values of the record in output order.
      */
-    private void convertToTabDelimited() {
+    private void convertToTabDelimited(String values[]) {
         cvrsCount++;
-        Utility.printRow(cvrs, currentExtract.getValues(validHeaders));
+        Utility.printRow(cvrs, values);
     }
 
     /**
      * Write the current record to HL7 format.
+     * @param conversion    The converted record.
+     */
+    private void convertToHL7(HL7Conversion conversion) {
+        if (conversion.encoded != null) {
+            hl7.print(conversion.encoded);
+            hl7.println();
+            hl7Count++;
+            if (conversion.verified) {
+                hl7Verified++;
+            }
+        }
+        conversion.errors.forEach(e -> addError(e));
+    }
+
+    /**
+     * The result of converting a record to HL7.
      */
-    private void convertToHL7() {
+    private static class HL7Conversion {
+        /** The encoded message, or null if it could not be encoded */
+        private String encoded = null;
+        /** True if the message was converted back and compared with the record */
+        private boolean verified = false;
+        /** Errors found during the conversion */
+        private final List<CVRSEntry> errors = new ArrayList<>();
+    }
+
+    /**
+     * Convert a record to HL7, and verify that it converts back to the same record
+     * when the round trip policy selects it.
+     * This does not change the state of this Validator, and so can be called on another thread.
+     * @param extract   The record to convert.
+     * @param line  The record number for reporting errors.
+     * @return The converted record.
+     */
+    private HL7Conversion toHL7(CVRSExtract extract, int line) {
+        HL7Conversion result = new HL7Conversion();
         CVRSExtract e2 = null;
         try {
-            Message m = Converter.toHL7(currentExtract, validator != null ? validator.getVersion() : DEFAULT_VERSION);
+            String version = validator != null ? validator.getVersion() : DEFAULT_VERSION;
+            if (!roundTrip.shouldCheck(line)) {
+                // Without a round trip there is no need for a HAPI message unless the record cannot be written directly
+                try {
+                    result.encoded = Converter.toHL7String(extract, version);
+                } catch (HL7Exception hl7ex) {
+                    CVRSEntry entry = new CVRSEntry(extract, "HL7_003", "???",
+                        hl7ex.getMessage()
+                    ).setLine(line);
+                    result.errors.add(entry);
+                }
+                return result;
+            }
+            VXU_V04 m = Converter.toHL7(extract, version);
 
             try {
-                hl7.printf("%s%n", m.encode());
-                hl7Count++;
+                result.encoded = Converter.encode(m, extract, version);
             } catch (HL7Exception hl7ex) {
-                CVRSEntry entry = new CVRSEntry(currentExtract, "HL7_003", "???",
+                CVRSEntry entry = new CVRSEntry(extract, "HL7_003", "???",
                     hl7ex.getMessage()
-                ).setLine(getCount());
-                addError(entry);
+                ).setLine(line);
+                result.errors.add(entry);
             }
             List<CVRSEntry> exList = new ArrayList<>();
-            e2 = Converter.fromHL7(m, exList, validator, useDefaults, getCount());
-            Field ff = currentExtract.notEqualsAt(e2);
+            e2 = Converter.fromHL7(m, exList, validator, useDefaults, line);
+            result.verified = true;
+            CVRSField ff = extract.differsAt(e2);
             if (ff != null) {
-                ff.setAccessible(true);
                 CVRSEntry entry = new CVRSEntry(e2, "HL7_001", ff.getName(),
                         String.format("Message does not round trip at %s, '%s' != '%s'",
-                            ff.getName(), ff.get(currentExtract), ff.get(e2)
+                            ff.getName(), ff.get(extract), ff.get(e2)
                         )
-                    ).setLine(getCount());
-                addError(entry);
+                    ).setLine(line);
+                result.errors.add(entry);
             }
         } catch (Exception e) {
-            CVRSEntry entry = new CVRSEntry(e2, e.getClass().getName(), "???", e.getMessage()).setLine(getCount());
-            addError(entry);
+            CVRSEntry entry = new CVRSEntry(e2, e.getClass().getName(), "???", e.getMessage()).setLine(line);
+            result.errors.add(entry);
         }
+        return result;
     }
 
 
@@ -1365,28 +1980,29 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         ErrorSummary summaryRow = errorSummary.get(key);
         if (summaryRow == null) {
             errorSummary.put(key, summaryRow = new ErrorSummary(entry, currentExtract));
-        } else {
-            summaryRow.addOne(entry, currentExtract);
         }
+        summaryRow.addOne(entry, currentExtract, exampleLimit, sampler);
     }
 
     /**
      * Validate a single file.
-     * @return The list of errors associated with the file.
+     * @return The number of errors found in the file.
      * @throws IOException If there was an error reading the stream.
      */
-    private List<CVRSEntry> validateFile() throws IOException {
+    int validateFile() throws IOException {
         if (getReport() != null) {
             reporter.printDetailHeader();
         }
-        while (hasNext()) {
-            try {
-                validateOne();
-                convert();
-            } catch (CVRSValidationException ex) {
-                convert();
+        if (!validateInParallel() && !validateInPipeline()) {
+            while (hasNext()) {
+                try {
+                    validateOne();
+                    convert();
+                } catch (CVRSValidationException ex) {
+                    convert();
+                }
+                recordErrors();
             }
-            allErrors.addAll(errors);
         }
         if (count == 0) {
             convert();
@@ -1394,7 +2010,287 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
         if (getReport() != null) {
             generateSummary();
         }
-        return allErrors;
+        return totalErrors;
+    }
+
+    /**
+     * A record that has been read and validated (and possibly converted) on another thread,
+     * waiting to be reported and written in order.
+     */
+    private static class Pending {
+        /** The record number */
+        private final int line;
+        private final CVRSExtract extract;
+        /** The errors found in the record, or null if there were none */
+        private List<CVRSEntry> entries = null;
+        /** The record converted to tab delimited format, or null if not yet converted */
+        private String cvrsRow[] = null;
+        /** The record converted to HL7, or null if not yet converted */
+        private HL7Conversion hl7Conversion = null;
+
+        private Pending(int line, CVRSExtract extract) {
+            this.line = line;
+            this.extract = extract;
+        }
+    }
+
+    /**
+     * Report and write a record that was processed on another thread, as
+     * validateFile() does for each record read sequentially.
+     * @param p The record.
+     */
+    private void accept(Pending p) {
+        ++count;
+        currentExtract = p.extract;
+        startRecord();
+        if (p.entries != null) {
+            reportErrors(new CVRSValidationException(currentExtract, p.entries));
+        }
+        convert(p);
+        recordErrors();
+    }
+
+    /**
+     * The records and validation results for part of a file validated in parallel.
+     */
+    private static class Chunk {
+        /** The validator used for this part of the file */
+        private final BeanValidator validator;
+        /** The records read, numbered from 1 within the part */
+        private final List<Pending> records = new ArrayList<>();
+
+        private Chunk(BeanValidator validator) {
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * Validate a tab delimited file by splitting it into parts that are validated
+     * on separate threads.  The results are merged back in file order, so that reports,
+     * line numbers and converted outputs are the same as for sequential validation.
+     * Duplicate records (BUSR013) are checked during the merge so that they are found
+     * across parts.
+     *
+     * @return false if the file cannot be validated in parallel, in which case nothing has been read.
+     * @throws IOException If there was an error reading the file.
+     */
+    private boolean validateInParallel() throws IOException {
+        if (threads < 2 || path == null || validator == null || !(parser instanceof ParserFactory.TabDelimitedReader)) {
+            return false;
+        }
+        List<long[]> ranges = Utility.getLineRanges(path, chunkSize);
+        if (ranges.size() < 3) {
+            // Only the headers and a single part, nothing to split.
+            return false;
+        }
+        String columns[];
+        try (BufferedReader r = Utility.getReader(path)) {
+            columns = StringUtils.removeStart(r.readLine(), "\ufeff").split("\t", -1);
+        }
+        CsvExceptionHandler handler = new ParserFactory.TooManyErrorsHandler();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>();
+        try {
+            Iterator<long[]> it = ranges.subList(1, ranges.size()).iterator();
+            while (it.hasNext() || !pending.isEmpty()) {
+                // Limit the number of parts in memory at once.
+                while (it.hasNext() && pending.size() < 2 * threads) {
+                    long range[] = it.next();
+                    pending.add(pool.submit(() -> validateChunk(range[0], range[1], columns, handler)));
+                }
+                mergeChunk(pending.remove().join());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Read and validate part of a tab delimited file.  This is called on a pool thread,
+     * and so must not change the state of this Validator.
+     * @param start The offset of the first line to read.
+     * @param end   The offset just past the last line to read.
+     * @param columns   The column headers of the file.
+     * @param handler   The handler for parsing errors, shared by all parts.
+     * @return  The records and validation results.
+     * @throws IOException If there was an error reading the file.
+     */
+    private Chunk validateChunk(long start, long end, String columns[], CsvExceptionHandler handler) throws IOException {
+        Chunk chunk = new Chunk(validator.newPartitionValidator());
+        PPRLTokenizer tokenizer = pprlTokenizer == null ? null : pprlTokenizer.copy();
+        // Parsing is recorded in the profile of the validator for this part, which is merged with the others.
+        Profile.Entry parsing = chunk.validator.getProfile() == null ? null :
+            chunk.validator.getProfile().get(Profile.Kind.STAGE, Profile.PARSE);
+        try (Reader r = new MappedFileReader(path, start, end)) {
+            Iterator<CVRSExtract> records = new ParserFactory.TabDelimitedReader(r, columns, null, handler).iterator();
+            while (true) {
+                long parseStart = Profile.start(parsing);
+                if (!records.hasNext()) {
+                    break;
+                }
+                CVRSExtract extract = records.next();
+                if (tokenizer != null) {
+                    tokenizer.apply(extract);
+                }
+                if (isRedacting()) {
+                    extract.redact();
+                }
+                Profile.stop(parsing, parseStart);
+                Pending p = new Pending(chunk.records.size() + 1, extract);
+                try {
+                    chunk.validator.verifyBean(extract);
+                } catch (CVRSValidationException ex) {
+                    p.entries = ex.getEntries();
+                }
+                chunk.records.add(p);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Report and convert the records from part of a file, in order, as
+     * validateFile() does for each record read sequentially.
+     * @param chunk The part to merge.
+     */
+    private void mergeChunk(Chunk chunk) {
+        validator.addFieldCounts(chunk.validator);
+        if (validator.getProfile() != null) {
+            validator.getProfile().add(chunk.validator.getProfile());
+        }
+        for (Pending p: chunk.records) {
+            CVRSEntry duplicate = validator.verifyNoDuplicate(p.extract);
+            if (duplicate != null) {
+                p.entries = p.entries == null ? new ArrayList<>() : new ArrayList<>(p.entries);
+                p.entries.add(duplicate);
+            }
+            accept(p);
+        }
+    }
+
+    /**
+     * Validate a file using a pipeline of stages, each on its own thread: one reads records,
+     * one validates them, one converts them to the requested outputs, and this thread
+     * reports and writes them.  Stages are connected by queues of futures in record order,
+     * so output is the same as for sequential validation.  The queue between reading and
+     * writing is bounded, so reading waits when the later stages fall behind.
+     *
+     * Validation and conversion each stay on a single thread, so that duplicate checking
+     * and HL7 message identifiers see records in file order.
+     *
+     * @return false if pipelining is not enabled for this file, in which case nothing has been read.
+     */
+    private boolean validateInPipeline() {
+        if (!pipeline || reformatDates) {
+            // Reformatting dates changes records after validation, so must be done sequentially.
+            return false;
+        }
+        ExecutorService readStage = Executors.newSingleThreadExecutor(),
+                        validateStage = Executors.newSingleThreadExecutor(),
+                        convertStage = Executors.newSingleThreadExecutor();
+        BlockingQueue<Future<Pending>> queue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+        Future<Pending> end = CompletableFuture.completedFuture(null);
+        try {
+            Future<?> reading = readStage.submit(() -> {
+                boolean cancelled = false;
+                try {
+                    int line = 0;
+                    while (iterator.hasNext()) {
+                        Pending p = new Pending(++line, iterator.next());
+                        Future<Pending> validated = validateStage.submit(() -> validatePending(p));
+                        queue.put(convertStage.submit(() -> convertPending(validated.get())));
+                    }
+                } catch (InterruptedException e) {
+                    // The pipeline was shut down, so nothing takes from the queue any more,
+                    // and waiting for room to mark its end would never finish.
+                    cancelled = true;
+                    throw e;
+                } finally {
+                    if (!cancelled) {
+                        queue.put(end);
+                    }
+                }
+                return null;
+            });
+            Future<Pending> next;
+            while ((next = queue.take()) != end) {
+                accept(getResult(next));
+            }
+            // Report any error that stopped reading.
+            getResult(reading);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Validation was interrupted", e);
+        } finally {
+            readStage.shutdownNow();
+            validateStage.shutdownNow();
+            convertStage.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Validate a record in the pipeline.
+     * @param p The record.
+     * @return  The record.
+     */
+    private Pending validatePending(Pending p) {
+        if (validator != null) {
+            try {
+                validator.verifyBean(p.extract);
+            } catch (CVRSValidationException ex) {
+                p.entries = ex.getEntries();
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Convert a record in the pipeline, if it will be written.
+     * @param p The record.
+     * @return  The record.
+     */
+    private Pending convertPending(Pending p) {
+        if (p.entries == null || isIgnoringErrors()) {
+            if (cvrs != null) {
+                long start = Profile.start(convertEntry);
+                p.cvrsRow = p.extract.getValues(validHeaders);
+                Profile.stop(convertEntry, start);
+            }
+            if (hl7 != null) {
+                long start = Profile.start(convertEntry);
+                p.hl7Conversion = toHL7(p.extract, p.line);
+                Profile.stop(convertEntry, start);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Get the result of a pipeline stage, rethrowing any exception it threw.
+     * @param <T>   The type of result.
+     * @param f The future result of the stage.
+     * @return  The result.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static <T> T getResult(Future<T> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException && cause.getCause() != null) {
+                // Thrown by a stage waiting on the result of an earlier stage.
+                cause = cause.getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
     }
 
     /**
@@ -1415,7 +2311,7 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
      * @param code  The Error code
      * @return  The human readable description of the error
      */
-    private static String getErrorDescription(String code) {
+    private String getErrorDescription(String code) {
         String description = null;
 
         switch(code.substring(0,4)) {
@@ -1428,7 +2324,7 @@ public class Validator implements Iterator<CVRSExtract>, Closeable {
             description = "Message does not round trip (possibly due to input errors).";
             break;
         case "BUSR":
-            description = BeanValidator.getRule(code);
+            description = (validator == null ? BeanValidator.getDefaultRules() : validator.getRules()).getRule(code);
             break;
         case "REQD":
             description = "A required field is missing for " +
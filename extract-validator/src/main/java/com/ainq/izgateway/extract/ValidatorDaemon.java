@@ -0,0 +1,624 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.validation.BeanValidator;
+
+/**
+ * Keeps the validator running so that files can be validated without paying for JVM
+ * startup and for loading the HL7 parser, value sets and validation rules each time.
+ *
+ * A daemon can watch inbox folders and accept command lines on a local socket.
+ * Files placed in an inbox are claimed by moving them to a private folder within it,
+ * then validated using the configuration given for that inbox, with the report (and any
+ * outputs written to ".") placed next to the file.  When done, the file and everything written
+ * with it are moved to the done folder of the inbox if there were no errors, and to the error
+ * folder otherwise.  Redaction statistics (-T) cannot be reported for an inbox, since they are not
+ * written next to the file.  Files are only claimed once their size and modification time have not
+ * changed for {@link #QUIET_PERIOD} milliseconds, but producers should still write them under
+ * another name (e.g., ending in .tmp or .part, or starting with a .) and then rename them into
+ * the inbox when they are complete.
+ *
+ * The socket accepts connections only from the local machine.  Since any local user can connect to
+ * it, each connection must first send the token the daemon wrote to {@link #getTokenFile(int)}, which
+ * only the user running the daemon can read, on a line of its own.  It then sends the arguments for
+ * {@link Validator#main1(String[], String)}, one per line, followed by an empty line.  The output of
+ * the command is sent back, followed by a last line containing "Exit code: " and the value main1
+ * returned.  Relative file names are relative to the working directory of the daemon, and standard
+ * input cannot be validated.  Options which read or write files other than the inputs (-R, -g, -c,
+ * -7, -b and -r) cannot be used, so the report is always sent back on the connection.  A local socket
+ * is used rather than a Unix domain socket since those need Java 16 or later.
+ *
+ * Rules added with -R are part of the configuration they are given in, so they only apply to
+ * the inbox or command line they were given for.
+ */
+public class ValidatorDaemon implements Closeable {
+    /** The folder within an inbox for files validated without errors */
+    public static final String DONE = "done";
+    /** The folder within an inbox for files with errors */
+    public static final String ERROR = "error";
+    /** The folder within an inbox for files being validated */
+    public static final String WORK = "work";
+    /** How long in milliseconds a file must be unchanged before it is validated */
+    public static final long QUIET_PERIOD = 250;
+    /** How long in milliseconds to wait for a connection to send its arguments */
+    private static final int READ_TIMEOUT = 30000;
+    private static final String EXIT_CODE = "Exit code: ";
+    /** The folder within the user's home folder holding the token file for each port */
+    private static final String TOKEN_FOLDER = ".extract-validator";
+    /** Options which start another daemon */
+    private static final String DAEMON_OPTIONS[] = { "-W", "-A" };
+    /** Options which read or write files other than the inputs and report to the connection */
+    private static final String FILE_OPTIONS[] = { "-R", "-g", "-c", "-7", "-b", "-r" };
+
+    /** Where standard output and error are sent for the current thread, or null for the console */
+    private static final InheritableThreadLocal<OutputStream> OUTPUT = new InheritableThreadLocal<>();
+    private static boolean routed = false;
+
+    private final List<Closeable> resources = new ArrayList<>();
+    private final List<ExecutorService> executors = new ArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean closed = false;
+
+    /**
+     * Watch an inbox, validating each file placed in it.  Files already in the inbox are validated
+     * first, and files left in its work folder by a daemon which did not finish are moved to its
+     * error folder.  Up to {@link ValidationConfig#getFileThreads()} files are validated at once.
+     *
+     * @param inbox The folder to watch.
+     * @param config    The configuration used to validate the files.
+     * @throws IOException  If the inbox cannot be watched.
+     * @throws IllegalArgumentException If the configuration reports redaction statistics.
+     */
+    public synchronized void watch(Path inbox, ValidationConfig config) throws IOException {
+        if (config.isReportRedactions()) {
+            throw new IllegalArgumentException("Redaction statistics (-T) cannot be reported for an inbox");
+        }
+        Inbox watcher = new Inbox(inbox, config);
+        warmUp(config);
+        routeStandardOutput();
+        resources.add(watcher.watcher);
+        Thread t = new Thread(watcher::run, "Inbox-" + inbox.getFileName());
+        t.setDaemon(true);
+        t.start();
+        System.out.printf("Watching %s%n", inbox);
+    }
+
+    /**
+     * Accept command lines from the local machine on a port.  A new token is written to
+     * {@link #getTokenFile(int)} for the port, and removed when the daemon is closed.
+     * @param port  The port to listen on, or 0 to use any free port.
+     * @return  The port listened on.
+     * @throws IOException  If the port cannot be used or the token cannot be written.
+     */
+    public synchronized int listen(int port) throws IOException {
+        for (String version: new String[] { "1", "2" }) {
+            warmUp(new ValidationConfig.Builder().setVersion(version).build());
+        }
+        routeStandardOutput();
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        resources.add(server);
+        Path tokenFile = getTokenFile(server.getLocalPort());
+        byte token[] = writeToken(tokenFile);
+        resources.add(() -> Files.deleteIfExists(tokenFile));
+        // Also when the daemon is stopped without being closed
+        tokenFile.toFile().deleteOnExit();
+        ExecutorService connections = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        executors.add(connections);
+        Thread t = new Thread(() -> accept(server, connections, token), "Listener-" + server.getLocalPort());
+        t.setDaemon(true);
+        t.start();
+        System.out.printf("Listening on %s:%d, token in %s%n", server.getInetAddress().getHostAddress(), server.getLocalPort(), tokenFile);
+        return server.getLocalPort();
+    }
+
+    /**
+     * Get the file holding the token a connection must send to a daemon listening on a port.
+     * @param port  The port.
+     * @return  The token file, in the .extract-validator folder of the user's home folder.
+     */
+    public static Path getTokenFile(int port) {
+        return new File(System.getProperty("user.home")).toPath().resolve(TOKEN_FOLDER).resolve("daemon-" + port + ".token");
+    }
+
+    /**
+     * Write a new random token to a file that only the current user can read.  Any existing
+     * file is replaced rather than written to, so that it cannot have been prepared by another user.
+     * @param tokenFile The file to write.
+     * @return  The token.
+     * @throws IOException  If the token cannot be written.
+     */
+    private static byte[] writeToken(Path tokenFile) throws IOException {
+        byte random[] = new byte[32];
+        new SecureRandom().nextBytes(random);
+        byte token[] = Base64.getUrlEncoder().withoutPadding().encode(random);
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        Path folder = tokenFile.getParent();
+        if (!Files.isDirectory(folder)) {
+            if (posix) {
+                Files.createDirectories(folder, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(folder);
+            }
+        }
+        Files.deleteIfExists(tokenFile);
+        if (posix) {
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(tokenFile);
+            File f = tokenFile.toFile();
+            if (!f.setReadable(false, false) || !f.setReadable(true, true)) {
+                throw new IOException("Cannot restrict access to " + tokenFile);
+            }
+        }
+        Files.write(tokenFile, token);
+        return token;
+    }
+
+    /**
+     * Wait until the daemon is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stop watching inboxes and accepting connections, and wait for files being validated
+     * and commands being run to finish.
+     */
+    @Override
+    public void close() {
+        List<ExecutorService> running;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Closeable resource: resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    // Nothing more can be done with it.
+                }
+            }
+            running = new ArrayList<>(executors);
+        }
+        for (ExecutorService executor: running) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor: running) {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Validate and convert a record in each format, so that the classes, value sets
+     * and rules used by a configuration are loaded before the first file arrives.
+     * @param config    The configuration to prepare for.
+     */
+    public static void warmUp(ValidationConfig config) {
+        CVRSExtract extract = new CVRSExtract();
+        extract.setVax_event_id("WarmUp");
+        extract.setExt_type("D");
+        extract.setRecip_first_name("Mary");
+        extract.setRecip_last_name("Smith");
+        extract.setRecip_dob("2000-01-01");
+        extract.setRecip_sex("F");
+        extract.setAdmin_date("2021-01-01");
+        extract.setCvx("208");
+        String headers[] = CVRSExtract.getHeaders(config.getVersion());
+        String tabDelimited = StringUtils.join(headers, '\t') + "\n" + StringUtils.join(extract.getValues(headers), '\t') + "\n";
+        ByteArrayOutputStream hl7 = new ByteArrayOutputStream();
+        PrintStream none = new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        BeanValidator bv = new BeanValidator(config.getSuppressed(), config.getVersion()).setRules(config.getRules());
+        try {
+            try (Validator v = new Validator(new StringReader(tabDelimited), bv, true)) {
+                v.setHL7(new PrintStream(hl7, true, "UTF-8")).setReport(none).setIgnoringErrors(true)
+                    .setStrictHL7(config.isStrictHL7()).setName("warm-up");
+                v.validateFile();
+            }
+            try (Validator v = new Validator(new StringReader(new String(hl7.toByteArray(), StandardCharsets.UTF_8)), bv, true)) {
+                v.setCvrs(none).setReport(none).setIgnoringErrors(true).setStrictHL7(config.isStrictHL7()).setName("warm-up");
+                v.validateFile();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Only the time taken matters.
+        } finally {
+            bv.resetEventIds();
+        }
+    }
+
+    /**
+     * Accept connections until the server socket is closed.
+     * @param server    The server socket.
+     * @param connections   The executor running commands.
+     * @param token The token connections must send.
+     */
+    private void accept(ServerSocket server, ExecutorService connections, byte token[]) {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                connections.submit(() -> run(socket, token));
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    System.err.printf("Error accepting connection: %s%n", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the command line sent by a connection, sending its output back.
+     * @param socket    The connection.
+     * @param token The token the connection must send before its arguments.
+     */
+    private static void run(Socket socket, byte token[]) {
+        try (Socket s = socket) {
+            s.setSoTimeout(READ_TIMEOUT);
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line = r.readLine();
+            boolean authorized = line != null && MessageDigest.isEqual(token, line.getBytes(StandardCharsets.UTF_8));
+            List<String> args = new ArrayList<>();
+            // The rest of the command is read even without the token, so the client gets the reply rather than a reset
+            while ((line = r.readLine()) != null && !line.isEmpty()) {
+                if (authorized) {
+                    args.add(line);
+                }
+            }
+            s.setSoTimeout(0);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            PrintStream ps = new PrintStream(out, false, "UTF-8");
+            int result;
+            if (!authorized) {
+                ps.println("The daemon token is missing or incorrect");
+                result = -1;
+            } else if (args.contains("-")) {
+                ps.println("Standard input cannot be validated by the daemon");
+                result = -1;
+            } else if (hasOption(args, DAEMON_OPTIONS)) {
+                ps.println("The daemon cannot be started from the daemon");
+                result = -1;
+            } else if (hasOption(args, FILE_OPTIONS)) {
+                ps.printf("%s cannot be used through the daemon%n", StringUtils.join(FILE_OPTIONS, ", "));
+                result = -1;
+            } else {
+                System.out.flush();
+                OUTPUT.set(out);
+                try {
+                    result = Validator.main1(args.toArray(new String[args.size()]), "-");
+                } finally {
+                    System.out.flush();
+                    System.err.flush();
+                    OUTPUT.remove();
+                }
+            }
+            ps.printf("%s%d%n", EXIT_CODE, result);
+            ps.flush();
+        } catch (SocketTimeoutException e) {
+            // The client went away without sending a command.
+        } catch (IOException e) {
+            System.err.printf("Error running command: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Check if any argument is one of a set of options.
+     * @param args  The arguments.
+     * @param options   The options.
+     * @return  true if any argument starts with one of the options.
+     */
+    private static boolean hasOption(List<String> args, String options[]) {
+        return args.stream().anyMatch(a -> StringUtils.startsWithAny(a, options));
+    }
+
+    /**
+     * Send standard output and error to the output for the current thread, if one is set.
+     * Threads started while running a command inherit its output.
+     */
+    private static synchronized void routeStandardOutput() {
+        if (!routed) {
+            System.setOut(new PrintStream(new RoutedOutputStream(System.out), true));
+            System.setErr(new PrintStream(new RoutedOutputStream(System.err), true));
+            routed = true;
+        }
+    }
+
+    /**
+     * Writes to the output for the current thread, or to the console if it has none.
+     */
+    private static class RoutedOutputStream extends OutputStream {
+        private final OutputStream console;
+
+        private RoutedOutputStream(OutputStream console) {
+            this.console = console;
+        }
+
+        private OutputStream target() {
+            OutputStream out = OUTPUT.get();
+            return out == null ? console : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Output for a thread is flushed when it is finished, rather than line by line
+            if (OUTPUT.get() == null) {
+                console.flush();
+            }
+        }
+    }
+
+    /**
+     * Watches an inbox folder, claiming files as they land and validating them.
+     */
+    private class Inbox {
+        private final Path inbox, done, error, work;
+        private final ValidationConfig config;
+        private final WatchService watcher;
+        private final ExecutorService jobs;
+        /** Files seen but not yet claimed, with their size and modification time when last seen */
+        private final Map<Path, long[]> pending = new LinkedHashMap<>();
+
+        private Inbox(Path inbox, ValidationConfig config) throws IOException {
+            this.inbox = inbox;
+            done = Files.createDirectories(inbox.resolve(DONE));
+            error = Files.createDirectories(inbox.resolve(ERROR));
+            work = Files.createDirectories(inbox.resolve(WORK));
+            int workers = Math.max(1, config.getFileThreads());
+            // Each file is validated on its own, sharing the memory for duplicate checking among the files validated at once
+            this.config = new ValidationConfig.Builder(config)
+                .setReportFolder(".")
+                .setFileThreads(1)
+                .setDuplicateMemoryBudget(config.getDuplicateMemoryBudget() / workers)
+                .build();
+            watcher = FileSystems.getDefault().newWatchService();
+            inbox.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            jobs = Executors.newFixedThreadPool(workers);
+            executors.add(jobs);
+            recover();
+            scan();
+        }
+
+        /**
+         * Move files left in the work folder by a daemon which did not finish to the error folder.
+         * @throws IOException  If the files cannot be moved.
+         */
+        private void recover() throws IOException {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(work)) {
+                for (Path job: dirs) {
+                    System.err.printf("%s was not finished, moving it to %s%n", job, error);
+                    moveAll(job, error);
+                }
+            }
+        }
+
+        /**
+         * Add every file in the inbox to those waiting to be claimed.
+         * @throws IOException  If the inbox cannot be read.
+         */
+        private void scan() throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox)) {
+                for (Path file: files) {
+                    see(file);
+                }
+            }
+        }
+
+        /**
+         * Add a file to those waiting to be claimed, unless it is still being written
+         * under a temporary name or is one of the folders of the inbox.
+         * @param file  The file.
+         */
+        private void see(Path file) {
+            String name = file.getFileName().toString();
+            if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part") || Files.isDirectory(file)) {
+                return;
+            }
+            pending.putIfAbsent(file, new long[] { -1, -1, System.currentTimeMillis() });
+        }
+
+        /**
+         * Watch the inbox until the daemon is closed.
+         */
+        private void run() {
+            while (!closed) {
+                try {
+                    WatchKey key = watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (WatchEvent<?> event: key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                scan();
+                            } else {
+                                see(inbox.resolve((Path) event.context()));
+                            }
+                        }
+                        key.reset();
+                    }
+                    claimQuietFiles();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    if (closed) {
+                        return;
+                    }
+                    System.err.printf("Error watching %s: %s%n", inbox, e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Claim each pending file which has not changed for the quiet period, and
+         * start validating it.
+         */
+        private void claimQuietFiles() {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, long[]> e = it.next();
+                Path file = e.getKey();
+                long seen[] = e.getValue();
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException ex) {
+                    // Renamed or deleted before it was claimed
+                    it.remove();
+                    continue;
+                }
+                long size = attrs.size(), modified = attrs.lastModifiedTime().toMillis();
+                if (size != seen[0] || modified != seen[1]) {
+                    seen[0] = size;
+                    seen[1] = modified;
+                    seen[2] = now;
+                } else if (now - seen[2] >= QUIET_PERIOD) {
+                    Path claimed = claim(file);
+                    if (claimed != null) {
+                        it.remove();
+                        jobs.submit(() -> validate(claimed));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Claim a file by moving it to a new folder in the work folder.  If another
+         * daemon watching the same inbox claims it first, the move fails.
+         * @param file  The file to claim.
+         * @return  The claimed file, or null if it could not be claimed now.
+         */
+        private Path claim(Path file) {
+            Path job = null;
+            try {
+                job = Files.createTempDirectory(work, "job");
+                return Files.move(file, job.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException ex) {
+                // Claimed by another daemon
+            } catch (IOException ex) {
+                // Still open by the writer on some platforms, try again later
+            }
+            try {
+                if (job != null) {
+                    Files.delete(job);
+                }
+            } catch (IOException ex) {
+                // Leave it to be recovered
+            }
+            return null;
+        }
+
+        /**
+         * Validate a claimed file, and move it and its outputs to the done or error folder.
+         * Output written to the console while validating is written all at once when finished,
+         * so that the output for files validated at the same time is not mixed.
+         * @param file  The claimed file.
+         */
+        private void validate(Path file) {
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            int errors;
+            OUTPUT.set(console);
+            try (ValidationSession session = new ValidationSession(config)) {
+                errors = session.validateFiles(file.toString());
+            } catch (IOException | RuntimeException ex) {
+                System.err.printf("Error processing %s: %s%n", file, ex.getMessage());
+                errors = 1;
+            } finally {
+                OUTPUT.remove();
+            }
+            Path target = errors == 0 ? done : error;
+            try {
+                moveAll(file.getParent(), target);
+            } catch (IOException ex) {
+                System.err.printf("Error moving %s to %s: %s%n", file, target, ex.getMessage());
+            }
+            synchronized (System.out) {
+                System.out.print(new String(console.toByteArray(), StandardCharsets.UTF_8));
+                System.out.printf("%s: %d errors, moved to %s%n", file.getFileName(), errors, target);
+            }
+        }
+    }
+
+    /**
+     * Move the files in a job folder to another folder, replacing any with the same name,
+     * and remove the job folder.
+     * @param job   The job folder.
+     * @param target    The folder to move them to.
+     * @throws IOException  If the files cannot be moved.
+     */
+    private static void moveAll(Path job, Path target) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(job)) {
+            for (Path f: files) {
+                Files.move(f, target.resolve(f.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.delete(job);
+    }
+}
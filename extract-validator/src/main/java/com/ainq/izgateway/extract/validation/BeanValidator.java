@@ -12,30 +12,23 @@ package com.ainq.izgateway.extract.validation;
  * License for the specific language governing permissions and limitations
  * under the License.
  */
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 
 import com.ainq.izgateway.extract.CVRSExtract;
-import com.ainq.izgateway.extract.Utility;
+import com.ainq.izgateway.extract.CVRSField;
 import com.ainq.izgateway.extract.Validator;
 import com.ainq.izgateway.extract.annotations.EventType;
 import com.ainq.izgateway.extract.annotations.ExtractType;
-import com.ainq.izgateway.extract.annotations.FieldValidator;
 import com.ainq.izgateway.extract.annotations.Requirement;
 import com.ainq.izgateway.extract.annotations.RequirementType;
 import com.opencsv.bean.BeanVerifier;
@@ -52,8 +45,11 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
      *  If Version is null or unspecified, then it applies to all versions.
      *
      *  FWIW: This array is in the form needed for a ListMessageBundle
+     *
+     *  Rules are compiled before use, see {@link BusinessRule}.  A validator can use
+     *  other rules as well, see {@link #setRules(RuleTable)}.
      */
-    private static String rules[][] = {
+    private static final String rules[][] = {
         { "BUSR001", "%s (%s) does not match %s (%s) for Recipient", "recip_address_county in recip_address_state FIPS" },
         { "BUSR002", "%s (%s) does not match %s (%s) for Vaccine Administrator", "admin_address_county in admin_address_state FIPS" },
         { "BUSR003", "%s (%s) does not match %s (%s) for Recipient", "recip_address_zip in recip_address_state STATE" },
@@ -69,31 +65,42 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
         { "BUSR013", "Value of %s (%s) duplicates %s at line %s", "vax_event_id nodups" }
     };
 
-    private static final int ERROR_CODE = 0, MESSAGE = 1, RULE = 2, LEVEL = 3, VERSIONS = 4;
-    private static final String DEFAULT_LEVEL = "ERROR";
-    private static final String DEFAULT_VERSIONS = "1,2"; // Applies to all versions.
-    /** Map of states to FIP Prefixes to validate county in state */
-    private static Map<String, String> stateToCounty = new TreeMap<>();
-    /** Map of states to zip-code prefixes to validate zip in state */
-    private static Map<String, String> stateToZip = new TreeMap<>();
+    private static final RuleTable DEFAULT_RULES = new RuleTable(rules);
+    /** Compiled field checks, by version, suppressed errors and extract type, shared by all validators (see {@link ValidationPlan}) */
+    private static Map<String, ValidationPlan> compiledPlans = new ConcurrentHashMap<>();
 
-    /** A cache of Reusable StringValidator objects that can be called to
-     * validate a field.
-     */
-    private Map<String, StringValidator> fieldValidatorCache = new HashMap<>();
+    /** Days since 1970-01-01 of the date fields in the record being verified, by field ordinal, see {@link #getEpochDay(CVRSField)} */
+    private int epochDays[] = new int[CVRSField.count()];
 
-    /** A cache of Reusable ValidatorBeanField objects for calling the validate
-     *  method of StringValidator
-     */
-    private static Map<String, ValidatorBeanField> validatorBeanFields = new HashMap<>();
+    /** The compiled field checks for this validator, by extract type (see {@link #getValidationPlan(ExtractType)}) */
+    private ValidationPlan validationPlans[] = new ValidationPlan[ExtractType.values().length + 1];
+    /** The settings validationPlans were found for */
+    private String validationPlansVersion = null;
+    private Set<String> validationPlansSuppressed = null;
 
-    private Map<String, Pair<Integer, Integer>> event_id = new HashMap<>();
+    /** The event identifiers seen so far, created when first needed */
+    private DuplicateIndex eventIds = null;
     private int counter;
 
-    private Map<String, Integer> fieldCounter;
+    /** Counts of the values in each field, see {@link #getFieldCounts()} */
+    private final FieldCounts fieldCounts = new FieldCounts();
+
+    /** Where verifying beans spends its time, or null if not profiling, see {@link #setProfile(Profile)} */
+    private Profile profile = null;
+    private Profile.Entry verifyEntry = null;
+    /** The profile entries of field validators by field ordinal, created when first used */
+    private Profile.Entry fieldEntries[] = null;
 
     private boolean fixIt;
 
+    /** The rule table used by this validator, see {@link #setRules(RuleTable)} */
+    private RuleTable ruleTable = DEFAULT_RULES;
+    /** The compiled rules for this validator, and the settings they were compiled for */
+    private BusinessRule[] businessRules = null;
+    private String businessRulesVersion = null;
+    private Set<String> businessRulesSuppressed = null;
+    private RuleTable businessRulesTable = null;
+
     /**
      * Construct a new validator using the default CVRS Version
      *
@@ -124,62 +131,220 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
         setSuppressed(suppressed == null ? Collections.emptySet() : suppressed);
         setVersion(version);
         this.fixIt = fixIt;
-        clearFieldCounts();
+        Arrays.fill(epochDays, DateValidator.NOT_A_DATE);
     }
 
     public void clearFieldCounts() {
-        fieldCounter = new TreeMap<String, Integer>();
-        for (Field f: CVRSExtract.class.getDeclaredFields()) {
-            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) != 0) {
-                // Skip Static and transient fields.
-                continue;
-            }
-            ensureHasValue(f.getName());
-            // Have to ensure certain values are present to
-            if (f.getName().contains("_zip")) {
-                ensureHasValue(f.getName() + "_00");
-                ensureHasValue(f.getName() + "_00000");
-            }
-            if (f.getName().equalsIgnoreCase("recip_dob")) {
-                ensureHasValue(f.getName() + "_01-01");
-            }
-            if (StringUtils.equalsAnyIgnoreCase(f.getName(), "vax_refusal", "cmorbid_status", "serology")) {
-                ensureHasValue(f.getName() + "_yes");
+        fieldCounts.clear();
+    }
+
+    /**
+     * Add the field counts collected by another validator to the counts for this one.
+     * Used to combine statistics from validators used on different parts of a file.
+     *
+     * @param other The validator whose counts should be added.
+     */
+    public void addFieldCounts(BeanValidator other) {
+        fieldCounts.add(other.fieldCounts);
+    }
+
+    /**
+     * Record where verifying beans spends its time in a profile.  As with field counts,
+     * a validator used on another thread records into a profile of its own, which can be
+     * added to this one when it is done (see {@link #newPartitionValidator()}).
+     *
+     * @param profile   The profile to record into, or null to stop profiling.
+     * @return this, for chaining
+     */
+    public BeanValidator setProfile(Profile profile) {
+        this.profile = profile;
+        verifyEntry = profile == null ? null : profile.get(Profile.Kind.STAGE, Profile.VERIFY_BEAN);
+        fieldEntries = profile == null ? null : new Profile.Entry[CVRSField.count()];
+        return this;
+    }
+
+    /**
+     * @return The profile being recorded into, or null if not profiling.
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Create a validator with the same configuration as this one that can be used
+     * to validate part of a file on another thread.  The new validator does not
+     * check for duplicates (BUSR013), because that requires seeing every record in order.
+     * Use {@link #verifyNoDuplicate(CVRSExtract)} on this validator to check for them.
+     * If this validator is profiling, the new one records into a new profile.
+     *
+     * @return  A new validator.
+     */
+    public BeanValidator newPartitionValidator() {
+        Set<String> suppressed = new TreeSet<>(getSuppressed());
+        for (BusinessRule rule: getBusinessRules()) {
+            if (rule.getOperator() == BusinessRule.Operator.NODUPS) {
+                suppressed.add(rule.getCode());
             }
-            if (isCodedField(f)) {
-                ensureHasValue(f.getName() + "_unk");
+        }
+        BeanValidator partition = new BeanValidator(suppressed, getVersion(), fixIt);
+        partition.setRules(ruleTable);
+        if (profile != null) {
+            partition.setProfile(new Profile());
+        }
+        return partition;
+    }
+
+    /**
+     * Check a bean that was verified by a validator from {@link #newPartitionValidator()}
+     * for duplicates (BUSR013) against all beans seen so far by this validator.
+     * This advances the record counter as {@link #verifyBean(CVRSExtract)} would.
+     *
+     * @param bean  The bean to check.
+     * @return  The duplicate error, or null if the bean is not a duplicate or the check is suppressed.
+     */
+    public CVRSEntry verifyNoDuplicate(CVRSExtract bean) {
+        counter++;
+        CVRSEntry error = null;
+        for (BusinessRule rule: getBusinessRules()) {
+            if (rule.getOperator() == BusinessRule.Operator.NODUPS) {
+                CVRSEntry e = checkRule(rule, bean, bean.getValues());
+                if (error == null) {
+                    error = e;
+                }
             }
         }
+        return error;
+    }
+
+    /**
+     * Record an event identifier, and check to see if it duplicates one already seen.
+     * @param bean  The bean containing the identifier.
+     * @param field1    The value of the identifier.
+     * @return  The line of the duplicated record, or null if this is not a duplicate.
+     */
+    String checkDuplicate(CVRSExtract bean, String field1) {
+        int line = addEventId(StringUtils.defaultString(field1), counter);
+        return line == DuplicateIndex.NOT_FOUND ? null : Integer.toString(line);
+    }
+
+    /**
+     * Determine whether this validator attempts to correct invalid data.
+     * @return true if data is being corrected.
+     */
+    public boolean isFixIt() {
+        return fixIt;
     }
+
     /**
      * Reset the state of the event_id table for duplicate checking.
      * Allows a BeanValidator to be reused.
      */
     public void resetEventIds() {
-        event_id.clear();
+        if (eventIds != null) {
+            eventIds.clear();
+        }
+    }
+
+    /**
+     * Get the index used to find duplicate event identifiers.
+     * @return  The index, which is a HashedDuplicateIndex unless another was set.
+     */
+    public DuplicateIndex getDuplicateIndex() {
+        if (eventIds == null) {
+            eventIds = new HashedDuplicateIndex();
+        }
+        return eventIds;
+    }
+
+    /**
+     * Set the index used to find duplicate event identifiers.  The index replaced
+     * is closed.
+     * @param eventIds  The index to use.
+     * @return this, for chaining
+     */
+    public BeanValidator setDuplicateIndex(DuplicateIndex eventIds) {
+        if (this.eventIds != null && this.eventIds != eventIds) {
+            this.eventIds.close();
+        }
+        this.eventIds = eventIds;
+        return this;
     }
 
     /**
      * Add a previously occuring event to the list of records this validator
      * should reject as a duplicate.
      *
-     * @param eventId   The event identifier
-     * @param hashCode  The hash code of the original data
+     * @param eventId   The event identifier, case is ignored
      * @param line  The line where this data was defined
-     * @return  The old event id replaced by this new one (i.e., the duplicated event)
+     * @return  The line where the event identifier was last seen, or DuplicateIndex.NOT_FOUND
      */
-    public Pair<Integer, Integer> addEventId(String eventId, int hashCode, int line) {
-        Pair<Integer, Integer> definingEvent = Pair.of(hashCode, line);
-        return event_id.put(eventId, definingEvent);
+    public int addEventId(String eventId, int line) {
+        return getDuplicateIndex().put(eventId, line);
     }
 
-    public static String getRule(String code) {
-        for (String rule[]: rules) {
-            if (rule[ERROR_CODE].equals(code)) {
-                return rule[RULE];
-            }
+    /**
+     * Add a previously occuring event to the list of records this validator
+     * should reject as a duplicate.
+     *
+     * @param eventId   The event identifier, case is ignored
+     * @param hashCode  No longer used
+     * @param line  The line where this data was defined
+     * @return  The line where the event identifier was last seen, or DuplicateIndex.NOT_FOUND
+     * @deprecated Use {@link #addEventId(String, int)}
+     */
+    @Deprecated
+    public int addEventId(String eventId, int hashCode, int line) {
+        return addEventId(eventId, line);
+    }
+
+    /**
+     * @return The built in business rules.
+     */
+    public static RuleTable getDefaultRules() {
+        return DEFAULT_RULES;
+    }
+
+    /**
+     * Set the business rules used by this validator.
+     * @param rules The rule table, or null to use the built in rules.
+     * @return this, for chaining
+     */
+    public BeanValidator setRules(RuleTable rules) {
+        ruleTable = rules == null ? DEFAULT_RULES : rules;
+        return this;
+    }
+
+    /**
+     * @return The business rules used by this validator.
+     */
+    public RuleTable getRules() {
+        return ruleTable;
+    }
+
+    /**
+     * Get the business rules that apply to this validator, compiling them if necessary.
+     * Compiled rules are shared by validators with the same rule table, version and suppressed errors.
+     * @return The compiled rules.
+     */
+    private BusinessRule[] getBusinessRules() {
+        if (businessRules == null || businessRulesTable != ruleTable ||
+            businessRulesSuppressed != getSuppressed() || !StringUtils.equals(businessRulesVersion, getVersion())
+        ) {
+            businessRules = ruleTable.getBusinessRules(getVersion(), getSuppressed());
+            businessRulesVersion = getVersion();
+            businessRulesSuppressed = getSuppressed();
+            businessRulesTable = ruleTable;
         }
-        return null;
+        return businessRules;
+    }
+
+    /**
+     * Get the text of a built in business rule.
+     * @param code  The error code of the rule.
+     * @return  The rule, or null if there is no built in rule with that code.
+     */
+    public static String getRule(String code) {
+        return DEFAULT_RULES.getRule(code);
     }
 
     public int getCounter() {
@@ -193,118 +358,61 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
 
     @Override
     public boolean verifyBean(CVRSExtract bean) throws CVRSValidationException {
-        List<CVRSEntry> errors = new ArrayList<>();
-        // Increment the validation counter (for duplicate record checking)
-        counter++;
-        String values[] = bean.getValues();
-
-        checkRequirements(bean, errors);
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.DATE, 1);
-        String tomorrow = String.format("%04d-%02d-%02d", cal.get(Calendar.YEAR), cal.get(Calendar.MONTH)+1, cal.get(Calendar.DATE));
-        for (String rule[]: rules) {
-            String level = rule.length > LEVEL ? rule[LEVEL] : DEFAULT_LEVEL;
-            String versions[] = (rule.length > VERSIONS ? rule[VERSIONS] : DEFAULT_VERSIONS).split(",");
-            String parts[] = rule[RULE].split("\\s+");
-            String field1 = bean.getField(parts[0]), field2 = parts.length > 2 ? bean.getField(parts[2]) : null;
-            // Extend array if needed.
-            if (parts.length < 4) {
-                parts = Arrays.copyOf(parts, 4);
-            }
-            if (!Arrays.asList(versions).contains(getVersion())) {
-                // Don't apply rules that aren't applicable to the current version
-                continue;
-            }
-            if (getSuppressed().contains(rule[ERROR_CODE])) {
-                // Don't check for suppressed errors.
-                continue;
-            }
-
-            boolean success = false;
-            switch (parts[1]) {
-            case "in":
-                switch (parts[3]) {
-                case "FIPS":
-                    success = isCountyInState(field1, field2);
-                    break;
-                case "STATE":
-                    success = isZipInState(field1, field2);
-                }
-                break;
-            case "nodups":
-                String f1 = StringUtils.defaultString(field1);
-                Pair<Integer, Integer> definingEvent = addEventId(
-                    f1.toUpperCase(), bean.hashCode(), counter);
-                success = definingEvent == null || definingEvent.hashCode() == bean.hashCode();
-                parts[2] = parts[0];
-                field2 = Integer.toString(definingEvent == null ? event_id.get(f1.toUpperCase()).getValue() : definingEvent.getValue());
-                break;
-            case "no_time_travel":
-                success = StringUtils.isEmpty(field1) || field1.compareTo(tomorrow) < 0;
-                field2 = tomorrow;
-                parts[2] = "tomorrow";
-                break;
-            case "implies":
-                success = StringUtils.isEmpty(field1) || !StringUtils.isEmpty(field2);
-                break;
-            case "<":
-                if (!StringUtils.isEmpty(field1) && !StringUtils.isEmpty(field2)) {
-                   success = field1.compareTo(field2) <= 0;  // Maybe it could be same day
+        long start = Profile.start(verifyEntry);
+        try {
+            List<CVRSEntry> errors = new ArrayList<>();
+            // Increment the validation counter (for duplicate record checking)
+            counter++;
+            String values[] = bean.getValues();
+
+            checkRequirements(bean, errors);
+            for (BusinessRule rule: getBusinessRules()) {
+                CVRSEntry e = checkRule(rule, bean, values);
+                if (e != null) {
+                    errors.add(e);
                 }
-                break;
-            case "XOR":
-                success = Utility.isTrue(field1) != Utility.isTrue(field2);
-                break;
-            case "NAND":
-                success = !("YES".equalsIgnoreCase(field1) && "YES".equalsIgnoreCase(field2));
-                break;
             }
-            if (!success) {
-                CVRSEntry e = new CVRSEntry(bean, rule[ERROR_CODE], parts[0], String.format(rule[MESSAGE], parts[0], field1, parts[2], field2));
-                e.setClassification(level);
-                e.setRow(values);
-                errors.add(e);
+            if (errors.size() != 0) {
+                CVRSValidationException ex = new CVRSValidationException(bean, errors);
+                ex.setLine(values);
+                throw ex;
             }
+            return true;
+        } finally {
+            Profile.stop(verifyEntry, start);
         }
-        if (errors.size() != 0) {
-            CVRSValidationException ex = new CVRSValidationException(bean, errors);
-            ex.setLine(values);
-            throw ex;
+    }
+
+    /**
+     * Check a business rule, recording the time taken if profiling.
+     * @param rule  The rule.
+     * @param bean  The bean to check.
+     * @param values    The values of the bean.
+     * @return  The error found, or null if there is none.
+     */
+    private CVRSEntry checkRule(BusinessRule rule, CVRSExtract bean, String values[]) {
+        Profile.Entry entry = profile == null ? null : profile.get(Profile.Kind.RULE, rule.getCode());
+        long start = Profile.start(entry);
+        try {
+            return rule.check(this, bean, values);
+        } finally {
+            Profile.stop(entry, start);
         }
-        return true;
     }
 
 
     public static List<Field> getIgnoredFields(String version) {
         List<Field> fields = new ArrayList<>();
-        for (Field f: CVRSExtract.class.getDeclaredFields()) {
-            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) != 0) {
-                // Skip Static and transient fields.
-                continue;
-            }
-            if (getRequirement(f, RequirementType.IGNORE, version) != null) {
-                fields.add(f);
+        SchemaSnapshot schema = SchemaSnapshot.get();
+        for (int i = 0; i < CVRSField.count(); i++) {
+            CVRSField field = CVRSField.get(i);
+            if (schema.isIgnored(field, version)) {
+                fields.add(field.getField());
             }
         }
         return fields;
     }
 
-    private static String getField(CVRSExtract bean, Field field) {
-        try {
-            return (String) field.get(bean);
-        } catch (IllegalArgumentException | IllegalAccessException e) {
-            throw new RuntimeException("Error retrieving bean field: " + field.getName(), e);
-        }
-    }
-
-    private static void setField(CVRSExtract bean, Field field, String value) {
-        try {
-            field.set(bean, value);
-        } catch (IllegalArgumentException | IllegalAccessException e) {
-            throw new RuntimeException("Error Setting bean field: " + field.getName() + " to '" + value + "'", e);
-        }
-    }
-
     /**
      * Return a map indicating the names of the fields and the number of
      * times each one has a value.
@@ -312,114 +420,119 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
      * @return A map of field names to field counts.
      */
     public Map<String, Integer> getFieldCounts() {
-        TreeMap<String, Integer> map = new TreeMap<>(fieldCounter);
-        return map;
+        return fieldCounts.toMap();
+    }
+
+    /**
+     * Count the value of a field, as verifying a record does, for records which
+     * are not verified (e.g., when only redacting a file).
+     *
+     * @param field The field.
+     * @param value The value of the field, which may be empty.
+     */
+    public void countField(CVRSField field, String value) {
+        fieldCounts.count(field, value);
     }
 
     private void checkRequirements(CVRSExtract bean, List<CVRSEntry> errors) {
         String values[] = bean.getValues();
         EventType eventType = getEventType(bean);
-        ExtractType extractType = getExtractType(bean);
-
-        for (Field f: CVRSExtract.class.getDeclaredFields()) {
-            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) != 0) {
-                // Skip Static and transient fields.
-                continue;
-            }
-            f.setAccessible(true);
-            String value;
+        ValidationPlan plan = getValidationPlan(getExtractType(bean));
 
+        for (ValidationPlan.FieldCheck check: plan.getChecks()) {
             // If the field isn't used in this version of the CVRS
             // Set the field to null in the extracted bean.
-            if (getRequirement(f, RequirementType.IGNORE, getVersion()) != null) {
-                setField(bean, f, null);
+            if (check.ignored) {
+                check.field.set(bean, null);
             }
             // Get the value.
-            value = getField(bean, f);
-            updateCounters(f, value);
+            String value = check.field.get(bean);
+            fieldCounts.count(check.field, value);
 
             if (StringUtils.isEmpty(value)) {
-                String code = hasRequiredEvent(f, RequirementType.REQUIRED, getVersion(), eventType);
-                checkRequirement("UNK", bean, errors, values, f, value, code);
-            }
-
-            if (!StringUtils.isEmpty(value)) {
-                String code = hasRequiredEvent(f, RequirementType.DO_NOT_SEND, getVersion(), eventType);
-                checkRequirement(null, bean, errors, values, f, value, code);
+                String code = ValidationPlan.getRequiredCode(check, eventType);
+                checkRequirement("UNK", bean, errors, values, check, value, code);
+            } else {
+                String code = ValidationPlan.getDoNotSendCode(check, eventType);
+                checkRequirement(null, bean, errors, values, check, value, code);
             }
 
-            FieldValidator fv = f.getAnnotation(FieldValidator.class);
-            if (fv != null) {
-                if (StringUtils.length(value) > fv.maxLength()) {
-                    checkRequirement(value.substring(0, fv.maxLength()), bean, errors, values, f, value, "DATA008");
+            if (check.validator != null) {
+                if (StringUtils.length(value) > check.maxLength) {
+                    checkRequirement(value.substring(0, check.maxLength), bean, errors, values, check, value, "DATA008");
                 }
-                StringValidator sv = getFieldValidator(f.getName(), extractType, fv);
-                validateAndFix(bean, f, sv, value, errors, values);
+                Profile.Entry entry = getFieldEntry(check);
+                long start = Profile.start(entry);
+                validateAndFix(bean, check, value, errors, values);
+                Profile.stop(entry, start);
+            }
+            if (check.dated) {
+                // Read the value again, in case it was fixed.
+                epochDays[check.field.ordinal()] = DateValidator.toEpochDay(check.field.get(bean));
             }
         }
     }
 
-    private void updateCounters(Field f, String value) {
-
-        if (!StringUtils.isEmpty(value)) {
-            incrementCounter(f.getName());
-
-            if (f.getName().contains("_zip") && StringUtils.substring(value, 3).startsWith("00")) {
-                incrementCounter(f.getName() + "_00");
-                if (value.equals("00000")) {
-                    incrementCounter(f.getName() + "_00000");
-                }
-            }
-
-            if (f.getName().equalsIgnoreCase("recip_dob") && StringUtils.defaultString(value).endsWith("-01-01")) {
-                incrementCounter(f.getName() + "_01-01");
-            }
-
-            if (f.getName().equalsIgnoreCase("vax_refusal") && StringUtils.defaultString(value).equalsIgnoreCase("yes")) {
-                incrementCounter(f.getName() + "_yes");
-            }
-
-            if (f.getName().equalsIgnoreCase("cmorbid_status") && StringUtils.defaultString(value).equalsIgnoreCase("yes")) {
-                incrementCounter(f.getName() + "_yes");
-            }
-
-            if (f.getName().equalsIgnoreCase("serology") && StringUtils.defaultString(value).equalsIgnoreCase("yes")) {
-                incrementCounter(f.getName() + "_yes");
-            }
-
-            if (isCodedField(f) && (value.equalsIgnoreCase("UNK") || (value.equalsIgnoreCase("U") && f.getName().equalsIgnoreCase("recip_sex")))) {
-                incrementCounter(f.getName() + "_unk");
-            }
+    /**
+     * Get the profile entry for the validator of a field.
+     * @param check The compiled check for the field.
+     * @return  The entry, or null if not profiling.
+     */
+    private Profile.Entry getFieldEntry(ValidationPlan.FieldCheck check) {
+        if (profile == null) {
+            return null;
         }
+        int ordinal = check.field.ordinal();
+        if (fieldEntries[ordinal] == null) {
+            fieldEntries[ordinal] = profile.get(Profile.Kind.FIELD, check.getName(), check.validator.getClass().getSimpleName());
+        }
+        return fieldEntries[ordinal];
     }
 
-    private void incrementCounter(String name) {
-        Integer v = fieldCounter.get(name);
-        if (v == null) {
-            v = Integer.valueOf(0);
-        }
-        fieldCounter.put(name, v + 1);
+    /**
+     * Get the value of a date field in the record being verified as a count of days,
+     * for business rules that compare dates.
+     * @param field The field.
+     * @return  The days since 1970-01-01, or DateValidator.NOT_A_DATE if the field is not a
+     * date field, or its value is not a full date in the Gregorian calendar.
+     */
+    int getEpochDay(CVRSField field) {
+        return epochDays[field.ordinal()];
     }
 
-    private void ensureHasValue(String name) {
-        Integer v = fieldCounter.get(name);
-        if (v == null) {
-            fieldCounter.put(name, Integer.valueOf(0));
+    /**
+     * Get the compiled field checks for a type of extract, compiling them
+     * if they have not been compiled for the current version and suppressed errors.
+     * Compiled checks are shared by validators with the same version and suppressed errors.
+     * @param extractType   The type of extract.
+     * @return  The compiled checks.
+     */
+    private ValidationPlan getValidationPlan(ExtractType extractType) {
+        String version = getVersion();
+        Set<String> suppressed = getSuppressed();
+        if (validationPlansSuppressed != suppressed || !StringUtils.equals(validationPlansVersion, version)) {
+            Arrays.fill(validationPlans, null);
+            validationPlansVersion = version;
+            validationPlansSuppressed = suppressed;
+        }
+        // Slot 0 is for records with an unrecognized extract type
+        int slot = extractType == null ? 0 : extractType.ordinal() + 1;
+        ValidationPlan plan = validationPlans[slot];
+        if (plan == null) {
+            String key = version + new TreeSet<>(suppressed) + extractType;
+            plan = compiledPlans.computeIfAbsent(key, k -> ValidationPlan.compile(this, extractType));
+            validationPlans[slot] = plan;
         }
+        return plan;
     }
 
-    private boolean isCodedField(Field f) {
-        FieldValidator fv = f.getAnnotation(FieldValidator.class);
-        Class<? extends StringValidator> sv = fv == null ? null : fv.validator();
-        return sv == null ? false : ValueSetValidator.class.isAssignableFrom(sv);
-    }
 
-    private void checkRequirement(String newValue, CVRSExtract bean, List<CVRSEntry> errors, String[] values, Field f, String value, String code) {
-        if (code != null && !getSuppressed().contains(code)) {
+    private void checkRequirement(String newValue, CVRSExtract bean, List<CVRSEntry> errors, String[] values, ValidationPlan.FieldCheck check, String value, String code) {
+        if (code != null) {
             if (fixIt) {
-                setField(bean, f, newValue);
+                check.field.set(bean, newValue);
             } else {
-                addUnsuppressedError(errors, values, bean, f, code, Validator.getMessage(code, f.getName(), value, StringUtils.length(newValue)));
+                addUnsuppressedError(errors, values, bean, check.getName(), code, Validator.getMessage(code, check.getName(), value, StringUtils.length(newValue)));
             }
         }
     }
@@ -430,54 +543,37 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
      * @param errors    The place to save errors
      * @param values    The values in the current bean
      * @param bean      The current bean
-     * @param f         The current field
+     * @param field     The name of the current field
      * @param code      The error code
      * @param message   The message to go with the error
      */
-    private void addUnsuppressedError(List<CVRSEntry> errors, String[] values, CVRSExtract bean, Field f, String code, String message) {
+    private void addUnsuppressedError(List<CVRSEntry> errors, String[] values, CVRSExtract bean, String field, String code, String message) {
         if (!getSuppressed().contains(code)) {
-            CVRSEntry e1 = new CVRSEntry(bean, code, f.getName(), message);
+            CVRSEntry e1 = new CVRSEntry(bean, code, field, message);
             e1.setRow(values);
             errors.add(e1);
         }
     }
 
-    /**
-     * Get a ValidatorBeanField for a CVRS record, reusing an existing one
-     * where it exists, or creating a new one if it does not.
-     *
-     * @param f The field to get the ValidatorBeanField for.
-     * @return  The new or reused ValidatorBeanField
-     */
-    private static ValidatorBeanField getValidatorBeanField(Field f) {
-        ValidatorBeanField vbf = validatorBeanFields.get(f.getName());
-        if (vbf == null) {
-            vbf = new ValidatorBeanField(f);
-            validatorBeanFields.put(f.getName(), vbf);
-        }
-        return vbf;
-    }
-
     /**
      * Validate a value, and if fixing errors, retrying after fixing the
      * value, reporting the first error found in retrying fails.
      * @param bean  The bean being validated
-     * @param f The field in the bean
-     * @param sv    The StringValidator used to validate it
+     * @param check The compiled check for the field, holding the StringValidator used to validate it
      * @param value The value to validate
      * @param errors    A place to hold errors
      * @param values    The values for the bean
      */
-    private void validateAndFix(CVRSExtract bean, Field f, StringValidator sv, String value, List<CVRSEntry> errors, String[] values) {
-        ValidatorBeanField vbf = getValidatorBeanField(f);
+    private void validateAndFix(CVRSExtract bean, ValidationPlan.FieldCheck check, String value, List<CVRSEntry> errors, String[] values) {
+        StringValidator sv = check.validator;
         try {
-            sv.validate(value, vbf);
+            sv.validate(value, check.beanField);
             return;
         } catch (CsvValidationException e) {
             if (fixIt && sv instanceof Fixable) {
                 String newValue = ((Fixable) sv).fixIt(value);
                 if (sv.isValid(newValue)) {
-                    setField(bean, f, newValue);
+                    check.field.set(bean, newValue);
                     return;
                 }
             }
@@ -485,42 +581,38 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
             if (e instanceof CsvFieldValidationException) {
                 errors.add(((CsvFieldValidationException) e).getValidationEntry());
             } else {
-                addUnsuppressedError(errors, values, bean, f,
+                addUnsuppressedError(errors, values, bean, check.getName(),
                     StringUtils.substringBefore(e.getMessage(), ":"),
                     StringUtils.substringAfter(e.getMessage(), ":"));
             }
         }
     }
     /**
-     * Retrieve the field validator for the specified field
-     * @param fieldName   The field to retrieve the validator for.
+     * Create the field validator for a field, configured for this validator
      * @param extractType   The type of extract being validated.
-     * @param fv    The field validator to use
+     * @param suppressed    The errors to suppress, which the field validator keeps.
+     * @param validator The class of field validator to use
+     * @param paramString   The parameter for the field validator
      * @return  An initialized field validator
-     * @throws ReflectiveOperationException   If a reflection error occurred.
      */
-    private StringValidator getFieldValidator(String fieldName, ExtractType extractType, FieldValidator fv) {
-        String key = fieldName + "_" + (extractType == null ? null : extractType.getCode());
-        StringValidator sv = fieldValidatorCache.get(key);
-        if (sv == null) {
-            try {
-                sv = fv.validator().getConstructor().newInstance();
-            } catch (ReflectiveOperationException | SecurityException e) {
-                throw new RuntimeException("Unable to construct " + fv.validator().getName(), e);
-            }
-            if (sv instanceof Suppressible) {
-                ((Suppressible) sv).setSuppressed(getSuppressed());
-            }
-            if (sv instanceof SuppressibleValidator) {
-                ((SuppressibleValidator) sv).setVersion(getVersion());
-            }
-            if (sv instanceof ExtractTypeBasedValidator) {
-                ((ExtractTypeBasedValidator) sv).setExtractType(extractType);
-            }
-            if (fv.paramString() != null) {
-                sv.setParameterString(fv.paramString());
-            }
-            fieldValidatorCache.put(key, sv);
+    StringValidator newFieldValidator(ExtractType extractType, Set<String> suppressed, Class<? extends StringValidator> validator, String paramString) {
+        StringValidator sv;
+        try {
+            sv = validator.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | SecurityException e) {
+            throw new RuntimeException("Unable to construct " + validator.getName(), e);
+        }
+        if (sv instanceof Suppressible) {
+            ((Suppressible) sv).setSuppressed(suppressed);
+        }
+        if (sv instanceof SuppressibleValidator) {
+            ((SuppressibleValidator) sv).setVersion(getVersion());
+        }
+        if (sv instanceof ExtractTypeBasedValidator) {
+            ((ExtractTypeBasedValidator) sv).setExtractType(extractType);
+        }
+        if (paramString != null) {
+            sv.setParameterString(paramString);
         }
         return sv;
     }
@@ -586,41 +678,13 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
         }
     }
 
-    private static synchronized void verifyStatesLoaded() {
-        if (stateToZip.isEmpty()) {
-            try (BufferedReader r = new BufferedReader(
-                new InputStreamReader(CVRSExtract.class.getClassLoader().getResourceAsStream("STATE.txt")));
-            ) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    String parts[] = line.split("\\t");
-                    if (parts.length > 3) {
-                        stateToZip.put(parts[0], parts[3]);
-                    }
-                    if (parts.length > 2) {
-                        stateToCounty.put(parts[0], parts[2]);
-                    }
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Cannot read STATE.txt Resource");
-            }
-        }
-    }
-
     public static boolean isCountyInState(String county, String state) {
         if (StringUtils.isEmpty(county) || StringUtils.isEmpty(state)) {
             return true;
         }
 
-        verifyStatesLoaded();
-
-        String code = stateToCounty.get(state.toUpperCase());
-        if (StringUtils.isEmpty(code)) {
-            // we don't have a county code, so we cannot tell.
-            return true;
-        }
         // The county code starts with the cooresponding state FIPS code
-        return county.startsWith(code);
+        return StateTable.isCountyInState(county, state);
     }
 
     public static boolean isZipInState(String zip, String state) {
@@ -628,26 +692,8 @@ public class BeanValidator extends SuppressibleValidator implements BeanVerifier
             return true;
         }
 
-        verifyStatesLoaded();
-
-        String zips = stateToZip.get(state.toUpperCase());
-        if (zips == null) {
-            return false;
-        }
-        String zipRanges[] = zips.split(",");
-        for (String range: zipRanges) {
-            // Range is of form \d\d\d, just check that the zip code first digits match
-            if (!range.contains("-") && zip.startsWith(range)) {
-                return true;
-            }
-            String low = StringUtils.substringBefore(range, "-"), high = StringUtils.substringAfter(range, "-");
-            // range is of the form low-high.  Verify that zip starts with digits in low or high, or is between low and high
-            if (zip.startsWith(low) || zip.startsWith(high) || (zip.compareTo(low) > 0 && zip.compareTo(high) < 0)) {
-                return true;
-            }
-        }
-
-        return false;
+        // The first three digits of the zip code are used in the state
+        return StateTable.isZipInState(zip, state);
     }
 
 }
\ No newline at end of file
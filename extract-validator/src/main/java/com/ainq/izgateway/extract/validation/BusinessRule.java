@@ -0,0 +1,291 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.CVRSExtract;
+import com.ainq.izgateway.extract.CVRSField;
+import com.ainq.izgateway.extract.Utility;
+
+/**
+ * A business rule from the BeanValidator rule table, compiled for checking records.
+ *
+ * Rules are written as "field1 operator [field2 [argument]]".  When a rule is compiled,
+ * its fields are resolved to {@link CVRSField} accessors and its operator to an {@link Operator},
+ * so that checking a record against it only reads fields and compares values.
+ */
+final class BusinessRule {
+    /** The operators that can be used in a rule */
+    enum Operator {
+        /** field1 in field2 FIPS|STATE: County or zip code is in the state */
+        IN_FIPS, IN_STATE,
+        /** field1 nodups: No earlier record has the same value */
+        NODUPS,
+        /** field1 no_time_travel: The date is before tomorrow */
+        NO_TIME_TRAVEL,
+        /** field1 implies field2: If field1 is present, field2 is too */
+        IMPLIES,
+        /** field1 &lt; field2: field1 is not after field2 */
+        LESS,
+        /** field1 XOR field2: Exactly one of the two fields is true */
+        XOR,
+        /** field1 NAND field2: The two fields are not both YES */
+        NAND
+    }
+
+    private static final int ERROR_CODE = 0, MESSAGE = 1, RULE = 2, LEVEL = 3, VERSIONS = 4;
+    private static final String DEFAULT_LEVEL = "ERROR";
+    private static final String DEFAULT_VERSIONS = "1,2"; // Applies to all versions.
+
+    /** The date after today, see {@link #getTomorrow()} */
+    private static volatile Tomorrow tomorrow = new Tomorrow("", DateValidator.NOT_A_DATE, 0);
+
+    /** The date after today, and the time at which it must be recomputed */
+    private static final class Tomorrow {
+        /** The date in yyyy-MM-dd form */
+        private final String value;
+        /** The date in days since 1970-01-01 */
+        private final int epochDay;
+        private final long expires;
+
+        private Tomorrow(String value, int epochDay, long expires) {
+            this.value = value;
+            this.epochDay = epochDay;
+            this.expires = expires;
+        }
+    }
+
+    private final String code;
+    private final String message;
+    private final String level;
+    private final Operator operator;
+    private final CVRSField field1, field2;
+    /** The name reported for the second operand */
+    private final String name2;
+
+    private BusinessRule(String code, String message, String level, Operator operator,
+        CVRSField field1, CVRSField field2, String name2) {
+        this.code = code;
+        this.message = message;
+        this.level = level;
+        this.operator = operator;
+        this.field1 = field1;
+        this.field2 = field2;
+        this.name2 = name2;
+    }
+
+    /**
+     * Compile the rules that apply to a version of CVRS.
+     * @param rules The rule table, in the form used by BeanValidator.
+     * @param version   The version of CVRS.
+     * @param suppressed    The error codes to leave out.
+     * @return  The compiled rules, in table order.
+     * @throws IllegalArgumentException If a rule cannot be compiled.
+     */
+    static BusinessRule[] compile(String rules[][], String version, Set<String> suppressed) {
+        List<BusinessRule> compiled = new ArrayList<>();
+        for (String rule[]: rules) {
+            String versions[] = (rule.length > VERSIONS && rule[VERSIONS] != null ? rule[VERSIONS] : DEFAULT_VERSIONS).split(",");
+            if (!Arrays.asList(versions).contains(version) || suppressed.contains(rule[ERROR_CODE])) {
+                // Don't apply rules that aren't applicable to the current version, or that are suppressed.
+                continue;
+            }
+            compiled.add(compile(rule));
+        }
+        return compiled.toArray(new BusinessRule[compiled.size()]);
+    }
+
+    /**
+     * Compile a single rule.
+     * @param rule  The rule in the form used by BeanValidator: Error Code, Message, Rule, Error Level, Version.
+     * @return  The compiled rule.
+     * @throws IllegalArgumentException If the rule cannot be compiled.
+     */
+    static BusinessRule compile(String rule[]) {
+        if (rule.length <= RULE) {
+            throw new IllegalArgumentException("Rule " + (rule.length == 0 ? "" : rule[ERROR_CODE]) + " is incomplete");
+        }
+        String code = rule[ERROR_CODE];
+        String level = rule.length > LEVEL && rule[LEVEL] != null ? rule[LEVEL] : DEFAULT_LEVEL;
+        String parts[] = Arrays.copyOf(rule[RULE].trim().split("\\s+"), 4);
+        CVRSField field1 = getField(code, parts[0]);
+        if (parts[1] == null) {
+            throw new IllegalArgumentException("Rule " + code + " has no operator: " + rule[RULE]);
+        }
+        switch (parts[1]) {
+        case "nodups":
+            if (!"vax_event_id".equals(field1.getName())) {
+                // All duplicate checks share one table of identifiers, see BeanValidator.addEventId()
+                throw new IllegalArgumentException("Rule " + code + " can only check vax_event_id for duplicates");
+            }
+            return new BusinessRule(code, rule[MESSAGE], level, Operator.NODUPS, field1, null, parts[0]);
+        case "no_time_travel":
+            return new BusinessRule(code, rule[MESSAGE], level, Operator.NO_TIME_TRAVEL, field1, null, "tomorrow");
+        default:
+            break;
+        }
+
+        Operator operator;
+        switch (parts[1]) {
+        case "in":
+            if ("FIPS".equals(parts[3])) {
+                operator = Operator.IN_FIPS;
+            } else if ("STATE".equals(parts[3])) {
+                operator = Operator.IN_STATE;
+            } else {
+                throw new IllegalArgumentException("Rule " + code + " must end with FIPS or STATE: " + rule[RULE]);
+            }
+            break;
+        case "implies":
+            operator = Operator.IMPLIES;
+            break;
+        case "<":
+            operator = Operator.LESS;
+            break;
+        case "XOR":
+            operator = Operator.XOR;
+            break;
+        case "NAND":
+            operator = Operator.NAND;
+            break;
+        default:
+            throw new IllegalArgumentException("Rule " + code + " has an unknown operator: " + parts[1]);
+        }
+        return new BusinessRule(code, rule[MESSAGE], level, operator, field1, getField(code, parts[2]), parts[2]);
+    }
+
+    private static CVRSField getField(String code, String name) {
+        CVRSField field = CVRSField.forName(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Rule " + code + " refers to an unknown field: " + name);
+        }
+        return field;
+    }
+
+    /**
+     * @return The error code reported by this rule.
+     */
+    String getCode() {
+        return code;
+    }
+
+    /**
+     * @return The operator used by this rule.
+     */
+    Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * Check a record against this rule.
+     * @param validator The validator checking the record, which tracks values for duplicate checking.
+     * @param bean  The record to check.
+     * @param values    The values of the record, reported with the error.
+     * @return  The error found, or null if the record passes.
+     */
+    CVRSEntry check(BeanValidator validator, CVRSExtract bean, String values[]) {
+        String value1 = field1.get(bean), value2;
+        boolean success;
+        switch (operator) {
+        case NODUPS:
+            value2 = validator.checkDuplicate(bean, value1);
+            success = value2 == null;
+            break;
+        case NO_TIME_TRAVEL:
+            Tomorrow t = getTomorrow();
+            value2 = t.value;
+            int day1 = validator.getEpochDay(field1);
+            success = day1 != DateValidator.NOT_A_DATE ? day1 < t.epochDay :
+                StringUtils.isEmpty(value1) || value1.compareTo(value2) < 0;
+            break;
+        default:
+            value2 = field2.get(bean);
+            success = operator == Operator.LESS ? isLess(validator, value1, value2) : test(value1, value2);
+            break;
+        }
+        if (success) {
+            return null;
+        }
+        String name1 = field1.getName();
+        CVRSEntry e = new CVRSEntry(bean, code, name1, String.format(message, name1, value1, name2, value2));
+        e.setClassification(level);
+        e.setRow(values);
+        return e;
+    }
+
+    private boolean test(String value1, String value2) {
+        switch (operator) {
+        case IN_FIPS:
+            return BeanValidator.isCountyInState(value1, value2);
+        case IN_STATE:
+            return BeanValidator.isZipInState(value1, value2);
+        case IMPLIES:
+            return StringUtils.isEmpty(value1) || !StringUtils.isEmpty(value2);
+        case XOR:
+            return Utility.isTrue(value1) != Utility.isTrue(value2);
+        case NAND:
+            return !("YES".equalsIgnoreCase(value1) && "YES".equalsIgnoreCase(value2));
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Compare two values for the &lt; operator, using the dates parsed during validation where available.
+     * @param validator The validator checking the record.
+     * @param value1    The first value.
+     * @param value2    The second value.
+     * @return  true if neither value is empty, and the first is not after the second.
+     */
+    private boolean isLess(BeanValidator validator, String value1, String value2) {
+        int day1 = validator.getEpochDay(field1), day2 = validator.getEpochDay(field2);
+        if (day1 != DateValidator.NOT_A_DATE && day2 != DateValidator.NOT_A_DATE) {
+            // Maybe it could be same day
+            return day1 <= day2;
+        }
+        return !StringUtils.isEmpty(value1) && !StringUtils.isEmpty(value2) && value1.compareTo(value2) <= 0;
+    }
+
+    /**
+     * Get the date after today, recomputing it only when the day changes.
+     * @return  Tomorrow's date.
+     */
+    private static Tomorrow getTomorrow() {
+        Tomorrow t = tomorrow;
+        if (System.currentTimeMillis() >= t.expires) {
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.DATE, 1);
+            String value = String.format("%04d-%02d-%02d", cal.get(Calendar.YEAR), cal.get(Calendar.MONTH)+1, cal.get(Calendar.DATE));
+            // The value changes at the start of tomorrow.
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            t = new Tomorrow(value, DateValidator.toEpochDay(value), cal.getTimeInMillis());
+            tomorrow = t;
+        }
+        return t;
+    }
+
+    @Override
+    public String toString() {
+        return code;
+    }
+}
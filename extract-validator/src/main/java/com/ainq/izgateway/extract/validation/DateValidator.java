@@ -15,7 +15,6 @@ package com.ainq.izgateway.extract.validation;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -24,21 +23,47 @@ import com.opencsv.bean.BeanField;
 import com.opencsv.bean.validators.StringValidator;
 import com.opencsv.exceptions.CsvValidationException;
 
+/**
+ * Validates dates against one or more formats separated by |, by default yyyy-MM-dd|yyyy-MM.
+ *
+ * A value is valid if a non-lenient SimpleDateFormat parses it and formats it back to the
+ * same string.  The yyyy-MM-dd and yyyy-MM formats are checked directly, accepting the same
+ * values.  Other formats use a new SimpleDateFormat for each value, since SimpleDateFormat is
+ * not thread safe.  Instances are thread safe once configured.
+ */
 public class DateValidator extends SuppressibleValidator implements Fixable, StringValidator, Suppressible {
+    /** Returned by {@link #toEpochDay(String)} for values that are not full dates */
+    public static final int NOT_A_DATE = Integer.MIN_VALUE;
+    private static final String FULL_DATE = "yyyy-MM-dd", YEAR_MONTH = "yyyy-MM";
+    /** The first year of the Gregorian calendar, earlier dates use the Julian calendar */
+    private static final int GREGORIAN_YEAR = 1582, GREGORIAN_MONTH = 10, GREGORIAN_DAY = 15;
+    /** The largest year SimpleDateFormat accepts */
+    private static final int MAX_YEAR = 292278994;
+    private static final int DAYS_IN_MONTH[] = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
     private String param = null;
     private static String DEFAULT_FORMAT = "yyyy-MM-dd|yyyy-MM";
-    private SimpleDateFormat sdf[] = { new SimpleDateFormat(DEFAULT_FORMAT) };
+    /** True if the formats are yyyy-MM-dd, yyyy-MM or both, in that order, and can be checked directly */
+    private volatile boolean builtIn = true;
+    private volatile boolean fullDate = true, yearMonth = true;
+    /** Other formats, used when builtIn is false */
+    private volatile String formats[] = {};
+
     @Override
     public boolean isValid(String value) {
         // Allow empty values to validate, use required=true to force them to be non-empty
         if (StringUtils.isEmpty(value)) {
             return true;
         }
-        for (SimpleDateFormat fmt: sdf) {
+        if (builtIn) {
+            return (fullDate && isDate(value, true)) ||
+                   (yearMonth && isDate(value, false));
+        }
+        for (String format: formats) {
+            SimpleDateFormat fmt = newDateFormat(format);
             try {
-                // Wee do this to overcome some leniency in interpretation of months.
-                Date d = fmt.parse(value);
-                String v = fmt.format(d);
+                // We do this to overcome some leniency in interpretation of months.
+                String v = fmt.format(fmt.parse(value));
                 return v.equalsIgnoreCase(value);
             } catch (ParseException e) {
             }
@@ -46,6 +71,110 @@ public class DateValidator extends SuppressibleValidator implements Fixable, Str
         return false;
     }
 
+    /**
+     * Check a value against the yyyy-MM-dd or yyyy-MM format.
+     * @param value The value to check.
+     * @param withDay   True to check for yyyy-MM-dd, false for yyyy-MM.
+     * @return  true if the value is valid.
+     */
+    private static boolean isDate(String value, boolean withDay) {
+        return parse(value, withDay) != NOT_A_DATE;
+    }
+
+    /**
+     * Parse a date in yyyy-MM-dd or yyyy-MM format in one pass.  Years have four digits,
+     * or more with no leading zero.  Dates before October 15, 1582 use the Julian calendar,
+     * as GregorianCalendar does.
+     * @param value The value to parse.
+     * @param withDay   True to parse yyyy-MM-dd, false for yyyy-MM.
+     * @return  The date packed as year * 512 + month * 32 + day, or NOT_A_DATE if it is not valid.
+     */
+    private static int parse(String value, boolean withDay) {
+        int length = value.length(), pos = 0, year = 0;
+        while (pos < length && isDigit(value.charAt(pos))) {
+            if (pos >= 9) {
+                return NOT_A_DATE;
+            }
+            year = year * 10 + value.charAt(pos++) - '0';
+        }
+        if (pos < 4 || (pos > 4 && value.charAt(0) == '0') || year < 1 || year > MAX_YEAR) {
+            return NOT_A_DATE;
+        }
+        if (length != pos + (withDay ? 6 : 3) || value.charAt(pos) != '-' ||
+            !isDigit(value.charAt(pos + 1)) || !isDigit(value.charAt(pos + 2))) {
+            return NOT_A_DATE;
+        }
+        int month = (value.charAt(pos + 1) - '0') * 10 + value.charAt(pos + 2) - '0';
+        if (month < 1 || month > 12) {
+            return NOT_A_DATE;
+        }
+        if (!withDay) {
+            return year * 512 + month * 32;
+        }
+        pos += 3;
+        if (value.charAt(pos) != '-' || !isDigit(value.charAt(pos + 1)) || !isDigit(value.charAt(pos + 2))) {
+            return NOT_A_DATE;
+        }
+        int day = (value.charAt(pos + 1) - '0') * 10 + value.charAt(pos + 2) - '0';
+        if (day < 1 || day > getDaysInMonth(year, month)) {
+            return NOT_A_DATE;
+        }
+        if (year == GREGORIAN_YEAR && month == GREGORIAN_MONTH && day < GREGORIAN_DAY && day > GREGORIAN_DAY - 11) {
+            // These days were skipped when the Gregorian calendar was adopted
+            return NOT_A_DATE;
+        }
+        return year * 512 + month * 32 + day;
+    }
+
+    private static SimpleDateFormat newDateFormat(String format) {
+        SimpleDateFormat fmt = new SimpleDateFormat(format);
+        fmt.setLenient(false);
+        return fmt;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int getDaysInMonth(int year, int month) {
+        if (month != 2) {
+            return DAYS_IN_MONTH[month - 1];
+        }
+        boolean leap = year % 4 == 0 && (year <= GREGORIAN_YEAR || year % 100 != 0 || year % 400 == 0);
+        return leap ? 29 : 28;
+    }
+
+    /**
+     * Convert a date in yyyy-MM-dd format to a count of days since 1970-01-01, so that
+     * dates can be compared without parsing them again.  Only dates with four digit years
+     * in the Gregorian calendar (after 1582) are converted, for these, comparing the
+     * day counts gives the same result as comparing the strings.
+     *
+     * @param value The date.
+     * @return  The number of days since 1970-01-01, or NOT_A_DATE if the value is not a valid date.
+     */
+    public static int toEpochDay(String value) {
+        if (value == null || value.length() != FULL_DATE.length()) {
+            return NOT_A_DATE;
+        }
+        int date = parse(value, true);
+        if (date == NOT_A_DATE) {
+            return NOT_A_DATE;
+        }
+        int year = date / 512, month = (date / 32) % 16, day = date % 32;
+        if (year <= GREGORIAN_YEAR) {
+            return NOT_A_DATE;
+        }
+        // Count days from March 1, year 0 so that leap days fall at the end of a year.
+        if (month <= 2) {
+            year--;
+            month += 12;
+        }
+        int days = 365 * year + year / 4 - year / 100 + year / 400 + (153 * (month - 3) + 2) / 5 + day - 1;
+        // 719468 is the number of days from March 1, year 0 to January 1, 1970
+        return days - 719468;
+    }
+
     @Override
     public void validate(String value, @SuppressWarnings("rawtypes") BeanField field) throws CsvValidationException {
         if (!isValid(value)) {
@@ -65,13 +194,20 @@ public class DateValidator extends SuppressibleValidator implements Fixable, Str
     public void setParameterString(String value) {
         param = StringUtils.isEmpty(value) ? DEFAULT_FORMAT : value;
         String fmts[] = param.split("\\|");
-        sdf = new SimpleDateFormat[fmts.length];
-        int count = 0;
+        if (fmts.length == 1 && (FULL_DATE.equals(fmts[0]) || YEAR_MONTH.equals(fmts[0])) ||
+            fmts.length == 2 && FULL_DATE.equals(fmts[0]) && YEAR_MONTH.equals(fmts[1])
+        ) {
+            fullDate = FULL_DATE.equals(fmts[0]);
+            yearMonth = YEAR_MONTH.equals(fmts[fmts.length - 1]);
+            builtIn = true;
+            return;
+        }
         for (String fmt: fmts) {
-            sdf[count] = new SimpleDateFormat(fmt);
-            sdf[count].setLenient(false);
-            count++;
+            // Report invalid formats now, rather than when first used.
+            newDateFormat(fmt);
         }
+        this.formats = fmts;
+        builtIn = false;
     }
 
     @Override
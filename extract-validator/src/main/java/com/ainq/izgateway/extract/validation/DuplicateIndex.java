@@ -0,0 +1,46 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.Closeable;
+
+/**
+ * Tracks the identifiers seen in a file, and the line where each was last seen,
+ * so that BeanValidator can report duplicate identifiers (BUSR013).
+ *
+ * Identifiers are compared without regard to case.
+ */
+public interface DuplicateIndex extends Closeable {
+    /** Returned by {@link #put(String, int)} when an identifier has not been seen before */
+    int NOT_FOUND = -1;
+
+    /**
+     * Record an identifier, and return the line where it was last seen.
+     * @param id    The identifier.
+     * @param line  The line where it appears.
+     * @return  The line where the identifier was last seen, or NOT_FOUND if this is the first time.
+     */
+    int put(String id, int line);
+
+    /**
+     * Forget all identifiers, so that the index can be reused.
+     */
+    void clear();
+
+    /**
+     * Forget all identifiers and release any resources used by the index.
+     * The index can still be used after it is closed.
+     */
+    @Override
+    void close();
+}
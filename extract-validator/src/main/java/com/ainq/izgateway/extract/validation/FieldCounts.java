@@ -0,0 +1,153 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ainq.izgateway.extract.CVRSField;
+import com.opencsv.bean.validators.StringValidator;
+
+/**
+ * Counts of the values found in each field, reported by the -t and -T options.
+ *
+ * Counts are kept in an array indexed by field ordinal and kind of count, and are only
+ * given names (e.g., recip_address_zip_00) when they are reported.  Each validator keeps
+ * its own counts, so validators used on different threads never share them, and the counts
+ * are combined with {@link #add(FieldCounts)} when the threads are done.
+ */
+final class FieldCounts {
+    /** The kinds of counts kept for a field, and the suffix added to the field name to report them */
+    private enum Kind {
+        /** The field has a value */
+        VALUE(""),
+        /** A zip code ending in 00 */
+        ZIP_00("_00"),
+        /** The zip code 00000 */
+        ZIP_00000("_00000"),
+        /** A date of birth on January 1 */
+        JAN_01("_01-01"),
+        /** A YES value */
+        YES("_yes"),
+        /** An unknown code */
+        UNK("_unk");
+
+        private final String suffix;
+        private Kind(String suffix) {
+            this.suffix = suffix;
+        }
+        private int bit() {
+            return 1 << ordinal();
+        }
+    }
+    private static final Kind KINDS[] = Kind.values();
+
+    /** The kinds of counts kept for each field, as a bit mask by field ordinal */
+    private static final int kinds[] = new int[CVRSField.count()];
+    /** Fields where a value of U is also counted as unknown */
+    private static final boolean unknownIfU[] = new boolean[CVRSField.count()];
+
+    static {
+        for (int i = 0; i < kinds.length; i++) {
+            CVRSField field = CVRSField.get(i);
+            String name = field.getName();
+            int mask = Kind.VALUE.bit();
+            if (name.contains("_zip")) {
+                mask |= Kind.ZIP_00.bit() | Kind.ZIP_00000.bit();
+            }
+            if (name.equalsIgnoreCase("recip_dob")) {
+                mask |= Kind.JAN_01.bit();
+            }
+            if (StringUtils.equalsAnyIgnoreCase(name, "vax_refusal", "cmorbid_status", "serology")) {
+                mask |= Kind.YES.bit();
+            }
+            Class<? extends StringValidator> sv = SchemaSnapshot.get().getValidator(field);
+            if (sv != null && ValueSetValidator.class.isAssignableFrom(sv)) {
+                mask |= Kind.UNK.bit();
+            }
+            kinds[i] = mask;
+            unknownIfU[i] = name.equalsIgnoreCase("recip_sex");
+        }
+    }
+
+    /** The counts, at field ordinal * KINDS.length + kind ordinal */
+    private final long counts[] = new long[CVRSField.count() * KINDS.length];
+
+    /**
+     * Count the value of a field.
+     * @param field The field.
+     * @param value The value, which may be empty.
+     */
+    void count(CVRSField field, String value) {
+        if (StringUtils.isEmpty(value)) {
+            return;
+        }
+        int ordinal = field.ordinal(), mask = kinds[ordinal], base = ordinal * KINDS.length;
+        counts[base]++;
+        if (mask == Kind.VALUE.bit()) {
+            return;
+        }
+        if ((mask & Kind.ZIP_00.bit()) != 0 && value.startsWith("00", 3)) {
+            counts[base + Kind.ZIP_00.ordinal()]++;
+            if (value.equals("00000")) {
+                counts[base + Kind.ZIP_00000.ordinal()]++;
+            }
+        }
+        if ((mask & Kind.JAN_01.bit()) != 0 && value.endsWith("-01-01")) {
+            counts[base + Kind.JAN_01.ordinal()]++;
+        }
+        if ((mask & Kind.YES.bit()) != 0 && value.equalsIgnoreCase("yes")) {
+            counts[base + Kind.YES.ordinal()]++;
+        }
+        if ((mask & Kind.UNK.bit()) != 0 && (value.equalsIgnoreCase("UNK") || (unknownIfU[ordinal] && value.equalsIgnoreCase("U")))) {
+            counts[base + Kind.UNK.ordinal()]++;
+        }
+    }
+
+    /**
+     * Add counts collected on another thread to these.
+     * @param other The counts to add.
+     */
+    void add(FieldCounts other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * Reset all counts to zero.
+     */
+    void clear() {
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * @return A map from the name of each count to its value, sorted by name.
+     */
+    Map<String, Integer> toMap() {
+        Map<String, Integer> map = new TreeMap<>();
+        for (int i = 0; i < kinds.length; i++) {
+            String name = CVRSField.get(i).getName();
+            for (Kind kind: KINDS) {
+                if ((kinds[i] & kind.bit()) != 0) {
+                    long count = counts[i * KINDS.length + kind.ordinal()];
+                    map.put(name + kind.suffix, (int) Math.min(count, Integer.MAX_VALUE));
+                }
+            }
+        }
+        return map;
+    }
+}
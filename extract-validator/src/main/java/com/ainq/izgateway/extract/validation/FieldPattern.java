@@ -0,0 +1,404 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the regular expressions used with {@link Matches} into matchers that test
+ * a whole value, as String.matches() does.
+ *
+ * The simple shapes used in CVRSExtract are compiled to loops over the characters of
+ * the value:
+ * <ul>
+ * <li>A run of a character class, e.g., \S+ or [0-9A-Za-z]{0,6}</li>
+ * <li>A run of a character class followed by .*, e.g., \S+.*</li>
+ * <li>Fixed length sequences with an optional fixed length suffix, e.g., \d{5}(-\d{4})?</li>
+ * </ul>
+ * Any of these can be surrounded by ^ and $, or by a group, which can be optional.
+ * Other expressions are compiled to a Pattern.
+ */
+final class FieldPattern {
+    /** The characters with special meaning in a regular expression */
+    private static final String SPECIAL = "\\^$.|?*+()[]{}";
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /** Tests a single character */
+    private interface CharClass {
+        boolean matches(char c);
+    }
+
+    /** A character class repeated between min and max times */
+    private static final class Run {
+        private final CharClass charClass;
+        private final int min, max;
+        private Run(CharClass charClass, int min, int max) {
+            this.charClass = charClass;
+            this.min = min;
+            this.max = max;
+        }
+        private boolean isFixed() {
+            return min == max;
+        }
+    }
+
+    /** Matches any character except a line terminator, as . does */
+    private static final CharClass ANY = c -> c != '\n' && c != '\r' && c != '\u0085' && c != '\u2028' && c != '\u2029';
+    private static final CharClass DIGIT = c -> c >= '0' && c <= '9';
+    private static final CharClass SPACE = c -> c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    private static final CharClass WORD = c -> c < 0x80 && (c == '_' || Character.isLetterOrDigit(c));
+
+    /** The expression being compiled, and the position of the parser in it */
+    private final String regex;
+    private int pos = 0;
+
+    private FieldPattern(String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Compile a regular expression.
+     * @param regex The expression.
+     * @return  A test of whether a whole value matches the expression.
+     * @throws java.util.regex.PatternSyntaxException If the expression is not valid.
+     */
+    static Predicate<String> compile(String regex) {
+        Predicate<String> matcher = new FieldPattern(regex).compile();
+        if (matcher != null) {
+            return matcher;
+        }
+        Pattern pattern = Pattern.compile(regex);
+        return value -> pattern.matcher(value).matches();
+    }
+
+    /**
+     * Compile a simple expression.
+     * @return  The matcher, or null if the expression is not one of the shapes handled here.
+     */
+    private Predicate<String> compile() {
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.endsWith("$") && !regex.endsWith("\\$") ? regex.length() - 1 : regex.length();
+        if (end < start) {
+            return null;
+        }
+        String body = regex.substring(start, end);
+        boolean optional = false;
+        if (body.startsWith("(") && isOuterGroup(body, body.endsWith(")?") ? body.length() - 2 : body.length() - 1)) {
+            optional = body.endsWith("?");
+            body = body.substring(body.startsWith("(?:") ? 3 : 1, body.length() - (optional ? 2 : 1));
+        }
+        Predicate<String> matcher = new FieldPattern(body).compileBody();
+        if (matcher == null || !optional) {
+            return matcher;
+        }
+        Predicate<String> required = matcher;
+        return value -> value.isEmpty() || required.test(value);
+    }
+
+    /**
+     * Determine if the group opened at the start of a string is closed at a position.
+     * @param body  The string.
+     * @param close The position of the closing parenthesis.
+     * @return  true if the first group ends at close.
+     */
+    private static boolean isOuterGroup(String body, int close) {
+        if (close <= 0 || body.charAt(close) != ')') {
+            return false;
+        }
+        int depth = 0;
+        for (int i = 0; i < close; i++) {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return false;
+            }
+        }
+        return depth == 1;
+    }
+
+    private Predicate<String> compileBody() {
+        List<Run> runs = new ArrayList<>();
+        while (pos < regex.length() && regex.charAt(pos) != '(') {
+            Run run = parseRun();
+            if (run == null) {
+                return null;
+            }
+            runs.add(run);
+        }
+        List<Run> suffix = new ArrayList<>();
+        if (pos < regex.length()) {
+            // Only an optional group at the end is supported, e.g., (-\d{4})?
+            int close = regex.lastIndexOf(")?");
+            if (close != regex.length() - 2) {
+                return null;
+            }
+            FieldPattern group = new FieldPattern(regex.substring(pos + 1, close));
+            while (group.pos < group.regex.length()) {
+                Run run = group.parseRun();
+                if (run == null || !run.isFixed()) {
+                    return null;
+                }
+                suffix.add(run);
+            }
+        }
+
+        if (runs.size() == 1 && suffix.isEmpty()) {
+            return matchRun(runs.get(0));
+        }
+        if (runs.size() == 2 && suffix.isEmpty() && runs.get(0).min <= 1 && runs.get(0).max == UNBOUNDED &&
+            runs.get(1).charClass == ANY && runs.get(1).min == 0 && runs.get(1).max == UNBOUNDED) {
+            return matchRunThenAny(runs.get(0));
+        }
+        if (runs.stream().allMatch(Run::isFixed)) {
+            return matchFixed(runs.toArray(new Run[runs.size()]), suffix.toArray(new Run[suffix.size()]));
+        }
+        return null;
+    }
+
+    /**
+     * Parse a character class and its quantifier.
+     * @return  The run, or null if it cannot be parsed.
+     */
+    private Run parseRun() {
+        CharClass charClass = parseClass();
+        if (charClass == null) {
+            return null;
+        }
+        int min = 1, max = 1;
+        if (pos < regex.length()) {
+            switch (regex.charAt(pos)) {
+            case '?':
+                min = 0;
+                pos++;
+                break;
+            case '*':
+                min = 0;
+                max = UNBOUNDED;
+                pos++;
+                break;
+            case '+':
+                max = UNBOUNDED;
+                pos++;
+                break;
+            case '{':
+                int close = regex.indexOf('}', pos);
+                if (close < 0) {
+                    return null;
+                }
+                String bounds[] = regex.substring(pos + 1, close).split(",", -1);
+                try {
+                    min = Integer.parseInt(bounds[0]);
+                    max = bounds.length == 1 ? min : bounds[1].isEmpty() ? UNBOUNDED : Integer.parseInt(bounds[1]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (bounds.length > 2 || min > max) {
+                    return null;
+                }
+                pos = close + 1;
+                break;
+            default:
+                break;
+            }
+        }
+        if (pos < regex.length() && "?+".indexOf(regex.charAt(pos)) >= 0) {
+            // Lazy and possessive quantifiers
+            return null;
+        }
+        return new Run(charClass, min, max);
+    }
+
+    /**
+     * Parse a character class or literal character.
+     * @return  The class, or null if it cannot be parsed.
+     */
+    private CharClass parseClass() {
+        char c = regex.charAt(pos++);
+        switch (c) {
+        case '.':
+            return ANY;
+        case '\\':
+            return pos < regex.length() ? parseEscape(regex.charAt(pos++)) : null;
+        case '[':
+            return parseSet();
+        default:
+            return SPECIAL.indexOf(c) >= 0 ? null : literal(c);
+        }
+    }
+
+    private static CharClass parseEscape(char c) {
+        switch (c) {
+        case 'd':
+            return DIGIT;
+        case 'D':
+            return not(DIGIT);
+        case 's':
+            return SPACE;
+        case 'S':
+            return not(SPACE);
+        case 'w':
+            return WORD;
+        case 'W':
+            return not(WORD);
+        default:
+            return SPECIAL.indexOf(c) >= 0 || c == '-' || c == '/' ? literal(c) : null;
+        }
+    }
+
+    /**
+     * Parse a set of ASCII characters and ranges, e.g. [0-9A-Za-z] or [^-].
+     * @return  The class, or null if it cannot be parsed.
+     */
+    private CharClass parseSet() {
+        boolean negated = pos < regex.length() && regex.charAt(pos) == '^';
+        if (negated) {
+            pos++;
+        }
+        boolean members[] = new boolean[0x80];
+        if (pos < regex.length() && regex.charAt(pos) == ']') {
+            return null;
+        }
+        while (pos < regex.length() && regex.charAt(pos) != ']') {
+            char c = regex.charAt(pos++);
+            if (c == '[' || c == '&' || c >= 0x80) {
+                return null;
+            }
+            if (c == '\\') {
+                if (pos >= regex.length()) {
+                    return null;
+                }
+                c = regex.charAt(pos++);
+                if (Character.isLetterOrDigit(c)) {
+                    CharClass escape = parseEscape(c);
+                    if (escape == null || c == 'S' || c == 'D' || c == 'W') {
+                        // Negated classes include non-ASCII characters
+                        return null;
+                    }
+                    for (char m = 0; m < members.length; m++) {
+                        members[m] |= escape.matches(m);
+                    }
+                    continue;
+                }
+            }
+            if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                char last = regex.charAt(pos + 1);
+                if (last == '\\' || last == '[' || last >= 0x80 || last < c) {
+                    return null;
+                }
+                for (char m = c; m <= last; m++) {
+                    members[m] = true;
+                }
+                pos += 2;
+            } else {
+                members[c] = true;
+            }
+        }
+        if (pos >= regex.length()) {
+            return null;
+        }
+        pos++;
+        return ch -> (ch < 0x80 && members[ch]) != negated;
+    }
+
+    private static CharClass literal(char c) {
+        return ch -> ch == c;
+    }
+
+    private static CharClass not(CharClass charClass) {
+        return c -> !charClass.matches(c);
+    }
+
+    /**
+     * Match a value made up of a single run.
+     */
+    private static Predicate<String> matchRun(Run run) {
+        return value -> {
+            int length = value.length();
+            if (length < run.min || length > run.max) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!run.charClass.matches(value.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Match a run followed by .* (e.g., \S+.*).  The run is extended as far as it can go,
+     * since that leaves the least for .* to match, and then the rest of the value must
+     * not contain any line terminators.
+     */
+    private static Predicate<String> matchRunThenAny(Run run) {
+        return value -> {
+            int length = value.length(), i = 0;
+            while (i < length && run.charClass.matches(value.charAt(i))) {
+                i++;
+            }
+            if (i < run.min) {
+                return false;
+            }
+            for (; i < length; i++) {
+                if (!ANY.matches(value.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Match a fixed length sequence, optionally followed by a fixed length suffix.
+     */
+    private static Predicate<String> matchFixed(Run runs[], Run suffix[]) {
+        int length = 0, suffixLength = 0;
+        for (Run run: runs) {
+            length += run.min;
+        }
+        for (Run run: suffix) {
+            suffixLength += run.min;
+        }
+        int required = length, full = length + suffixLength;
+        boolean hasSuffix = suffix.length != 0;
+        return value -> {
+            if (value.length() != required && (!hasSuffix || value.length() != full)) {
+                return false;
+            }
+            return matchFixed(value, 0, runs) == required &&
+                (value.length() == required || matchFixed(value, required, suffix) == full);
+        };
+    }
+
+    /**
+     * Match a sequence of fixed length runs.
+     * @return The position after the sequence, or -1 if it does not match.
+     */
+    private static int matchFixed(String value, int pos, Run runs[]) {
+        for (Run run: runs) {
+            for (int i = 0; i < run.min; i++, pos++) {
+                if (!run.charClass.matches(value.charAt(pos))) {
+                    return -1;
+                }
+            }
+        }
+        return pos;
+    }
+}
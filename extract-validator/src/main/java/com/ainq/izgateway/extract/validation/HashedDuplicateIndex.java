@@ -0,0 +1,444 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DuplicateIndex using an open addressing table of 64-bit identifier hashes.
+ *
+ * Each slot of the table holds the hash of an identifier and the offset of an entry in
+ * a key store.  Entries hold the line where the identifier was last seen and the upper
+ * case identifier, which is only read back when hashes match, to confirm that the
+ * identifiers really are the same.  This keeps duplicate detection exact.
+ *
+ * The key store is kept in memory until the index uses more than its memory budget,
+ * after which it is moved to a temporary file, and only the table stays in memory.
+ */
+public class HashedDuplicateIndex implements DuplicateIndex {
+    /** The default memory budget, a quarter of the maximum heap */
+    public static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Size of each page of the key store in memory, and of the write buffer for the key store on disk */
+    private static final int PAGE_SIZE = 1 << 20;
+    /** Size of the entry header: the line, and the length of the identifier (negative for two byte characters) */
+    private static final int HEADER_SIZE = 8;
+
+    private final long memoryBudget;
+    /** Identifier hashes, 0 marks an empty slot */
+    private long hashes[];
+    /** Offsets of entries in the key store */
+    private long offsets[];
+    private int size = 0;
+    private KeyStore store;
+    /** Reusable space for encoding and reading entries */
+    private byte scratch[] = new byte[256];
+
+    /**
+     * Create an index using the default memory budget.
+     */
+    public HashedDuplicateIndex() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Create an index.
+     * @param memoryBudget  The number of bytes the index can use before identifiers are moved to disk.
+     */
+    public HashedDuplicateIndex(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        clear();
+    }
+
+    @Override
+    public int put(String id, int line) {
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) >= 0x80) {
+                // Some characters change length when converted to upper case.
+                id = id.toUpperCase();
+                break;
+            }
+        }
+        long hash = hash(id);
+        int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        for (long h; (h = hashes[slot]) != 0; slot = (slot + 1) & mask) {
+            if (h == hash && matches(offsets[slot], id)) {
+                int previous = readInt(offsets[slot]);
+                writeInt(offsets[slot], line);
+                return previous;
+            }
+        }
+        hashes[slot] = hash;
+        offsets[slot] = append(id, line);
+        if (++size > hashes.length / 2) {
+            resize();
+        }
+        if (!store.isOnDisk() && getMemoryUsed() > memoryBudget) {
+            store = store.spill();
+        }
+        return NOT_FOUND;
+    }
+
+    @Override
+    public void clear() {
+        if (store != null) {
+            store.close();
+        }
+        hashes = new long[INITIAL_CAPACITY];
+        offsets = new long[INITIAL_CAPACITY];
+        size = 0;
+        store = new MemoryKeyStore();
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @return The number of distinct identifiers in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if identifiers have been moved to disk.
+     */
+    public boolean isOnDisk() {
+        return store.isOnDisk();
+    }
+
+    /**
+     * @return The approximate number of bytes of memory used by the index.
+     */
+    public long getMemoryUsed() {
+        return 16L * hashes.length + store.getMemoryUsed();
+    }
+
+    private void resize() {
+        long oldHashes[] = hashes, oldOffsets[] = offsets;
+        hashes = new long[oldHashes.length * 2];
+        offsets = new long[oldHashes.length * 2];
+        int mask = hashes.length - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                int slot = (int) oldHashes[i] & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                offsets[slot] = oldOffsets[i];
+            }
+        }
+    }
+
+    /**
+     * Compute a 64-bit hash of the upper case form of an identifier.
+     * @param id    The identifier, which has already been converted to upper case if it is not ASCII.
+     * @return  The hash, which is never 0.
+     */
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h = (h ^ toUpperCase(id.charAt(i))) * 0x100000001b3L;
+        }
+        // Spread the bits so that the low bits used to pick a slot depend on every character.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static char toUpperCase(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    /**
+     * Add an entry to the key store.
+     * @param id    The identifier.
+     * @param line  The line where it was seen.
+     * @return  The offset of the entry.
+     */
+    private long append(String id, int line) {
+        boolean wide = false;
+        for (int i = 0; i < id.length() && !wide; i++) {
+            wide = toUpperCase(id.charAt(i)) > 0xFF;
+        }
+        int length = HEADER_SIZE + id.length() * (wide ? 2 : 1);
+        byte data[] = getScratch(length);
+        putInt(data, 0, line);
+        putInt(data, 4, wide ? -id.length() : id.length());
+        for (int i = 0, pos = HEADER_SIZE; i < id.length(); i++) {
+            char c = toUpperCase(id.charAt(i));
+            if (wide) {
+                data[pos++] = (byte) (c >> 8);
+            }
+            data[pos++] = (byte) c;
+        }
+        long offset = store.size();
+        store.write(offset, data, length);
+        return offset;
+    }
+
+    /**
+     * Compare the identifier in an entry to another.
+     * @param offset    The offset of the entry.
+     * @param id    The identifier to compare.
+     * @return  true if the identifiers are the same, ignoring case.
+     */
+    private boolean matches(long offset, String id) {
+        byte data[] = getScratch(HEADER_SIZE);
+        store.read(offset, data, HEADER_SIZE);
+        int length = getInt(data, 4);
+        boolean wide = length < 0;
+        length = Math.abs(length);
+        if (length != id.length()) {
+            return false;
+        }
+        int bytes = length * (wide ? 2 : 1);
+        data = getScratch(bytes);
+        store.read(offset + HEADER_SIZE, data, bytes);
+        for (int i = 0, pos = 0; i < length; i++) {
+            char c = wide ? (char) (((data[pos++] & 0xFF) << 8) | (data[pos++] & 0xFF)) : (char) (data[pos++] & 0xFF);
+            if (c != toUpperCase(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readInt(long offset) {
+        byte data[] = getScratch(4);
+        store.read(offset, data, 4);
+        return getInt(data, 0);
+    }
+
+    private void writeInt(long offset, int value) {
+        byte data[] = getScratch(4);
+        putInt(data, 0, value);
+        store.write(offset, data, 4);
+    }
+
+    private byte[] getScratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private static void putInt(byte data[], int pos, int value) {
+        data[pos] = (byte) (value >> 24);
+        data[pos + 1] = (byte) (value >> 16);
+        data[pos + 2] = (byte) (value >> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static int getInt(byte data[], int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    /** Storage for index entries, addressed by offset */
+    private interface KeyStore {
+        long size();
+        /** Write data at an offset, which is at most size() */
+        void write(long offset, byte data[], int length);
+        void read(long offset, byte data[], int length);
+        long getMemoryUsed();
+        boolean isOnDisk();
+        /** Move the contents of this store to disk */
+        KeyStore spill();
+        void close();
+    }
+
+    /** A key store held in memory in fixed size pages */
+    private static class MemoryKeyStore implements KeyStore {
+        private final List<byte[]> pages = new ArrayList<>();
+        private long size = 0;
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void write(long offset, byte data[], int length) {
+            for (int done = 0; done < length; ) {
+                int page = (int) ((offset + done) / PAGE_SIZE), pos = (int) ((offset + done) % PAGE_SIZE);
+                if (page == pages.size()) {
+                    pages.add(new byte[PAGE_SIZE]);
+                }
+                int count = Math.min(length - done, PAGE_SIZE - pos);
+                System.arraycopy(data, done, pages.get(page), pos, count);
+                done += count;
+            }
+            size = Math.max(size, offset + length);
+        }
+
+        @Override
+        public void read(long offset, byte data[], int length) {
+            for (int done = 0; done < length; ) {
+                int page = (int) ((offset + done) / PAGE_SIZE), pos = (int) ((offset + done) % PAGE_SIZE);
+                int count = Math.min(length - done, PAGE_SIZE - pos);
+                System.arraycopy(pages.get(page), pos, data, done, count);
+                done += count;
+            }
+        }
+
+        @Override
+        public long getMemoryUsed() {
+            return (long) pages.size() * PAGE_SIZE;
+        }
+
+        @Override
+        public boolean isOnDisk() {
+            return false;
+        }
+
+        @Override
+        public KeyStore spill() {
+            FileKeyStore disk = new FileKeyStore();
+            for (int i = 0; i < pages.size(); i++) {
+                disk.write((long) i * PAGE_SIZE, pages.get(i), (int) Math.min(PAGE_SIZE, size - (long) i * PAGE_SIZE));
+            }
+            close();
+            return disk;
+        }
+
+        @Override
+        public void close() {
+            pages.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * A key store held in a temporary file.  New entries are collected in a buffer
+     * before being written to the file.
+     */
+    private static class FileKeyStore implements KeyStore {
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        /** The offset of the first byte in the buffer, everything before it is in the file */
+        private long bufferStart = 0;
+
+        private FileKeyStore() {
+            try {
+                path = Files.createTempFile("vax_event_id", ".idx");
+                path.toFile().deleteOnExit();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create duplicate index file", e);
+            }
+        }
+
+        @Override
+        public long size() {
+            return bufferStart + buffer.position();
+        }
+
+        @Override
+        public void write(long offset, byte data[], int length) {
+            try {
+                int done = 0;
+                if (offset < bufferStart) {
+                    // Update bytes already in the file
+                    done = (int) Math.min(length, bufferStart - offset);
+                    writeFully(ByteBuffer.wrap(data, 0, done), offset);
+                }
+                while (done < length) {
+                    int pos = (int) (offset + done - bufferStart);
+                    if (pos == buffer.capacity()) {
+                        flush();
+                        continue;
+                    }
+                    int count = Math.min(length - done, buffer.capacity() - pos);
+                    System.arraycopy(data, done, buffer.array(), pos, count);
+                    buffer.position(Math.max(buffer.position(), pos + count));
+                    done += count;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write duplicate index file", e);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer, bufferStart);
+            bufferStart += buffer.limit();
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer b, long position) throws IOException {
+            while (b.hasRemaining()) {
+                position += channel.write(b, position);
+            }
+        }
+
+        @Override
+        public void read(long offset, byte data[], int length) {
+            try {
+                int done = 0;
+                if (offset < bufferStart) {
+                    done = (int) Math.min(length, bufferStart - offset);
+                    ByteBuffer b = ByteBuffer.wrap(data, 0, done);
+                    while (b.hasRemaining()) {
+                        if (channel.read(b, offset + b.position()) < 0) {
+                            throw new IOException("Unexpected end of duplicate index file");
+                        }
+                    }
+                }
+                if (done < length) {
+                    System.arraycopy(buffer.array(), (int) (offset + done - bufferStart), data, done, length - done);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read duplicate index file", e);
+            }
+        }
+
+        @Override
+        public long getMemoryUsed() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public boolean isOnDisk() {
+            return true;
+        }
+
+        @Override
+        public KeyStore spill() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Nothing else can be done, the file is deleted on exit.
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ package com.ainq.izgateway.extract.validation;
  * License for the specific language governing permissions and limitations
  * under the License.
  */
+import java.util.function.Predicate;
+
 import org.apache.commons.lang3.StringUtils;
 
 import com.ainq.izgateway.extract.Validator;
@@ -21,10 +23,12 @@ import com.opencsv.exceptions.CsvValidationException;
 
 public class Matches extends MustMatchRegexExpression implements Fixable {
     private String param;
+    /** The compiled parameter, or null if there is nothing to match */
+    private Predicate<String> matcher;
 
     public void validate(String value, @SuppressWarnings("rawtypes") BeanField field) throws CsvValidationException {
         // Allow empty strings to validate, since we use "required=true" to validate missing fields.
-        if (!StringUtils.isEmpty(value) && !super.isValid(value)) {
+        if (!StringUtils.isEmpty(value) && !isValid(value)) {
             throw Validator.error(null, "DATA005", field.getField().getName(), param, value);
         }
     }
@@ -32,6 +36,18 @@ public class Matches extends MustMatchRegexExpression implements Fixable {
     public void setParameterString(String param) {
         this.param = param;
         super.setParameterString(param);
+        matcher = StringUtils.isEmpty(param) ? null : FieldPattern.compile(param);
+    }
+    /**
+     * Unlike the superclass, which calls String.matches() for each value, this
+     * uses a matcher compiled once when the parameter is set.
+     */
+    @Override
+    public boolean isValid(String value) {
+        if (matcher == null) {
+            return true;
+        }
+        return value != null && matcher.test(value);
     }
     @Override
     public String fixIt(String value) {
@@ -25,4 +25,14 @@ public class NullValidator extends BeanValidator implements BeanVerifier<CVRSExt
     public boolean verifyBean(CVRSExtract bean) throws CVRSValidationException {
         return true;
     }
+
+    @Override
+    public BeanValidator newPartitionValidator() {
+        return new NullValidator(getSuppressed(), getVersion()).setRules(getRules());
+    }
+
+    @Override
+    public CVRSEntry verifyNoDuplicate(CVRSExtract bean) {
+        return null;
+    }
 }
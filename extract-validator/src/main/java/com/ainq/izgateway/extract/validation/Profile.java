@@ -0,0 +1,288 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time goes while validating a file: the cumulative time, the number of calls, and an estimate
+ * of the memory allocated for each stage of processing, each field validator and each business rule.
+ *
+ * A profile is not thread safe.  Each entry is updated by one thread at a time, so timing a call only
+ * costs two reads of System.nanoTime().  Work done on other threads is recorded in profiles of their own,
+ * which are combined using {@link #add(Profile)} once the work is done, as field counts are.
+ *
+ * Reading the memory allocated by a thread costs more than most field validators do, so it is only
+ * read for one call in {@value #SAMPLE_INTERVAL}, and the total is estimated from those calls.
+ */
+public final class Profile {
+    /** What an entry measures */
+    public enum Kind {
+        /** A stage of processing a record, see {@link Profile#STAGES} */
+        STAGE,
+        /** Validating the value of a field, named by the field */
+        FIELD,
+        /** Checking a business rule, named by its error code */
+        RULE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /** Reading and parsing a record */
+    public static final String PARSE = "parse";
+    /** Verifying a record, which includes its field validators and business rules */
+    public static final String VERIFY_BEAN = "verifyBean";
+    /** Converting a record to the requested outputs */
+    public static final String CONVERT = "convert";
+    /** Writing the converted record */
+    public static final String WRITE = "write";
+    /** The stages, in the order records pass through them */
+    public static final List<String> STAGES = Arrays.asList(PARSE, VERIFY_BEAN, CONVERT, WRITE);
+
+    /** Allocated memory is read for one call in this many, which must be a power of 2 */
+    public static final int SAMPLE_INTERVAL = 16;
+
+    private static final com.sun.management.ThreadMXBean THREADS = getThreadMXBean();
+
+    /** The measurements for one stage, field or rule */
+    public static final class Entry {
+        private final Kind kind;
+        private final String name;
+        private final String detail;
+        /** The number of calls */
+        private long count = 0;
+        private long nanos = 0;
+        /** The number of times timing was started, which may be more than count */
+        private long starts = 0;
+        /** The number of times allocated memory was read, and the memory allocated those times */
+        private long sampled = 0;
+        private long sampledBytes = 0;
+        /** The memory allocated by this thread when the current sample started, or -1 if not sampling */
+        private long startBytes = -1;
+
+        private Entry(Kind kind, String name, String detail) {
+            this.kind = kind;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        /**
+         * Start timing a call.
+         * @return  The start time, to pass to {@link #stop(long, boolean)}.
+         */
+        public long start() {
+            startBytes = (starts++ & (SAMPLE_INTERVAL - 1)) == 0 ? allocatedBytes() : -1;
+            return System.nanoTime();
+        }
+
+        /**
+         * Stop timing a call.
+         * @param start The start time returned by {@link #start()}.
+         * @param counted   true to count a call, false to add the time to the call being counted next
+         * (e.g., for Iterator.hasNext(), which reads ahead for the call to next()).
+         */
+        public void stop(long start, boolean counted) {
+            nanos += System.nanoTime() - start;
+            if (startBytes >= 0) {
+                long bytes = allocatedBytes();
+                if (bytes >= 0) {
+                    sampledBytes += bytes - startBytes;
+                    sampled++;
+                }
+                startBytes = -1;
+            }
+            if (counted) {
+                count++;
+            }
+        }
+
+        /**
+         * @return What this entry measures.
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The name of the stage, field or rule.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return More about the entry (e.g., the class of a field validator), or null.
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return The number of calls.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The total time taken by the calls in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return An estimate of the memory allocated by the calls in bytes, or -1 if the JVM cannot report it.
+         */
+        public long getBytes() {
+            return sampled == 0 ? -1 : Math.round((double) sampledBytes * starts / sampled);
+        }
+
+        private void add(Entry other) {
+            count += other.count;
+            nanos += other.nanos;
+            starts += other.starts;
+            sampled += other.sampled;
+            sampledBytes += other.sampledBytes;
+        }
+    }
+
+    private final Map<Kind, Map<String, Entry>> entries = new EnumMap<>(Kind.class);
+
+    /**
+     * Create an empty profile.
+     */
+    public Profile() {
+        for (Kind kind: Kind.values()) {
+            entries.put(kind, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Get an entry, creating it if necessary.
+     * @param kind  What the entry measures.
+     * @param name  The name of the stage, field or rule.
+     * @return  The entry.
+     */
+    public Entry get(Kind kind, String name) {
+        return get(kind, name, null);
+    }
+
+    /**
+     * Get an entry, creating it if necessary.
+     * @param kind  What the entry measures.
+     * @param name  The name of the stage, field or rule.
+     * @param detail    More about the entry, used if it is created.
+     * @return  The entry.
+     */
+    public Entry get(Kind kind, String name, String detail) {
+        Map<String, Entry> map = entries.get(kind);
+        Entry entry = map.get(name);
+        if (entry == null) {
+            map.put(name, entry = new Entry(kind, name, detail));
+        }
+        return entry;
+    }
+
+    /**
+     * Add the measurements of another profile to this one.
+     * @param other The profile to add, which must no longer be updated.
+     * @return this, for chaining
+     */
+    public Profile add(Profile other) {
+        if (other != null) {
+            for (Map<String, Entry> map: other.entries.values()) {
+                for (Entry entry: map.values()) {
+                    get(entry.kind, entry.name, entry.detail).add(entry);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The entries which have been called: stages in processing order, followed by
+     * fields and rules, each in order of decreasing time.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>();
+        for (Map.Entry<Kind, Map<String, Entry>> e: entries.entrySet()) {
+            List<Entry> list = new ArrayList<>();
+            for (Entry entry: e.getValue().values()) {
+                if (entry.count != 0) {
+                    list.add(entry);
+                }
+            }
+            if (e.getKey() == Kind.STAGE) {
+                list.sort(Comparator.comparing(entry -> STAGES.contains(entry.name) ? STAGES.indexOf(entry.name) : STAGES.size()));
+            } else {
+                list.sort(Comparator.comparingLong(Entry::getNanos).reversed());
+            }
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    /**
+     * Start timing a call if profiling.
+     * @param entry The entry to time, or null if not profiling.
+     * @return  The start time, or 0 if not profiling.
+     */
+    public static long start(Entry entry) {
+        return entry == null ? 0 : entry.start();
+    }
+
+    /**
+     * Stop timing a call if profiling.
+     * @param entry The entry being timed, or null if not profiling.
+     * @param start The start time returned by {@link #start(Entry)}.
+     */
+    public static void stop(Entry entry, long start) {
+        if (entry != null) {
+            entry.stop(start, true);
+        }
+    }
+
+    /**
+     * @return The memory allocated by the current thread in bytes, or -1 if the JVM cannot report it.
+     */
+    static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                    return threads;
+                }
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // Not available in this JVM
+        }
+        return null;
+    }
+}
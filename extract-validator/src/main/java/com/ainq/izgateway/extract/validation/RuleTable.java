@@ -0,0 +1,108 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A table of business rules, in the form described for the built in rules of {@link BeanValidator}.
+ *
+ * A table cannot be changed once created.  Adding rules from a file (see {@link #add(Reader)})
+ * creates a new table, so each configuration can use its own rules while validators using the
+ * same table share the rules compiled from it.
+ */
+public final class RuleTable {
+    private static final int ERROR_CODE = 0, RULE = 2;
+
+    private final String rules[][];
+    /** Compiled rules, by version and suppressed errors */
+    private final Map<String, BusinessRule[]> compiledRules = new ConcurrentHashMap<>();
+
+    /**
+     * Create a rule table.
+     * @param rules The rules, which must not be changed afterwards.
+     */
+    RuleTable(String rules[][]) {
+        this.rules = rules;
+    }
+
+    /**
+     * Create a new table holding the rules in this one and rules read from a tab delimited rule file.
+     * Each line of the file holds a rule in the same form as the built in rules: Error Code, Message,
+     * Rule, and optionally Error Level and Versions (comma separated).  A rule with the same error code
+     * as an existing rule replaces it.  Blank lines and lines starting with # are ignored.
+     *
+     * Codes BUSR014 through BUSR020 are reserved for added rules, so that they can be
+     * suppressed from the command line.
+     *
+     * @param r The reader to read rules from.
+     * @return  The new table.
+     * @throws IOException  If an error occured while reading.
+     * @throws IllegalArgumentException If a rule cannot be compiled.
+     */
+    public RuleTable add(Reader r) throws IOException {
+        List<String[]> table = new ArrayList<>(Arrays.asList(rules));
+        BufferedReader br = r instanceof BufferedReader ? (BufferedReader) r : new BufferedReader(r);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+                continue;
+            }
+            String rule[] = line.split("\t");
+            for (int i = 0; i < rule.length; i++) {
+                rule[i] = StringUtils.trimToNull(rule[i]);
+            }
+            // Report errors in the rule now, rather than when it is first used.
+            BusinessRule.compile(rule);
+            table.removeIf(existing -> existing[ERROR_CODE].equals(rule[ERROR_CODE]));
+            table.add(rule);
+        }
+        return new RuleTable(table.toArray(new String[table.size()][]));
+    }
+
+    /**
+     * Get the text of a rule.
+     * @param code  The error code of the rule.
+     * @return  The rule, or null if there is no rule with that code.
+     */
+    public String getRule(String code) {
+        for (String rule[]: rules) {
+            if (rule[ERROR_CODE].equals(code)) {
+                return rule[RULE];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the rules that apply to a version of CVRS, compiling them if necessary.
+     * @param version   The version of CVRS.
+     * @param suppressed    The error codes to leave out.
+     * @return  The compiled rules, in table order.
+     */
+    BusinessRule[] getBusinessRules(String version, Set<String> suppressed) {
+        String key = version + new TreeSet<>(suppressed);
+        return compiledRules.computeIfAbsent(key, k -> BusinessRule.compile(rules, version, suppressed));
+    }
+}
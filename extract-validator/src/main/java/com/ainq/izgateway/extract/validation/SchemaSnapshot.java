@@ -0,0 +1,528 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import com.ainq.izgateway.extract.CVRSExtract;
+import com.ainq.izgateway.extract.CVRSField;
+import com.ainq.izgateway.extract.Converter;
+import com.ainq.izgateway.extract.annotations.EventType;
+import com.ainq.izgateway.extract.annotations.FieldValidator;
+import com.ainq.izgateway.extract.annotations.Requirement;
+import com.ainq.izgateway.extract.annotations.RequirementType;
+import com.opencsv.bean.validators.StringValidator;
+
+/**
+ * The schema of CVRSExtract (the validator, requirements and HL7 order of each field) and
+ * the value sets it uses, as read from the annotations on CVRSExtract and the value set resources.
+ *
+ * Reading the annotations and parsing the value sets takes a large part of the time to
+ * validate the first record, so the build saves a snapshot of them in the binary resource
+ * {@value #RESOURCE} (see {@link #main(String...)}), which is loaded with a single read.
+ * The snapshot is not used if CVRSExtract.class or the value set resources it was made from
+ * have changed since (e.g., when classes are compiled by an IDE without running the build), in
+ * which case the schema is read from the annotations, and value sets are parsed when first used,
+ * as before.  Checking this must not read them, or there would be little point to the snapshot:
+ * <ul>
+ * <li>A snapshot in a jar is current if they are in the same jar, since the build writes the
+ * snapshot before packaging the jar.</li>
+ * <li>Otherwise, the snapshot records a stamp of the size and modification time of each, which
+ * must match their files.</li>
+ * </ul>
+ */
+public final class SchemaSnapshot {
+    /** The name of the snapshot resource */
+    public static final String RESOURCE = "cvrs-schema.bin";
+    private static final int MAGIC = 0x43565253;  // CVRS
+    private static final int FORMAT = 2;
+    private static final String EXTRACT_CLASS = CVRSExtract.class.getName().replace('.', '/') + ".class";
+
+    /** The schema of a single field */
+    private static final class FieldSchema {
+        private final String name;
+        /** The validator for the field, or null if it has none */
+        private final Class<? extends StringValidator> validator;
+        private final String paramString;
+        private final int maxLength;
+        private final Req requirements[];
+
+        private FieldSchema(String name, Class<? extends StringValidator> validator, String paramString, int maxLength, Req requirements[]) {
+            this.name = name;
+            this.validator = validator;
+            this.paramString = paramString;
+            this.maxLength = maxLength;
+            this.requirements = requirements;
+        }
+    }
+
+    /** A requirement on a field, as given by {@link Requirement} */
+    private static final class Req {
+        private final RequirementType type;
+        private final String versions[];
+        private final EventType when[];
+
+        private Req(RequirementType type, String versions[], EventType when[]) {
+            this.type = type;
+            this.versions = versions;
+            this.when = when;
+        }
+    }
+
+    /** Loaded when first used */
+    private static final class Holder {
+        private static final SchemaSnapshot INSTANCE = load();
+    }
+
+    /** The stamp of the files the schema was made from, see {@link #stamp(Collection)} */
+    private final long stamp;
+    /** Fields by CVRSField ordinal */
+    private final FieldSchema fields[];
+    /** Field ordinals in the order they appear in an HL7 message, computed when first used if not from the snapshot */
+    private volatile int hl7Order[];
+    /** Value sets by name, empty if value sets are parsed when first used */
+    private final Map<String, ValueSet> valueSets;
+    private final boolean fromSnapshot;
+
+    private SchemaSnapshot(long stamp, FieldSchema fields[], int hl7Order[], Map<String, ValueSet> valueSets, boolean fromSnapshot) {
+        this.stamp = stamp;
+        this.fields = fields;
+        this.hl7Order = hl7Order;
+        this.valueSets = valueSets;
+        this.fromSnapshot = fromSnapshot;
+    }
+
+    /**
+     * @return The schema, loaded from the snapshot if it is current, or read from the annotations if not.
+     */
+    public static SchemaSnapshot get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Write the snapshot resource to a folder, for use by the build.
+     * @param args  The folder to write {@value #RESOURCE} to (e.g., target/classes).
+     * @throws IOException  If the snapshot cannot be written.
+     */
+    public static void main(String ... args) throws IOException {
+        if (args.length != 1) {
+            System.err.printf("Usage: %s output-folder%n", SchemaSnapshot.class.getName());
+            return;
+        }
+        File out = new File(args[0], RESOURCE);
+        SchemaSnapshot schema = compute(true);
+        try (OutputStream os = Files.newOutputStream(out.toPath())) {
+            schema.write(os);
+        }
+        System.out.printf("Wrote %s with %d fields and %d value sets%n", out, schema.fields.length, schema.valueSets.size());
+    }
+
+    /**
+     * @return true if this schema was loaded from the snapshot resource.
+     */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * Get the names of the fields used in a version, in declaration order.
+     * @param version   The version, or null for all fields.
+     * @return  The field names.
+     */
+    public String[] getHeaders(String version) {
+        List<String> headers = new ArrayList<>();
+        for (FieldSchema field: fields) {
+            if (version == null || getRequirement(field, RequirementType.IGNORE, version) == null) {
+                headers.add(field.name);
+            }
+        }
+        return headers.toArray(new String[headers.size()]);
+    }
+
+    /**
+     * Determine whether a field is not used in a version.
+     * @param field The field.
+     * @param version   The version.
+     * @return  true if the field is ignored in the version.
+     */
+    public boolean isIgnored(CVRSField field, String version) {
+        return getRequirement(fields[field.ordinal()], RequirementType.IGNORE, version) != null;
+    }
+
+    /**
+     * Get the events for which a requirement applies to a field, as given by {@link Requirement#when()}.
+     * @param field The field.
+     * @param type  The type of requirement.
+     * @param version   The version.
+     * @return  The events, or null if the field does not have the requirement in the version.
+     */
+    public EventType[] getRequirement(CVRSField field, RequirementType type, String version) {
+        Req req = getRequirement(fields[field.ordinal()], type, version);
+        return req == null ? null : req.when.clone();
+    }
+
+    private static Req getRequirement(FieldSchema field, RequirementType type, String version) {
+        for (Req req: field.requirements) {
+            if (req.type == type && Arrays.asList(req.versions).contains(version)) {
+                return req;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param field The field.
+     * @return  The validator of the field, as given by {@link FieldValidator#validator()}, or null if it has none.
+     */
+    public Class<? extends StringValidator> getValidator(CVRSField field) {
+        return fields[field.ordinal()].validator;
+    }
+
+    /**
+     * @param field The field.
+     * @return  The parameter for the validator of the field, as given by {@link FieldValidator#paramString()}.
+     */
+    public String getParamString(CVRSField field) {
+        return fields[field.ordinal()].paramString;
+    }
+
+    /**
+     * @param field The field.
+     * @return  The maximum length of the field, as given by {@link FieldValidator#maxLength()}.
+     */
+    public int getMaxLength(CVRSField field) {
+        return fields[field.ordinal()].maxLength;
+    }
+
+    /**
+     * @param field The field.
+     * @return  true if the field is redacted, i.e., it is validated by {@link RedactedValidator}.
+     */
+    public boolean isRedacted(CVRSField field) {
+        Class<? extends StringValidator> validator = getValidator(field);
+        return validator != null && validator.isAssignableFrom(RedactedValidator.class);
+    }
+
+    /**
+     * @return The fields in the order they appear in an HL7 message, as sorted by {@link Converter#compareFields(Field, Field)}.
+     */
+    public CVRSField[] getHL7Order() {
+        if (hl7Order == null) {
+            // Only sorted when needed, since comparing fields loads the HL7 converter.
+            hl7Order = computeHL7Order();
+        }
+        CVRSField order[] = new CVRSField[hl7Order.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = CVRSField.get(hl7Order[i]);
+        }
+        return order;
+    }
+
+    private static int[] computeHL7Order() {
+        Integer order[] = new Integer[CVRSField.count()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> CVRSField.get(i).getField(), Converter::compareFields));
+        int hl7Order[] = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            hl7Order[i] = order[i];
+        }
+        return hl7Order;
+    }
+
+    /**
+     * Get a value set from the snapshot.
+     * @param name  The name of the value set.
+     * @return  The value set, or null if it is not in the snapshot.
+     */
+    ValueSet getValueSet(String name) {
+        return valueSets.get(name);
+    }
+
+    /**
+     * Load the snapshot if it is current, or read the schema from the annotations.
+     * @return  The schema.
+     */
+    private static SchemaSnapshot load() {
+        URL location = SchemaSnapshot.class.getClassLoader().getResource(RESOURCE);
+        if (location != null) {
+            try (InputStream in = location.openStream()) {
+                SchemaSnapshot schema = read(readAll(in));
+                if (schema != null && schema.isCurrent(location)) {
+                    return schema;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Use the annotations instead
+            }
+        }
+        return compute(false);
+    }
+
+    /**
+     * Check that the classes and resources this snapshot was made from have not changed, without reading them.
+     * @param location  Where the snapshot was loaded from.
+     * @return  true if the snapshot is current.
+     * @throws IllegalStateException    If a resource cannot be found.
+     */
+    boolean isCurrent(URL location) {
+        String jar = getJar(location);
+        if (jar == null) {
+            return stamp == stamp(valueSets.keySet());
+        }
+        for (String resource: getSources(valueSets.keySet())) {
+            if (!jar.equals(getJar(getResource(resource)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param url   The location of a resource.
+     * @return  The location of the jar holding it, or null if it is not in a jar.
+     */
+    private static String getJar(URL url) {
+        String s = url.toString();
+        int end = s.indexOf("!/");
+        return "jar".equals(url.getProtocol()) && end >= 0 ? s.substring(0, end) : null;
+    }
+
+    /**
+     * Read the schema from the annotations on CVRSExtract.
+     * @param withValueSets If true, parse the value sets used by the fields, and sort the fields
+     * into HL7 order, as needed to write a snapshot.
+     * @return  The schema.
+     */
+    static SchemaSnapshot compute(boolean withValueSets) {
+        FieldSchema schema[] = new FieldSchema[CVRSField.count()];
+        Map<String, ValueSet> valueSets = new LinkedHashMap<>();
+        for (int i = 0; i < schema.length; i++) {
+            Field f = CVRSField.get(i).getField();
+            FieldValidator fv = f.getAnnotation(FieldValidator.class);
+            List<Req> reqs = new ArrayList<>();
+            for (Requirement r: f.getAnnotationsByType(Requirement.class)) {
+                reqs.add(new Req(r.value(), r.versions(), r.when()));
+            }
+            schema[i] = new FieldSchema(f.getName(), fv == null ? null : fv.validator(), fv == null ? "" : fv.paramString(),
+                fv == null ? ValidationPlan.UNCHECKED_LENGTH : fv.maxLength(), reqs.toArray(new Req[reqs.size()]));
+            if (withValueSets && fv != null && ValueSetValidator.class.isAssignableFrom(fv.validator())) {
+                // Either a value set name, or version=name|version=name
+                for (String part: fv.paramString().split("\\|")) {
+                    String name = part.substring(part.indexOf('=') + 1);
+                    valueSets.computeIfAbsent(name, ValueSet::parse);
+                }
+            }
+        }
+        long stamp = withValueSets ? stamp(valueSets.keySet()) : 0;
+        return new SchemaSnapshot(stamp, schema, withValueSets ? computeHL7Order() : null,
+            Collections.unmodifiableMap(valueSets), false);
+    }
+
+    /**
+     * Get the names of the resources a snapshot is made from.
+     * @param valueSets The names of the value sets in the snapshot.
+     * @return  CVRSExtract.class, and the value set resources in name order.
+     */
+    private static List<String> getSources(Collection<String> valueSets) {
+        List<String> sources = new ArrayList<>();
+        sources.add(EXTRACT_CLASS);
+        for (String name: new TreeSet<>(valueSets)) {
+            sources.add(ValueSet.getResourceName(name));
+        }
+        return sources;
+    }
+
+    /**
+     * Compute the stamp of the resources a snapshot is made from, a checksum of the name, size
+     * and modification time of each.  The resources themselves are not read.
+     * @param valueSets The names of the value sets in the snapshot.
+     * @return  The stamp.
+     * @throws IllegalStateException    If a resource cannot be found.
+     */
+    private static long stamp(Collection<String> valueSets) {
+        CRC32 crc = new CRC32();
+        ByteBuffer sizeAndTime = ByteBuffer.allocate(2 * Long.BYTES);
+        for (String resource: getSources(valueSets)) {
+            URL url = getResource(resource);
+            sizeAndTime.clear();
+            try {
+                if ("file".equals(url.getProtocol())) {
+                    Path file = Paths.get(url.toURI());
+                    sizeAndTime.putLong(Files.size(file)).putLong(Files.getLastModifiedTime(file).toMillis());
+                } else {
+                    URLConnection conn = url.openConnection();
+                    sizeAndTime.putLong(conn.getContentLengthLong()).putLong(conn.getLastModified());
+                }
+            } catch (IOException | URISyntaxException e) {
+                throw new IllegalStateException("Cannot access " + resource, e);
+            }
+            crc.update(resource.getBytes(StandardCharsets.UTF_8));
+            crc.update(sizeAndTime.array());
+        }
+        return crc.getValue();
+    }
+
+    private static URL getResource(String resource) {
+        URL url = SchemaSnapshot.class.getClassLoader().getResource(resource);
+        if (url == null) {
+            throw new IllegalStateException("Cannot access " + resource);
+        }
+        return url;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        byte buffer[] = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write this schema in the snapshot format.
+     * @param os    Where to write it.
+     * @throws IOException  If an error occurs while writing.
+     */
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(stamp);
+        out.writeInt(fields.length);
+        for (FieldSchema field: fields) {
+            out.writeUTF(field.name);
+            out.writeUTF(field.validator == null ? "" : field.validator.getName());
+            out.writeUTF(field.paramString);
+            out.writeInt(field.maxLength);
+            out.writeByte(field.requirements.length);
+            for (Req req: field.requirements) {
+                out.writeByte(req.type.ordinal());
+                out.writeByte(req.versions.length);
+                for (String version: req.versions) {
+                    out.writeUTF(version);
+                }
+                out.writeByte(req.when.length);
+                for (EventType eventType: req.when) {
+                    out.writeByte(eventType.ordinal());
+                }
+            }
+        }
+        for (int ordinal: hl7Order) {
+            out.writeInt(ordinal);
+        }
+        out.writeInt(valueSets.size());
+        for (ValueSet valueSet: valueSets.values()) {
+            out.writeUTF(valueSet.getName());
+            out.writeUTF(valueSet.getExamples());
+            String codes[] = valueSet.getCodes();
+            out.writeInt(codes.length);
+            for (String code: codes) {
+                out.writeUTF(code);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a schema in the snapshot format.
+     * @param data  The snapshot.
+     * @return  The schema, or null if the snapshot is in another format or its fields do not match CVRSExtract.
+     * @throws IOException  If the snapshot is incomplete.
+     */
+    static SchemaSnapshot read(byte data[]) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            return null;
+        }
+        long stamp = in.readLong();
+        FieldSchema fields[] = new FieldSchema[in.readInt()];
+        if (fields.length != CVRSField.count()) {
+            return null;
+        }
+        RequirementType types[] = RequirementType.values();
+        EventType eventTypes[] = EventType.values();
+        for (int i = 0; i < fields.length; i++) {
+            String name = in.readUTF(), validator = in.readUTF(), paramString = in.readUTF();
+            int maxLength = in.readInt();
+            if (!name.equals(CVRSField.get(i).getName())) {
+                return null;
+            }
+            Req reqs[] = new Req[in.readByte()];
+            for (int j = 0; j < reqs.length; j++) {
+                RequirementType type = types[in.readByte()];
+                String versions[] = new String[in.readByte()];
+                for (int k = 0; k < versions.length; k++) {
+                    versions[k] = in.readUTF();
+                }
+                EventType when[] = new EventType[in.readByte()];
+                for (int k = 0; k < when.length; k++) {
+                    when[k] = eventTypes[in.readByte()];
+                }
+                reqs[j] = new Req(type, versions, when);
+            }
+            fields[i] = new FieldSchema(name, validator.isEmpty() ? null : toValidatorClass(validator), paramString, maxLength, reqs);
+        }
+        int hl7Order[] = new int[fields.length];
+        for (int i = 0; i < hl7Order.length; i++) {
+            hl7Order[i] = in.readInt();
+        }
+        int count = in.readInt();
+        Map<String, ValueSet> valueSets = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF(), examples = in.readUTF();
+            String codes[] = new String[in.readInt()];
+            for (int j = 0; j < codes.length; j++) {
+                codes[j] = in.readUTF();
+            }
+            valueSets.put(name, new ValueSet(name, Arrays.asList(codes), examples));
+        }
+        return new SchemaSnapshot(stamp, fields, hl7Order, Collections.unmodifiableMap(valueSets), true);
+    }
+
+    private static Class<? extends StringValidator> toValidatorClass(String name) {
+        try {
+            return Class.forName(name).asSubclass(StringValidator.class);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot load validator " + name, e);
+        }
+    }
+}
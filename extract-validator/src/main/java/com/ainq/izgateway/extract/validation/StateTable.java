@@ -0,0 +1,206 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The states in STATE.txt, compiled into tables used to check that a county or zip code
+ * is in a state (BUSR001 - BUSR004).
+ *
+ * Each line of STATE.txt has a two letter state code, the state name, the state FIPS code,
+ * and a comma separated list of zip code prefixes or ranges of prefixes (e.g., 30-31,398-399).
+ * The zip codes are compiled into a table of 1000 entries indexed by the first three digits
+ * of the zip code, where each entry is a bit mask of the states using that prefix.  Prefixes
+ * longer than three digits (e.g., 96799 for American Samoa) are kept with the state, and
+ * checked on all of their digits.
+ *
+ * The tables are loaded when first used and never change, so lookups need no locks.
+ */
+final class StateTable {
+    private static final int LETTERS = 26;
+    private static final int PREFIXES = 1000;
+    /** The number of digits in the table prefixes, and in a zip code */
+    private static final int PREFIX_DIGITS = 3, ZIP_DIGITS = 5;
+    private static final int POWERS_OF_10[] = { 1, 10, 100, 1000, 10000, 100000 };
+    /** The parts of a range in zipRanges */
+    private static final int DIGITS = 0, LOW = 1, HIGH = 2;
+    /** Marks a state code that is not in STATE.txt */
+    private static final int NO_STATE = -1;
+
+    /** Index in the tables below of each two letter state code, or NO_STATE */
+    private static final int stateIndex[] = new int[LETTERS * LETTERS];
+    /** FIPS code of each state, by index */
+    private static final String fips[];
+    /** Bit mask of the states using each three digit zip code prefix */
+    private static final long zipPrefixes[] = new long[PREFIXES];
+    /**
+     * The zip code prefixes listed for each state, by index, as ranges of { digits, low, high }
+     * (e.g., 35-36 is { 2, 35, 36 }), for zip codes the prefix table cannot check
+     */
+    private static final int zipRanges[][][];
+
+    static {
+        Arrays.fill(stateIndex, NO_STATE);
+        InputStream s = StateTable.class.getClassLoader().getResourceAsStream("STATE.txt");
+        if (s == null) {
+            throw new IllegalStateException("Cannot access STATE.txt Resource");
+        }
+        String codes[] = new String[Long.SIZE];
+        int ranges[][][] = new int[Long.SIZE][][];
+        int count = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(s))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String parts[] = line.split("\\t");
+                if (parts.length < 3) {
+                    continue;
+                }
+                int slot = slot(parts[0]);
+                if (slot == NO_STATE || count == Long.SIZE) {
+                    throw new IllegalStateException("Cannot load state " + parts[0] + " from STATE.txt Resource");
+                }
+                stateIndex[slot] = count;
+                codes[count] = parts[2];
+                ranges[count] = parts.length > 3 ? addZipRanges(parts[3], 1L << count) : new int[0][];
+                count++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read STATE.txt Resource", e);
+        }
+        fips = Arrays.copyOf(codes, count);
+        zipRanges = Arrays.copyOf(ranges, count);
+    }
+
+    private StateTable() {
+    }
+
+    /**
+     * Add the zip code prefixes for a state to the table.
+     * @param ranges    A comma separated list of prefixes or ranges of prefixes of the same length, e.g., 05,10-14
+     * @param mask      The bit for the state.
+     * @return  The prefixes as ranges of { digits, low, high }.
+     */
+    private static int[][] addZipRanges(String ranges, long mask) {
+        String list[] = ranges.split(",");
+        int result[][] = new int[list.length][];
+        for (int i = 0; i < list.length; i++) {
+            String range = list[i];
+            String low = StringUtils.substringBefore(range, "-").trim(), high = range.contains("-") ? StringUtils.substringAfter(range, "-").trim() : low;
+            int digits = low.length();
+            if (digits == 0 || digits > ZIP_DIGITS || high.length() != digits || !StringUtils.isNumeric(low) || !StringUtils.isNumeric(high)
+                || Integer.parseInt(high) < Integer.parseInt(low)) {
+                throw new IllegalStateException("Invalid zip code range " + range + " in STATE.txt Resource");
+            }
+            result[i] = new int[] { digits, Integer.parseInt(low), Integer.parseInt(high) };
+            if (digits <= PREFIX_DIGITS) {
+                // Extend shorter prefixes to three digits, so that 35-36 covers 350 to 369.
+                int scale = POWERS_OF_10[PREFIX_DIGITS - digits];
+                for (int prefix = result[i][LOW] * scale; prefix < (result[i][HIGH] + 1) * scale; prefix++) {
+                    zipPrefixes[prefix] |= mask;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the slot in stateIndex for a two letter state code, ignoring case.
+     * @param state The state code.
+     * @return  The slot, or NO_STATE if the code is not two letters.
+     */
+    private static int slot(String state) {
+        if (state.length() == 2) {
+            int first = letter(state.charAt(0)), second = letter(state.charAt(1));
+            if (first >= 0 && second >= 0) {
+                return first * LETTERS + second;
+            }
+        }
+        // Some characters become ASCII letters when converted to upper case.
+        if (!StringUtils.isAsciiPrintable(state)) {
+            String upper = state.toUpperCase();
+            return StringUtils.isAsciiPrintable(upper) ? slot(upper) : NO_STATE;
+        }
+        return NO_STATE;
+    }
+
+    private static int letter(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        }
+        return c >= 'A' && c <= 'Z' ? c - 'A' : -1;
+    }
+
+    private static int indexOf(String state) {
+        int slot = slot(state);
+        return slot == NO_STATE ? NO_STATE : stateIndex[slot];
+    }
+
+    /**
+     * Determine if a county FIPS code is in a state.
+     * @param county    The county FIPS code.
+     * @param state     The two letter state code.
+     * @return  true if the county code starts with the state FIPS code, or the state is not known.
+     */
+    static boolean isCountyInState(String county, String state) {
+        int index = indexOf(state);
+        // If we don't have a FIPS code for the state, we cannot tell.
+        return index == NO_STATE || county.startsWith(fips[index]);
+    }
+
+    /**
+     * Determine if a zip code is in a state.
+     * @param zip   The zip code.
+     * @param state The two letter state code.
+     * @return  true if the zip code starts with one of the prefixes listed for the state,
+     * compared on all of the digits of the prefix.
+     */
+    static boolean isZipInState(String zip, String state) {
+        int index = indexOf(state);
+        if (index == NO_STATE) {
+            return false;
+        }
+        // Read the leading digits of the zip code
+        int digits = 0, value = 0;
+        while (digits < ZIP_DIGITS && digits < zip.length()) {
+            char c = zip.charAt(digits);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + c - '0';
+            digits++;
+        }
+        long mask = 1L << index;
+        if (digits >= PREFIX_DIGITS && (zipPrefixes[value / POWERS_OF_10[digits - PREFIX_DIGITS]] & mask) != 0) {
+            return true;
+        }
+        // Check the prefixes the table does not cover: those longer than three digits, or
+        // all of them if the zip code has fewer than three digits.
+        for (int range[]: zipRanges[index]) {
+            int length = range[DIGITS];
+            if (length <= digits && (length > PREFIX_DIGITS || digits < PREFIX_DIGITS)) {
+                int prefix = value / POWERS_OF_10[digits - length];
+                if (prefix >= range[LOW] && prefix <= range[HIGH]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
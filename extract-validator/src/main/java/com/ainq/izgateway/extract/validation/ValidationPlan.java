@@ -0,0 +1,193 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.ainq.izgateway.extract.CVRSField;
+import com.ainq.izgateway.extract.annotations.EventType;
+import com.ainq.izgateway.extract.annotations.ExtractType;
+import com.ainq.izgateway.extract.annotations.RequirementType;
+import com.opencsv.bean.validators.StringValidator;
+
+/**
+ * The field checks BeanValidator performs on each record, compiled for a version
+ * of CVRS, a type of extract and a set of suppressed errors.
+ *
+ * Annotations on CVRSExtract are read once, when the plan is compiled.  Checks
+ * that can only report suppressed errors are left out of the plan.
+ * Plans do not change once compiled, and are shared by all validators with the
+ * same settings, so the field validators in a plan must be safe to use from many threads.
+ *
+ * Each field validator is configured once, while the plan is compiled, and is then only
+ * read.  Plans are published through a ConcurrentHashMap (see BeanValidator), so every thread
+ * that gets a plan sees its validators fully configured.  The validators used by CVRSExtract
+ * are safe to share because:
+ * <ul>
+ * <li>{@link Matches} and {@link ExtractTypeValidator} hold the pattern, compiled matcher and
+ * extract type they were configured with, and keep no state between calls.</li>
+ * <li>{@link FixedValidator}, {@link RedactedValidator} and {@link PPRLValidator} hold only the
+ * fixed value, message and extract type they were configured with.</li>
+ * <li>{@link DateValidator} and {@link DateValidatorIfKnown} parse dates without shared
+ * formatters, and create any SimpleDateFormat they need for each call.</li>
+ * <li>{@link ValueSetValidator} and {@link ValueSetValidatorIfKnown} find their value set when
+ * first used.  Threads that do so at the same time find the same shared, immutable
+ * {@link ValueSet}, which is published through a volatile field.</li>
+ * </ul>
+ * The suppressed errors given to each validator are an unmodifiable copy, so that a validator
+ * which later changes its own set of suppressed errors cannot change a shared plan.
+ * A new field validator must follow the same rules before it is used in CVRSExtract.
+ */
+final class ValidationPlan {
+    /** The length used when the maximum length of a field is not checked */
+    static final int UNCHECKED_LENGTH = Integer.MAX_VALUE;
+    private static final String MAX_LENGTH_CODE = "DATA008";
+
+    /** A compiled check of a single field */
+    static final class FieldCheck {
+        /** The field being checked */
+        final CVRSField field;
+        /** True if the field is not used in this version and should be cleared */
+        final boolean ignored;
+        /** Error codes reported when the field is missing or present, by EventType ordinal, or null */
+        final String requiredCodes[], doNotSendCodes[];
+        /** The maximum length, or UNCHECKED_LENGTH */
+        final int maxLength;
+        /** The validator for the field value, or null if it has none */
+        final StringValidator validator;
+        final ValidatorBeanField beanField;
+        /** True if the field is validated against a value set */
+        final boolean coded;
+        /** True if the field is validated as a date */
+        final boolean dated;
+
+        private FieldCheck(CVRSField field, boolean ignored, String requiredCodes[], String doNotSendCodes[],
+            int maxLength, StringValidator validator, boolean coded, boolean dated) {
+            this.field = field;
+            this.ignored = ignored;
+            this.requiredCodes = requiredCodes;
+            this.doNotSendCodes = doNotSendCodes;
+            this.maxLength = maxLength;
+            this.validator = validator;
+            this.beanField = validator == null ? null : new ValidatorBeanField(field.getField());
+            this.coded = coded;
+            this.dated = dated;
+        }
+
+        /**
+         * @return The name of the field checked.
+         */
+        String getName() {
+            return field.getName();
+        }
+    }
+
+    private final ExtractType extractType;
+    private final FieldCheck checks[];
+
+    private ValidationPlan(ExtractType extractType, FieldCheck checks[]) {
+        this.extractType = extractType;
+        this.checks = checks;
+    }
+
+    /**
+     * Compile the field checks for a validator.
+     * @param validator The validator, which supplies the version, the suppressed errors, and the validators for each field.
+     * @param extractType   The type of extract to check.
+     * @return  The compiled plan.
+     */
+    static ValidationPlan compile(BeanValidator validator, ExtractType extractType) {
+        String version = validator.getVersion();
+        // Plans are shared, so they must not hold the validator's own set of suppressed errors, which may change.
+        Set<String> suppressed = Collections.unmodifiableSet(new TreeSet<>(validator.getSuppressed()));
+        SchemaSnapshot schema = SchemaSnapshot.get();
+        FieldCheck checks[] = new FieldCheck[CVRSField.count()];
+        for (int i = 0; i < checks.length; i++) {
+            CVRSField field = CVRSField.get(i);
+            Class<? extends StringValidator> sv = schema.getValidator(field);
+            int maxLength = sv == null || suppressed.contains(MAX_LENGTH_CODE) ? UNCHECKED_LENGTH : schema.getMaxLength(field);
+            checks[i] = new FieldCheck(field,
+                schema.isIgnored(field, version),
+                getCodes(schema, field, RequirementType.REQUIRED, version, suppressed),
+                getCodes(schema, field, RequirementType.DO_NOT_SEND, version, suppressed),
+                maxLength,
+                sv == null ? null : validator.newFieldValidator(extractType, suppressed, sv, schema.getParamString(field)),
+                sv != null && ValueSetValidator.class.isAssignableFrom(sv),
+                sv != null && DateValidator.class.isAssignableFrom(sv)
+            );
+        }
+        return new ValidationPlan(extractType, checks);
+    }
+
+    /**
+     * Get the error codes reported for a requirement on a field.
+     * @param schema    The schema of CVRSExtract.
+     * @param field The field.
+     * @param type  The type of requirement.
+     * @param version   The version of CVRS.
+     * @param suppressed    The suppressed errors.
+     * @return  The unsuppressed error codes by EventType ordinal, or null if none would be reported.
+     */
+    private static String[] getCodes(SchemaSnapshot schema, CVRSField field, RequirementType type, String version, Set<String> suppressed) {
+        EventType when[] = schema.getRequirement(field, type, version);
+        if (when == null) {
+            return null;
+        }
+        String codes[] = new String[EventType.values().length];
+        boolean found = false;
+        for (EventType eventType: when) {
+            String code = String.format("%s%03d", type.getCode(), eventType.ordinal() + 1);
+            if (!suppressed.contains(code)) {
+                codes[eventType.ordinal()] = code;
+                found = true;
+            }
+        }
+        return found ? codes : null;
+    }
+
+    /**
+     * Get the error code reported when a field is missing.
+     * @param check The field check.
+     * @param eventType The type of event in the record.
+     * @return  The error code, or null if no error should be reported.
+     */
+    static String getRequiredCode(FieldCheck check, EventType eventType) {
+        return check.requiredCodes == null ? null : check.requiredCodes[eventType.ordinal()];
+    }
+
+    /**
+     * Get the error code reported when a field is present.
+     * @param check The field check.
+     * @param eventType The type of event in the record.
+     * @return  The error code, or null if no error should be reported.
+     */
+    static String getDoNotSendCode(FieldCheck check, EventType eventType) {
+        return check.doNotSendCodes == null ? null : check.doNotSendCodes[eventType.ordinal()];
+    }
+
+    /**
+     * @return The type of extract checked by this plan.
+     */
+    ExtractType getExtractType() {
+        return extractType;
+    }
+
+    /**
+     * @return The checks, in field declaration order.
+     */
+    FieldCheck[] getChecks() {
+        return checks;
+    }
+}
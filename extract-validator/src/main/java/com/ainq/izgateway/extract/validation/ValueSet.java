@@ -0,0 +1,226 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable set of codes loaded from a value set resource (e.g., COUNTY.txt).
+ *
+ * Each value set is loaded once and shared by every validator that uses it.  Lookups
+ * ignore case and surrounding white space, as value.trim().toUpperCase() would, without
+ * creating new strings for values made up of ASCII characters.
+ */
+public final class ValueSet {
+    private static final Map<String, ValueSet> valueSets = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final String examples;
+    /** Upper case codes in an open addressing hash table, null marks an empty slot */
+    private final String table[];
+    private final int size;
+
+    ValueSet(String name, Collection<String> codes, String examples) {
+        this.name = name;
+        this.examples = examples;
+        this.size = codes.size();
+        int capacity = Integer.highestOneBit(Math.max(codes.size(), 1) * 4 - 1) << 1;
+        table = new String[capacity];
+        for (String code: codes) {
+            int slot = hash(code, 0, code.length()) & (capacity - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table[slot] = code;
+        }
+    }
+
+    /**
+     * Get a value set by name, loading it if necessary.
+     * @param name  The name of the value set.
+     * @return  The value set.
+     * @throws MissingResourceException If the value set cannot be found or read.
+     */
+    public static ValueSet get(String name) {
+        ValueSet valueSet = valueSets.get(name);
+        return valueSet != null ? valueSet : valueSets.computeIfAbsent(name, ValueSet::load);
+    }
+
+    private static ValueSet load(String name) {
+        ValueSet valueSet = SchemaSnapshot.get().getValueSet(name);
+        return valueSet != null ? valueSet : parse(name);
+    }
+
+    /**
+     * @param name  The name of a value set.
+     * @return The name of the resource the value set is loaded from.
+     */
+    static String getResourceName(String name) {
+        return name + ".txt";
+    }
+
+    /**
+     * Parse a value set from its resource.
+     * @param name  The name of the value set.
+     * @return  The value set.
+     * @throws MissingResourceException If the value set cannot be found or read.
+     */
+    static ValueSet parse(String name) {
+        InputStream s = ValueSet.class.getClassLoader().getResourceAsStream(getResourceName(name));
+        if (s == null) {
+            MissingResourceException ex = new MissingResourceException("Cannot access value set: " + name, ValueSetValidator.class.getCanonicalName(), name);
+            throw ex;
+        }
+        try (
+            BufferedReader r = new BufferedReader(new InputStreamReader(s));
+        ) {
+            String line = null;
+            Set<String> codes = new LinkedHashSet<>();
+            List<String> examples = new ArrayList<>();
+            boolean elide = false;
+            while ( (line = r.readLine()) != null) {
+                String parts[] = line.trim().split("\\s+");
+                if (parts[0].length() != 0) {
+                    codes.add(parts[0].toUpperCase());
+                    switch (examples.size()) {
+                    case 0:
+                    case 1:
+                    case 2:
+                    case 3:
+                        examples.add(parts[0]);
+                        break;
+                    case 4:
+                        elide = true;
+                        examples.remove(2);
+                        examples.add(parts[0]);
+                        break;
+                    }
+                }
+            }
+            return new ValueSet(name, codes, !elide ? examples.toString() :
+                String.format("[%s, %s ... %s, %s]", examples.get(0), examples.get(1), examples.get(2), examples.get(3)));
+        } catch (IOException e) {
+            MissingResourceException ex = new MissingResourceException("Error reading value set: " + name, ValueSetValidator.class.getCanonicalName(), name);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    /**
+     * Determine if a value is in this value set, ignoring case and surrounding white space.
+     * @param value The value to look for.
+     * @return  true if the value is in the value set.
+     */
+    public boolean contains(String value) {
+        int start = 0, end = value.length();
+        // Trim as String.trim() does.
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) >= 0x80) {
+                // Some characters change length or become ASCII when converted to upper case.
+                String upper = value.substring(start, end).toUpperCase();
+                return find(upper, 0, upper.length());
+            }
+        }
+        return find(value, start, end);
+    }
+
+    private boolean find(String value, int start, int end) {
+        int mask = table.length - 1;
+        for (int slot = hash(value, start, end) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(table[slot], value, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String code, String value, int start, int end) {
+        if (code.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (code.charAt(i - start) != toUpperCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String value, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toUpperCase(value.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static char toUpperCase(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    /**
+     * @return The name of this value set.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Examples of codes in this value set, for use in error messages.
+     */
+    public String getExamples() {
+        return examples;
+    }
+
+    /**
+     * @return The codes in this value set, in upper case.
+     */
+    String[] getCodes() {
+        List<String> codes = new ArrayList<>(size);
+        for (String code: table) {
+            if (code != null) {
+                codes.add(code);
+            }
+        }
+        return codes.toArray(new String[codes.size()]);
+    }
+
+    /**
+     * @return The number of codes in this value set.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -13,25 +13,46 @@ package com.ainq.izgateway.extract;
  * under the License.
  */
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 
 public class TestCommandLine {
+    /** Use small parts so that each file is split across several threads */
+    private static final ValidationConfig SMALL_CHUNKS = new ValidationConfig.Builder().setChunkSize(2048).build();
 
     @ParameterizedTest
     @CsvSource( {
@@ -138,6 +159,388 @@ public class TestCommandLine {
 
     }
 
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testgood.txt,,-P4",
+        "src/test/resources/testerror.txt,,-P4",
+        "src/test/resources/testerror.txt,-j,-P4",
+        "src/test/resources/testgoodv1.txt,-v1,-P4",
+        "src/test/resources/testerror.txt,,-l",
+        "src/test/resources/testerror.hl7,,-l",
+        "src/test/resources/testgood.txt,-j,-P4 -l"
+    })
+    public void testThreadedValidation(String file, String args, String threading) throws IOException {
+        String opts[] = StringUtils.isEmpty(args) ? new String[0] : args.split("\\s+");
+        String threadOpts[] = threading.split("\\s+");
+        Path sequential = Files.createTempDirectory("cvrs"), parallel = Files.createTempDirectory("cvrs");
+        String ext = opts.length != 0 && "-j".equals(opts[0]) ? "rpt.json" : "rpt";
+        String command[] = Arrays.copyOf(opts, opts.length + 2);
+        command[opts.length] = "-b" + sequential.toFile().getCanonicalPath();
+        command[opts.length + 1] = file;
+        int expected = Validator.main1(command, sequential.toFile().getCanonicalPath());
+
+        command = Arrays.copyOf(opts, opts.length + threadOpts.length + 2);
+        System.arraycopy(threadOpts, 0, command, opts.length, threadOpts.length);
+        command[command.length - 2] = "-b" + parallel.toFile().getCanonicalPath();
+        command[command.length - 1] = file;
+        int errors = Validator.main1(command, parallel.toFile().getCanonicalPath(), SMALL_CHUNKS);
+
+        assertEquals(expected, errors);
+        compareFiles(Utility.getNewFile(file, parallel.toFile(), ext),
+            Utility.getNewFile(file, sequential.toFile(), ext), TestCommandLine::ignoreTomorrow);
+        compareFiles(Utility.getNewFile(file, parallel.toFile(), "txt"),
+            Utility.getNewFile(file, sequential.toFile(), "txt"), null);
+        compareFiles(Utility.getNewFile(file, parallel.toFile(), "hl7"),
+            Utility.getNewFile(file, sequential.toFile(), "hl7"), TestCommandLine::cleanMSH);
+
+        try {
+            FileUtils.deleteDirectory(sequential.toFile());
+            FileUtils.deleteDirectory(parallel.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testerror.txt,false",
+        "src/test/resources/testerror.hl7,false",
+        "src/test/resources/testerror.txt,true",
+    })
+    public void testConcurrentSessions(String file, boolean isJson) throws IOException, InterruptedException, ExecutionException {
+        Path sequential = Files.createTempDirectory("cvrs");
+        String ext = isJson ? "rpt.json" : "rpt";
+        String command[] = isJson ? new String[] { "-j", file } : new String[] { file };
+        int expected = Validator.main1(command, sequential.toFile().getCanonicalPath());
+
+        // Run several sessions sharing one configuration at the same time, each writing to its own folder
+        int sessions = 4;
+        Path parallel[] = new Path[sessions];
+        List<Future<Integer>> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        try {
+            for (int i = 0; i < sessions; i++) {
+                parallel[i] = Files.createTempDirectory("cvrs");
+                ValidationConfig config = new ValidationConfig.Builder()
+                    .setReportFolder(parallel[i].toFile().getCanonicalPath())
+                    .setUseJson(isJson)
+                    .build();
+                results.add(executor.submit(() -> {
+                    try (ValidationSession session = new ValidationSession(config)) {
+                        return session.validateFiles(file);
+                    }
+                }));
+            }
+            for (int i = 0; i < sessions; i++) {
+                assertEquals(expected, results.get(i).get().intValue());
+                compareFiles(Utility.getNewFile(file, parallel[i].toFile(), ext),
+                    Utility.getNewFile(file, sequential.toFile(), ext), TestCommandLine::ignoreTomorrow);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            FileUtils.deleteDirectory(sequential.toFile());
+            for (Path dir: parallel) {
+                FileUtils.deleteDirectory(dir.toFile());
+            }
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @Test
+    public void testRedactionReports() throws IOException {
+        String file = "src/test/resources/testgood.txt";
+        Path folder = Files.createTempDirectory("cvrs");
+        ValidationConfig config = new ValidationConfig.Builder()
+            .setReportFolder(folder.toFile().getCanonicalPath())
+            .setReportRedactions(true)
+            .build();
+        // Sessions open at the same time write their redaction reports to different files in the report folder
+        try (ValidationSession first = new ValidationSession(config); ValidationSession second = new ValidationSession(config)) {
+            first.validateFiles(file);
+            second.validateFiles(file);
+            assertEquals(new File(folder.toFile().getCanonicalFile(), "redactionReport.rpt"), first.getRedactionReport());
+            assertNotEquals(first.getRedactionReport(), second.getRedactionReport());
+            assertEquals(folder.toFile().getCanonicalFile(), second.getRedactionReport().getParentFile());
+            first.close();
+            second.close();
+            for (File report: Arrays.asList(first.getRedactionReport(), second.getRedactionReport())) {
+                // A header and a row for the file
+                assertEquals(2, Files.readAllLines(report.toPath(), StandardCharsets.UTF_8).size(), report.getPath());
+            }
+        }
+        // The file is free for the next session once a session is closed
+        try (ValidationSession third = new ValidationSession(config)) {
+            third.validateFiles(file);
+            assertEquals(new File(folder.toFile().getCanonicalFile(), "redactionReport.rpt"), third.getRedactionReport());
+        }
+
+        try {
+            FileUtils.deleteDirectory(folder.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @Test
+    public void testRedactOnlyToStandardOutput() throws IOException {
+        // Without a CVRS folder, redacted files are written to standard output as they are by -O
+        ValidationConfig config = new ValidationConfig.Builder().setRedactOnly(true).build();
+        assertEquals("-", config.getCvrsFolder());
+        assertTrue(config.isRedacting());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream console = System.out;
+        int errors;
+        try (ValidationSession session = new ValidationSession(config)) {
+            System.setOut(new PrintStream(out, true, "UTF-8"));
+            errors = session.validateFiles("src/test/resources/testgood.txt");
+        } finally {
+            System.setOut(console);
+        }
+        assertEquals(0, errors);
+        String rows[] = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n");
+        List<String> input = Files.readAllLines(new File("src/test/resources/testgood.txt").toPath(), StandardCharsets.UTF_8);
+        assertEquals(input.size(), rows.length);
+        assertEquals(input.get(0), rows[0]);
+        for (int i = 1; i < rows.length; i++) {
+            assertEquals("Redacted", rows[i].split("\t")[4], rows[i]);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "-w4",
+        "-w2 -j",
+        "-w3 -P2",
+    })
+    public void testConcurrentFiles(String args) throws IOException {
+        String files[] = {
+            "src/test/resources/testgood.hl7",
+            "src/test/resources/testerror.txt",
+            "src/test/resources/Adult z22 New Covid vaccine.hl7",
+            "src/test/resources/testMissingHeaders.txt",
+            "src/test/resources/empty.txt"
+        };
+        String opts[] = args.split("\\s+");
+        String ext = args.contains("-j") ? "rpt.json" : "rpt";
+        Path sequential = Files.createTempDirectory("cvrs"), concurrent = Files.createTempDirectory("cvrs");
+
+        // Each file validated on its own is the baseline for validating them together.
+        int expected = 0;
+        for (String file: files) {
+            String command[] = Arrays.copyOf(opts, opts.length + 1);
+            command[opts.length] = file;
+            expected += Validator.main1(command, sequential.toFile().getCanonicalPath());
+        }
+
+        String command[] = Arrays.copyOf(opts, opts.length + files.length);
+        System.arraycopy(files, 0, command, opts.length, files.length);
+        int errors = Validator.main1(command, concurrent.toFile().getCanonicalPath());
+
+        assertEquals(expected, errors);
+        for (String file: files) {
+            compareFiles(Utility.getNewFile(file, concurrent.toFile(), ext),
+                Utility.getNewFile(file, sequential.toFile(), ext), TestCommandLine::ignoreTomorrow);
+        }
+
+        try {
+            FileUtils.deleteDirectory(sequential.toFile());
+            FileUtils.deleteDirectory(concurrent.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testerror.txt,-E1",
+        "src/test/resources/testerror.hl7,-E",
+        "src/test/resources/testerror.txt,-E3 -P4",
+    })
+    public void testBoundedErrorReport(String file, String args) throws IOException {
+        String opts[] = args.split("\\s+");
+        Path unbounded = Files.createTempDirectory("cvrs"), bounded = Files.createTempDirectory("cvrs");
+        int expected = Validator.main1(new String[] { file }, unbounded.toFile().getCanonicalPath());
+        String command[] = Arrays.copyOf(opts, opts.length + 1);
+        command[opts.length] = file;
+        int errors = Validator.main1(command, bounded.toFile().getCanonicalPath());
+
+        // Counts are exact, and text reports only show the first example, so reports are the same.
+        assertEquals(expected, errors);
+        compareFiles(Utility.getNewFile(file, bounded.toFile(), "rpt"),
+            Utility.getNewFile(file, unbounded.toFile(), "rpt"), TestCommandLine::ignoreTomorrow);
+
+        try {
+            FileUtils.deleteDirectory(unbounded.toFile());
+            FileUtils.deleteDirectory(bounded.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testerror.txt,2,3",
+        "src/test/resources/testerror.hl7,1,1",
+        "src/test/resources/testerror.txt,5,0",
+    })
+    public void testBoundedJsonReport(String file, int examples, int details) throws IOException {
+        Path dir = Files.createTempDirectory("cvrs");
+        int expected = Validator.main1(new String[] { "-j", file }, dir.toFile().getCanonicalPath());
+        JsonObject unbounded = readJson(Utility.getNewFile(file, dir.toFile(), "rpt.json"));
+        int errors = Validator.main1(new String[] { "-j", "-E" + examples, "-q" + details, file }, dir.toFile().getCanonicalPath());
+        JsonObject bounded = readJson(Utility.getNewFile(file, dir.toFile(), "rpt.json"));
+
+        assertEquals(expected, errors);
+        assertEquals(unbounded.getInt("totalErrors"), bounded.getInt("totalErrors"));
+        JsonArray summary = bounded.getJsonArray("summary"), baseline = unbounded.getJsonArray("summary");
+        assertEquals(baseline.size(), summary.size());
+        for (int i = 0; i < summary.size(); i++) {
+            JsonObject row = summary.getJsonObject(i), baseRow = baseline.getJsonObject(i);
+            assertEquals(baseRow.getInt("count"), row.getInt("count"));
+            int kept = row.getJsonArray("examples").size();
+            assertEquals(Math.min(examples, row.getInt("count")), kept);
+            // The first example is always kept
+            assertEquals(baseRow.getJsonArray("examples").get(0), row.getJsonArray("examples").get(0));
+        }
+        Map<String, Integer> perCode = new HashMap<>();
+        for (JsonValue v: bounded.getJsonArray("detail")) {
+            perCode.merge(((JsonObject) v).getString("code"), 1, Integer::sum);
+        }
+        int listed = bounded.getJsonArray("detail").size();
+        int omitted = bounded.containsKey("omittedDetails") ? bounded.getInt("omittedDetails") : 0;
+        assertEquals(unbounded.getJsonArray("detail").size(), listed + omitted);
+        if (details != 0) {
+            assertTrue(perCode.values().stream().allMatch(n -> n <= details));
+        }
+
+        try {
+            FileUtils.deleteDirectory(dir.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testerror.txt,-J,false",
+        "src/test/resources/testerror.hl7,-J,false",
+        "src/test/resources/notacvrs.txt,-J,false",
+        "src/test/resources/testgood.txt,-J,true",
+        "src/test/resources/testerror.txt,-P4,true",
+    })
+    public void testNdjsonReport(String file, String args, boolean convert) throws IOException {
+        Path dir = Files.createTempDirectory("cvrs");
+        String folder = dir.toFile().getCanonicalPath();
+        String opts[] = convert ? new String[] { args, "-b" + folder } : new String[] { args };
+        String command[] = Arrays.copyOf(opts, opts.length + 2);
+        command[opts.length] = "-j";
+        command[opts.length + 1] = file;
+        int expected = Validator.main1(command, folder);
+        JsonObject json = readJson(Utility.getNewFile(file, dir.toFile(), "rpt.json"));
+        command[opts.length] = "-N";
+        int errors = Validator.main1(command, folder);
+
+        assertEquals(expected, errors);
+        List<String> lines = FileUtils.readLines(Utility.getNewFile(file, dir.toFile(), "rpt.ndjson"), StandardCharsets.UTF_8);
+        JsonArray detail = json.getJsonArray("detail");
+        // One line for each detail row, and a summary line
+        assertEquals(detail.size() + 1, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            JsonObject line;
+            try (JsonReader r = Json.createReader(new StringReader(lines.get(i)))) {
+                line = r.readObject();
+            }
+            assertEquals(file, line.getString("filename"));
+            if (i < detail.size()) {
+                assertEquals("detail", line.getString("type"));
+                for (Map.Entry<String, JsonValue> e: detail.getJsonObject(i).entrySet()) {
+                    assertEquals(e.getValue(), line.get(e.getKey()));
+                }
+            } else {
+                assertEquals("summary", line.getString("type"));
+                for (Map.Entry<String, JsonValue> e: json.entrySet()) {
+                    if (!"detail".equals(e.getKey())) {
+                        assertEquals(e.getValue(), line.get(e.getKey()));
+                    }
+                }
+            }
+        }
+
+        try {
+            FileUtils.deleteDirectory(dir.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testerror.txt,-J",
+        "src/test/resources/testerror.hl7,-J",
+        "src/test/resources/testgood.txt,-P4",
+        "src/test/resources/testerror.txt,-P4",
+        "src/test/resources/testerror.txt,-l",
+    })
+    public void testProfileReport(String file, String args) throws IOException {
+        Path dir = Files.createTempDirectory("cvrs");
+        String folder = dir.toFile().getCanonicalPath();
+        int expected = Validator.main1(new String[] { args, "-b" + folder, file }, folder, SMALL_CHUNKS);
+        String report = readFile(Utility.getNewFile(file, dir.toFile(), "rpt"));
+        int errors = Validator.main1(new String[] { args, "-p", "-b" + folder, file }, folder, SMALL_CHUNKS);
+        String profiled = readFile(Utility.getNewFile(file, dir.toFile(), "rpt"));
+
+        // The profile follows the text report, which is otherwise unchanged
+        assertEquals(expected, errors);
+        assertTrue(profiled.contains("\nProfile "), profiled);
+        assertEquals(ignoreTomorrow(report), ignoreTomorrow(StringUtils.substringBefore(profiled, "\nProfile ") + "\n"));
+
+        Validator.main1(new String[] { args, "-p", "-j", "-b" + folder, file }, folder, SMALL_CHUNKS);
+        JsonObject json = readJson(Utility.getNewFile(file, dir.toFile(), "rpt.json"));
+        int records = json.getInt("totalRecords");
+        int written = json.getInt("cvrsWritten") + json.getInt("hl7Written");
+        Map<String, JsonObject> entries = new HashMap<>();
+        for (JsonValue v: json.getJsonArray("profile")) {
+            JsonObject entry = (JsonObject) v;
+            entries.put(entry.getString("kind") + " " + entry.getString("name"), entry);
+            switch (entry.getString("kind")) {
+            case "field":
+                // Each field validator is called once for every record
+                assertTrue(entry.containsKey("validator"), entry.toString());
+                assertEquals(records, entry.getInt("count"), entry.toString());
+                break;
+            case "rule":
+                assertEquals(records, entry.getInt("count"), entry.toString());
+                break;
+            default:
+                break;
+            }
+        }
+        assertEquals(records, entries.get("stage parse").getInt("count"));
+        assertEquals(records, entries.get("stage verifyBean").getInt("count"));
+        assertTrue(entries.get("stage verifyBean").getJsonNumber("nanos").longValue() > 0);
+        assertTrue(entries.containsKey("rule BUSR013"), entries.keySet().toString());
+        if (written != 0) {
+            assertEquals(written, entries.get("stage convert").getInt("count"));
+            assertEquals(written, entries.get("stage write").getInt("count"));
+        }
+
+        try {
+            FileUtils.deleteDirectory(dir.toFile());
+        } catch (IOException ioex) {
+            // Swallow these, we don't really care.
+        }
+    }
+
+    private static JsonObject readJson(File file) throws IOException {
+        try (JsonReader r = Json.createReader(Utility.getReader(file.getPath()))) {
+            return r.readObject();
+        }
+    }
+
     private static String readFile(File file) {
         try {
             // Change Windows CR-LF to just a LF so content comparison works
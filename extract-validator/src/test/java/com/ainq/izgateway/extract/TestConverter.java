@@ -1,11 +1,15 @@
 package com.ainq.izgateway.extract;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -16,6 +20,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import com.ainq.izgateway.extract.validation.BeanValidator;
@@ -23,6 +28,7 @@ import com.ainq.izgateway.extract.validation.CVRSValidationException;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v251.message.VXU_V04;
 
 
 public class TestConverter {
@@ -54,6 +60,156 @@ public class TestConverter {
         checkHL7Message(1, "identified_encoding_msh_error", message);
     }
 
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testgood.txt,true",
+        "src/test/resources/testerror.txt,false",
+        "src/test/resources/testdefault.txt,true",
+        "src/test/resources/testgood.hl7,true",
+        "src/test/resources/Adult z22 serologic evidence covid.hl7,true"
+    })
+    public void testDirectEncoding(String file, boolean allDirect) throws IOException, HL7Exception {
+        int count = 0, direct = 0;
+        try (Validator v = new Validator(Paths.get(file), null, false)) {
+            while (v.hasNext()) {
+                CVRSExtract extract = v.next();
+                if (extract == null) {
+                    continue;
+                }
+                count++;
+                if (checkDirectEncoding(extract)) {
+                    direct++;
+                }
+            }
+        }
+        assertTrue(count > 0, "No records read from " + file);
+        if (allDirect) {
+            assertEquals(count, direct, "Records not written directly");
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "recip_last_name,Smith|Jones",
+        "recip_first_name,A^B&C~D\\E",
+        "recip_middle_name,'  Leading spaces'",
+        "lot_number,\\H\\Lot\\N\\",
+        "serology,UNK",
+        "dose_num,UNK",
+        // HAPI cannot add race 3 when race 2 is missing, nor set an invalid date, so these are encoded by HAPI
+        "recip_race_3,2106-3",
+        "recip_dob,2020-13-45"
+    })
+    public void testDirectEncodingValues(String field, String value) throws IOException, HL7Exception {
+        try (Validator v = new Validator(Paths.get("src/test/resources/testgood.txt"), null, false)) {
+            CVRSExtract extract = v.next();
+            extract.setField(field, value);
+            checkDirectEncoding(extract);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "src/test/resources/testgood.hl7,true",
+        "src/test/resources/testdefault.hl7,true",
+        "src/test/resources/testerror.hl7,false",
+        "src/test/resources/testencoding.hl7,false",
+        "src/test/resources/Adult z22 New Covid vaccine.hl7,true",
+        "src/test/resources/Adult z22 serologic evidence covid.hl7,true"
+    })
+    public void testDirectReading(String file, boolean allDirect) throws IOException, HL7Exception {
+        int count = 0, direct = 0;
+        HL7MessageParser p = new HL7MessageParser(Files.newBufferedReader(Paths.get(file), StandardCharsets.ISO_8859_1));
+        String text;
+        while ((text = p.nextMessageText()) != null) {
+            count++;
+            if (checkDirectReading(p, text)) {
+                direct++;
+            }
+        }
+        assertTrue(count > 0, "No messages read from " + file);
+        if (allDirect) {
+            assertEquals(count, direct, "Messages not read directly");
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource( {
+        "'PID|||1||Last\\T\\Name^First\\S\\^  Middle||20150826|F'",
+        "'PID|||1||Last&Name^First~Other^Middle||20150826|F&M'",
+        "'  PID|||1||Last^First^Middle||20150826|F'",
+        "'RXA|||20201004||902^^CVX|||||||||  Lot&Sub\\E\\'",
+        "'OBX||ST|59783-1^Status in immunization series^LN||N&o'",
+        "'OBX||CWE|59783-1^Status in immunization series^ln||No&x'",
+        "'NTE|1|Comment'",
+        // A blank line
+        "'\t'",
+        // These segments are not where HAPI expects them, so the message is parsed by HAPI
+        "'ZXX|1'",
+        "'MSH|^~\\&|X'",
+        "'OBX||XX|59783-1^Status in immunization series^LN||No'"
+    })
+    public void testDirectReadingValues(String segment) throws IOException, HL7Exception {
+        String message = "MSH|^~\\&|||||20201103190809.124-0500||VXU^V04^VXU_V04|890801|P|2.5.1||||||||||COVID-A\r" +
+            "PID|||1||Redacted^Redacted^Redacted||20150826|F||POL^^CDCREC|Redacted^Redacted^Redacted^MI^48877^^^^26001\r" +
+            "ORC|||good1_base\r" +
+            "RXA|||20201004||902^^CVX||||||^^^Luna&999999^^1^^^80 Ottaowa Ave NW^^Grand Rapids^MI^49504^^^26081\r" +
+            "OBX||CE|VXC8^Member of Special Risk Group^PHIN VS||UNK\r";
+        String name = StringUtils.substring(segment.trim(), 0, 3);
+        if (name.length() == 3 && message.contains(name + "|||")) {
+            // Replace the segment of the same name
+            message = message.replaceFirst("(?m)^" + name + "\\|[^\\r]*\\r", segment.replace("\\", "\\\\") + "\r");
+        } else {
+            message += segment + "\r";
+        }
+        boolean direct = checkDirectReading(new HL7MessageParser(new StringReader("")), message);
+        assertEquals(!name.matches("ZXX|MSH") && !segment.contains("|XX|"), direct);
+    }
+
+    @Test
+    public void testStrictHL7() throws IOException {
+        // An invalid message date, which HAPI rejects
+        String message = "MSH|^~\\&|||||Yesterday||VXU^V04^VXU_V04|890801|P|2.5.1\r" +
+            "PID|||1||Redacted^Redacted^Redacted||20150826|F\r";
+        HL7MessageConverter lenient = new HL7MessageConverter(new StringReader(message));
+        assertEquals("2015-08-26", lenient.iterator().next().getRecip_dob());
+        HL7MessageConverter strict = new HL7MessageConverter(new StringReader(message)).setStrict(true);
+        assertThrows(RuntimeException.class, () -> strict.iterator().hasNext());
+    }
+
+    /**
+     * Check that a message read directly from its text converts the same as one parsed by HAPI.
+     * @param p The parser to parse the message with.
+     * @param text  The text of the message.
+     * @return true if the message was read directly.
+     */
+    private static boolean checkDirectReading(HL7MessageParser p, String text) throws HL7Exception {
+        HL7MessageReader.Segments segments = HL7MessageReader.split(text);
+        if (segments == null) {
+            return false;
+        }
+        Message m = p.parse(text);
+        for (boolean useDefaults: new boolean[] { false, true }) {
+            assertArrayEquals(Converter.fromHL7(m, null, null, useDefaults, 1).getValues(),
+                Converter.fromHL7(segments, null, useDefaults).getValues());
+        }
+        return true;
+    }
+
+    /**
+     * Check that the message written directly from an extract is the same as encoding it with HAPI.
+     * @param extract   The extract.
+     * @return true if the message was written directly.
+     */
+    private static boolean checkDirectEncoding(CVRSExtract extract) throws HL7Exception {
+        VXU_V04 message = Converter.toHL7(extract, Validator.DEFAULT_VERSION);
+        String expected = message.encode();
+        assertEquals(expected, Converter.encode(message, extract, Validator.DEFAULT_VERSION));
+        return HL7MessageWriter.getWriter(Validator.DEFAULT_VERSION).write(extract,
+            message.getMSH().getDateTimeOfMessage().getTime().getValue(),
+            message.getMSH().getMessageControlID().getValue()) != null;
+    }
+
     private void checkHL7Message(Integer line, String id, String message) throws IOException, InterruptedException, HL7Exception, CVRSValidationException {
         HL7MessageParser p = new HL7MessageParser(new StringReader(message));
         Message m = p.nextMessage();
@@ -0,0 +1,69 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class TestFilePrintStream {
+
+    @ParameterizedTest
+    @CsvSource( {
+        "1,false",
+        "1,true",
+        // Enough rows to fill every buffer several times
+        "20000,false",
+        "20000,true"
+    })
+    void testMatchesPrintStream(int rows, boolean async) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (PrintStream p = new PrintStream(expected, false, "UTF-8")) {
+            print(p, rows);
+        }
+        File file = Files.createTempFile("output", ".txt").toFile();
+        try {
+            PrintStream p = new FilePrintStream(file, async);
+            print(p, rows);
+            p.close();
+            assertFalse(p.checkError());
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void print(PrintStream p, int rows) throws IOException {
+        for (int i = 0; i < rows; i++) {
+            Utility.printRow(p, new String[] { "first\tvalue", null, "Café\tnaïve", "💉 vaccine", "", "line " + i });
+            p.printf("%s%n", "MSH|^~\\&|€|\uD800 unpaired|end");
+            p.print(i);
+            p.print('\t');
+            // A surrogate pair split across two calls
+            p.print("\uD83D");
+            p.print("\uDC89");
+            p.println();
+            p.write("bytes\n".getBytes("UTF-8"));
+            p.println("done");
+        }
+        p.flush();
+    }
+}
@@ -0,0 +1,78 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.ainq.izgateway.extract.validation.DuplicateIndex;
+import com.ainq.izgateway.extract.validation.HashedDuplicateIndex;
+
+class TestHashedDuplicateIndex {
+
+    @Test
+    void testInMemory() {
+        try (HashedDuplicateIndex index = new HashedDuplicateIndex()) {
+            checkAgainstMap(index);
+            assertFalse(index.isOnDisk());
+        }
+    }
+
+    @Test
+    void testOnDisk() {
+        // With no memory budget, identifiers move to disk as soon as the first one is added.
+        try (HashedDuplicateIndex index = new HashedDuplicateIndex(0)) {
+            checkAgainstMap(index);
+            assertTrue(index.isOnDisk());
+        }
+    }
+
+    @Test
+    void testIgnoresCase() {
+        try (HashedDuplicateIndex index = new HashedDuplicateIndex()) {
+            assertEquals(DuplicateIndex.NOT_FOUND, index.put("abc-123", 1));
+            assertEquals(1, index.put("ABC-123", 2));
+            assertEquals(2, index.put("Abc-123", 3));
+            assertEquals(DuplicateIndex.NOT_FOUND, index.put("straße", 4));
+            assertEquals(4, index.put("STRASSE", 5));
+            assertEquals(DuplicateIndex.NOT_FOUND, index.put("", 6));
+            assertEquals(6, index.put("", 7));
+            index.clear();
+            assertEquals(DuplicateIndex.NOT_FOUND, index.put("abc-123", 8));
+        }
+    }
+
+    /**
+     * Add enough identifiers to grow the table several times, with some repeated,
+     * and check that the index reports the same lines as a map would.
+     * @param index The index to check.
+     */
+    private void checkAgainstMap(HashedDuplicateIndex index) {
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(2020);
+        for (int line = 1; line <= 50000; line++) {
+            String id = "ID" + random.nextInt(40000) + (line % 7 == 0 ? "é中" : "");
+            Integer previous = expected.put(id.toUpperCase(), line);
+            assertEquals(previous == null ? DuplicateIndex.NOT_FOUND : previous.intValue(),
+                index.put(line % 2 == 0 ? id.toLowerCase() : id, line), id);
+        }
+        assertEquals(expected.size(), index.size());
+    }
+}
@@ -0,0 +1,66 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TestMappedFileReader {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "src/test/resources/testgood.txt",
+        "src/test/resources/testerror.txt",
+        "src/test/resources/testencoding.hl7",
+        "src/test/resources/empty.txt"
+    })
+    void testMatchesInputStreamReader(String file) throws IOException {
+        Path path = new java.io.File(file).toPath();
+        String expected = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        try (Reader r = new MappedFileReader(path)) {
+            assertEquals(expected, IOUtils.toString(r));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "ASCII only", "Café\tnaïve", "💉 vaccine" })
+    void testDecoding(String content) throws IOException {
+        Path path = Files.createTempFile("mapped", ".txt");
+        try {
+            byte data[] = content.getBytes(StandardCharsets.UTF_8);
+            Files.write(path, data);
+            String expected = new String(data, StandardCharsets.UTF_8);
+            try (Reader r = new MappedFileReader(path)) {
+                char buffer[] = new char[1];
+                StringBuilder b = new StringBuilder();
+                int count;
+                // Read a character at a time to exercise split surrogate pairs.
+                while ((count = r.read(buffer, 0, 1)) > 0) {
+                    b.append(buffer, 0, count);
+                }
+                assertEquals(expected, b.toString());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
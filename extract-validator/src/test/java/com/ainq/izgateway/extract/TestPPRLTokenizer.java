@@ -0,0 +1,143 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.ainq.izgateway.extract.PPRLTokenizer.Encoding;
+import com.ainq.izgateway.extract.validation.BeanValidator;
+
+class TestPPRLTokenizer {
+    private static final byte KEY[] = "correct horse battery staple".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void testSipHash() {
+        // Test vectors from the SipHash reference implementation, with the key 00 01 02 ... 0f
+        long k0 = 0x0706050403020100L, k1 = 0x0f0e0d0c0b0a0908L;
+        assertEquals(0x726fdb47dd0e0e31L, PPRLTokenizer.sipHash(k0, k1, 0, 0));
+        assertEquals(0xcf2794e0277187b7L, PPRLTokenizer.sipHash(k0, k1, 0x03020100L, 4));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "HASH, Mary, Smith, 2015-08-26, F, 48877",
+        "HASH, ' mary ', SMITH, 20150826, Female, 48877-1234",
+        "HASH, Mary, Smith, 2015-08-26, F, ' 48877'",
+        "BLOOM, Mary, Smith, 2015-08-26, F, 48877",
+        "BLOOM, MARY, smith, 2015/08/26, f, 48877 1234",
+        "BLOOM, Mary, Smith, 2015-08-26, F, ' 48877 '"
+    })
+    void testNormalization(String encoding, String first, String last, String dob, String sex, String zip) {
+        PPRLTokenizer tokenizer = new PPRLTokenizer(KEY, Encoding.valueOf(encoding), PPRLTokenizer.DEFAULT_BITS, PPRLTokenizer.DEFAULT_HASHES);
+        String expected = tokenizer.tokenize(newExtract("Mary", "Smith", "2015-08-26", "F", "48877"));
+        String token = tokenizer.tokenize(newExtract(first, last, dob, sex, zip));
+        assertEquals(expected, token);
+        assertTrue(token.length() <= 100, token);
+        // Copies used on other threads create the same tokens
+        assertEquals(expected, tokenizer.copy().tokenize(newExtract(first, last, dob, sex, zip)));
+        // Tokens depend on the key
+        PPRLTokenizer other = new PPRLTokenizer("another key".getBytes(StandardCharsets.UTF_8), Encoding.valueOf(encoding),
+            PPRLTokenizer.DEFAULT_BITS, PPRLTokenizer.DEFAULT_HASHES);
+        assertNotEquals(expected, other.tokenize(newExtract(first, last, dob, sex, zip)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "HASH", "BLOOM" })
+    void testDifferentRecords(String encoding) {
+        PPRLTokenizer tokenizer = new PPRLTokenizer(KEY, Encoding.valueOf(encoding), PPRLTokenizer.DEFAULT_BITS, PPRLTokenizer.DEFAULT_HASHES);
+        String mary = tokenizer.tokenize(newExtract("Mary", "Smith", "2015-08-26", "F", "48877"));
+        String marie = tokenizer.tokenize(newExtract("Marie", "Smith", "2015-08-26", "F", "48877"));
+        String john = tokenizer.tokenize(newExtract("John", "Jones", "1960-01-01", "M", "10001"));
+        assertNotEquals(mary, marie);
+        assertNotEquals(mary, john);
+        if (tokenizer.getEncoding() == Encoding.BLOOM) {
+            // Similar records have similar Bloom filters
+            assertTrue(dice(mary, marie) > 0.9, "Mary and Marie " + dice(mary, marie));
+            assertTrue(dice(mary, john) < 0.8, "Mary and John " + dice(mary, john));
+        }
+        // Tokens cannot be created from redacted data
+        assertNull(tokenizer.tokenize(newExtract("Redacted", "Redacted", "", "F", "48877")));
+        // or when any part of the name or date of birth is missing
+        assertNull(tokenizer.tokenize(newExtract("Mary", "Smith", "", "F", "48877")));
+        assertNull(tokenizer.tokenize(newExtract("Mary", "Redacted", "2015-08-26", "F", "48877")));
+        assertNull(tokenizer.tokenize(newExtract("", "Smith", "2015-08-26", "F", "48877")));
+        assertNotNull(tokenizer.tokenize(newExtract("Mary", "Smith", "2015-08-26", "", "")));
+    }
+
+    @Test
+    void testValidatePPRLExtract() throws IOException {
+        PPRLTokenizer tokenizer = new PPRLTokenizer(KEY, Encoding.BLOOM, PPRLTokenizer.DEFAULT_BITS, PPRLTokenizer.DEFAULT_HASHES);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BeanValidator bv = new BeanValidator(null);
+        // Tokens need a name, and the names in testgood.txt are already redacted
+        StringBuilder b = new StringBuilder();
+        for (String line: Files.readAllLines(Paths.get("src/test/resources/testgood.txt"), StandardCharsets.UTF_8)) {
+            String values[] = line.split("\t", -1);
+            if (b.length() != 0) {
+                values[4] = "Mary";
+                values[6] = "Smith";
+            }
+            b.append(String.join("\t", values)).append("\n");
+        }
+        try (Validator v = new Validator(new StringReader(b.toString()), bv, false)) {
+            v.setRedacting(true).setPPRLTokenizer(tokenizer).setCvrs(new PrintStream(out, true, "UTF-8"));
+            assertEquals(0, v.validateFile());
+        } finally {
+            bv.resetEventIds();
+        }
+        String rows[] = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n");
+        assertEquals(34, rows.length);
+        for (int i = 1; i < rows.length; i++) {
+            String values[] = rows[i].split("\t");
+            assertEquals("P", values[1], rows[i]);
+            assertTrue(values[2].length() > 0, rows[i]);
+            assertEquals("Redacted", values[4], rows[i]);
+        }
+    }
+
+    private static double dice(String token1, String token2) {
+        BitSet a = BitSet.valueOf(Base64.getDecoder().decode(token1)), b = BitSet.valueOf(Base64.getDecoder().decode(token2));
+        int total = a.cardinality() + b.cardinality();
+        a.and(b);
+        return 2.0 * a.cardinality() / total;
+    }
+
+    private static CVRSExtract newExtract(String first, String last, String dob, String sex, String zip) {
+        CVRSExtract extract = new CVRSExtract();
+        extract.setRecip_first_name(first);
+        extract.setRecip_last_name(last);
+        extract.setRecip_dob(dob);
+        extract.setRecip_sex(sex);
+        extract.setRecip_address_zip(zip);
+        return extract;
+    }
+}
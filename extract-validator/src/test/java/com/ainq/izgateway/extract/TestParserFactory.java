@@ -0,0 +1,66 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TestParserFactory {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "src/test/resources/testgood.txt",
+        "src/test/resources/testerror.txt",
+        "src/test/resources/testgoodv1.txt",
+        "src/test/resources/testMissingHeaders.txt"
+    })
+    void testTabDelimitedReaderMatchesCsvToBean(String file) throws IOException {
+        String content = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        List<String[]> expected = readAll(ParserFactory.newTabDelimitedBeanReader(new StringReader(content), null, 0));
+        List<String[]> actual = readAll(ParserFactory.newTabDelimitedReader(new StringReader(content), null, 0));
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i), "Record " + (i + 1));
+        }
+    }
+
+    @Test
+    void testLineEndings() {
+        String content = "vax_event_id\text_type\r\nA\tD\rB\tI\nC\tP";
+        List<String[]> actual = readAll(ParserFactory.newTabDelimitedReader(new StringReader(content), null, 0));
+        assertEquals(3, actual.size());
+        assertEquals("A", actual.get(0)[0]);
+        assertEquals("I", actual.get(1)[1]);
+        assertEquals("P", actual.get(2)[1]);
+    }
+
+    private static List<String[]> readAll(Iterable<CVRSExtract> parser) {
+        List<String[]> result = new ArrayList<>();
+        for (CVRSExtract extract: parser) {
+            result.add(extract.getValues());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.ainq.izgateway.extract.validation.BeanValidator;
+import com.ainq.izgateway.extract.validation.CVRSValidationException;
+
+class TestRedactor {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "src/test/resources/testgood.txt",
+        "src/test/resources/testerror.txt",
+        "src/test/resources/testgoodv1.txt",
+        "src/test/resources/testMissingHeaders.txt"
+    })
+    void testRedactorMatchesRedact(String file) throws IOException {
+        byte content[] = Files.readAllBytes(Paths.get(file));
+        BeanValidator counter = new BeanValidator(null);
+        Redactor redactor = new Redactor(new ByteArrayInputStream(content), counter);
+        assertTrue(redactor.readHeader());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        redactor.redact(out);
+
+        // Redacting each record and verifying it gives the same records and redaction statistics
+        BeanValidator bv = new BeanValidator(null);
+        List<String[]> expected = new ArrayList<>();
+        for (CVRSExtract extract: readAll(content)) {
+            extract.redact();
+            expected.add(extract.getValues());
+            try {
+                bv.verifyBean(extract);
+            } catch (CVRSValidationException ex) {
+                // Only the counts matter here.
+            }
+        }
+        List<CVRSExtract> actual = readAll(out.toByteArray());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.size(), redactor.getCount());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i).getValues(), "Record " + (i + 1));
+        }
+        assertEquals(bv.getFieldCounts(), counter.getFieldCounts());
+        bv.resetEventIds();
+    }
+
+    @Test
+    void testUnchangedBytes() throws IOException {
+        String content = "﻿recip_first_name\tvax_event_id\trecip_last_name\r\n" +
+            "John\tA1 café\tDoe\rMary\tB2\n\tC3\t\nX";
+        String expected = "﻿recip_first_name\tvax_event_id\trecip_last_name\r\n" +
+            "Redacted\tA1 café\tRedacted\rRedacted\tC3\tRedacted\n";
+        Redactor redactor = new Redactor(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), null);
+        assertTrue(redactor.readHeader());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        redactor.redact(out);
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, redactor.getCount());
+        assertEquals(2, redactor.getSkipped());
+    }
+
+    @Test
+    void testNotTabDelimited() throws IOException {
+        byte content[] = Files.readAllBytes(Paths.get("src/test/resources/testgood.hl7"));
+        assertFalse(new Redactor(new ByteArrayInputStream(content), null).readHeader());
+    }
+
+    private static List<CVRSExtract> readAll(byte content[]) {
+        List<CVRSExtract> result = new ArrayList<>();
+        String text = new String(content, StandardCharsets.UTF_8);
+        for (CVRSExtract extract: ParserFactory.newTabDelimitedReader(new StringReader(text), null, 0)) {
+            result.add(extract);
+        }
+        return result;
+    }
+}
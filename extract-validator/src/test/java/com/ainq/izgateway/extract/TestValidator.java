@@ -12,29 +12,43 @@ package com.ainq.izgateway.extract;
  * License for the specific language governing permissions and limitations
  * under the License.
  */
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import com.ainq.izgateway.extract.validation.BeanValidator;
 import com.ainq.izgateway.extract.validation.CVRSValidationException;
+import com.ainq.izgateway.extract.validation.DateValidator;
+import com.ainq.izgateway.extract.validation.Matches;
+import com.ainq.izgateway.extract.validation.RuleTable;
+import com.ainq.izgateway.extract.validation.ValueSet;
 
 import ca.uhn.hl7v2.HL7Exception;
 import gov.nist.validation.report.Entry;
@@ -172,4 +186,229 @@ class TestValidator {
         return good.stream();
     }
 
+    @Test
+    void testAddedRules() throws IOException {
+        // Version 0 is not a CVRS version, so no built in rules apply to it.
+        RuleTable rules = BeanValidator.getDefaultRules().add(new StringReader(
+            "# Added rules\n" +
+            "BUSR020\t%s (%s) and %s (%s) are both YES\tvax_refusal NAND recip_missed_appt\tWARN\t0\n"
+        ));
+        BeanValidator bv = new BeanValidator(null, "0").setRules(rules);
+        CVRSExtract extract = new CVRSExtract();
+        extract.setVax_refusal("YES");
+        extract.setRecip_missed_appt("YES");
+        CVRSValidationException ex = assertThrows(CVRSValidationException.class, () -> bv.verifyBean(extract));
+        assertTrue(ex.getEntries().stream().anyMatch(e -> "BUSR020".equals(e.getCategory()) && "WARN".equals(e.getClassification())),
+            "BUSR020 not reported: " + ex.getEntries());
+
+        // Added rules only apply to validators using the table they were added to.
+        assertNull(BeanValidator.getDefaultRules().getRule("BUSR020"));
+        CVRSValidationException ex2 = assertThrows(CVRSValidationException.class, () -> new BeanValidator(null, "0").verifyBean(extract));
+        assertFalse(ex2.getEntries().stream().anyMatch(e -> "BUSR020".equals(e.getCategory())),
+            "BUSR020 reported without the added rules: " + ex2.getEntries());
+
+        // Rules with unknown operators or fields are rejected.
+        assertThrows(IllegalArgumentException.class,
+            () -> rules.add(new StringReader("BUSR019\tBad rule\tvax_refusal unknown recip_missed_appt\n")));
+        assertThrows(IllegalArgumentException.class,
+            () -> rules.add(new StringReader("BUSR019\tBad rule\tvax_refusal NAND no_such_field\n")));
+    }
+
+
+    @ParameterizedTest
+    @CsvSource({
+        "SEX, M, true", "SEX, ' f ', true", "SEX, u\t, true", "SEX, X, false", "SEX, MM, false", "SEX, ' ', false",
+        "COUNTY, 45001, true", "COUNTY, ' 45001', true", "COUNTY, 4500, false",
+        "MVX, mod, true", "MVX, Mod , true", "MVX, MÖD, false"
+    })
+    void testValueSetLookup(String name, String value, boolean expected) {
+        ValueSet valueSet = ValueSet.get(name);
+        assertEquals(expected, valueSet.contains(value), value);
+        // Value sets are loaded once and shared.
+        assertTrue(valueSet == ValueSet.get(name));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "yyyy-MM-dd|yyyy-MM, 2021-01-15, true", "yyyy-MM-dd|yyyy-MM, 2021-01, true", "yyyy-MM-dd|yyyy-MM, 2020-02-29, true",
+        "yyyy-MM-dd|yyyy-MM, 2021-02-29, false", "yyyy-MM-dd|yyyy-MM, 2021-13-01, false", "yyyy-MM-dd|yyyy-MM, 2021-1-15, false",
+        "yyyy-MM-dd|yyyy-MM, 2021-01-15x, false", "yyyy-MM-dd|yyyy-MM, 21-01-15, false", "yyyy-MM-dd|yyyy-MM, 01/15/2021, false",
+        "yyyy-MM-dd, 2021-01, false", "yyyy-MM-dd, 1900-02-29, false", "yyyy-MM-dd, 2000-02-29, true",
+        "MM/dd/yyyy, 01/15/2021, true", "MM/dd/yyyy, 02/30/2021, false", "MM/dd/yyyy, 2021-01-15, false",
+        // Other formats have SimpleDateFormat semantics, where Y is a week year
+        "YYYY-MM-dd, 2021-01-15, false"
+    })
+    void testDateValidator(String format, String value, boolean expected) {
+        DateValidator validator = new DateValidator();
+        validator.setParameterString(format);
+        assertEquals(expected, validator.isValid(value), value);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "^\\S+$, abc, true", "^\\S+$, a c, false", "^\\S+.*$, a c, true", "^\\S+.*$, ' ac', false", "^\\S+.*$, 'a\nc', false",
+        "\\d{5}(-\\d{4})?, 12345, true", "\\d{5}(-\\d{4})?, 12345-6789, true", "\\d{5}(-\\d{4})?, 12345-678, false",
+        "'^([0-9A-Za-z]{0,6})$', A1b2C3, true", "'^([0-9A-Za-z]{0,6})$', A1b2C3d, false", "'^([0-9A-Za-z]{0,6})$', A-1, false",
+        "^(\\d{5}(-\\d{4})?)?$, 12345, true", "^(\\d{5}(-\\d{4})?)?$, 1234, false",
+        "Pfizer|Moderna, Moderna, true", "Pfizer|Moderna, Janssen, false"
+    })
+    void testMatches(String regex, String value, boolean expected) {
+        Matches matches = new Matches();
+        matches.setParameterString(regex);
+        assertEquals(value.matches(regex), matches.isValid(value), value);
+        assertEquals(expected, matches.isValid(value), value);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "35203, AL, true", "36104, al, true", "37203, AL, false", "06103, CT, true", "10001, CT, false",
+        "05401, VT, true", "05401, NY, true", "06390, NY, true", "06103, NY, false", "96799, AS, true", "96701, AS, false",
+        "96799-1234, AS, true", "96701, HI, true", "96950, MP, true", "96953, MP, false", "96950, GU, true", "35, AL, true", "3, AL, false",
+        "39901, GA, true", "39701, GA, false", "1529, MI, false", "4820, MI, true", "48201, XX, false",
+        "48201, FM, false", "48201-1234, MI, true", "A8201, MI, false", ", MI, true", "48201, , true"
+    })
+    void testZipInState(String zip, String state, boolean expected) {
+        assertEquals(expected, BeanValidator.isZipInState(zip, state), zip + " " + state);
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "01001, AL, true", "01001, al, true", "06001, AL, false", "06001, CA, true", "06001, XX, true", "06001, , true" })
+    void testCountyInState(String county, String state, boolean expected) {
+        assertEquals(expected, BeanValidator.isCountyInState(county, state), county + " " + state);
+    }
+
+    @Test
+    void testFieldCounts() {
+        BeanValidator bv1 = new BeanValidator(null), bv2 = new BeanValidator(null);
+        countFields(bv1, "12300", "2000-01-01", "UNK");
+        countFields(bv2, "00000", "2000-02-01", "U");
+        countFields(bv2, "12345", "", "F");
+        bv1.addFieldCounts(bv2);
+        Map<String, Integer> counts = bv1.getFieldCounts();
+        assertEquals(3, counts.get("recip_address_zip").intValue());
+        assertEquals(2, counts.get("recip_address_zip_00").intValue());
+        assertEquals(1, counts.get("recip_address_zip_00000").intValue());
+        assertEquals(2, counts.get("recip_dob").intValue());
+        assertEquals(1, counts.get("recip_dob_01-01").intValue());
+        assertEquals(2, counts.get("recip_sex_unk").intValue());
+        // Counts that are zero are still reported.
+        assertEquals(0, counts.get("admin_address_zip_00").intValue());
+        assertEquals(0, counts.get("vax_refusal_yes").intValue());
+
+        bv1.clearFieldCounts();
+        assertTrue(bv1.getFieldCounts().values().stream().allMatch(v -> v == 0));
+        assertEquals(counts.keySet(), bv1.getFieldCounts().keySet());
+    }
+
+    private static void countFields(BeanValidator bv, String zip, String dob, String sex) {
+        CVRSExtract extract = new CVRSExtract();
+        extract.setRecip_address_zip(zip);
+        extract.setRecip_dob(dob);
+        extract.setRecip_sex(sex);
+        try {
+            bv.verifyBean(extract);
+        } catch (CVRSValidationException ex) {
+            // Only the counts matter here.
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "1970-01-01, 0", "2021-01-15, 18642", "2000-02-29, 11016", "1969-12-31, -1", "2021-02-29, " + DateValidator.NOT_A_DATE, "2021-01, " + DateValidator.NOT_A_DATE })
+    void testEpochDay(String value, int expected) {
+        assertEquals(expected, DateValidator.toEpochDay(value), value);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        ", 100, 100", "1, 100, 100", "0, 100, 0", "10, 100, 10", "7, 100, 15", "10, 5, 1",
+        "100%, 100, 100", "0%, 100, 0", "10%, 10000, 1049", "2.5%, 10000, 259"
+    })
+    void testRoundTripPolicy(String value, int records, int expected) {
+        RoundTripPolicy policy = RoundTripPolicy.parse(value);
+        int checked = 0;
+        for (int record = 1; record <= records; record++) {
+            if (policy.shouldCheck(record)) {
+                checked++;
+            }
+        }
+        assertEquals(expected, checked, policy.toString());
+        // The same records are chosen every time.
+        assertEquals(policy.shouldCheck(records), RoundTripPolicy.parse(value).shouldCheck(records));
+        assertEquals(expected != 0 && expected != records, policy.isSampled());
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "-1", "abc", "101%", "-5%", "%" })
+    void testInvalidRoundTripPolicy(String value) {
+        assertThrows(IllegalArgumentException.class, () -> RoundTripPolicy.parse(value));
+    }
+
+    @Test
+    void testPipelineStopsReading() throws IOException, InterruptedException {
+        List<String> lines = Files.readAllLines(Paths.get("src/test/resources/testgood.txt"), StandardCharsets.UTF_8);
+        int eventId = Arrays.asList(lines.get(0).split("\t", -1)).indexOf("vax_event_id");
+        StringBuilder b = new StringBuilder(lines.get(0)).append('\n');
+        // More records than fit in the queue between the reading and writing stages
+        for (int i = 0; i < 5000; i++) {
+            String values[] = lines.get(1).split("\t", -1);
+            values[eventId] = "PIPELINE" + i;
+            b.append(String.join("\t", values)).append('\n');
+        }
+        // Writing the first record fails after the reading stage has had time to fill the queue
+        AtomicBoolean armed = new AtomicBoolean(false);
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int c) {
+                if (armed.getAndSet(false)) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("Write failed");
+                }
+            }
+        };
+        BeanValidator bv = new BeanValidator(null);
+        try (Validator v = new Validator(new StringReader(b.toString()), bv, false)) {
+            v.setPipeline(true).setIgnoringErrors(true).setCvrs(new PrintStream(failing, true, "UTF-8"));
+            armed.set(true);
+            IllegalStateException ex = assertThrows(IllegalStateException.class, v::validateFile);
+            assertEquals("Write failed", ex.getMessage());
+        } finally {
+            bv.resetEventIds();
+        }
+        // The reading stage stops rather than waiting forever for room in the queue
+        for (int i = 0; i < 50 && isPipelineReading(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(isPipelineReading());
+    }
+
+    private static boolean isPipelineReading() {
+        for (StackTraceElement stack[]: Thread.getAllStackTraces().values()) {
+            for (StackTraceElement frame: stack) {
+                if (frame.getClassName().equals(Validator.class.getName()) && frame.getMethodName().startsWith("lambda$validateInPipeline")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void testDiffersAt() {
+        CVRSExtract extract = new CVRSExtract();
+        extract.setRecip_sex("M");
+        extract.setRecip_dob("2000-01-01");
+        CVRSExtract extract2 = extract.clone();
+        // Case is ignored, and null is the same as empty.
+        extract2.setRecip_sex("m");
+        extract2.setRecip_first_name("");
+        assertNull(extract.differsAt(extract2));
+        assertNull(extract.notEqualsAt(extract2));
+        extract2.setRecip_dob("2000-01-02");
+        assertEquals("recip_dob", extract.differsAt(extract2).getName());
+        assertEquals("recip_dob", extract.notEqualsAt(extract2).getName());
+    }
 }
@@ -0,0 +1,126 @@
+package com.ainq.izgateway.extract;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+class TestValidatorDaemon {
+    private static final String TESTGOOD = "src/test/resources/testgood.txt";
+    private static final String TESTERROR = "src/test/resources/testerror.txt";
+
+    @Test
+    void testWatchFolder() throws IOException, InterruptedException {
+        Path inbox = Files.createTempDirectory("inbox");
+        try (ValidatorDaemon daemon = new ValidatorDaemon()) {
+            // Files already in the inbox are validated when the daemon starts
+            Files.copy(Paths.get(TESTGOOD), inbox.resolve("testgood.txt"));
+            daemon.watch(inbox, new ValidationConfig.Builder().build());
+            // Files written under a temporary name are not validated until they are renamed
+            Files.copy(Paths.get(TESTERROR), inbox.resolve("testerror.txt.part"));
+            Thread.sleep(3 * ValidatorDaemon.QUIET_PERIOD);
+            assertTrue(Files.exists(inbox.resolve("testerror.txt.part")));
+            Files.move(inbox.resolve("testerror.txt.part"), inbox.resolve("testerror.txt"), StandardCopyOption.ATOMIC_MOVE);
+
+            Path done = inbox.resolve(ValidatorDaemon.DONE), error = inbox.resolve(ValidatorDaemon.ERROR);
+            waitFor(error.resolve("testerror.rpt"));
+            waitFor(done.resolve("testgood.rpt"));
+            waitFor(done.resolve("testgood.txt"));
+            waitFor(error.resolve("testerror.txt"));
+            assertEquals(0, inbox.resolve(ValidatorDaemon.WORK).toFile().list().length);
+            String report = new String(Files.readAllBytes(error.resolve("testerror.rpt")), StandardCharsets.UTF_8);
+            assertTrue(report.contains("REQD001"), report);
+        } finally {
+            FileUtils.deleteDirectory(inbox.toFile());
+        }
+    }
+
+    @Test
+    void testWatchFolderRejectsRedactionStatistics() throws IOException {
+        Path inbox = Files.createTempDirectory("inbox");
+        try (ValidatorDaemon daemon = new ValidatorDaemon()) {
+            ValidationConfig config = new ValidationConfig.Builder().setReportRedactions(true).build();
+            assertThrows(IllegalArgumentException.class, () -> daemon.watch(inbox, config));
+        } finally {
+            FileUtils.deleteDirectory(inbox.toFile());
+        }
+    }
+
+    @Test
+    void testSocket() throws IOException {
+        int port;
+        try (ValidatorDaemon daemon = new ValidatorDaemon()) {
+            port = daemon.listen(0);
+            String token = new String(Files.readAllBytes(ValidatorDaemon.getTokenFile(port)), StandardCharsets.UTF_8);
+            String good = run(port, token, new File(TESTGOOD).getAbsolutePath());
+            assertTrue(good.endsWith("Exit code: 0" + System.lineSeparator()), good);
+            String bad = run(port, token, "-v2", new File(TESTERROR).getAbsolutePath());
+            assertTrue(bad.contains("REQD001"), bad);
+            assertTrue(!bad.endsWith("Exit code: 0" + System.lineSeparator()), bad);
+            // Standard input cannot be validated through the socket
+            String stdin = run(port, token, "-");
+            assertTrue(stdin.endsWith("Exit code: -1" + System.lineSeparator()), stdin);
+            // Nothing is run without the token
+            String noToken = run(port, new File(TESTGOOD).getAbsolutePath());
+            assertTrue(noToken.endsWith("Exit code: -1" + System.lineSeparator()), noToken);
+            String wrongToken = run(port, token + "x", new File(TESTGOOD).getAbsolutePath());
+            assertTrue(wrongToken.endsWith("Exit code: -1" + System.lineSeparator()), wrongToken);
+            // Options reading or writing other files cannot be used through the socket
+            for (String option: new String[] { "-Rrules.txt", "-gpprl.properties", "-c/tmp", "-7", "-b/tmp", "-r/tmp", "-W/tmp", "-A8123" }) {
+                String rejected = run(port, token, option, new File(TESTGOOD).getAbsolutePath());
+                assertTrue(rejected.endsWith("Exit code: -1" + System.lineSeparator()), rejected);
+            }
+        }
+        // The token is removed when the daemon stops
+        assertFalse(Files.exists(ValidatorDaemon.getTokenFile(port)));
+    }
+
+    private static String run(int port, String ... args) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = s.getOutputStream();
+            for (String arg: args) {
+                out.write((arg + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.write('\n');
+            out.flush();
+            try (InputStream in = s.getInputStream()) {
+                return IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static void waitFor(Path file) throws InterruptedException {
+        for (int i = 0; i < 600 && !Files.exists(file); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(Files.exists(file), file + " was not created");
+    }
+}
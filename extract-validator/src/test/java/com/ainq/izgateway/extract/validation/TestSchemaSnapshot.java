@@ -0,0 +1,109 @@
+package com.ainq.izgateway.extract.validation;
+/*
+ * Copyright 2020 Audiacious Inquiry, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.ainq.izgateway.extract.CVRSField;
+import com.ainq.izgateway.extract.Converter;
+import com.ainq.izgateway.extract.annotations.RequirementType;
+
+class TestSchemaSnapshot {
+    private static final String VERSIONS[] = { "1", "2" };
+
+    @Test
+    void testRoundTrip() throws IOException {
+        SchemaSnapshot computed = SchemaSnapshot.compute(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        computed.write(out);
+        SchemaSnapshot snapshot = SchemaSnapshot.read(out.toByteArray());
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isFromSnapshot());
+
+        // The snapshot matches what is read from the annotations
+        SchemaSnapshot annotations = SchemaSnapshot.compute(false);
+        assertArrayEquals(annotations.getHeaders(null), snapshot.getHeaders(null));
+        for (String version: VERSIONS) {
+            assertArrayEquals(annotations.getHeaders(version), snapshot.getHeaders(version), version);
+        }
+        for (int i = 0; i < CVRSField.count(); i++) {
+            CVRSField field = CVRSField.get(i);
+            assertEquals(annotations.getValidator(field), snapshot.getValidator(field), field.getName());
+            assertEquals(annotations.getParamString(field), snapshot.getParamString(field), field.getName());
+            assertEquals(annotations.getMaxLength(field), snapshot.getMaxLength(field), field.getName());
+            assertEquals(annotations.isRedacted(field), snapshot.isRedacted(field), field.getName());
+            for (String version: VERSIONS) {
+                assertEquals(annotations.isIgnored(field, version), snapshot.isIgnored(field, version), field.getName());
+                for (RequirementType type: RequirementType.values()) {
+                    assertArrayEquals(annotations.getRequirement(field, type, version),
+                        snapshot.getRequirement(field, type, version), field.getName() + " " + type + " " + version);
+                }
+            }
+        }
+
+        // The HL7 order is as sorted by the converter
+        Field fields[] = new Field[CVRSField.count()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = CVRSField.get(i).getField();
+        }
+        Arrays.sort(fields, Converter::compareFields);
+        CVRSField hl7Order[] = snapshot.getHL7Order();
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i], hl7Order[i].getField());
+        }
+        assertArrayEquals(annotations.getHL7Order(), hl7Order);
+
+        // Value sets in the snapshot match those parsed from their resources
+        for (String name: new String[] { "COUNTY", "STATE", "CVX", "MVX" }) {
+            ValueSet parsed = ValueSet.parse(name), loaded = snapshot.getValueSet(name);
+            assertNotNull(loaded, name);
+            assertEquals(parsed.size(), loaded.size(), name);
+            assertEquals(parsed.getExamples(), loaded.getExamples(), name);
+            for (String code: parsed.getCodes()) {
+                assertTrue(loaded.contains(code), name + " " + code);
+            }
+        }
+        assertNull(annotations.getValueSet("COUNTY"));
+    }
+
+    @Test
+    void testStamp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SchemaSnapshot.compute(true).write(out);
+        byte data[] = out.toByteArray();
+        // The test classes are not in a jar, so the stamp is checked
+        URL location = SchemaSnapshot.class.getResource("SchemaSnapshot.class");
+        assertTrue(SchemaSnapshot.read(data).isCurrent(location));
+        // The stamp follows the magic number and format
+        data[15] ^= 1;
+        assertFalse(SchemaSnapshot.read(data).isCurrent(location));
+    }
+
+    @Test
+    void testOtherFormat() throws IOException {
+        assertNull(SchemaSnapshot.read(new byte[] { 'C', 'V', 'R', 'S', 0, 0, 0, 0 }));
+    }
+}